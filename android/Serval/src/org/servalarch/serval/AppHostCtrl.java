@@ -1,6 +1,7 @@
 /* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
 package org.servalarch.serval;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -8,7 +9,9 @@ import org.servalarch.net.ServiceID;
 import org.servalarch.servalctrl.HostCtrl;
 import org.servalarch.servalctrl.HostCtrl.HostCtrlException;
 import org.servalarch.servalctrl.HostCtrlCallbacks;
+import org.servalarch.servalctrl.HostCtrlFuture;
 import org.servalarch.servalctrl.LocalHostCtrl;
+import org.servalarch.servalctrl.ServiceInfo;
 
 import android.content.Context;
 import android.util.Log;
@@ -19,6 +22,7 @@ public class AppHostCtrl {
 	static final int SERVICE_ADD = 0;
 	static final int SERVICE_REMOVE = 1;
 	static final int SERVICE_GET = 2;
+	static final int SERVICE_MODIFY = 3;
 	static HostCtrlCallbacks cbs = null;
 	static HostCtrl hc = null;
 
@@ -97,11 +101,65 @@ public class AppHostCtrl {
 		case AppHostCtrl.SERVICE_GET:
 			AppHostCtrl.hc.getService(sid, prefixBits, addr);
 			break;
+		case AppHostCtrl.SERVICE_MODIFY:
+			if (addr instanceof Inet4Address)
+				modifyOrAdd(sid, prefixBits, addr);
+			break;
 		default:
 			break;
 		}
 	}
 
+	/**
+	 * Moves a forwarding rule to the interface that now routes its
+	 * address, adding the rule if the stack no longer has it.
+	 */
+	private static void modifyOrAdd(final ServiceID sid, final int prefixBits,
+			final InetAddress addr) {
+		final HostCtrl ctrl = hc;
+
+		ctrl.modifyServiceAsync(sid, prefixBits, 1, 1, addr, null)
+				.addListener(new HostCtrlFuture.Listener<ServiceInfo[]>() {
+					@Override
+					public void onComplete(HostCtrlFuture<ServiceInfo[]> f) {
+						if (f.getRetval() != HostCtrlCallbacks.RETVAL_OK) {
+							Log.d("Serval", "adding service " + sid
+									+ " address " + addr);
+							ctrl.addService(sid, prefixBits, 1, 1, addr);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Looks up the rule of a service without waiting for the reply.
+	 * 
+	 * @return the pending reply, or null if host control is not
+	 *         initialized or the serviceID is invalid.
+	 */
+	static HostCtrlFuture<ServiceInfo[]> getServiceAsync(
+			final String serviceStr, final String ipStr) {
+		InetAddress addr = null;
+		int prefixBits = 0;
+
+		if (hc == null)
+			return null;
+		String res[] = serviceStr.split(":");
+
+		if (res.length == 2)
+			prefixBits = Integer.parseInt(res[1]);
+
+		ServiceID sid = AppHostCtrl.createServiceID(res[0]);
+
+		if (sid == null)
+			return null;
+
+		if (!"delay".equals(ipStr) && !"drop".equals(ipStr))
+			addr = AppHostCtrl.createAddress(ipStr);
+
+		return hc.getServiceAsync(sid, prefixBits, addr);
+	}
+
 	static InetAddress createAddress(String ipStr) {
 		InetAddress addr = null;
 		try {
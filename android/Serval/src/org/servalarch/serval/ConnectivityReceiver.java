@@ -28,18 +28,17 @@ public class ConnectivityReceiver extends BroadcastReceiver {
     		NetworkInfo other = connManager.getNetworkInfo(opp);
     		Map<String, ?> idMap = prefs.getAll();
     		
-    		/* Connected, add rules back */
+    		/* Connected, move rules over in place, or add them back */
         	if (info.getState().equals(NetworkInfo.State.CONNECTED)) {
-        		performAction(context, idMap, AppHostCtrl.SERVICE_REMOVE);
-    			performAction(context, idMap, AppHostCtrl.SERVICE_ADD);
+    			performAction(context, idMap, AppHostCtrl.SERVICE_MODIFY);
         	}
-        	/* Disconnected, remove rules */
+        	/* Disconnected, move rules to the other interface if it is
+        	   up, otherwise remove them */
         	else if (info.getState().equals(NetworkInfo.State.DISCONNECTED)) {
-    			performAction(context, idMap, AppHostCtrl.SERVICE_REMOVE);
-    			
-    			/* Make rules available, since other interface is up */
         		if (other.isConnectedOrConnecting()) {
-        			performAction(context, idMap, AppHostCtrl.SERVICE_ADD);
+        			performAction(context, idMap, AppHostCtrl.SERVICE_MODIFY);
+        		} else {
+        			performAction(context, idMap, AppHostCtrl.SERVICE_REMOVE);
         		}
         	}
         }
@@ -4,12 +4,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
 
-import org.servalarch.net.ServiceID;
+import org.servalarch.servalctrl.HostCtrlFuture;
+import org.servalarch.servalctrl.ServiceInfo;
 
 import android.app.Service;
 import android.content.Intent;
@@ -21,7 +23,8 @@ import android.util.Log;
 public class TableService extends Service  {
 
 	private static final String TAG = "TableService";
-	public static final AtomicBoolean LOCK = new AtomicBoolean(true);
+	private static final String DEFAULT_ID = 
+		"0000000000000000000000000000000000000000000000000000000000000000";
 	
 	@Override
 	public IBinder onBind(Intent arg0) {
@@ -66,24 +69,39 @@ public class TableService extends Service  {
 				public void run() {
 					while (running) {
 						Map<String, ?> idMap = prefs.getAll();
+						List<String> ids = new ArrayList<String>();
+						List<HostCtrlFuture<ServiceInfo[]>> gets = 
+								new ArrayList<HostCtrlFuture<ServiceInfo[]>>();
 						try {
+							// Look up all saved rules at once, then add
+							// the ones that are missing
 							for (String srvID : idMap.keySet()) {
 								if (!(idMap.get(srvID) instanceof String))
 									continue;
-								String res[] = srvID.split(":");
-								ServiceID sid = AppHostCtrl
-										.createServiceID(res[0]);
 								String addr = (String) idMap.get(srvID);
-								synchronized(LOCK) {
-									AppHostCtrl.performOp(TableService.this,
-										srvID, addr, AppHostCtrl.SERVICE_GET);
-									Log.v(TAG, "Checking " + srvID);
-									LOCK.wait();
-									if (!LOCK.get()) {
-										Log.v(TAG, "Adding " + srvID + " | " + addr);
-										AppHostCtrl.performOp(TableService.this, srvID,
-												addr, AppHostCtrl.SERVICE_ADD);
-									}
+								HostCtrlFuture<ServiceInfo[]> get = 
+										AppHostCtrl.getServiceAsync(srvID, addr);
+								Log.v(TAG, "Checking " + srvID);
+								if (get != null) {
+									ids.add(srvID);
+									gets.add(get);
+								}
+							}
+							for (int i = 0; i < gets.size(); i++) {
+								String srvID = ids.get(i);
+								String addr = (String) idMap.get(srvID);
+								ServiceInfo[] info;
+								try {
+									info = gets.get(i).get();
+								} catch (ExecutionException e) {
+									Log.w(TAG, "Checking " + srvID + " failed: "
+											+ e.getCause());
+									continue;
+								}
+								if (!isFound(info)) {
+									Log.v(TAG, "Adding " + srvID + " | " + addr);
+									AppHostCtrl.performOp(TableService.this, srvID,
+											addr, AppHostCtrl.SERVICE_ADD);
 								}
 							}
 							SystemClock.sleep(3000);
@@ -92,6 +110,16 @@ public class TableService extends Service  {
 					}
 				}
 				
+				private boolean isFound(ServiceInfo[] info) {
+					if (info == null)
+						return false;
+					for (ServiceInfo i : info) {
+						if (!i.getServiceID().toString().equals(DEFAULT_ID))
+							return true;
+					}
+					return false;
+				}
+				
 				private String[] getExistingIds() {
 					File table = new File("/proc/net/serval/service_table");
 					String[] ret = new String[0];
@@ -476,6 +476,12 @@ int hostctrl_service_modify(struct hostctrl *hc,
 /**
  * @brief Add multiple service to a local or remote service table.
  *
+ * The services are packed into as few control messages as possible,
+ * each with its own transaction ID and its own reply.
+ *
+ * @return the number of entries sent, or -1 on error. If a message
+ * fails after others were sent, the entries from the returned index
+ * on were not sent.
  */
 int hostctrl_services_add(struct hostctrl *hc,
                           const struct service_info *si,
@@ -484,11 +490,44 @@ int hostctrl_services_add(struct hostctrl *hc,
 /**
  * @brief Remove multiple service to a local or remote service table.
  *
+ * @return the number of entries sent, or -1 on error. If a message
+ * fails after others were sent, the entries from the returned index
+ * on were not sent.
  */
 int hostctrl_services_remove(struct hostctrl *hc,
                              const struct service_info *si,
                              unsigned int num_si);
 
+/**
+ * @brief Look up multiple services in a local or remote service table.
+ *
+ * Each lookup is replied to like a call to hostctrl_service_get().
+ *
+ * @return the number of entries sent, or -1 on error. If a message
+ * fails after others were sent, the entries from the returned index
+ * on were not sent.
+ */
+int hostctrl_services_query(struct hostctrl *hc,
+                            const struct service_info *si,
+                            unsigned int num_si);
+
+/**
+ * @brief Modify multiple services in a local or remote service table.
+ *
+ * Each rule is modified in place, so the service always has a rule
+ * while it changes address or interface.
+ *
+ * @param si pairs of entries, the current rule followed by its new
+ * address, priority and weight, as in hostctrl_service_modify().
+ * @param num_si the number of entries, which must be even.
+ * @return the number of entries sent, or -1 on error. If a message
+ * fails after others were sent, the entries from the returned index
+ * on were not sent.
+ */
+int hostctrl_services_modify(struct hostctrl *hc,
+                             const struct service_info *si,
+                             unsigned int num_si);
+
 /**
  * @brief Query a service for statistics.
  *
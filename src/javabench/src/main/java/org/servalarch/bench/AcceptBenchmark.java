@@ -0,0 +1,59 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServalServerSocket;
+import org.servalarch.net.ServalSocket;
+
+/**
+ * Connection rate of a {@code ServalServerSocket}: every operation
+ * connects, waits for the server to accept and close the connection,
+ * and closes its end.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcceptBenchmark {
+
+    private ServalServerSocket server;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = Peers.listen(Peers.ACCEPT_SERVICE);
+        Peers.acceptor(server);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        Peers.close(server);
+    }
+
+    @Benchmark
+    public int connectAccept() throws IOException {
+        ServalSocket sock = Peers.connect(Peers.ACCEPT_SERVICE);
+
+        try {
+            // Returns -1 once the server has accepted and closed
+            return sock.getInputStream().read();
+        } finally {
+            sock.close();
+        }
+    }
+}
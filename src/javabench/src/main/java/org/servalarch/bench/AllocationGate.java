@@ -0,0 +1,57 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link StreamAllocationBenchmark} with the GC profiler and exits
+ * with status 1 if any of its operations allocates, so that a change
+ * bringing garbage back onto the socket paths fails the run. The
+ * forked JVMs get the arguments of this one, such as the network
+ * stack to use.
+ */
+public final class AllocationGate {
+
+    /*
+     * Bytes per operation left to the harness, whose own allocations
+     * are spread over all operations of an iteration.
+     */
+    private static final double MAX_BYTES_PER_OP = 1.0;
+
+    private AllocationGate() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opts = new OptionsBuilder()
+            .include(StreamAllocationBenchmark.class.getName())
+            .addProfiler(GCProfiler.class)
+            .shouldFailOnError(true)
+            .build();
+        int failed = 0;
+
+        for (RunResult r : new Runner(opts).run()) {
+            String name = r.getParams().getBenchmark();
+            Result<?> alloc = r.getSecondaryResults().get("gc.alloc.rate.norm");
+
+            if (alloc == null) {
+                System.err.println(name + ": no allocation rate reported");
+                failed++;
+            } else if (alloc.getScore() > MAX_BYTES_PER_OP) {
+                System.err.printf("%s: %.1f bytes/op%n", name,
+                                  alloc.getScore());
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            System.err.println(failed + " benchmark(s) allocate");
+            System.exit(1);
+        }
+        System.out.println("No allocations on the socket paths");
+    }
+}
@@ -0,0 +1,120 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServalDatagramPacket;
+import org.servalarch.net.ServalDatagramSocket;
+import org.servalarch.net.ServiceID;
+
+/**
+ * Datagram rate of a {@code ServalDatagramSocket} sending to an
+ * unconnected receiver, one packet per call and in batches. The
+ * {@code sent} and {@code received} counters give packets per second
+ * at either end; the difference is what the stack dropped.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatagramBenchmark {
+
+    private static final int BATCH = 32;
+
+    @Param({ "64", "1024" })
+    public int packetSize;
+
+    private ServalDatagramSocket receiver;
+    private ServalDatagramSocket sender;
+    private ServalDatagramPacket pack;
+    private ServalDatagramPacket[] batch;
+    private final AtomicLong received = new AtomicLong();
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Packets {
+        public long sent;
+        private DatagramBenchmark bench;
+        private long receivedBase;
+
+        @Setup(Level.Iteration)
+        public void reset(DatagramBenchmark bench) {
+            this.bench = bench;
+            sent = 0;
+            receivedBase = bench.received.get();
+        }
+
+        public long received() {
+            return bench.received.get() - receivedBase;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ServiceID id = new ServiceID(Peers.DATAGRAM_SINK_SERVICE);
+
+        receiver = new ServalDatagramSocket(id);
+        sender = new ServalDatagramSocket();
+
+        Peers.start("datagram-sink", new Runnable() {
+            public void run() {
+                ServalDatagramPacket[] packs = new ServalDatagramPacket[BATCH];
+
+                for (int i = 0; i < packs.length; i++) {
+                    packs[i] = new ServalDatagramPacket(new byte[2048], 2048);
+                }
+
+                try {
+                    while (true) {
+                        received.addAndGet(receiver.receiveBatch(packs));
+                    }
+                } catch (IOException e) {
+                    // Closed by teardown
+                }
+            }
+        });
+
+        pack = new ServalDatagramPacket(new byte[packetSize], packetSize, id);
+        batch = new ServalDatagramPacket[BATCH];
+
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new ServalDatagramPacket(new byte[packetSize],
+                                                packetSize, id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public void send(Packets counter) throws IOException {
+        sender.send(pack);
+        counter.sent++;
+    }
+
+    @Benchmark
+    public void sendBatch(Packets counter) throws IOException {
+        counter.sent += sender.sendBatch(batch);
+    }
+}
@@ -0,0 +1,130 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServiceID;
+import org.servalarch.servalctrl.HostCtrl;
+import org.servalarch.servalctrl.HostCtrlCallbacks;
+import org.servalarch.servalctrl.LocalHostCtrl;
+import org.servalarch.servalctrl.ServiceInfo;
+
+/**
+ * Service table operations through a {@code LocalHostCtrl}.
+ * <p>
+ * The throughput benchmarks measure how fast requests are sent, without
+ * waiting for their replies. The latency benchmark sends a lookup and
+ * waits for its reply to be paired with the request by transaction ID
+ * and delivered through the callbacks. The reply carries one {@code
+ * ServiceInfo} per rule of the service, so running it with {@code -prof
+ * gc} gives the allocation cost of the arrays built by the JNI.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HostCtrlServiceBenchmark {
+
+    private static final int SERVICE = 0x5b0100;
+    private static final int LOOKUP_SERVICE = 0x5b0101;
+
+    HostCtrl hc;
+    private ServiceID service;
+    private InetAddress addr;
+
+    /**
+     * A service with a number of rules to look up.
+     */
+    @State(Scope.Benchmark)
+    public static class Lookup {
+        /*
+         * The reply must fit one control message, which holds up to 33
+         * rules.
+         */
+        @Param({ "1", "32" })
+        public int rules;
+
+        ServiceID service;
+        private ServiceInfo[] infos;
+        private HostCtrl hc;
+
+        @Setup(Level.Trial)
+        public void setup(HostCtrlServiceBenchmark bench) throws Exception {
+            hc = bench.hc;
+            service = new ServiceID(LOOKUP_SERVICE);
+            infos = new ServiceInfo[rules];
+
+            for (int i = 0; i < rules; i++) {
+                infos[i] = new ServiceInfo(service, (short) 0,
+                                           InetAddress.getByName("127.0.2." + (i + 1)),
+                                           1, 1);
+            }
+            hc.addServices(infos);
+
+            /* Wait until the rules are in the table */
+            ServiceInfo[] res = hc.getServiceAsync(service, 0, null).get();
+
+            if (res == null || res.length != rules)
+                throw new IllegalStateException("Could not add rules");
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() {
+            hc.removeServices(infos);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        hc = new LocalHostCtrl(new HostCtrlCallbacks() { });
+        service = new ServiceID(SERVICE);
+        addr = InetAddress.getByName("127.0.1.1");
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        hc.removeService(service, 0, addr);
+        hc.dispose();
+    }
+
+    /**
+     * Adds a rule and removes it again, two requests per operation.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int addRemove() {
+        return hc.addService(service, 0, 1, 1, addr)
+            + hc.removeService(service, 0, addr);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int get(Lookup lookup) {
+        return hc.getService(lookup.service, 0, null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ServiceInfo[] getLatency(Lookup lookup)
+        throws InterruptedException, ExecutionException {
+        return hc.getServiceAsync(lookup.service, 0, null).get();
+    }
+}
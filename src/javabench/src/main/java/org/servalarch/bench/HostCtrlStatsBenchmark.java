@@ -0,0 +1,88 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.servalctrl.FlowStat;
+import org.servalarch.servalctrl.HostCtrl;
+import org.servalarch.servalctrl.HostCtrlCallbacks;
+import org.servalarch.servalctrl.LocalHostCtrl;
+
+/**
+ * Round trip time of a flow statistics query through a {@code
+ * LocalHostCtrl}, from sending the query until the last part of the
+ * reply is delivered through {@code onFlowStatUpdate}.
+ * <p>
+ * Only flows that exist on the host get a {@code FlowStat} entry in the
+ * reply, so with no open flows this measures the cost of the query
+ * itself. Open connections with the matching flow IDs to also measure
+ * the {@code FlowStat[]} arrays built by the JNI ({@code -prof gc}).
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HostCtrlStatsBenchmark {
+
+    @Param({ "1", "100", "10000" })
+    public int flows;
+
+    private HostCtrl hc;
+    private long[] flowIDs;
+    private final Semaphore done = new Semaphore(0);
+    private volatile int statCount;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        hc = new LocalHostCtrl(new HostCtrlCallbacks() {
+            @Override
+            public void onFlowStatUpdate(long xid, int retval,
+                                         FlowStat[] stats, boolean more) {
+                if (stats != null)
+                    statCount += stats.length;
+                if (!more)
+                    done.release();
+            }
+        });
+        flowIDs = new long[flows];
+
+        for (int i = 0; i < flows; i++) {
+            flowIDs[i] = i + 1;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        hc.dispose();
+    }
+
+    @Benchmark
+    public int statsFlow() throws InterruptedException {
+        /* Stats replies carry no transaction ID, so only one query is
+           outstanding at a time */
+        statCount = 0;
+
+        if (hc.statsFlow(flowIDs, flows) < 0)
+            throw new IllegalStateException("Could not send query");
+
+        if (!done.tryAcquire(5, TimeUnit.SECONDS))
+            throw new IllegalStateException("No reply");
+        return statCount;
+    }
+}
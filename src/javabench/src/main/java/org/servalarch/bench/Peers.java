@@ -0,0 +1,148 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.servalarch.net.ServalServerSocket;
+import org.servalarch.net.ServalSocket;
+import org.servalarch.net.ServiceID;
+
+/**
+ * The server side of the socket benchmarks. Each peer runs on a
+ * daemon thread until its socket is closed by the benchmark's
+ * teardown.
+ */
+final class Peers {
+
+    /*
+     * ServiceIDs of the benchmark servers, one per benchmark so that
+     * a leftover socket of an aborted run does not interfere.
+     */
+    static final int STREAM_SINK_SERVICE = 0x5b0001;
+    static final int STREAM_ECHO_SERVICE = 0x5b0002;
+    static final int DATAGRAM_SINK_SERVICE = 0x5b0003;
+    static final int ACCEPT_SERVICE = 0x5b0004;
+    static final int STACK_CALL_SERVICE = 0x5b0005;
+    static final int STREAM_ALLOCATION_SERVICE = 0x5b0006;
+
+    private Peers() {
+    }
+
+    static Thread start(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Accepts one connection and discards everything it receives.
+     */
+    static Thread sink(final ServalServerSocket server, final int bufSize) {
+        return start("stream-sink", new Runnable() {
+            public void run() {
+                byte[] buf = new byte[bufSize];
+
+                try {
+                    ServalSocket sock = server.accept();
+                    InputStream in = sock.getInputStream();
+
+                    while (in.read(buf) != -1) {
+                    }
+                    sock.close();
+                } catch (IOException e) {
+                    // Closed by teardown
+                }
+            }
+        });
+    }
+
+    /**
+     * Accepts one connection and echoes every message of
+     * {@code msgSize} bytes it receives.
+     */
+    static Thread echo(final ServalServerSocket server, final int msgSize) {
+        return start("stream-echo", new Runnable() {
+            public void run() {
+                byte[] buf = new byte[msgSize];
+
+                try {
+                    ServalSocket sock = server.accept();
+                    InputStream in = sock.getInputStream();
+                    OutputStream out = sock.getOutputStream();
+
+                    while (readFully(in, buf, msgSize)) {
+                        out.write(buf, 0, msgSize);
+                    }
+                    sock.close();
+                } catch (IOException e) {
+                    // Closed by teardown
+                }
+            }
+        });
+    }
+
+    /**
+     * Accepts connections and closes each of them right away.
+     */
+    static Thread acceptor(final ServalServerSocket server) {
+        return start("acceptor", new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        server.accept().close();
+                    } catch (IOException e) {
+                        if (server.isClosed())
+                            break;
+                    }
+                }
+            }
+        });
+    }
+
+    static ServalServerSocket listen(int serviceID) throws IOException {
+        return new ServalServerSocket(new ServiceID(serviceID), 128);
+    }
+
+    static ServalSocket connect(int serviceID) throws IOException {
+        ServalSocket sock = new ServalSocket();
+        sock.connect(new ServiceID(serviceID));
+        return sock;
+    }
+
+    /**
+     * Reads exactly {@code len} bytes, returning {@code false} at end of
+     * stream.
+     */
+    static boolean readFully(InputStream in, byte[] buf, int len)
+        throws IOException {
+        int off = 0;
+
+        while (off < len) {
+            int n = in.read(buf, off, len - off);
+
+            if (n == -1)
+                return false;
+            off += n;
+        }
+        return true;
+    }
+
+    static void close(ServalServerSocket server) {
+        try {
+            if (server != null)
+                server.close();
+        } catch (IOException e) {
+        }
+    }
+
+    static void close(ServalSocket sock) {
+        try {
+            if (sock != null)
+                sock.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServalDatagramPacket;
+import org.servalarch.net.ServalDatagramSocket;
+import org.servalarch.net.ServiceID;
+import org.servalarch.servalctrl.HostCtrl;
+import org.servalarch.servalctrl.HostCtrlCallbacks;
+import org.servalarch.servalctrl.RemoteHostCtrl;
+
+/**
+ * Service registrations sent by a {@code RemoteHostCtrl} over its
+ * datagram message channel to a controller on the same host.
+ * <p>
+ * The remote channel only carries registrations, which the controller
+ * does not reply to, so this measures the send rate. The benchmark
+ * plays the controller; the {@code delivered} counter gives the
+ * messages per second that reached it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RemoteHostCtrlBenchmark {
+
+    /* ServiceID a remote host control sends to, see libservalctrl */
+    private static final int CONTROLLER_SERVICE = 444444;
+    private static final int SERVICE = 0x5b0200;
+
+    private HostCtrl hc;
+    private ServalDatagramSocket controller;
+    private ServiceID service;
+    private final AtomicLong delivered = new AtomicLong();
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Messages {
+        private RemoteHostCtrlBenchmark bench;
+        private long base;
+
+        @Setup(Level.Iteration)
+        public void reset(RemoteHostCtrlBenchmark bench) {
+            this.bench = bench;
+            base = bench.delivered.get();
+        }
+
+        public long delivered() {
+            return bench.delivered.get() - base;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        controller = new ServalDatagramSocket(new ServiceID(CONTROLLER_SERVICE));
+
+        Peers.start("controller", new Runnable() {
+            public void run() {
+                ServalDatagramPacket[] packs = new ServalDatagramPacket[32];
+
+                for (int i = 0; i < packs.length; i++) {
+                    packs[i] = new ServalDatagramPacket(new byte[2048], 2048);
+                }
+
+                try {
+                    while (true) {
+                        delivered.addAndGet(controller.receiveBatch(packs));
+                    }
+                } catch (IOException e) {
+                    // Closed by teardown
+                }
+            }
+        });
+
+        hc = new RemoteHostCtrl(new HostCtrlCallbacks() { });
+        service = new ServiceID(SERVICE);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        hc.dispose();
+        controller.close();
+    }
+
+    @Benchmark
+    public int register(Messages counter) {
+        return hc.registerService(service, 0, null);
+    }
+
+    @Benchmark
+    public int registerUnregister(Messages counter) {
+        return hc.registerService(service, 0, null)
+            + hc.unregisterService(service, 0);
+    }
+}
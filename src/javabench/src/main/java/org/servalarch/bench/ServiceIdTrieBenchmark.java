@@ -0,0 +1,155 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServiceID;
+import org.servalarch.net.ServiceIdTrie;
+
+/**
+ * Longest prefix match of serviceIDs in a {@code ServiceIdTrie},
+ * against the exact match of a {@code HashMap}. The table holds
+ * 'prefixes' random prefixes, with the lengths the services of an
+ * application would use, and the lookups are of serviceIDs under
+ * them, taken in a random order so that large tables miss the caches
+ * like a busy server would. 'exact' looks up the serviceIDs of a
+ * trie of full-length prefixes, the same keys as 'hashMap'.
+ * <p>
+ * The trie is not in the socket layer, so this benchmark needs
+ * neither the JNI library nor a Serval stack.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ServiceIdTrieBenchmark {
+
+    // Prefix lengths, and the share of the prefixes with each
+    private static final int[] PREFIX_BITS = { 16, 32, 64, 128, 256 };
+    private static final int[] PREFIX_WEIGHTS = { 1, 4, 8, 4, 3 };
+
+    private static final int QUERIES = 1 << 16;
+
+    @Param({ "1000", "1000000" })
+    public int prefixes;
+
+    private ServiceIdTrie<Integer> trie;
+    private ServiceIdTrie<Integer> exactTrie;
+    private Map<ServiceID, Integer> map;
+    private ServiceID[] queries;
+    private ServiceID[] exactQueries;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        int total = 0;
+
+        for (int w : PREFIX_WEIGHTS) {
+            total += w;
+        }
+        trie = new ServiceIdTrie<Integer>();
+        exactTrie = new ServiceIdTrie<Integer>();
+        map = new HashMap<ServiceID, Integer>(prefixes * 2);
+
+        ServiceID[] ids = new ServiceID[prefixes];
+        int[] bits = new int[prefixes];
+
+        for (int i = 0; i < prefixes; i++) {
+            int pick = random.nextInt(total);
+            int k = 0;
+
+            while (pick >= PREFIX_WEIGHTS[k]) {
+                pick -= PREFIX_WEIGHTS[k++];
+            }
+            Integer value = Integer.valueOf(i);
+
+            ids[i] = randomID(random);
+            bits[i] = PREFIX_BITS[k];
+            trie.put(ids[i], bits[i], value);
+            exactTrie.put(ids[i], ServiceID.SERVICE_ID_MAX_BITS, value);
+            map.put(ids[i], value);
+        }
+
+        queries = new ServiceID[QUERIES];
+        exactQueries = new ServiceID[QUERIES];
+
+        for (int i = 0; i < QUERIES; i++) {
+            int j = random.nextInt(prefixes);
+
+            queries[i] = under(random, ids[j], bits[j]);
+            exactQueries[i] = ids[j];
+        }
+    }
+
+    private static ServiceID randomID(Random random) {
+        byte[] id = new byte[ServiceID.SERVICE_ID_MAX_LENGTH];
+
+        random.nextBytes(id);
+        return new ServiceID(id);
+    }
+
+    /**
+     * Returns a random serviceID with the first 'bits' bits of
+     * 'prefix'.
+     */
+    private static ServiceID under(Random random, ServiceID prefix,
+                                   int bits) {
+        byte[] id = prefix.getID();
+        byte[] rest = new byte[id.length];
+
+        random.nextBytes(rest);
+        for (int i = bits; i < ServiceID.SERVICE_ID_MAX_BITS; i++) {
+            int mask = 0x80 >>> (i & 7);
+
+            id[i >> 3] = (byte) ((id[i >> 3] & ~mask) | (rest[i >> 3] & mask));
+        }
+        return new ServiceID(id);
+    }
+
+    @Benchmark
+    public Integer trie(Cursor c) {
+        return trie.lookup(queries[c.next++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public Integer exact(Cursor c) {
+        return exactTrie.lookup(exactQueries[c.next++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public Integer hashMap(Cursor c) {
+        return map.get(exactQueries[c.next++ & (QUERIES - 1)]);
+    }
+
+    /**
+     * Lookups by four threads, which take no lock on the trie.
+     */
+    @Benchmark
+    @Threads(4)
+    public Integer trieShared(Cursor c) {
+        return trie.lookup(queries[c.next++ & (QUERIES - 1)]);
+    }
+}
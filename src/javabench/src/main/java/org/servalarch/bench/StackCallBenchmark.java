@@ -0,0 +1,115 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.SocketOptions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServiceID;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * Cost of single calls into the network stack backend, to compare the
+ * JNI backend ({@code native}) with the one built on the Foreign
+ * Function and Memory API ({@code ffm}). The calls go straight to
+ * {@link ServalNetworkStack}, without the socket classes on top:
+ * reading a descriptor, a socket option, a receive that finds no data,
+ * resolving a serviceID into a socket address, and a datagram sent to
+ * the socket itself and read back.
+ * <p>
+ * The backend is chosen once per JVM, so each value of {@code stack}
+ * must run in its own fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StackCallBenchmark {
+
+    private static final int PACKET_SIZE = 64;
+
+    @Param({ "native", "ffm" })
+    public String stack;
+
+    private ServalNetworkStack netImpl;
+    private FileDescriptor fd;
+    private ServiceID serviceID;
+    private long sockAddr;
+    private final byte[] data = new byte[PACKET_SIZE];
+    private final ByteBuffer direct = ByteBuffer.allocateDirect(PACKET_SIZE);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setProperty(ServalNetworkStack.STACK_PROPERTY, stack);
+        netImpl = ServalNetworkStack.getInstance();
+
+        serviceID = new ServiceID(Peers.STACK_CALL_SERVICE);
+        fd = new FileDescriptor();
+        netImpl.createDatagramSocket(fd, 0);
+        netImpl.bind(fd, serviceID, 0);
+        sockAddr = netImpl.createSockAddr(serviceID, null, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        netImpl.freeSockAddr(sockAddr);
+        netImpl.close(fd);
+    }
+
+    @Benchmark
+    public int fdValue() {
+        return netImpl.getFdValue(fd);
+    }
+
+    @Benchmark
+    public int getOption() throws IOException {
+        return netImpl.getOption(fd, SocketOptions.SO_RCVBUF);
+    }
+
+    @Benchmark
+    public int readEmpty() throws IOException {
+        return netImpl.readNonBlocking(fd, data, 0, PACKET_SIZE);
+    }
+
+    @Benchmark
+    public int readEmptyDirect() throws IOException {
+        direct.clear();
+        return netImpl.readNonBlocking(fd, direct);
+    }
+
+    @Benchmark
+    public void sockAddr() {
+        netImpl.freeSockAddr(netImpl.createSockAddr(serviceID, null, 0));
+    }
+
+    @Benchmark
+    public int sendReceive() throws IOException {
+        netImpl.sendto(fd, data, 0, PACKET_SIZE, sockAddr);
+        return netImpl.readNonBlocking(fd, data, 0, PACKET_SIZE);
+    }
+
+    @Benchmark
+    public int sendReceiveDirect() throws IOException {
+        direct.clear();
+        netImpl.sendto(fd, direct, sockAddr);
+        direct.clear();
+        return netImpl.readNonBlocking(fd, direct);
+    }
+}
@@ -0,0 +1,125 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServalServerSocket;
+import org.servalarch.net.ServalSocket;
+
+/**
+ * The steady-state operations of a connected {@code ServalSocket},
+ * which should not allocate: run with {@code -prof gc} and check that
+ * gc.alloc.rate.norm stays at 0 bytes per operation, or run {@link
+ * AllocationGate}. Both ends of the connection are driven by the
+ * benchmark thread, so a read finds the data written just before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamAllocationBenchmark {
+
+    // Larger than the stack buffer of the JNI sends
+    private static final int LARGE_SIZE = 16384;
+
+    private ServalServerSocket server;
+    private ServalSocket client;
+    private ServalSocket peer;
+    private InputStream in;
+    private OutputStream out;
+    private byte[] small;
+    private byte[] large;
+    private ByteBuffer direct;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = Peers.listen(Peers.STREAM_ALLOCATION_SERVICE);
+        client = Peers.connect(Peers.STREAM_ALLOCATION_SERVICE);
+        peer = server.accept();
+        out = client.getOutputStream();
+        in = peer.getInputStream();
+        small = new byte[16];
+        large = new byte[LARGE_SIZE];
+        direct = ByteBuffer.allocateDirect(1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        Peers.close(client);
+        Peers.close(peer);
+        Peers.close(server);
+    }
+
+    @Benchmark
+    public int writeReadByte() throws IOException {
+        out.write(1);
+        return in.read();
+    }
+
+    @Benchmark
+    public byte[] writeReadSmall() throws IOException {
+        return writeRead(small);
+    }
+
+    @Benchmark
+    public byte[] writeReadLarge() throws IOException {
+        return writeRead(large);
+    }
+
+    private byte[] writeRead(byte[] buf) throws IOException {
+        out.write(buf, 0, buf.length);
+
+        if (!Peers.readFully(in, buf, buf.length))
+            throw new EOFException();
+        return buf;
+    }
+
+    @Benchmark
+    public ByteBuffer writeReadDirect() throws IOException {
+        direct.clear();
+        client.write(direct);
+        direct.clear();
+        while (direct.hasRemaining()) {
+            if (peer.read(direct) == -1)
+                throw new EOFException();
+        }
+        return direct;
+    }
+
+    @Benchmark
+    public int soTimeout() throws IOException {
+        peer.setSoTimeout(5000);
+        return peer.getSoTimeout();
+    }
+
+    @Benchmark
+    public InputStream streams() throws IOException {
+        client.getOutputStream();
+        return peer.getInputStream();
+    }
+
+    @Benchmark
+    public SocketAddress remoteAddress() {
+        return client.getRemoteSocketAddress();
+    }
+}
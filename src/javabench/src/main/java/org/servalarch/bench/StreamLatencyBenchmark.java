@@ -0,0 +1,73 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServalServerSocket;
+import org.servalarch.net.ServalSocket;
+
+/**
+ * Request/response latency over a {@code ServalSocket}: every
+ * operation sends a message and waits for its echo. Sample time mode
+ * reports the latency percentiles.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamLatencyBenchmark {
+
+    @Param({ "16", "1024", "16384" })
+    public int messageSize;
+
+    private ServalServerSocket server;
+    private ServalSocket sock;
+    private InputStream in;
+    private OutputStream out;
+    private byte[] buf;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = Peers.listen(Peers.STREAM_ECHO_SERVICE);
+        Peers.echo(server, messageSize);
+        sock = Peers.connect(Peers.STREAM_ECHO_SERVICE);
+        sock.setTcpNoDelay(true);
+        in = sock.getInputStream();
+        out = sock.getOutputStream();
+        buf = new byte[messageSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        Peers.close(sock);
+        Peers.close(server);
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws IOException {
+        out.write(buf, 0, messageSize);
+
+        if (!Peers.readFully(in, buf, messageSize))
+            throw new EOFException();
+        return buf;
+    }
+}
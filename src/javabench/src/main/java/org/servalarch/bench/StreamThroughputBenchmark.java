@@ -0,0 +1,77 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.servalarch.net.ServalServerSocket;
+import org.servalarch.net.ServalSocket;
+
+/**
+ * Stream throughput of a {@code ServalSocket}: every operation writes
+ * one buffer to a peer that discards it. The {@code bytes} counter
+ * gives the throughput in bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamThroughputBenchmark {
+
+    @Param({ "64", "1024", "8192", "65536" })
+    public int bufferSize;
+
+    private ServalServerSocket server;
+    private ServalSocket sock;
+    private OutputStream out;
+    private byte[] buf;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = Peers.listen(Peers.STREAM_SINK_SERVICE);
+        Peers.sink(server, 65536);
+        sock = Peers.connect(Peers.STREAM_SINK_SERVICE);
+        out = sock.getOutputStream();
+        buf = new byte[bufferSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        Peers.close(sock);
+        Peers.close(server);
+    }
+
+    @Benchmark
+    public void write(Bytes counter) throws IOException {
+        out.write(buf, 0, buf.length);
+        counter.bytes += buf.length;
+    }
+}
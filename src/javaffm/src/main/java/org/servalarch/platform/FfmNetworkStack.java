@@ -0,0 +1,2279 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.platform;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_INT_UNALIGNED;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import org.servalarch.net.ServalDatagramSocketImpl;
+import org.servalarch.net.ServalSocketImpl;
+import org.servalarch.net.ServiceID;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
+/**
+ * A network stack backend that calls the AF_SERVAL socket API of the
+ * host through the Foreign Function and Memory API instead of the
+ * servalnet_jni library. It behaves like the native backend, but the
+ * socket calls are downcalls that the JIT compiles inline: descriptors
+ * are read from the {@link FileDescriptor} with a {@link VarHandle},
+ * serviceIDs are copied into a prebuilt sockaddr_sv layout without
+ * calling back into Java, and direct buffers are passed to the kernel
+ * in place.
+ * <p>
+ * Each thread keeps its native scratch memory (socket addresses, poll
+ * and epoll structures, and a buffer that heap arrays are copied
+ * through), so that calls do not allocate native memory.
+ * <p>
+ * Select it with {@code -Dorg.servalarch.net.stack=ffm}. It needs Java
+ * 22 or later, runs on 64-bit Linux only, and requires {@code
+ * --enable-native-access=ALL-UNNAMED} and {@code --add-opens
+ * java.base/java.io=ALL-UNNAMED}.
+ */
+public class FfmNetworkStack extends ServalNetworkStack {
+	/* Socket options, as used by the native stack */
+	private static final int JAVA_IP_TOS = 3;
+	private static final int JAVA_SO_REUSEADDR = 4;
+	private static final int JAVA_SO_KEEPALIVE = 8;
+	private static final int JAVA_SO_BROADCAST = 32;
+	private static final int JAVA_SO_LINGER = 128;
+	private static final int JAVA_SO_SNDBUF = 4097;
+	private static final int JAVA_SO_RCVBUF = 4098;
+	private static final int JAVA_SO_OOBINLINE = 4099;
+	private static final int JAVA_SO_RCVTIMEOUT = 4102;
+	private static final int JAVA_REUSEADDR_AND_REUSEPORT = 10001;
+	private static final int JAVA_TCP_CORK = 10002;
+
+	/* Linux constants */
+	private static final int AF_INET = 2;
+	private static final int AF_SERVAL = 28;
+	private static final int SOCK_STREAM = 1;
+	private static final int SOCK_DGRAM = 2;
+	private static final int SHUT_RD = 0;
+	private static final int SHUT_WR = 1;
+	private static final int MSG_PEEK = 0x2;
+	private static final int MSG_DONTWAIT = 0x40;
+	private static final int MSG_WAITFORONE = 0x10000;
+	private static final long FIONBIO = 0x5421;
+	private static final int POLLIN = 0x1;
+	private static final int POLLOUT = 0x4;
+	private static final int POLLERR = 0x8;
+	private static final int SOL_SOCKET = 1;
+	private static final int SO_REUSEADDR = 2;
+	private static final int SO_ERROR = 4;
+	private static final int SO_BROADCAST = 6;
+	private static final int SO_SNDBUF = 7;
+	private static final int SO_RCVBUF = 8;
+	private static final int SO_KEEPALIVE = 9;
+	private static final int SO_OOBINLINE = 10;
+	private static final int SO_LINGER = 13;
+	private static final int SO_RCVTIMEO = 20;
+	private static final int IPPROTO_IP = 0;
+	private static final int IP_TOS = 1;
+	private static final int IPPROTO_TCP = 6;
+	private static final int TCP_CORK = 3;
+	private static final int EPOLL_CTL_DEL = 2;
+	private static final int EPOLL_CLOEXEC = 02000000;
+	private static final int EFD_NONBLOCK = 04000;
+	private static final int EFD_CLOEXEC = 02000000;
+	private static final int O_NONBLOCK = 04000;
+	private static final int O_CLOEXEC = 02000000;
+	private static final int SPLICE_F_MOVE = 1;
+	private static final int SPLICE_F_NONBLOCK = 2;
+	private static final int ENOENT = 2;
+	private static final int EINTR = 4;
+	private static final int EBADF = 9;
+	private static final int EAGAIN = 11;
+	private static final int EISCONN = 106;
+	private static final int ENOTCONN = 107;
+	private static final int ETIMEDOUT = 110;
+	private static final int EALREADY = 114;
+	private static final int EINPROGRESS = 115;
+
+	private static final int SERVICE_ID_LENGTH = ServiceID.SERVICE_ID_MAX_LENGTH;
+
+	private static final int MAX_READ = 65536;
+	private static final int AVAILABLE_PEEK = 2048;
+	private static final int EPOLL_MAX_EVENTS = 256;
+	private static final int MMSG_MAX_BATCH = 64;
+	private static final int MMSG_MAX_DATAGRAM = 65536;
+	private static final long SPLICE_MAX_CHUNK = 1 << 30;
+
+	/*
+	 * struct sockaddr_sv and the socket address of a datagram, where the
+	 * kernel appends the IPv4 address of the peer after the serviceID.
+	 */
+	private static final StructLayout SOCKADDR_SV = MemoryLayout.structLayout(
+			JAVA_SHORT.withName("sv_family"),
+			JAVA_BYTE.withName("sv_flags"),
+			JAVA_BYTE.withName("sv_prefix_bits"),
+			MemoryLayout.sequenceLayout(SERVICE_ID_LENGTH, JAVA_BYTE)
+					.withName("sv_srvid"));
+
+	private static final StructLayout SOCKADDR_IN = MemoryLayout.structLayout(
+			JAVA_SHORT.withName("sin_family"),
+			JAVA_SHORT.withName("sin_port"),
+			JAVA_INT.withName("sin_addr"),
+			MemoryLayout.sequenceLayout(8, JAVA_BYTE).withName("sin_zero"));
+
+	private static final StructLayout SV_MSG_NAME = MemoryLayout.structLayout(
+			SOCKADDR_SV.withName("svaddr"),
+			SOCKADDR_IN.withName("inaddr"));
+
+	/* A destination resolved by createSockAddr() */
+	private static final StructLayout SOCKADDR_HANDLE = MemoryLayout.structLayout(
+			JAVA_INT.withName("addrlen"),
+			SV_MSG_NAME.withName("name"));
+
+	private static final long SV_FAMILY = offset(SV_MSG_NAME, "svaddr", "sv_family");
+	private static final long SV_PREFIX_BITS = offset(SV_MSG_NAME, "svaddr", "sv_prefix_bits");
+	private static final long SV_SRVID = offset(SV_MSG_NAME, "svaddr", "sv_srvid");
+	private static final long SIN_FAMILY = offset(SV_MSG_NAME, "inaddr", "sin_family");
+	private static final long SIN_ADDR = offset(SV_MSG_NAME, "inaddr", "sin_addr");
+	private static final long HANDLE_NAME = offset(SOCKADDR_HANDLE, "name");
+
+	private static final StructLayout POLLFD = MemoryLayout.structLayout(
+			JAVA_INT.withName("fd"),
+			JAVA_SHORT.withName("events"),
+			JAVA_SHORT.withName("revents"));
+
+	private static final long POLL_EVENTS = offset(POLLFD, "events");
+	private static final long POLL_REVENTS = offset(POLLFD, "revents");
+
+	private static final StructLayout IOVEC = MemoryLayout.structLayout(
+			ADDRESS.withName("iov_base"),
+			JAVA_LONG.withName("iov_len"));
+
+	private static final StructLayout MMSGHDR = MemoryLayout.structLayout(
+			ADDRESS.withName("msg_name"),
+			JAVA_INT.withName("msg_namelen"),
+			MemoryLayout.paddingLayout(4),
+			ADDRESS.withName("msg_iov"),
+			JAVA_LONG.withName("msg_iovlen"),
+			ADDRESS.withName("msg_control"),
+			JAVA_LONG.withName("msg_controllen"),
+			JAVA_INT.withName("msg_flags"),
+			MemoryLayout.paddingLayout(4),
+			JAVA_INT.withName("msg_len"),
+			MemoryLayout.paddingLayout(4));
+
+	private static final long MSG_NAME = offset(MMSGHDR, "msg_name");
+	private static final long MSG_NAMELEN = offset(MMSGHDR, "msg_namelen");
+	private static final long MSG_IOV = offset(MMSGHDR, "msg_iov");
+	private static final long MSG_IOVLEN = offset(MMSGHDR, "msg_iovlen");
+	private static final long MSG_LEN = offset(MMSGHDR, "msg_len");
+
+	/* struct epoll_event is packed on x86-64 only */
+	private static final boolean EPOLL_PACKED =
+			"amd64".equals(System.getProperty("os.arch")) ||
+			"x86_64".equals(System.getProperty("os.arch"));
+	private static final long EPOLL_EVENT_SIZE = EPOLL_PACKED ? 12 : 16;
+	private static final long EPOLL_DATA = EPOLL_PACKED ? 4 : 8;
+
+	private static final Linker LINKER = Linker.nativeLinker();
+	private static final SymbolLookup LIBC = LINKER.defaultLookup();
+
+	private static final StructLayout CAPTURE_STATE =
+			Linker.Option.captureStateLayout();
+	private static final long ERRNO = offset(CAPTURE_STATE, "errno");
+	private static final Linker.Option CAPTURE_ERRNO =
+			Linker.Option.captureCallState("errno");
+
+	private static final MethodHandle SOCKET = downcall("socket",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT));
+	private static final MethodHandle BIND = downcall("bind",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT));
+	private static final MethodHandle LISTEN = downcall("listen",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT));
+	private static final MethodHandle ACCEPT = downcall("accept",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, ADDRESS));
+	private static final MethodHandle CONNECT = downcall("connect",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT));
+	private static final MethodHandle IOCTL = downcall("ioctl",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS),
+			Linker.Option.firstVariadicArg(2));
+	private static final MethodHandle SEND = downcall("send",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG,
+					JAVA_INT));
+	private static final MethodHandle RECV = downcall("recv",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG,
+					JAVA_INT));
+	private static final MethodHandle SENDTO = downcall("sendto",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG,
+					JAVA_INT, ADDRESS, JAVA_INT));
+	private static final MethodHandle RECVFROM = downcall("recvfrom",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG,
+					JAVA_INT, ADDRESS, ADDRESS));
+	private static final MethodHandle SENDMMSG = downcall("sendmmsg",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT,
+					JAVA_INT));
+	private static final MethodHandle RECVMMSG = downcall("recvmmsg",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT,
+					JAVA_INT, ADDRESS));
+	private static final MethodHandle SENDMSG = downcall("sendmsg",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT));
+	private static final MethodHandle RECVMSG = downcall("recvmsg",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT));
+	private static final MethodHandle POLL = downcall("poll",
+			FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+	private static final MethodHandle GETSOCKOPT = downcall("getsockopt",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT,
+					ADDRESS, ADDRESS));
+	private static final MethodHandle SETSOCKOPT = downcall("setsockopt",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT,
+					ADDRESS, JAVA_INT));
+	private static final MethodHandle GETSOCKNAME = downcall("getsockname",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, ADDRESS));
+	private static final MethodHandle SHUTDOWN = downcall("shutdown",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT));
+	private static final MethodHandle CLOSE = downcall("close",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+	private static final MethodHandle READ = downcall("read",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG));
+	private static final MethodHandle WRITE = downcall("write",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG));
+	private static final MethodHandle EPOLL_CREATE1 = downcall("epoll_create1",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+	private static final MethodHandle EPOLL_CTL = downcall("epoll_ctl",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT,
+					ADDRESS));
+	private static final MethodHandle EPOLL_WAIT = downcall("epoll_wait",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT,
+					JAVA_INT));
+	private static final MethodHandle EVENTFD = downcall("eventfd",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT));
+	private static final MethodHandle SENDFILE = downcall("sendfile",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_INT, ADDRESS,
+					JAVA_LONG));
+	private static final MethodHandle PIPE2 = downcall("pipe2",
+			FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+	private static final MethodHandle SPLICE = downcall("splice",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT,
+					ADDRESS, JAVA_LONG, JAVA_INT));
+
+	/* These do not set errno, or it is not needed */
+	private static final MethodHandle MALLOC = LINKER.downcallHandle(
+			symbol("malloc"), FunctionDescriptor.of(ADDRESS, JAVA_LONG));
+	private static final MethodHandle FREE = LINKER.downcallHandle(
+			symbol("free"), FunctionDescriptor.ofVoid(ADDRESS));
+	private static final MethodHandle STRERROR = LINKER.downcallHandle(
+			symbol("strerror"), FunctionDescriptor.of(ADDRESS, JAVA_INT));
+
+	/* The private descriptor field of java.io.FileDescriptor */
+	private static final VarHandle FD = fdHandle();
+
+	private static final ThreadLocal<Scratch> scratch =
+			new ThreadLocal<Scratch>() {
+				@Override
+				protected Scratch initialValue() {
+					return new Scratch();
+				}
+			};
+
+	/**
+	 * Native memory used by the calls of one thread. The buffers for
+	 * data and batches grow on demand; memory replaced by a larger
+	 * buffer is released once the garbage collector finds it
+	 * unreachable.
+	 */
+	private static final class Scratch {
+		final MemorySegment errno;
+		final MemorySegment name;
+		final MemorySegment filter;
+		final MemorySegment namelen;
+		final MemorySegment pollfd;
+		final MemorySegment value;
+		private MemorySegment buffer = MemorySegment.NULL;
+		private MemorySegment events;
+		private MemorySegment msgs;
+
+		Scratch() {
+			Arena arena = Arena.ofAuto();
+
+			errno = arena.allocate(CAPTURE_STATE);
+			name = arena.allocate(SV_MSG_NAME);
+			filter = arena.allocate(SV_MSG_NAME);
+			namelen = arena.allocate(JAVA_INT);
+			pollfd = arena.allocate(POLLFD);
+			/* An int, struct linger, struct timeval or uint64_t */
+			value = arena.allocate(16, 8);
+		}
+
+		MemorySegment buffer(long size) {
+			if (buffer.byteSize() < size) {
+				buffer = Arena.ofAuto().allocate(Math.max(size, 2048), 8);
+			}
+			return buffer;
+		}
+
+		MemorySegment events() {
+			if (events == null) {
+				events = Arena.ofAuto().allocate(
+						EPOLL_EVENT_SIZE * EPOLL_MAX_EVENTS, 8);
+			}
+			return events;
+		}
+
+		/* Headers, iovecs and socket addresses of a batch */
+		MemorySegment msgs() {
+			if (msgs == null) {
+				msgs = Arena.ofAuto().allocate(MMSG_MAX_BATCH *
+						(MMSGHDR.byteSize() + IOVEC.byteSize() +
+								SV_MSG_NAME.byteSize()), 8);
+			}
+			return msgs;
+		}
+	}
+
+	/**
+	 * Creates the backend.
+	 *
+	 * @throws IllegalStateException
+	 *             if the descriptor field of {@link FileDescriptor} is
+	 *             not accessible.
+	 */
+	public FfmNetworkStack() {
+		if (FD == null) {
+			throw new IllegalStateException(
+					"Run with --add-opens java.base/java.io=ALL-UNNAMED");
+		}
+	}
+
+	private static long offset(MemoryLayout layout, String... path) {
+		PathElement[] elements = new PathElement[path.length];
+
+		for (int i = 0; i < path.length; i++) {
+			elements[i] = PathElement.groupElement(path[i]);
+		}
+		return layout.byteOffset(elements);
+	}
+
+	private static MemorySegment symbol(String name) {
+		MemorySegment addr = LIBC.find(name).orElse(null);
+
+		if (addr == null) {
+			throw new UnsatisfiedLinkError("No symbol " + name);
+		}
+		return addr;
+	}
+
+	/**
+	 * Links a libc function that takes the errno capture segment as an
+	 * additional first argument.
+	 */
+	private static MethodHandle downcall(String name, FunctionDescriptor desc,
+			Linker.Option... options) {
+		Linker.Option[] opts = new Linker.Option[options.length + 1];
+
+		opts[0] = CAPTURE_ERRNO;
+		System.arraycopy(options, 0, opts, 1, options.length);
+		return LINKER.downcallHandle(symbol(name), desc, opts);
+	}
+
+	private static VarHandle fdHandle() {
+		try {
+			return MethodHandles.privateLookupIn(FileDescriptor.class,
+					MethodHandles.lookup()).findVarHandle(FileDescriptor.class,
+					"fd", int.class);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (RuntimeException e) {
+			/* java.io not opened to this module */
+			return null;
+		}
+	}
+
+	private static int fd(FileDescriptor fd) {
+		return (int) FD.get(fd);
+	}
+
+	private static int errno(Scratch s) {
+		return s.errno.get(JAVA_INT, ERRNO);
+	}
+
+	private static String strerror(int errnum) {
+		try {
+			MemorySegment str = (MemorySegment) STRERROR.invokeExact(errnum);
+			return str.reinterpret(Long.MAX_VALUE).getString(0);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static SocketException socketException(int errnum) {
+		return new SocketException(strerror(errnum));
+	}
+
+	private static ConnectException connectException(int errnum) {
+		return new ConnectException(strerror(errnum));
+	}
+
+	private static IOException ioException(int errnum) {
+		return new IOException(strerror(errnum));
+	}
+
+	/*
+	 * The downcalls. invokeExact needs the exact static types, hence one
+	 * wrapper per function.
+	 */
+	private static int socket(Scratch s, int domain, int type, int protocol) {
+		try {
+			return (int) SOCKET.invokeExact(s.errno, domain, type, protocol);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int bind(Scratch s, int sock, MemorySegment addr, int len) {
+		try {
+			return (int) BIND.invokeExact(s.errno, sock, addr, len);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int listen(Scratch s, int sock, int backlog) {
+		try {
+			return (int) LISTEN.invokeExact(s.errno, sock, backlog);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int accept(Scratch s, int sock, MemorySegment addr,
+			MemorySegment len) {
+		try {
+			return (int) ACCEPT.invokeExact(s.errno, sock, addr, len);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int connect(Scratch s, int sock, MemorySegment addr,
+			int len) {
+		try {
+			return (int) CONNECT.invokeExact(s.errno, sock, addr, len);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int ioctl(Scratch s, int fd, long request,
+			MemorySegment arg) {
+		try {
+			return (int) IOCTL.invokeExact(s.errno, fd, request, arg);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static long send(Scratch s, int sock, MemorySegment buf, long len,
+			int flags) {
+		try {
+			return (long) SEND.invokeExact(s.errno, sock, buf, len, flags);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static long recv(Scratch s, int sock, MemorySegment buf, long len,
+			int flags) {
+		try {
+			return (long) RECV.invokeExact(s.errno, sock, buf, len, flags);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static long sendto(Scratch s, int sock, MemorySegment buf,
+			long len, int flags, MemorySegment addr, int addrlen) {
+		try {
+			return (long) SENDTO.invokeExact(s.errno, sock, buf, len, flags,
+					addr, addrlen);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static long recvfrom(Scratch s, int sock, MemorySegment buf,
+			long len, int flags, MemorySegment addr, MemorySegment addrlen) {
+		try {
+			return (long) RECVFROM.invokeExact(s.errno, sock, buf, len, flags,
+					addr, addrlen);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int sendmmsg(Scratch s, int sock, MemorySegment msgs,
+			int count, int flags) {
+		try {
+			return (int) SENDMMSG.invokeExact(s.errno, sock, msgs, count,
+					flags);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int recvmmsg(Scratch s, int sock, MemorySegment msgs,
+			int count, int flags) {
+		try {
+			return (int) RECVMMSG.invokeExact(s.errno, sock, msgs, count,
+					flags, MemorySegment.NULL);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static long sendmsg(Scratch s, int sock, MemorySegment msg,
+			int flags) {
+		try {
+			return (long) SENDMSG.invokeExact(s.errno, sock, msg, flags);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static long recvmsg(Scratch s, int sock, MemorySegment msg,
+			int flags) {
+		try {
+			return (long) RECVMSG.invokeExact(s.errno, sock, msg, flags);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int poll(Scratch s, int fd, int events, int timeout) {
+		s.pollfd.set(JAVA_INT, 0, fd);
+		s.pollfd.set(JAVA_SHORT, POLL_EVENTS, (short) events);
+		s.pollfd.set(JAVA_SHORT, POLL_REVENTS, (short) 0);
+		try {
+			return (int) POLL.invokeExact(s.errno, s.pollfd, 1L, timeout);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int getsockopt(Scratch s, int sock, int level, int name,
+			MemorySegment val, MemorySegment len) {
+		try {
+			return (int) GETSOCKOPT.invokeExact(s.errno, sock, level, name,
+					val, len);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int setsockopt(Scratch s, int sock, int level, int name,
+			MemorySegment val, int len) {
+		try {
+			return (int) SETSOCKOPT.invokeExact(s.errno, sock, level, name,
+					val, len);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int getsockname(Scratch s, int sock, MemorySegment addr,
+			MemorySegment len) {
+		try {
+			return (int) GETSOCKNAME.invokeExact(s.errno, sock, addr, len);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int shutdown(Scratch s, int sock, int how) {
+		try {
+			return (int) SHUTDOWN.invokeExact(s.errno, sock, how);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static int close(Scratch s, int fd) {
+		try {
+			return (int) CLOSE.invokeExact(s.errno, fd);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static long read(Scratch s, int fd, MemorySegment buf, long len) {
+		try {
+			return (long) READ.invokeExact(s.errno, fd, buf, len);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static long write(Scratch s, int fd, MemorySegment buf, long len) {
+		try {
+			return (long) WRITE.invokeExact(s.errno, fd, buf, len);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	/*
+	 * Socket addresses.
+	 */
+	private static void fillInSockAddrSv(MemorySegment name,
+			ServiceID serviceID, int bits) {
+		if (bits < 0 || bits > SERVICE_ID_LENGTH * 8 - 1) {
+			bits = 0;
+		}
+		name.asSlice(0, SOCKADDR_SV.byteSize()).fill((byte) 0);
+		name.set(JAVA_SHORT, SV_FAMILY, (short) AF_SERVAL);
+		name.set(JAVA_BYTE, SV_PREFIX_BITS, (byte) bits);
+
+		/* A null serviceID leaves the all-zero (any) serviceID */
+		if (serviceID != null) {
+			for (int i = 0; i < SERVICE_ID_LENGTH; i++) {
+				long w = serviceID.getWord(i >> 3);
+
+				name.set(JAVA_BYTE, SV_SRVID + i,
+						(byte) (w >>> (56 - ((i & 7) << 3))));
+			}
+		}
+	}
+
+	/**
+	 * Fills in the serviceID and, unless {@code null}, the IPv4 address
+	 * of a destination.
+	 *
+	 * @return the length of the socket address.
+	 */
+	private static int fillInName(MemorySegment name, ServiceID serviceID,
+			int bits, InetAddress address) {
+		name.fill((byte) 0);
+		fillInSockAddrSv(name, serviceID, bits);
+
+		if (address == null) {
+			return (int) SOCKADDR_SV.byteSize();
+		}
+
+		byte[] addr = address.getAddress();
+
+		if (addr.length != 4) {
+			throw new IllegalArgumentException("Bad IP address");
+		}
+		name.set(JAVA_SHORT, SIN_FAMILY, (short) AF_INET);
+		MemorySegment.copy(addr, 0, name, JAVA_BYTE, SIN_ADDR, 4);
+		return (int) SV_MSG_NAME.byteSize();
+	}
+
+	private static void checkRange(int offset, int length) {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Bad offset or length");
+		}
+	}
+
+	/**
+	 * Returns the memory backing {@code length} bytes of a direct buffer
+	 * starting at {@code position}.
+	 */
+	private static MemorySegment directSegment(ByteBuffer buf, int position,
+			int length) {
+		if (position < 0 || length < 0 ||
+				(long) position + length > buf.capacity()) {
+			throw new IllegalArgumentException("Bad position or length");
+		}
+		/* ofBuffer() starts at the position of the buffer */
+		return MemorySegment.ofBuffer(buf).asSlice(position - buf.position(),
+				length);
+	}
+
+	@Override
+	public int createDatagramSocket(FileDescriptor fd, int protocol)
+			throws SocketException {
+		return createSocket(fd, SOCK_DGRAM, protocol);
+	}
+
+	@Override
+	public int createStreamSocket(FileDescriptor fd, int protocol)
+			throws SocketException {
+		return createSocket(fd, SOCK_STREAM, protocol);
+	}
+
+	private int createSocket(FileDescriptor fd, int type, int protocol)
+			throws SocketException {
+		Scratch s = scratch.get();
+		int sock = socket(s, AF_SERVAL, type, protocol);
+
+		if (sock == -1) {
+			throw socketException(errno(s));
+		}
+		FD.set(fd, sock);
+		return sock;
+	}
+
+	@Override
+	public int bind(FileDescriptor fd, ServiceID serviceID, int bindBits)
+			throws SocketException {
+		Scratch s = scratch.get();
+
+		fillInSockAddrSv(s.name, serviceID, bindBits);
+
+		if (bind(s, fd(fd), s.name, (int) SOCKADDR_SV.byteSize()) == -1) {
+			throw socketException(errno(s));
+		}
+		return 0;
+	}
+
+	@Override
+	public int listen(FileDescriptor fd, int backlog) throws SocketException {
+		Scratch s = scratch.get();
+		int ret = listen(s, fd(fd), backlog);
+
+		if (ret == -1) {
+			throw socketException(errno(s));
+		}
+		return ret;
+	}
+
+	@Override
+	public FileDescriptor accept(FileDescriptor fd,
+			ServalDatagramSocketImpl sImpl, int timeout) throws IOException {
+		if (sImpl == null) {
+			throw new NullPointerException();
+		}
+		return acceptCommon(fd);
+	}
+
+	@Override
+	public FileDescriptor accept(FileDescriptor fd, ServalSocketImpl sImpl,
+			int timeout) throws IOException {
+		if (sImpl == null) {
+			throw new NullPointerException();
+		}
+		return acceptCommon(fd);
+	}
+
+	private FileDescriptor acceptCommon(FileDescriptor fd)
+			throws SocketException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int ret;
+
+		do {
+			s.namelen.set(JAVA_INT, 0, (int) SOCKADDR_SV.byteSize());
+			ret = accept(s, sock, s.name, s.namelen);
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			if (errno(s) == EAGAIN) {
+				/* Non-blocking socket without pending connections, or
+				 * SO_RCVTIMEO expired */
+				return null;
+			}
+			throw socketException(errno(s));
+		}
+
+		FileDescriptor newFd = new FileDescriptor();
+		FD.set(newFd, ret);
+		return newFd;
+	}
+
+	@Override
+	public int connect(FileDescriptor fd, ServiceID serviceID,
+			InetAddress address, int timeout) throws SocketException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int addrlen = fillInName(s.name, serviceID, 0, address);
+
+		setNonBlocking(s, sock, true);
+
+		try {
+			if (connect(s, sock, s.name, addrlen) == -1 &&
+					errno(s) != EINPROGRESS) {
+				throw socketException(errno(s));
+			}
+
+			int ret = poll(s, sock, POLLIN | POLLOUT | POLLERR, timeout);
+
+			if (ret == -1) {
+				throw socketException(errno(s));
+			} else if (ret == 0) {
+				throw connectException(ETIMEDOUT);
+			}
+
+			int revents = s.pollfd.get(JAVA_SHORT, POLL_REVENTS);
+
+			if ((revents & (POLLOUT | POLLERR)) != 0) {
+				/* Either connected or failed */
+				checkConnectError(s, sock);
+			}
+		} finally {
+			setNonBlocking(s, sock, false);
+		}
+		return 0;
+	}
+
+	private static void checkConnectError(Scratch s, int sock)
+			throws SocketException {
+		s.value.set(JAVA_INT, 0, 0);
+		s.namelen.set(JAVA_INT, 0, 4);
+
+		if (getsockopt(s, sock, SOL_SOCKET, SO_ERROR, s.value,
+				s.namelen) == -1) {
+			throw socketException(errno(s));
+		}
+
+		int err = s.value.get(JAVA_INT, 0);
+
+		if (err != 0) {
+			throw connectException(err);
+		}
+	}
+
+	@Override
+	public boolean startConnect(FileDescriptor fd, ServiceID serviceID,
+			InetAddress address) throws SocketException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int addrlen = fillInName(s.name, serviceID, 0, address);
+		int ret;
+
+		do {
+			ret = connect(s, sock, s.name, addrlen);
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == 0) {
+			return true;
+		}
+
+		switch (errno(s)) {
+		case EINPROGRESS:
+		case EALREADY:
+			return false;
+		case EISCONN:
+			return true;
+		default:
+			throw connectException(errno(s));
+		}
+	}
+
+	@Override
+	public boolean finishConnect(FileDescriptor fd, int timeout)
+			throws SocketException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int ret;
+
+		do {
+			ret = poll(s, sock, POLLOUT, timeout);
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			throw socketException(errno(s));
+		} else if (ret == 0) {
+			/* Still in progress */
+			return false;
+		}
+		checkConnectError(s, sock);
+		return true;
+	}
+
+	@Override
+	public void setNonBlocking(FileDescriptor fd, boolean nonBlocking)
+			throws SocketException {
+		setNonBlocking(scratch.get(), fd(fd), nonBlocking);
+	}
+
+	private static void setNonBlocking(Scratch s, int sock,
+			boolean nonBlocking) throws SocketException {
+		s.value.set(JAVA_INT, 0, nonBlocking ? 1 : 0);
+
+		if (ioctl(s, sock, FIONBIO, s.value) == -1) {
+			throw socketException(errno(s));
+		}
+	}
+
+	@Override
+	public int disconnect(FileDescriptor fd) throws SocketException {
+		return 0;
+	}
+
+	/*
+	 * Sends and receives. Heap arrays are copied through the scratch
+	 * buffer of the thread, direct buffers are passed in place.
+	 */
+	private static int send(Scratch s, int sock, MemorySegment data,
+			long length) throws SocketException {
+		long ret;
+
+		do {
+			ret = send(s, sock, data, length, 0);
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			if (errno(s) == EAGAIN) {
+				/* Send on a non-blocking socket --> 0 bytes sent */
+				return 0;
+			}
+			throw socketException(errno(s));
+		}
+		return (int) ret;
+	}
+
+	private static int send(int sock, byte[] data, int offset, int length,
+			MemorySegment sockAddr) throws SocketException {
+		Scratch s = scratch.get();
+
+		if (length <= MAX_READ) {
+			MemorySegment buf = s.buffer(length);
+
+			MemorySegment.copy(data, offset, buf, JAVA_BYTE, 0, length);
+			return sockAddr == null ? send(s, sock, buf, length) :
+				sendto(s, sock, buf, length, sockAddr);
+		}
+		/* Do not keep large buffers around */
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment buf = arena.allocate(length);
+
+			MemorySegment.copy(data, offset, buf, JAVA_BYTE, 0, length);
+			return sockAddr == null ? send(s, sock, buf, length) :
+				sendto(s, sock, buf, length, sockAddr);
+		}
+	}
+
+	@Override
+	public int write(FileDescriptor fd, byte[] data, int offset, int length)
+			throws IOException {
+		checkRange(offset, length);
+		return send(fd(fd), data, offset, length, null);
+	}
+
+	@Override
+	public int read(FileDescriptor fd, byte[] data, int offset, int length,
+			int timeout) throws IOException {
+		checkRange(offset, length);
+
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int buflen = Math.min(length, MAX_READ);
+		long ret;
+
+		if (timeout != 0) {
+			ret = poll(s, sock, POLLIN | POLLERR, timeout);
+
+			if (ret == -1) {
+				throw socketException(errno(s));
+			} else if (ret == 0) {
+				throw new SocketTimeoutException(strerror(EAGAIN));
+			}
+		}
+
+		MemorySegment buf = s.buffer(buflen);
+
+		do {
+			ret = recv(s, sock, buf, buflen, 0);
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			if (errno(s) == EAGAIN) {
+				/* Timeout, in case SO_RCVTIMEO was set */
+				throw new SocketTimeoutException(strerror(EAGAIN));
+			}
+			throw socketException(errno(s));
+		} else if (ret == 0) {
+			/* Other end closed connection */
+			return -1;
+		}
+		MemorySegment.copy(buf, JAVA_BYTE, 0, data, offset, (int) ret);
+		return (int) ret;
+	}
+
+	@Override
+	public int recvfrom(FileDescriptor fd, byte[] data, int offset,
+			int length, int timeout, boolean peek, byte[] filterServiceID,
+			byte[] filterAddr, byte[] srcServiceID, byte[] srcAddr)
+			throws IOException {
+		checkRange(offset, length);
+
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int buflen = Math.min(length, MAX_READ);
+		int flags = peek ? MSG_PEEK : 0;
+		MemorySegment buf = s.buffer(buflen);
+		long ret;
+
+		if (filterServiceID != null) {
+			s.filter.fill((byte) 0);
+			MemorySegment.copy(filterServiceID, 0, s.filter, JAVA_BYTE,
+					SV_SRVID, SERVICE_ID_LENGTH);
+			if (filterAddr != null) {
+				MemorySegment.copy(filterAddr, 0, s.filter, JAVA_BYTE,
+						SIN_ADDR, 4);
+			}
+		}
+
+		if (timeout < 0) {
+			flags |= MSG_DONTWAIT;
+		}
+
+		while (true) {
+			if (timeout > 0) {
+				ret = poll(s, sock, POLLIN | POLLERR, timeout);
+
+				if (ret == -1) {
+					if (errno(s) == EINTR) {
+						continue;
+					}
+					throw socketException(errno(s));
+				} else if (ret == 0) {
+					throw new SocketTimeoutException(strerror(EAGAIN));
+				}
+			}
+
+			s.name.fill((byte) 0);
+			s.namelen.set(JAVA_INT, 0, (int) SV_MSG_NAME.byteSize());
+
+			ret = recvfrom(s, sock, buf, buflen, flags, s.name, s.namelen);
+
+			if (ret == -1) {
+				if (errno(s) == EINTR) {
+					continue;
+				}
+				if (errno(s) == EAGAIN) {
+					/* Timeout, in case SO_RCVTIMEO was set */
+					throw new SocketTimeoutException(strerror(EAGAIN));
+				}
+				throw socketException(errno(s));
+			}
+
+			if (s.namelen.get(JAVA_INT, 0) < SV_MSG_NAME.byteSize() ||
+					s.name.get(JAVA_SHORT, SIN_FAMILY) != AF_INET) {
+				s.name.set(JAVA_INT, SIN_ADDR, 0);
+			}
+
+			if (filterServiceID == null ||
+					(MemorySegment.mismatch(s.name, SV_SRVID,
+							SV_SRVID + SERVICE_ID_LENGTH, s.filter, SV_SRVID,
+							SV_SRVID + SERVICE_ID_LENGTH) == -1 &&
+					(filterAddr == null ||
+							s.name.get(JAVA_INT, SIN_ADDR) ==
+							s.filter.get(JAVA_INT, SIN_ADDR)))) {
+				break;
+			}
+
+			/* Not from the connected peer, drop it */
+			if (peek) {
+				long r;
+
+				do {
+					r = recv(s, sock, buf, 0, 0);
+				} while (r == -1 && errno(s) == EINTR);
+			}
+		}
+
+		if (ret > 0) {
+			MemorySegment.copy(buf, JAVA_BYTE, 0, data, offset, (int) ret);
+		}
+		MemorySegment.copy(s.name, JAVA_BYTE, SV_SRVID, srcServiceID, 0,
+				SERVICE_ID_LENGTH);
+		MemorySegment.copy(s.name, JAVA_BYTE, SIN_ADDR, srcAddr, 0, 4);
+		return (int) ret;
+	}
+
+	@Override
+	public int readNonBlocking(FileDescriptor fd, byte[] data, int offset,
+			int length) throws IOException {
+		checkRange(offset, length);
+
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int buflen = Math.min(length, MAX_READ);
+		MemorySegment buf = s.buffer(buflen);
+		long ret;
+
+		do {
+			ret = recv(s, sock, buf, buflen, MSG_DONTWAIT);
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			if (errno(s) == EAGAIN) {
+				return UNAVAILABLE;
+			}
+			throw socketException(errno(s));
+		} else if (ret == 0 && buflen > 0) {
+			/* Other end closed connection */
+			return -1;
+		} else if (ret > 0) {
+			MemorySegment.copy(buf, JAVA_BYTE, 0, data, offset, (int) ret);
+		}
+		return (int) ret;
+	}
+
+	/**
+	 * Receives into the memory of a direct buffer, like the native
+	 * recvDirect. Returns 0 if no data arrived within the timeout or
+	 * the socket is non-blocking, and -1 at end of stream.
+	 */
+	private static int recvDirect(FileDescriptor fd, ByteBuffer buf,
+			int position, int length, int timeout) throws IOException {
+		MemorySegment data = directSegment(buf, position, length);
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		long ret;
+
+		if (timeout > 0) {
+			do {
+				ret = poll(s, sock, POLLIN | POLLERR, timeout);
+			} while (ret == -1 && errno(s) == EINTR);
+
+			if (ret == -1) {
+				throw socketException(errno(s));
+			} else if (ret == 0) {
+				return 0;
+			}
+		}
+
+		do {
+			ret = recv(s, sock, data, length, timeout < 0 ? MSG_DONTWAIT : 0);
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			if (errno(s) == EAGAIN) {
+				/* Non-blocking socket or SO_RCVTIMEO expired */
+				return 0;
+			}
+			throw socketException(errno(s));
+		} else if (ret == 0 && length > 0) {
+			/* Other end closed connection */
+			return -1;
+		}
+		return (int) ret;
+	}
+
+	@Override
+	public int read(FileDescriptor fd, ByteBuffer buf, int timeout)
+			throws IOException {
+		int pos = buf.position();
+		int len = buf.limit() - pos;
+		int ret;
+
+		if (buf.isDirect()) {
+			if (buf.isReadOnly()) {
+				throw new ReadOnlyBufferException();
+			}
+			ret = recvDirect(fd, buf, pos, len, timeout);
+		} else {
+			try {
+				ret = read(fd, buf.array(), buf.arrayOffset() + pos, len,
+						timeout);
+			} catch (SocketTimeoutException e) {
+				ret = 0;
+			}
+		}
+
+		if (ret > 0) {
+			buf.position(pos + ret);
+		}
+		return ret;
+	}
+
+	@Override
+	public int read(FileDescriptor fd, ByteBuffer buf) throws IOException {
+		return read(fd, buf, 0);
+	}
+
+	@Override
+	public int readNonBlocking(FileDescriptor fd, ByteBuffer buf)
+			throws IOException {
+		int pos = buf.position();
+		int len = buf.limit() - pos;
+		int ret;
+
+		if (len == 0) {
+			return 0;
+		}
+		if (buf.isDirect()) {
+			if (buf.isReadOnly()) {
+				throw new ReadOnlyBufferException();
+			}
+			ret = recvDirect(fd, buf, pos, len, -1);
+			if (ret == 0) {
+				ret = UNAVAILABLE;
+			}
+		} else {
+			ret = readNonBlocking(fd, buf.array(), buf.arrayOffset() + pos,
+					len);
+		}
+
+		if (ret > 0) {
+			buf.position(pos + ret);
+		}
+		return ret;
+	}
+
+	@Override
+	public int write(FileDescriptor fd, ByteBuffer buf) throws IOException {
+		int pos = buf.position();
+		int len = buf.limit() - pos;
+		int ret;
+
+		if (buf.isDirect()) {
+			ret = send(scratch.get(), fd(fd), directSegment(buf, pos, len),
+					len);
+		} else if (buf.hasArray()) {
+			ret = write(fd, buf.array(), buf.arrayOffset() + pos, len);
+		} else {
+			/* Read-only heap buffer, its array is not accessible */
+			byte[] data = new byte[len];
+			buf.duplicate().get(data);
+			ret = write(fd, data, 0, len);
+		}
+
+		if (ret > 0) {
+			buf.position(pos + ret);
+		}
+		return ret;
+	}
+
+	/*
+	 * Scatter/gather. The buffers are described by iovecs in the batch
+	 * memory of the thread, with the first header pointing at them.
+	 * Direct buffers are used in place, heap buffers are bounced
+	 * through native memory.
+	 */
+
+	/**
+	 * Returns the indexes of the non-empty buffers of a scatter/gather
+	 * operation, at most {@code MMSG_MAX_BATCH}, and stores the total
+	 * length of the heap buffers among them at {@code heap[0]}.
+	 */
+	private static int[] vectorIndexes(ByteBuffer[] bufs, int offset,
+			int length, boolean read, long[] heap) {
+		if (offset < 0 || length < 0 || offset > bufs.length - length) {
+			throw new IndexOutOfBoundsException();
+		}
+		int[] index = new int[Math.min(length, MMSG_MAX_BATCH)];
+		int count = 0;
+
+		for (int i = offset; i < offset + length && count < index.length;
+				i++) {
+			ByteBuffer buf = bufs[i];
+
+			if (!buf.hasRemaining()) {
+				continue;
+			}
+			if (read && buf.isReadOnly()) {
+				throw new ReadOnlyBufferException();
+			}
+			if (!buf.isDirect()) {
+				heap[0] += buf.remaining();
+			}
+			index[count++] = i;
+		}
+		return Arrays.copyOf(index, count);
+	}
+
+	private static void setupVector(MemorySegment msgs, ByteBuffer[] bufs,
+			int[] index, MemorySegment bounce, boolean copy) {
+		long pos = 0;
+
+		msgs.asSlice(0, MMSGHDR.byteSize()).fill((byte) 0);
+
+		for (int i = 0; i < index.length; i++) {
+			ByteBuffer buf = bufs[index[i]];
+			int len = buf.remaining();
+			MemorySegment iov = msgs.asSlice(iovecOffset(i), IOVEC.byteSize());
+
+			if (buf.isDirect()) {
+				iov.set(ADDRESS, 0, MemorySegment.ofBuffer(buf));
+			} else {
+				if (copy) {
+					MemorySegment.copy(MemorySegment.ofBuffer(buf), 0,
+							bounce, pos, len);
+				}
+				iov.set(ADDRESS, 0, bounce.asSlice(pos, len));
+				pos += len;
+			}
+			iov.set(JAVA_LONG, ADDRESS.byteSize(), len);
+		}
+		msgs.set(ADDRESS, MSG_IOV, msgs.asSlice(iovecOffset(0),
+				IOVEC.byteSize() * index.length));
+		msgs.set(JAVA_LONG, MSG_IOVLEN, index.length);
+	}
+
+	/**
+	 * Advances the buffers by {@code n} bytes in total, in order,
+	 * copying the data bounced for heap buffers into them if {@code
+	 * bounce} is non-null.
+	 */
+	private static void advanceVector(ByteBuffer[] bufs, int[] index,
+			long n, MemorySegment bounce) {
+		long pos = 0;
+
+		for (int i = 0; i < index.length && n > 0; i++) {
+			ByteBuffer buf = bufs[index[i]];
+			int len = (int) Math.min(n, buf.remaining());
+
+			if (!buf.isDirect()) {
+				if (bounce != null) {
+					MemorySegment.copy(bounce, pos, MemorySegment.ofBuffer(buf),
+							0, len);
+				}
+				pos += buf.remaining();
+			}
+			buf.position(buf.position() + len);
+			n -= len;
+		}
+	}
+
+	@Override
+	public long readNonBlocking(FileDescriptor fd, ByteBuffer[] bufs,
+			int offset, int length) throws IOException {
+		Scratch s = scratch.get();
+		long[] heap = new long[1];
+		int[] index = vectorIndexes(bufs, offset, length, true, heap);
+		long total = 0;
+		long ret;
+
+		if (index.length == 0) {
+			return 0;
+		}
+		for (int i : index) {
+			total += bufs[i].remaining();
+		}
+
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment msgs = s.msgs();
+			MemorySegment bounce = heap[0] <= MAX_READ ? s.buffer(heap[0]) :
+				arena.allocate(heap[0]);
+
+			setupVector(msgs, bufs, index, bounce, false);
+
+			do {
+				ret = recvmsg(s, fd(fd), msgs, MSG_DONTWAIT);
+			} while (ret == -1 && errno(s) == EINTR);
+
+			if (ret == -1) {
+				if (errno(s) == EAGAIN) {
+					return UNAVAILABLE;
+				}
+				throw socketException(errno(s));
+			} else if (ret == 0 && total > 0) {
+				/* Other end closed connection */
+				return -1;
+			}
+			advanceVector(bufs, index, ret, bounce);
+		}
+		return ret;
+	}
+
+	@Override
+	public long write(FileDescriptor fd, ByteBuffer[] bufs, int offset,
+			int length) throws IOException {
+		Scratch s = scratch.get();
+		long[] heap = new long[1];
+		int[] index = vectorIndexes(bufs, offset, length, false, heap);
+		long ret;
+
+		if (index.length == 0) {
+			return 0;
+		}
+
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment msgs = s.msgs();
+			MemorySegment bounce = heap[0] <= MAX_READ ? s.buffer(heap[0]) :
+				arena.allocate(heap[0]);
+
+			setupVector(msgs, bufs, index, bounce, true);
+
+			do {
+				ret = sendmsg(s, fd(fd), msgs, MSG_DONTWAIT);
+			} while (ret == -1 && errno(s) == EINTR);
+
+			if (ret == -1) {
+				if (errno(s) == EAGAIN) {
+					return 0;
+				}
+				throw socketException(errno(s));
+			}
+			advanceVector(bufs, index, ret, null);
+		}
+		return ret;
+	}
+
+	/*
+	 * Batches. The headers of all datagrams are set up in the scratch
+	 * memory of the thread, followed by one iovec and socket address
+	 * per datagram.
+	 */
+	private static long iovecOffset(int i) {
+		return MMSG_MAX_BATCH * MMSGHDR.byteSize() + i * IOVEC.byteSize();
+	}
+
+	private static long nameOffset(int i) {
+		return MMSG_MAX_BATCH * (MMSGHDR.byteSize() + IOVEC.byteSize()) +
+				i * SV_MSG_NAME.byteSize();
+	}
+
+	/**
+	 * Clamps the lengths of a batch and returns their total.
+	 */
+	private static long batchLength(int[] offsets, int[] lengths, int count,
+			int[] lens) {
+		long total = 0;
+
+		for (int i = 0; i < count; i++) {
+			checkRange(offsets[i], lengths[i]);
+			lens[i] = Math.min(lengths[i], MMSG_MAX_DATAGRAM);
+			total += lens[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Points the headers of a batch at consecutive slices of {@code
+	 * buffer}.
+	 */
+	private static void setupBatch(MemorySegment msgs, MemorySegment buffer,
+			int count, int[] lens) {
+		long pos = 0;
+
+		msgs.asSlice(0, MMSGHDR.byteSize() * count).fill((byte) 0);
+
+		for (int i = 0; i < count; i++) {
+			MemorySegment hdr = msgs.asSlice(i * MMSGHDR.byteSize(),
+					MMSGHDR.byteSize());
+			MemorySegment iov = msgs.asSlice(iovecOffset(i), IOVEC.byteSize());
+
+			iov.set(ADDRESS, 0, buffer.asSlice(pos, lens[i]));
+			iov.set(JAVA_LONG, ADDRESS.byteSize(), lens[i]);
+			hdr.set(ADDRESS, MSG_IOV, iov);
+			hdr.set(JAVA_LONG, MSG_IOVLEN, 1);
+			pos += lens[i];
+		}
+	}
+
+	@Override
+	public int recvmmsg(FileDescriptor fd, byte[][] bufs, int[] offsets,
+			int[] lengths, int count, int timeout, byte[] srcServiceIDs,
+			byte[] srcAddrs) throws IOException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int ret;
+
+		if (count <= 0) {
+			return 0;
+		}
+		count = Math.min(count, MMSG_MAX_BATCH);
+
+		if (timeout > 0) {
+			do {
+				ret = poll(s, sock, POLLIN | POLLERR, timeout);
+			} while (ret == -1 && errno(s) == EINTR);
+
+			if (ret == -1) {
+				throw socketException(errno(s));
+			} else if (ret == 0) {
+				return 0;
+			}
+		}
+
+		int[] lens = new int[count];
+		long total = batchLength(offsets, lengths, count, lens);
+
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment msgs = s.msgs();
+			MemorySegment buffer = total <= MAX_READ ? s.buffer(total) :
+				arena.allocate(total);
+
+			setupBatch(msgs, buffer, count, lens);
+
+			for (int i = 0; i < count; i++) {
+				long hdr = i * MMSGHDR.byteSize();
+
+				msgs.set(ADDRESS, hdr + MSG_NAME,
+						msgs.asSlice(nameOffset(i), SV_MSG_NAME.byteSize()));
+				msgs.set(JAVA_INT, hdr + MSG_NAMELEN,
+						(int) SV_MSG_NAME.byteSize());
+			}
+
+			do {
+				ret = recvmmsg(s, sock, msgs, count,
+						timeout < 0 ? MSG_DONTWAIT : MSG_WAITFORONE);
+			} while (ret == -1 && errno(s) == EINTR);
+
+			if (ret == -1) {
+				if (errno(s) == EAGAIN) {
+					/* Non-blocking socket or SO_RCVTIMEO expired */
+					return 0;
+				}
+				throw socketException(errno(s));
+			}
+
+			long pos = 0;
+
+			for (int i = 0; i < ret; i++) {
+				long hdr = i * MMSGHDR.byteSize();
+				int namelen = msgs.get(JAVA_INT, hdr + MSG_NAMELEN);
+				long name = nameOffset(i);
+				int len = msgs.get(JAVA_INT, hdr + MSG_LEN);
+
+				if (len > 0) {
+					MemorySegment.copy(buffer, JAVA_BYTE, pos, bufs[i],
+							offsets[i], len);
+				}
+				pos += lens[i];
+				lengths[i] = len;
+
+				if (namelen < SOCKADDR_SV.byteSize()) {
+					msgs.asSlice(name + SV_SRVID, SERVICE_ID_LENGTH)
+							.fill((byte) 0);
+				}
+				MemorySegment.copy(msgs, JAVA_BYTE, name + SV_SRVID,
+						srcServiceIDs, i * SERVICE_ID_LENGTH,
+						SERVICE_ID_LENGTH);
+
+				if (namelen >= SV_MSG_NAME.byteSize() &&
+						msgs.get(JAVA_SHORT, name + SIN_FAMILY) == AF_INET) {
+					MemorySegment.copy(msgs, JAVA_BYTE, name + SIN_ADDR,
+							srcAddrs, i * 4, 4);
+				} else {
+					for (int j = 0; j < 4; j++) {
+						srcAddrs[i * 4 + j] = 0;
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public int sendmmsg(FileDescriptor fd, byte[][] bufs, int[] offsets,
+			int[] lengths, int count, byte[] dstServiceIDs, byte[] dstAddrs)
+			throws IOException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int ret;
+
+		if (count <= 0) {
+			return 0;
+		}
+		count = Math.min(count, MMSG_MAX_BATCH);
+
+		int[] lens = new int[count];
+		long total = batchLength(offsets, lengths, count, lens);
+
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment msgs = s.msgs();
+			MemorySegment buffer = total <= MAX_READ ? s.buffer(total) :
+				arena.allocate(total);
+			long pos = 0;
+
+			setupBatch(msgs, buffer, count, lens);
+
+			for (int i = 0; i < count; i++) {
+				MemorySegment.copy(bufs[i], offsets[i], buffer, JAVA_BYTE,
+						pos, lens[i]);
+				pos += lens[i];
+
+				if (dstServiceIDs != null) {
+					long hdr = i * MMSGHDR.byteSize();
+					MemorySegment name = msgs.asSlice(nameOffset(i),
+							SV_MSG_NAME.byteSize());
+					int namelen = (int) SOCKADDR_SV.byteSize();
+
+					name.fill((byte) 0);
+					name.set(JAVA_SHORT, SV_FAMILY, (short) AF_SERVAL);
+					MemorySegment.copy(dstServiceIDs, i * SERVICE_ID_LENGTH,
+							name, JAVA_BYTE, SV_SRVID, SERVICE_ID_LENGTH);
+
+					if ((dstAddrs[i * 4] | dstAddrs[i * 4 + 1] |
+							dstAddrs[i * 4 + 2] | dstAddrs[i * 4 + 3]) != 0) {
+						name.set(JAVA_SHORT, SIN_FAMILY, (short) AF_INET);
+						MemorySegment.copy(dstAddrs, i * 4, name, JAVA_BYTE,
+								SIN_ADDR, 4);
+						namelen = (int) SV_MSG_NAME.byteSize();
+					}
+					msgs.set(ADDRESS, hdr + MSG_NAME, name);
+					msgs.set(JAVA_INT, hdr + MSG_NAMELEN, namelen);
+				}
+			}
+
+			do {
+				ret = sendmmsg(s, sock, msgs, count, MSG_DONTWAIT);
+			} while (ret == -1 && errno(s) == EINTR);
+
+			if (ret == -1) {
+				if (errno(s) == EAGAIN) {
+					return 0;
+				}
+				throw socketException(errno(s));
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 * Resolved destinations live in malloc'ed memory laid out like the
+	 * struct sockaddr_handle of the native backend.
+	 */
+	@Override
+	public long createSockAddr(ServiceID serviceID, InetAddress addr,
+			int prefixBits) {
+		if (serviceID == null) {
+			throw new NullPointerException();
+		}
+
+		MemorySegment h;
+
+		try {
+			h = (MemorySegment) MALLOC.invokeExact(SOCKADDR_HANDLE.byteSize());
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+
+		if (h.address() == 0) {
+			throw new OutOfMemoryError("couldn't allocate socket address");
+		}
+		h = h.reinterpret(SOCKADDR_HANDLE.byteSize());
+
+		try {
+			h.set(JAVA_INT, 0, fillInName(h.asSlice(HANDLE_NAME,
+					SV_MSG_NAME.byteSize()), serviceID, prefixBits, addr));
+		} catch (IllegalArgumentException e) {
+			freeSockAddr(h.address());
+			throw e;
+		}
+		return h.address();
+	}
+
+	@Override
+	public void freeSockAddr(long sockAddr) {
+		try {
+			FREE.invokeExact(MemorySegment.ofAddress(sockAddr));
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+	}
+
+	private static MemorySegment sockAddr(long handle) {
+		if (handle == 0) {
+			throw new NullPointerException();
+		}
+		return MemorySegment.ofAddress(handle).reinterpret(
+				SOCKADDR_HANDLE.byteSize());
+	}
+
+	private static int sendto(Scratch s, int sock, MemorySegment data,
+			long length, MemorySegment h) throws SocketException {
+		long ret;
+
+		do {
+			ret = sendto(s, sock, data, length, 0, h.asSlice(HANDLE_NAME),
+					h.get(JAVA_INT, 0));
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			if (errno(s) == EAGAIN) {
+				return 0;
+			}
+			throw socketException(errno(s));
+		}
+		return (int) ret;
+	}
+
+	@Override
+	public int sendto(FileDescriptor fd, byte[] data, int offset, int length,
+			long sockAddr) throws IOException {
+		checkRange(offset, length);
+		return send(fd(fd), data, offset, length, sockAddr(sockAddr));
+	}
+
+	@Override
+	public int sendto(FileDescriptor fd, ByteBuffer buf, long sockAddr)
+			throws IOException {
+		int pos = buf.position();
+		int len = buf.limit() - pos;
+		int ret;
+
+		if (buf.isDirect()) {
+			ret = sendto(scratch.get(), fd(fd), directSegment(buf, pos, len),
+					len, sockAddr(sockAddr));
+		} else if (buf.hasArray()) {
+			ret = sendto(fd, buf.array(), buf.arrayOffset() + pos, len,
+					sockAddr);
+		} else {
+			/* Read-only heap buffer, its array is not accessible */
+			byte[] data = new byte[len];
+			buf.duplicate().get(data);
+			ret = sendto(fd, data, 0, len, sockAddr);
+		}
+
+		if (ret > 0) {
+			buf.position(pos + ret);
+		}
+		return ret;
+	}
+
+	@Override
+	public void sendConnectedDatagram(FileDescriptor fd, byte[] data,
+			int offset, int length, boolean bindToDevice) throws IOException {
+		if (length >= 0) {
+			send(fd(fd), data, offset, length, null);
+		}
+	}
+
+	@Override
+	public int close(FileDescriptor fd) throws IOException {
+		return close(scratch.get(), fd(fd));
+	}
+
+	/**
+	 * Returns the local socket address in the scratch memory of the
+	 * thread, or {@code null} if it cannot be retrieved.
+	 */
+	private static Scratch localName(FileDescriptor fd) {
+		Scratch s = scratch.get();
+
+		s.name.fill((byte) 0);
+		s.namelen.set(JAVA_INT, 0, (int) SV_MSG_NAME.byteSize());
+
+		if (getsockname(s, fd(fd), s.name, s.namelen) == -1 ||
+				s.namelen.get(JAVA_INT, 0) < SOCKADDR_SV.byteSize() ||
+				s.name.get(JAVA_SHORT, SV_FAMILY) != AF_SERVAL) {
+			return null;
+		}
+		return s;
+	}
+
+	@Override
+	public ServiceID getSocketLocalServiceID(FileDescriptor fd) {
+		Scratch s = localName(fd);
+
+		if (s == null) {
+			return null;
+		}
+
+		byte[] id = new byte[SERVICE_ID_LENGTH];
+
+		MemorySegment.copy(s.name, JAVA_BYTE, SV_SRVID, id, 0,
+				SERVICE_ID_LENGTH);
+		return new ServiceID(id);
+	}
+
+	@Override
+	public InetAddress getSocketLocalAddress(FileDescriptor fd) {
+		Scratch s = localName(fd);
+
+		if (s == null || s.namelen.get(JAVA_INT, 0) < SV_MSG_NAME.byteSize() ||
+				s.name.get(JAVA_SHORT, SIN_FAMILY) != AF_INET) {
+			return null;
+		}
+
+		byte[] addr = new byte[4];
+
+		MemorySegment.copy(s.name, JAVA_BYTE, SIN_ADDR, addr, 0, 4);
+		try {
+			return InetAddress.getByAddress(addr);
+		} catch (UnknownHostException e) {
+			// Not possible for a 4 byte address
+			return null;
+		}
+	}
+
+	@Override
+	public int setOption(FileDescriptor fd, int optID, int boolValue,
+			int intValue) throws SocketException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int bval = boolValue != 0 ? 1 : 0;
+		int ret;
+
+		switch (optID) {
+		case JAVA_IP_TOS:
+			ret = setIntOption(s, sock, IPPROTO_IP, IP_TOS, intValue);
+			break;
+		case JAVA_SO_KEEPALIVE:
+			ret = setIntOption(s, sock, SOL_SOCKET, SO_KEEPALIVE, bval);
+			break;
+		case JAVA_SO_BROADCAST:
+			ret = setIntOption(s, sock, SOL_SOCKET, SO_BROADCAST, bval);
+			break;
+		case JAVA_SO_LINGER:
+			s.value.set(JAVA_INT, 0, bval);
+			s.value.set(JAVA_INT, 4, intValue);
+			ret = setsockopt(s, sock, SOL_SOCKET, SO_LINGER, s.value, 8);
+			break;
+		case JAVA_SO_REUSEADDR:
+		case JAVA_REUSEADDR_AND_REUSEPORT:
+			ret = setIntOption(s, sock, SOL_SOCKET, SO_REUSEADDR, bval);
+			break;
+		case JAVA_SO_SNDBUF:
+			ret = setIntOption(s, sock, SOL_SOCKET, SO_SNDBUF, intValue);
+			break;
+		case JAVA_SO_RCVBUF:
+			ret = setIntOption(s, sock, SOL_SOCKET, SO_RCVBUF, intValue);
+			break;
+		case JAVA_SO_RCVTIMEOUT:
+			/* struct timeval */
+			s.value.set(JAVA_LONG, 0, intValue / 1000);
+			s.value.set(JAVA_LONG, 8, (intValue % 1000) * 1000);
+			ret = setsockopt(s, sock, SOL_SOCKET, SO_RCVTIMEO, s.value, 16);
+			break;
+		case JAVA_SO_OOBINLINE:
+			ret = setIntOption(s, sock, SOL_SOCKET, SO_OOBINLINE, bval);
+			break;
+		case JAVA_TCP_CORK:
+			ret = setIntOption(s, sock, IPPROTO_TCP, TCP_CORK, bval);
+			break;
+		default:
+			throw new IllegalArgumentException("Bad socket option");
+		}
+
+		if (ret == -1) {
+			throw socketException(errno(s));
+		}
+		return ret;
+	}
+
+	private static int setIntOption(Scratch s, int sock, int level, int name,
+			int value) {
+		s.value.set(JAVA_INT, 0, value);
+		return setsockopt(s, sock, level, name, s.value, 4);
+	}
+
+	@Override
+	public int getOption(FileDescriptor fd, int optID) throws SocketException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int level = SOL_SOCKET;
+		int name;
+		int len = 4;
+
+		switch (optID) {
+		case JAVA_IP_TOS:
+			level = IPPROTO_IP;
+			name = IP_TOS;
+			break;
+		case JAVA_SO_KEEPALIVE:
+			name = SO_KEEPALIVE;
+			break;
+		case JAVA_SO_BROADCAST:
+			name = SO_BROADCAST;
+			break;
+		case JAVA_SO_LINGER:
+			/* Only l_onoff of struct linger is returned */
+			name = SO_LINGER;
+			len = 8;
+			break;
+		case JAVA_SO_REUSEADDR:
+		case JAVA_REUSEADDR_AND_REUSEPORT:
+			name = SO_REUSEADDR;
+			break;
+		case JAVA_SO_SNDBUF:
+			name = SO_SNDBUF;
+			break;
+		case JAVA_SO_RCVBUF:
+			name = SO_RCVBUF;
+			break;
+		case JAVA_SO_RCVTIMEOUT:
+			name = SO_RCVTIMEO;
+			len = 16;
+			break;
+		case JAVA_SO_OOBINLINE:
+			name = SO_OOBINLINE;
+			break;
+		case JAVA_TCP_CORK:
+			level = IPPROTO_TCP;
+			name = TCP_CORK;
+			break;
+		default:
+			throw new IllegalArgumentException("Bad socket option");
+		}
+
+		s.value.fill((byte) 0);
+		s.namelen.set(JAVA_INT, 0, len);
+
+		if (getsockopt(s, sock, level, name, s.value, s.namelen) == -1) {
+			throw socketException(errno(s));
+		}
+
+		if (name == SO_RCVTIMEO) {
+			return (int) (s.value.get(JAVA_LONG, 0) * 1000 +
+					s.value.get(JAVA_LONG, 8) / 1000);
+		}
+		return s.value.get(JAVA_INT, 0);
+	}
+
+	@Override
+	public int getSocketFlags() {
+		return 0;
+	}
+
+	@Override
+	public int availableStream(FileDescriptor fd) throws SocketException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int ret;
+
+		if (sock == -1) {
+			return -1;
+		}
+
+		do {
+			ret = poll(s, sock, POLLIN, 0);
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			throw socketException(errno(s));
+		} else if (ret == 0) {
+			return 0;
+		}
+
+		long n = recv(s, sock, s.buffer(AVAILABLE_PEEK), AVAILABLE_PEEK,
+				MSG_PEEK);
+
+		if (n == -1) {
+			throw socketException(errno(s));
+		}
+		return (int) n;
+	}
+
+	@Override
+	public ServiceID getServiceByName(String service) {
+		return null;
+	}
+
+	@Override
+	public void shutdownInput(FileDescriptor fd) throws SocketException {
+		shutdownCommon(fd, SHUT_RD);
+	}
+
+	@Override
+	public void shutdownOutput(FileDescriptor fd) throws SocketException {
+		shutdownCommon(fd, SHUT_WR);
+	}
+
+	private static void shutdownCommon(FileDescriptor fd, int how)
+			throws SocketException {
+		Scratch s = scratch.get();
+
+		if (shutdown(s, fd(fd), how) == -1 && errno(s) != ENOTCONN) {
+			throw socketException(errno(s));
+		}
+	}
+
+	@Override
+	public boolean supportsUrgentData(FileDescriptor fd) {
+		return false;
+	}
+
+	@Override
+	public void sendUrgentData(FileDescriptor fd, byte val) {
+	}
+
+	/*
+	 * Selector support.
+	 */
+	@Override
+	public int getFdValue(FileDescriptor fd) {
+		return fd(fd);
+	}
+
+	@Override
+	public int epollCreate() throws IOException {
+		Scratch s = scratch.get();
+		int epfd;
+
+		try {
+			epfd = (int) EPOLL_CREATE1.invokeExact(s.errno, EPOLL_CLOEXEC);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+
+		if (epfd == -1) {
+			throw ioException(errno(s));
+		}
+		return epfd;
+	}
+
+	@Override
+	public int epollCtl(int epfd, int op, int fd, int events)
+			throws IOException {
+		Scratch s = scratch.get();
+		MemorySegment ev = s.value;
+		int ret;
+
+		ev.fill((byte) 0);
+		ev.set(JAVA_INT, 0, events);
+		ev.set(JAVA_INT, EPOLL_DATA, fd);
+
+		try {
+			ret = (int) EPOLL_CTL.invokeExact(s.errno, epfd, op, fd, ev);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+
+		if (ret == -1) {
+			if (op == EPOLL_CTL_DEL &&
+					(errno(s) == ENOENT || errno(s) == EBADF)) {
+				/* Already gone because the fd was closed */
+				return -1;
+			}
+			throw ioException(errno(s));
+		}
+		return 0;
+	}
+
+	@Override
+	public int epollWait(int epfd, int[] fds, int[] events, int timeout)
+			throws IOException {
+		Scratch s = scratch.get();
+		MemorySegment evs = s.events();
+		int max = Math.min(fds.length, EPOLL_MAX_EVENTS);
+		int ret;
+
+		try {
+			ret = (int) EPOLL_WAIT.invokeExact(s.errno, epfd, evs, max,
+					timeout);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+
+		if (ret == -1) {
+			if (errno(s) == EINTR) {
+				return 0;
+			}
+			throw ioException(errno(s));
+		}
+
+		for (int i = 0; i < ret; i++) {
+			long ev = i * EPOLL_EVENT_SIZE;
+
+			fds[i] = evs.get(JAVA_INT_UNALIGNED, ev + EPOLL_DATA);
+			events[i] = evs.get(JAVA_INT_UNALIGNED, ev);
+		}
+		return ret;
+	}
+
+	@Override
+	public int eventfdCreate() throws IOException {
+		Scratch s = scratch.get();
+		int fd;
+
+		try {
+			fd = (int) EVENTFD.invokeExact(s.errno, 0,
+					EFD_CLOEXEC | EFD_NONBLOCK);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+
+		if (fd == -1) {
+			throw ioException(errno(s));
+		}
+		return fd;
+	}
+
+	@Override
+	public void eventfdSignal(int fd) throws IOException {
+		Scratch s = scratch.get();
+
+		s.value.set(JAVA_LONG, 0, 1);
+
+		if (write(s, fd, s.value, 8) == -1 && errno(s) != EAGAIN) {
+			throw ioException(errno(s));
+		}
+	}
+
+	@Override
+	public void eventfdDrain(int fd) throws IOException {
+		Scratch s = scratch.get();
+
+		if (read(s, fd, s.value, 8) == -1 && errno(s) != EAGAIN) {
+			throw ioException(errno(s));
+		}
+	}
+
+	@Override
+	public void closeFd(int fd) throws IOException {
+		Scratch s = scratch.get();
+
+		if (close(s, fd) == -1) {
+			throw ioException(errno(s));
+		}
+	}
+
+	@Override
+	public long sendfile(FileDescriptor fd, FileDescriptor file,
+			long position, long count) throws IOException {
+		Scratch s = scratch.get();
+		int sock = fd(fd);
+		int in = fd(file);
+		long ret;
+
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("Bad position or count");
+		}
+		s.value.set(JAVA_LONG, 0, position);
+
+		do {
+			try {
+				ret = (long) SENDFILE.invokeExact(s.errno, sock, in, s.value,
+						Math.min(count, SPLICE_MAX_CHUNK));
+			} catch (Throwable t) {
+				throw new InternalError(t);
+			}
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			if (errno(s) == EAGAIN) {
+				return UNAVAILABLE;
+			}
+			throw socketException(errno(s));
+		}
+		return ret;
+	}
+
+	@Override
+	public void pipeCreate(int[] fds) throws IOException {
+		Scratch s = scratch.get();
+		int ret;
+
+		try {
+			ret = (int) PIPE2.invokeExact(s.errno, s.value,
+					O_CLOEXEC | O_NONBLOCK);
+		} catch (Throwable t) {
+			throw new InternalError(t);
+		}
+
+		if (ret == -1) {
+			throw ioException(errno(s));
+		}
+		fds[0] = s.value.get(JAVA_INT, 0);
+		fds[1] = s.value.get(JAVA_INT, 4);
+	}
+
+	@Override
+	public long splice(int fdIn, int fdOut, long count) throws IOException {
+		Scratch s = scratch.get();
+		long ret;
+
+		if (count <= 0) {
+			return 0;
+		}
+
+		do {
+			try {
+				ret = (long) SPLICE.invokeExact(s.errno, fdIn,
+						MemorySegment.NULL, fdOut, MemorySegment.NULL,
+						Math.min(count, SPLICE_MAX_CHUNK),
+						SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+			} catch (Throwable t) {
+				throw new InternalError(t);
+			}
+		} while (ret == -1 && errno(s) == EINTR);
+
+		if (ret == -1) {
+			if (errno(s) == EAGAIN) {
+				return UNAVAILABLE;
+			}
+			throw socketException(errno(s));
+		} else if (ret == 0) {
+			/* End of stream of the input */
+			return -1;
+		}
+		return ret;
+	}
+
+	/*
+	 * No io_uring support yet, the selectors use epoll.
+	 */
+	@Override
+	public long uringCreate(int entries) {
+		return 0;
+	}
+
+	@Override
+	public boolean uringPollAdd(long ring, int fd, int events,
+			long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringPollRemove(long ring, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringRecv(long ring, int fd, ByteBuffer buf,
+			int position, int length, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringSend(long ring, int fd, ByteBuffer buf,
+			int position, int length, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringAccept(long ring, int fd, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringConnect(long ring, int fd, ByteBuffer addr,
+			ServiceID serviceID, InetAddress address, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringCancel(long ring, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int uringResult(int result, boolean connect) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public FileDescriptor uringAccepted(int fd) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int uringSubmit(long ring) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int uringWait(long ring, long[] userData, int[] results,
+			int timeout) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void uringClose(long ring) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,124 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.ServerChannel;
+import io.netty.util.NetUtil;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The configuration of a Serval channel. Besides the generic options,
+ * the socket options supported by the underlying Serval NIO channel
+ * are passed through to it, and {@link ChannelOption#SO_BACKLOG} sets
+ * the backlog of a server channel.
+ */
+public class ServalChannelConfig extends DefaultChannelConfig {
+
+    private static final Map<ChannelOption<?>, SocketOption<?>> SOCKET_OPTIONS =
+        new HashMap<ChannelOption<?>, SocketOption<?>>();
+
+    static {
+        SOCKET_OPTIONS.put(ChannelOption.SO_SNDBUF, StandardSocketOptions.SO_SNDBUF);
+        SOCKET_OPTIONS.put(ChannelOption.SO_RCVBUF, StandardSocketOptions.SO_RCVBUF);
+        SOCKET_OPTIONS.put(ChannelOption.SO_KEEPALIVE, StandardSocketOptions.SO_KEEPALIVE);
+        SOCKET_OPTIONS.put(ChannelOption.SO_REUSEADDR, StandardSocketOptions.SO_REUSEADDR);
+        SOCKET_OPTIONS.put(ChannelOption.SO_BROADCAST, StandardSocketOptions.SO_BROADCAST);
+        SOCKET_OPTIONS.put(ChannelOption.IP_TOS, StandardSocketOptions.IP_TOS);
+    }
+
+    private final NetworkChannel javaChannel;
+
+    private volatile int backlog = NetUtil.SOMAXCONN;
+
+    ServalChannelConfig(Channel channel, NetworkChannel javaChannel,
+                        RecvByteBufAllocator allocator) {
+        super(channel, allocator);
+        this.javaChannel = javaChannel;
+    }
+
+    @Override
+    public Map<ChannelOption<?>, Object> getOptions() {
+        Map<ChannelOption<?>, Object> options = super.getOptions();
+
+        for (ChannelOption<?> option : SOCKET_OPTIONS.keySet()) {
+            if (socketOption(option) != null) {
+                options.put(option, getOption(option));
+            }
+        }
+        if (channel instanceof ServerChannel) {
+            options.put(ChannelOption.SO_BACKLOG, backlog);
+        }
+        return options;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T getOption(ChannelOption<T> option) {
+        if (option == ChannelOption.SO_BACKLOG && channel instanceof ServerChannel) {
+            return (T) Integer.valueOf(backlog);
+        }
+        SocketOption<T> name = socketOption(option);
+
+        if (name == null) {
+            return super.getOption(option);
+        }
+        try {
+            return javaChannel.getOption(name);
+        } catch (IOException e) {
+            throw new ChannelException(e);
+        }
+    }
+
+    @Override
+    public <T> boolean setOption(ChannelOption<T> option, T value) {
+        validate(option, value);
+
+        if (option == ChannelOption.SO_BACKLOG && channel instanceof ServerChannel) {
+            int n = (Integer) value;
+            if (n < 0) {
+                throw new IllegalArgumentException("backlog: " + n);
+            }
+            backlog = n;
+            return true;
+        }
+        SocketOption<T> name = socketOption(option);
+
+        if (name == null) {
+            return super.setOption(option, value);
+        }
+        try {
+            javaChannel.setOption(name, value);
+        } catch (IOException e) {
+            throw new ChannelException(e);
+        }
+        return true;
+    }
+
+    int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Returns the socket option of {@code option}, or {@code null} if
+     * the underlying channel does not support it.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> SocketOption<T> socketOption(ChannelOption<T> option) {
+        SocketOption<?> name = SOCKET_OPTIONS.get(option);
+
+        if (name == null || !javaChannel.supportedOptions().contains(name)) {
+            return null;
+        }
+        return (SocketOption<T>) name;
+    }
+}
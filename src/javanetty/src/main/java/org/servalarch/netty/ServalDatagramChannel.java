@@ -0,0 +1,275 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.DefaultAddressedEnvelope;
+import io.netty.channel.EventLoop;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.nio.AbstractNioMessageChannel;
+import io.netty.util.internal.StringUtil;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.List;
+
+import org.servalarch.net.ServalSelectorProvider;
+import org.servalarch.net.ServalSocketAddress;
+
+/**
+ * A Netty channel for Serval datagram sockets. It reads each datagram
+ * as an {@link AddressedEnvelope} of a {@link ByteBuf} and the {@link
+ * ServalSocketAddress} of its sender, and writes such envelopes, or
+ * plain {@code ByteBuf}s once connected.
+ * <p>
+ * Serval datagram sockets only receive once connected to a service,
+ * and connecting performs a handshake that blocks the event loop until
+ * it completes.
+ */
+public class ServalDatagramChannel extends AbstractNioMessageChannel {
+
+    private static final ChannelMetadata METADATA = new ChannelMetadata(true, 16);
+
+    private static final String EXPECTED_TYPES =
+        " (expected: " + StringUtil.simpleClassName(AddressedEnvelope.class) + '<' +
+        StringUtil.simpleClassName(ByteBuf.class) + ", " +
+        StringUtil.simpleClassName(SocketAddress.class) + ">, " +
+        StringUtil.simpleClassName(ByteBuf.class) + ')';
+
+    private final ServalChannelConfig config;
+
+    /**
+     * Creates a channel with a new Serval datagram socket.
+     */
+    public ServalDatagramChannel() {
+        this(newSocket());
+    }
+
+    public ServalDatagramChannel(org.servalarch.net.ServalDatagramChannel socket) {
+        super(null, socket, SelectionKey.OP_READ);
+        config = new ServalDatagramChannelConfig(this, socket);
+    }
+
+    private static org.servalarch.net.ServalDatagramChannel newSocket() {
+        try {
+            return ServalSelectorProvider.provider().openDatagramChannel();
+        } catch (IOException e) {
+            throw new ChannelException("Failed to open a socket.", e);
+        }
+    }
+
+    @Override
+    public ServalChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    protected org.servalarch.net.ServalDatagramChannel javaChannel() {
+        return (org.servalarch.net.ServalDatagramChannel) super.javaChannel();
+    }
+
+    @Override
+    public boolean isActive() {
+        org.servalarch.net.ServalDatagramChannel ch = javaChannel();
+        return ch.isOpen() && (ch.isConnected() || ch.servalSocket().isBound());
+    }
+
+    public boolean isConnected() {
+        return javaChannel().isConnected();
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        return ServalEventLoopGroup.isServalEventLoop(loop);
+    }
+
+    @Override
+    public ServalSocketAddress localAddress() {
+        return (ServalSocketAddress) super.localAddress();
+    }
+
+    @Override
+    public ServalSocketAddress remoteAddress() {
+        return (ServalSocketAddress) super.remoteAddress();
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return javaChannel().servalSocket().getLocalSocketAddress();
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return javaChannel().servalSocket().getRemoteSocketAddress();
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) throws Exception {
+        javaChannel().bind(localAddress);
+    }
+
+    @Override
+    protected boolean doConnect(SocketAddress remoteAddress,
+                                SocketAddress localAddress) throws Exception {
+        if (localAddress != null) {
+            doBind(localAddress);
+        }
+        boolean success = false;
+        try {
+            javaChannel().connect(remoteAddress);
+            success = true;
+            return true;
+        } finally {
+            if (!success) {
+                doClose();
+            }
+        }
+    }
+
+    @Override
+    protected void doFinishConnect() throws Exception {
+        throw new Error();
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        javaChannel().disconnect();
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        javaChannel().close();
+    }
+
+    @Override
+    protected int doReadMessages(List<Object> buf) throws Exception {
+        org.servalarch.net.ServalDatagramChannel ch = javaChannel();
+
+        if (!ch.isConnected()) {
+            return 0;
+        }
+        RecvByteBufAllocator.Handle allocHandle = unsafe().recvBufAllocHandle();
+        ByteBuf data = allocHandle.allocate(config.getAllocator());
+        boolean free = true;
+
+        allocHandle.attemptedBytesRead(data.writableBytes());
+        try {
+            ByteBuffer nioData = data.internalNioBuffer(data.writerIndex(),
+                                                        data.writableBytes());
+            int pos = nioData.position();
+            SocketAddress remote = ch.receive(nioData);
+
+            if (remote == null) {
+                return 0;
+            }
+            allocHandle.lastBytesRead(nioData.position() - pos);
+            data.writerIndex(data.writerIndex() + allocHandle.lastBytesRead());
+            buf.add(new DefaultAddressedEnvelope<ByteBuf, SocketAddress>(data, localAddress(), remote));
+            free = false;
+            return 1;
+        } finally {
+            if (free) {
+                data.release();
+            }
+        }
+    }
+
+    @Override
+    protected boolean doWriteMessage(Object msg, ChannelOutboundBuffer in)
+        throws Exception {
+        SocketAddress remoteAddress;
+        ByteBuf data;
+
+        if (msg instanceof AddressedEnvelope) {
+            @SuppressWarnings("unchecked")
+            AddressedEnvelope<ByteBuf, SocketAddress> envelope =
+                (AddressedEnvelope<ByteBuf, SocketAddress>) msg;
+            remoteAddress = envelope.recipient();
+            data = envelope.content();
+        } else {
+            data = (ByteBuf) msg;
+            remoteAddress = null;
+        }
+
+        int dataLen = data.readableBytes();
+        if (dataLen == 0) {
+            return true;
+        }
+        ByteBuffer nioData = data.nioBufferCount() == 1 ?
+            data.internalNioBuffer(data.readerIndex(), dataLen) :
+            data.nioBuffer(data.readerIndex(), dataLen);
+        int writtenBytes;
+
+        if (remoteAddress != null) {
+            writtenBytes = javaChannel().send(nioData, remoteAddress);
+        } else {
+            writtenBytes = javaChannel().write(nioData);
+        }
+        return writtenBytes > 0;
+    }
+
+    /**
+     * Copies the content of outgoing messages into a direct buffer,
+     * unless it is one already.
+     */
+    @Override
+    protected Object filterOutboundMessage(Object msg) {
+        if (msg instanceof ByteBuf) {
+            ByteBuf buf = (ByteBuf) msg;
+            return isSingleDirectBuffer(buf) ? buf : newDirectBuffer(buf);
+        }
+        if (msg instanceof AddressedEnvelope) {
+            @SuppressWarnings("unchecked")
+            AddressedEnvelope<Object, SocketAddress> e =
+                (AddressedEnvelope<Object, SocketAddress>) msg;
+
+            if (e.content() instanceof ByteBuf) {
+                ByteBuf content = (ByteBuf) e.content();
+
+                if (isSingleDirectBuffer(content)) {
+                    return e;
+                }
+                return new DefaultAddressedEnvelope<ByteBuf, SocketAddress>(newDirectBuffer(e, content), e.recipient());
+            }
+        }
+        throw new UnsupportedOperationException(
+            "unsupported message type: " + StringUtil.simpleClassName(msg) + EXPECTED_TYPES);
+    }
+
+    private static boolean isSingleDirectBuffer(ByteBuf buf) {
+        return buf.isDirect() && buf.nioBufferCount() == 1;
+    }
+
+    /**
+     * Keeps writing the next datagrams after one failed, like a
+     * datagram socket would.
+     */
+    @Override
+    protected boolean continueOnWriteError() {
+        return true;
+    }
+
+    private final class ServalDatagramChannelConfig extends ServalChannelConfig {
+
+        ServalDatagramChannelConfig(ServalDatagramChannel channel,
+                                    org.servalarch.net.ServalDatagramChannel socket) {
+            super(channel, socket, new FixedRecvByteBufAllocator(2048));
+        }
+
+        @Override
+        protected void autoReadCleared() {
+            clearReadPending();
+        }
+    }
+}
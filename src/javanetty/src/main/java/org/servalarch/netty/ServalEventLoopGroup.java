@@ -0,0 +1,57 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.netty;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.nio.NioEventLoop;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import org.servalarch.net.ServalSelectorProvider;
+
+/**
+ * The event loops of the Serval channels. Each loop selects on a
+ * {@link ServalSelectorProvider} selector, i.e., an epoll instance
+ * watching the AF_SERVAL descriptors of its channels.
+ * <p>
+ * Since that selector also accepts the channels of the default
+ * provider, the NIO channels of Netty, such as {@code
+ * NioSocketChannel}, can be registered with the same loops, so that a
+ * pipeline can bridge Serval and IP traffic without a thread hop. That
+ * requires running with {@code --add-opens
+ * java.base/sun.nio.ch=ALL-UNNAMED} on Java 9 and later.
+ */
+public class ServalEventLoopGroup extends NioEventLoopGroup {
+
+    /**
+     * Creates a group with the default number of threads, twice the
+     * number of processors unless set with {@code
+     * io.netty.eventLoopThreads}.
+     */
+    public ServalEventLoopGroup() {
+        this(0);
+    }
+
+    public ServalEventLoopGroup(int nThreads) {
+        this(nThreads, (ThreadFactory) null);
+    }
+
+    public ServalEventLoopGroup(int nThreads, ThreadFactory threadFactory) {
+        super(nThreads, threadFactory, ServalSelectorProvider.provider());
+    }
+
+    public ServalEventLoopGroup(int nThreads, Executor executor) {
+        super(nThreads, executor, ServalSelectorProvider.provider());
+    }
+
+    /**
+     * Returns whether {@code loop} belongs to a Serval event loop group,
+     * so that it selects on a Serval selector with which Serval
+     * channels can be registered.
+     */
+    static boolean isServalEventLoop(EventLoop loop) {
+        return loop instanceof NioEventLoop &&
+            loop.parent() instanceof ServalEventLoopGroup;
+    }
+}
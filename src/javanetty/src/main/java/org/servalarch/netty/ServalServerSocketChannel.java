@@ -0,0 +1,173 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.netty;
+
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.ServerChannelRecvByteBufAllocator;
+import io.netty.channel.nio.AbstractNioMessageChannel;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.List;
+
+import org.servalarch.net.ServalSelectorProvider;
+import org.servalarch.net.ServalSocketAddress;
+
+/**
+ * A Netty server channel that accepts Serval stream connections on
+ * the serviceID it is bound to, creating a {@link ServalSocketChannel}
+ * for each of them.
+ */
+public class ServalServerSocketChannel extends AbstractNioMessageChannel
+    implements ServerChannel {
+
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false, 16);
+
+    private static final InternalLogger logger =
+        InternalLoggerFactory.getInstance(ServalServerSocketChannel.class);
+
+    private final ServalChannelConfig config;
+
+    /**
+     * Creates a channel with a new Serval server socket.
+     */
+    public ServalServerSocketChannel() {
+        this(newSocket());
+    }
+
+    public ServalServerSocketChannel(org.servalarch.net.ServalServerSocketChannel socket) {
+        super(null, socket, SelectionKey.OP_ACCEPT);
+        config = new ServalServerSocketChannelConfig(this, socket);
+    }
+
+    private static org.servalarch.net.ServalServerSocketChannel newSocket() {
+        try {
+            return ServalSelectorProvider.provider().openServerSocketChannel();
+        } catch (IOException e) {
+            throw new ChannelException("Failed to open a server socket.", e);
+        }
+    }
+
+    @Override
+    public ServalChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    protected org.servalarch.net.ServalServerSocketChannel javaChannel() {
+        return (org.servalarch.net.ServalServerSocketChannel) super.javaChannel();
+    }
+
+    @Override
+    public boolean isActive() {
+        return isOpen() && javaChannel().servalServerSocket().isBound();
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        return ServalEventLoopGroup.isServalEventLoop(loop);
+    }
+
+    @Override
+    public ServalSocketAddress localAddress() {
+        return (ServalSocketAddress) super.localAddress();
+    }
+
+    @Override
+    public ServalSocketAddress remoteAddress() {
+        return null;
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return javaChannel().servalServerSocket().getLocalSocketAddress();
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return null;
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) throws Exception {
+        javaChannel().bind(localAddress, config.getBacklog());
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        javaChannel().close();
+    }
+
+    @Override
+    protected int doReadMessages(List<Object> buf) throws Exception {
+        org.servalarch.net.ServalSocketChannel ch = javaChannel().accept();
+
+        if (ch == null) {
+            return 0;
+        }
+        try {
+            buf.add(new ServalSocketChannel(this, ch));
+            return 1;
+        } catch (Throwable t) {
+            logger.warn("Failed to create a new channel from an accepted socket.", t);
+            try {
+                ch.close();
+            } catch (Throwable t2) {
+                logger.warn("Failed to close a socket.", t2);
+            }
+        }
+        return 0;
+    }
+
+    // A server channel neither connects nor writes
+    @Override
+    protected boolean doConnect(SocketAddress remoteAddress,
+                                SocketAddress localAddress) throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void doFinishConnect() throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected boolean doWriteMessage(Object msg, ChannelOutboundBuffer in)
+        throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected final Object filterOutboundMessage(Object msg) throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    private final class ServalServerSocketChannelConfig extends ServalChannelConfig {
+
+        ServalServerSocketChannelConfig(ServalServerSocketChannel channel,
+                                        org.servalarch.net.ServalServerSocketChannel socket) {
+            super(channel, socket, new ServerChannelRecvByteBufAllocator());
+        }
+
+        @Override
+        protected void autoReadCleared() {
+            clearReadPending();
+        }
+    }
+}
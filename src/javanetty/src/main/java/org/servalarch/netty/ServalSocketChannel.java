@@ -0,0 +1,339 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.FileRegion;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.nio.AbstractNioByteChannel;
+import io.netty.channel.socket.DuplexChannel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+import org.servalarch.net.ServalSelectorProvider;
+import org.servalarch.net.ServalSocketAddress;
+
+/**
+ * A Netty channel for Serval stream sockets, addressed with {@link
+ * ServalSocketAddress}es. It runs a non-blocking {@link
+ * org.servalarch.net.ServalSocketChannel} on a {@link
+ * ServalEventLoopGroup}.
+ * <p>
+ * Reads go straight into the direct buffers of the channel's
+ * allocator, pooled by default, and heap buffers are copied into
+ * direct ones before they are written, so that the JNI passes the
+ * buffer memory to the socket without a copy of its own.
+ */
+public class ServalSocketChannel extends AbstractNioByteChannel
+    implements DuplexChannel {
+
+    // The maximum number of buffers in a gathering write, which is as
+    // many as the bindings pass to one system call
+    private static final int MAX_GATHER = 64;
+
+    private final ServalChannelConfig config;
+
+    private volatile boolean inputShutdown = false;
+
+    private volatile boolean outputShutdown = false;
+
+    /**
+     * Creates a channel with a new Serval stream socket.
+     */
+    public ServalSocketChannel() {
+        this(newSocket());
+    }
+
+    public ServalSocketChannel(org.servalarch.net.ServalSocketChannel socket) {
+        this(null, socket);
+    }
+
+    /**
+     * Creates a channel for {@code socket}, e.g., a connection accepted
+     * by the server channel {@code parent}.
+     */
+    public ServalSocketChannel(Channel parent,
+                               org.servalarch.net.ServalSocketChannel socket) {
+        super(parent, socket);
+        config = new ServalSocketChannelConfig(this, socket);
+    }
+
+    private static org.servalarch.net.ServalSocketChannel newSocket() {
+        try {
+            return ServalSelectorProvider.provider().openSocketChannel();
+        } catch (IOException e) {
+            throw new ChannelException("Failed to open a socket.", e);
+        }
+    }
+
+    @Override
+    public ServalChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    protected org.servalarch.net.ServalSocketChannel javaChannel() {
+        return (org.servalarch.net.ServalSocketChannel) super.javaChannel();
+    }
+
+    @Override
+    public boolean isActive() {
+        org.servalarch.net.ServalSocketChannel ch = javaChannel();
+        return ch.isOpen() && ch.isConnected();
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        return ServalEventLoopGroup.isServalEventLoop(loop);
+    }
+
+    @Override
+    public ServalSocketAddress localAddress() {
+        return (ServalSocketAddress) super.localAddress();
+    }
+
+    @Override
+    public ServalSocketAddress remoteAddress() {
+        return (ServalSocketAddress) super.remoteAddress();
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return javaChannel().servalSocket().getLocalSocketAddress();
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return javaChannel().servalSocket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown || !isActive();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown || !isActive();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return isInputShutdown() && isOutputShutdown();
+    }
+
+    @Override
+    protected boolean isInputShutdown0() {
+        return isInputShutdown();
+    }
+
+    @Override
+    public ChannelFuture shutdownInput() {
+        return shutdownInput(newPromise());
+    }
+
+    @Override
+    public ChannelFuture shutdownInput(final ChannelPromise promise) {
+        EventLoop loop = eventLoop();
+
+        if (loop.inEventLoop()) {
+            shutdownInput0(promise);
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    shutdownInput0(promise);
+                }
+            });
+        }
+        return promise;
+    }
+
+    private void shutdownInput0(ChannelPromise promise) {
+        try {
+            javaChannel().shutdownInput();
+            inputShutdown = true;
+            promise.setSuccess();
+        } catch (Throwable t) {
+            promise.setFailure(t);
+        }
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput() {
+        return shutdownOutput(newPromise());
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput(final ChannelPromise promise) {
+        EventLoop loop = eventLoop();
+
+        if (loop.inEventLoop()) {
+            ((AbstractUnsafe) unsafe()).shutdownOutput(promise);
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((AbstractUnsafe) unsafe()).shutdownOutput(promise);
+                }
+            });
+        }
+        return promise;
+    }
+
+    @Override
+    public ChannelFuture shutdown() {
+        return shutdown(newPromise());
+    }
+
+    /**
+     * Shuts down the output and then the input, failing {@code promise}
+     * with the first error of either.
+     */
+    @Override
+    public ChannelFuture shutdown(final ChannelPromise promise) {
+        shutdownOutput().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture output) {
+                shutdownInput().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture input) {
+                        Throwable cause = output.cause() != null ?
+                            output.cause() : input.cause();
+
+                        if (cause != null) {
+                            promise.setFailure(cause);
+                        } else {
+                            promise.setSuccess();
+                        }
+                    }
+                });
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    protected void doShutdownOutput() throws Exception {
+        javaChannel().shutdownOutput();
+        outputShutdown = true;
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) throws Exception {
+        javaChannel().bind(localAddress);
+    }
+
+    @Override
+    protected boolean doConnect(SocketAddress remoteAddress,
+                                SocketAddress localAddress) throws Exception {
+        if (localAddress != null) {
+            doBind(localAddress);
+        }
+        boolean success = false;
+        try {
+            boolean connected = javaChannel().connect(remoteAddress);
+            if (!connected) {
+                selectionKey().interestOps(SelectionKey.OP_CONNECT);
+            }
+            success = true;
+            return connected;
+        } finally {
+            if (!success) {
+                doClose();
+            }
+        }
+    }
+
+    @Override
+    protected void doFinishConnect() throws Exception {
+        if (!javaChannel().finishConnect()) {
+            throw new Error();
+        }
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        doClose();
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        super.doClose();
+        javaChannel().close();
+    }
+
+    @Override
+    protected int doReadBytes(ByteBuf byteBuf) throws Exception {
+        RecvByteBufAllocator.Handle allocHandle = unsafe().recvBufAllocHandle();
+
+        allocHandle.attemptedBytesRead(byteBuf.writableBytes());
+        return byteBuf.writeBytes(javaChannel(), allocHandle.attemptedBytesRead());
+    }
+
+    @Override
+    protected int doWriteBytes(ByteBuf buf) throws Exception {
+        return buf.readBytes(javaChannel(), buf.readableBytes());
+    }
+
+    @Override
+    protected long doWriteFileRegion(FileRegion region) throws Exception {
+        return region.transferTo(javaChannel(), region.transferred());
+    }
+
+    /**
+     * Writes the flushed buffers, gathering several of them into one
+     * write where possible.
+     */
+    @Override
+    protected void doWrite(ChannelOutboundBuffer in) throws Exception {
+        int writeSpinCount = config().getWriteSpinCount();
+
+        do {
+            if (in.isEmpty()) {
+                clearOpWrite();
+                return;
+            }
+            ByteBuffer[] nioBuffers = in.nioBuffers(MAX_GATHER, Integer.MAX_VALUE);
+            int nioBufferCnt = in.nioBufferCount();
+
+            if (nioBufferCnt <= 1) {
+                // A single buffer, or a file region or other message
+                writeSpinCount -= doWrite0(in);
+                continue;
+            }
+            long written = javaChannel().write(nioBuffers, 0, nioBufferCnt);
+            if (written <= 0) {
+                incompleteWrite(true);
+                return;
+            }
+            in.removeBytes(written);
+            --writeSpinCount;
+        } while (writeSpinCount > 0);
+
+        incompleteWrite(writeSpinCount < 0);
+    }
+
+    private final class ServalSocketChannelConfig extends ServalChannelConfig {
+
+        ServalSocketChannelConfig(ServalSocketChannel channel,
+                                  org.servalarch.net.ServalSocketChannel socket) {
+            super(channel, socket, new AdaptiveRecvByteBufAllocator());
+        }
+
+        @Override
+        protected void autoReadCleared() {
+            clearReadPending();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * Least recently used cache of destinations resolved into native
+ * socket addresses, used by unconnected datagram sockets so that
+ * sending to a known service does not rebuild its address.
+ * <p>
+ * A handle is only valid while the cache lock is held, since it may be
+ * freed once evicted. Callers therefore send while synchronized on the
+ * cache.
+ */
+final class ServalAddressCache {
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final ServalNetworkStack netImpl = ServalNetworkStack.getInstance();
+
+    private final Map<ServalSocketAddress, Long> handles;
+
+    // Reused lookup key, avoiding an allocation per send
+    private final ServalSocketAddress probe = new ServalSocketAddress(null);
+
+    ServalAddressCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    ServalAddressCache(final int capacity) {
+        handles = new LinkedHashMap<ServalSocketAddress, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<ServalSocketAddress, Long> eldest) {
+                if (size() > capacity) {
+                    netImpl.freeSockAddr(eldest.getValue().longValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the native socket address of a destination, resolving it
+     * on a miss. Must be called while synchronized on this cache.
+     */
+    long lookup(ServiceID serviceID, InetAddress address, int prefixBits) {
+        probe.serviceID = serviceID;
+        probe.address = address;
+        probe.prefix_bits = prefixBits;
+
+        Long handle = handles.get(probe);
+
+        if (handle == null) {
+            handle = Long.valueOf(netImpl.createSockAddr(serviceID, address,
+                                                         prefixBits));
+            handles.put(new ServalSocketAddress(serviceID, address,
+                                                prefixBits), handle);
+        }
+        return handle.longValue();
+    }
+
+    /**
+     * Frees all cached native socket addresses.
+     */
+    synchronized void clear() {
+        Iterator<Long> it = handles.values().iterator();
+
+        while (it.hasNext()) {
+            netImpl.freeSockAddr(it.next().longValue());
+            it.remove();
+        }
+    }
+}
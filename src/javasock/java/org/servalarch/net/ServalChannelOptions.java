@@ -0,0 +1,93 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.net.SocketOption;
+import java.net.SocketOptions;
+import java.net.StandardSocketOptions;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Maps the {@code SocketOption}s of the NIO channel API onto the
+ * {@code SocketOptions} identifiers understood by the Serval socket
+ * implementations.
+ */
+final class ServalChannelOptions {
+
+    static final Set<SocketOption<?>> STREAM_OPTIONS =
+        options(StandardSocketOptions.SO_SNDBUF,
+                StandardSocketOptions.SO_RCVBUF,
+                StandardSocketOptions.SO_KEEPALIVE,
+                StandardSocketOptions.SO_REUSEADDR,
+                StandardSocketOptions.IP_TOS);
+
+    static final Set<SocketOption<?>> SERVER_OPTIONS =
+        options(StandardSocketOptions.SO_RCVBUF,
+                StandardSocketOptions.SO_REUSEADDR);
+
+    static final Set<SocketOption<?>> DATAGRAM_OPTIONS =
+        options(StandardSocketOptions.SO_SNDBUF,
+                StandardSocketOptions.SO_RCVBUF,
+                StandardSocketOptions.SO_REUSEADDR,
+                StandardSocketOptions.SO_BROADCAST,
+                StandardSocketOptions.IP_TOS);
+
+    private ServalChannelOptions() {
+    }
+
+    private static Set<SocketOption<?>> options(SocketOption<?>... names) {
+        Set<SocketOption<?>> set = new HashSet<SocketOption<?>>();
+        Collections.addAll(set, names);
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Returns the {@code SocketOptions} identifier of {@code name},
+     * checking that it is one of the {@code supported} options and that
+     * {@code value} is valid for it.
+     */
+    static int optionID(Set<SocketOption<?>> supported,
+                        SocketOption<?> name, Object value) {
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        if (!supported.contains(name)) {
+            throw new UnsupportedOperationException("'" + name + "' not supported");
+        }
+        if (value != null) {
+            if (!name.type().isInstance(value)) {
+                throw new IllegalArgumentException("Invalid value '" + value + "'");
+            }
+            if ((name == StandardSocketOptions.SO_SNDBUF ||
+                 name == StandardSocketOptions.SO_RCVBUF) &&
+                ((Integer) value).intValue() < 1) {
+                throw new IllegalArgumentException("Invalid value '" + value + "'");
+            }
+        }
+        if (name == StandardSocketOptions.SO_SNDBUF) {
+            return SocketOptions.SO_SNDBUF;
+        } else if (name == StandardSocketOptions.SO_RCVBUF) {
+            return SocketOptions.SO_RCVBUF;
+        } else if (name == StandardSocketOptions.SO_KEEPALIVE) {
+            return SocketOptions.SO_KEEPALIVE;
+        } else if (name == StandardSocketOptions.SO_REUSEADDR) {
+            return SocketOptions.SO_REUSEADDR;
+        } else if (name == StandardSocketOptions.SO_BROADCAST) {
+            return SocketOptions.SO_BROADCAST;
+        }
+        return SocketOptions.IP_TOS;
+    }
+
+    /**
+     * Converts a value returned by a socket implementation's {@code
+     * getOption} to the type of {@code name}. The natives report boolean
+     * options as integers.
+     */
+    static <T> T value(SocketOption<T> name, Object value) {
+        if (name.type() == Boolean.class && value instanceof Integer) {
+            value = Boolean.valueOf(((Integer) value).intValue() != 0);
+        }
+        return name.type().cast(value);
+    }
+}
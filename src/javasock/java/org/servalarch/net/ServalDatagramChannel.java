@@ -0,0 +1,483 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * A selectable channel for Serval datagram sockets, operating directly
+ * on the AF_SERVAL file descriptor of its {@code
+ * ServalDatagramSocketImpl}.
+ * <p>
+ * Since a Serval datagram socket is not a {@code java.net.DatagramSocket},
+ * {@link #socket()} is not supported; use {@link #servalSocket()}
+ * instead. Multicast is not supported.
+ *
+ * @see ServalSelectorProvider
+ */
+public class ServalDatagramChannel extends DatagramChannel {
+
+    private final ServalNetworkStack netImpl = ServalNetworkStack.getInstance();
+
+    final ServalDatagramSocketImpl impl;
+
+    private final ServalDatagramSocket socket;
+
+    // Lock held by the current reading thread
+    private final Object readLock = new Object();
+
+    // Lock held by the current writing thread
+    private final Object writeLock = new Object();
+
+    // Lock protecting the bound and connected state
+    private final Object stateLock = new Object();
+
+    private volatile ServalSocketAddress remoteAddress;
+
+    /**
+     * Creates an unbound channel with a new Serval datagram socket.
+     */
+    protected ServalDatagramChannel(SelectorProvider provider)
+        throws IOException {
+        super(provider);
+        impl = new ServalDatagramSocketImpl();
+        impl.create();
+        socket = new ServalDatagramSocket(impl, this);
+    }
+
+    /**
+     * Opens an unbound Serval datagram channel.
+     */
+    public static ServalDatagramChannel open() throws IOException {
+        return ServalSelectorProvider.provider().openDatagramChannel();
+    }
+
+    /**
+     * Not supported, a Serval datagram socket cannot be represented as a
+     * {@code java.net.DatagramSocket}.
+     *
+     * @throws UnsupportedOperationException always.
+     * @see #servalSocket()
+     */
+    @Override
+    public DatagramSocket socket() {
+        throw new UnsupportedOperationException("Use servalSocket()");
+    }
+
+    /**
+     * Returns the Serval datagram socket associated with this channel.
+     */
+    public ServalDatagramSocket servalSocket() {
+        return socket;
+    }
+
+    FileDescriptor getFD() {
+        return impl.getFileDescriptor();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static ServalSocketAddress checkAddress(SocketAddress sa) {
+        if (sa == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!(sa instanceof ServalSocketAddress)) {
+            throw new UnsupportedAddressTypeException();
+        }
+        ServalSocketAddress ssa = (ServalSocketAddress) sa;
+        if (ssa.getServiceID() == null) {
+            throw new UnresolvedAddressException();
+        }
+        return ssa;
+    }
+
+    @Override
+    public ServalDatagramChannel bind(SocketAddress local) throws IOException {
+        if (local != null && !(local instanceof ServalSocketAddress)) {
+            throw new UnsupportedAddressTypeException();
+        }
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                synchronized (stateLock) {
+                    ensureOpen();
+                    if (socket.isBound()) {
+                        throw new AlreadyBoundException();
+                    }
+                    socket.bind(local);
+                }
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public <T> ServalDatagramChannel setOption(SocketOption<T> name, T value)
+        throws IOException {
+        int optID = ServalChannelOptions.optionID(supportedOptions(), name, value);
+
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid value 'null'");
+        }
+        synchronized (stateLock) {
+            ensureOpen();
+            impl.setOption(optID, value);
+        }
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        int optID = ServalChannelOptions.optionID(supportedOptions(), name, null);
+
+        synchronized (stateLock) {
+            ensureOpen();
+            return ServalChannelOptions.value(name, impl.getOption(optID));
+        }
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return ServalChannelOptions.DATAGRAM_OPTIONS;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return remoteAddress != null;
+    }
+
+    /**
+     * Connects this channel to a remote service. Serval datagram sockets
+     * perform a connection handshake, so this method blocks until the
+     * handshake has completed even in non-blocking mode.
+     */
+    @Override
+    public ServalDatagramChannel connect(SocketAddress remote)
+        throws IOException {
+        ServalSocketAddress ssa = checkAddress(remote);
+
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                synchronized (stateLock) {
+                    ensureOpen();
+                    if (!socket.isBound()) {
+                        socket.bind(null);
+                    }
+                    boolean completed = false;
+                    try {
+                        begin();
+                        socket.connect(ssa);
+                        completed = true;
+                    } finally {
+                        end(completed);
+                        // The native connect always leaves the
+                        // socket in blocking mode
+                        if (!isBlocking() && isOpen()) {
+                            netImpl.setNonBlocking(getFD(), true);
+                        }
+                    }
+                    remoteAddress = ssa;
+                }
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public ServalDatagramChannel disconnect() throws IOException {
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                synchronized (stateLock) {
+                    if (!isConnected() || !isOpen()) {
+                        return this;
+                    }
+                    socket.disconnect();
+                    remoteAddress = null;
+                }
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        ensureOpen();
+        return remoteAddress;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        synchronized (stateLock) {
+            ensureOpen();
+            return socket.getLocalSocketAddress();
+        }
+    }
+
+    /**
+     * Receives a datagram into {@code dst}. The channel must be
+     * connected.
+     *
+     * @return the address of the sender, or {@code null} if this
+     *         channel is non-blocking and no datagram is available.
+     */
+    @Override
+    public SocketAddress receive(ByteBuffer dst) throws IOException {
+        if (!isConnected()) {
+            throw new NotYetConnectedException();
+        }
+        ServalSocketAddress remote = remoteAddress;
+        int n = readDatagram(dst);
+
+        return n != 0 || isBlocking() ? remote : null;
+    }
+
+    /**
+     * Sends the remaining bytes of {@code src} as one datagram. A
+     * connected channel can only send to its peer; an unconnected one
+     * can send to any service, reusing the native address of recently
+     * used destinations.
+     */
+    @Override
+    public int send(ByteBuffer src, SocketAddress target) throws IOException {
+        ServalSocketAddress ssa = checkAddress(target);
+        ServalSocketAddress remote = remoteAddress;
+
+        if (remote != null) {
+            if (!remote.getServiceID().equals(ssa.getServiceID())) {
+                throw new IllegalArgumentException("Connected to a different serviceID");
+            }
+            return write(src);
+        }
+        if (src == null) {
+            throw new NullPointerException();
+        }
+        if (!socket.isBound()) {
+            try {
+                bind(null);
+            } catch (AlreadyBoundException e) {
+                // Bound concurrently
+            }
+        }
+        synchronized (writeLock) {
+            ensureOpen();
+            int n = 0;
+            boolean completed = false;
+            try {
+                begin();
+                n = impl.send(src, ssa);
+                completed = true;
+            } finally {
+                end(completed);
+            }
+            return n;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n = readDatagram(dst);
+        // -1 signals a zero-length datagram
+        return n < 0 ? 0 : n;
+    }
+
+    /**
+     * Reads one datagram, returning the native result: the datagram
+     * length, 0 if none is available, or -1 for a zero-length
+     * datagram.
+     */
+    private int readDatagram(ByteBuffer dst) throws IOException {
+        if (dst == null) {
+            throw new NullPointerException();
+        }
+        synchronized (readLock) {
+            ensureOpen();
+            if (!isConnected()) {
+                throw new NotYetConnectedException();
+            }
+            int n = 0;
+            boolean completed = false;
+            try {
+                begin();
+                n = netImpl.readNonBlocking(getFD(), dst);
+                while (n == ServalNetworkStack.UNAVAILABLE && isBlocking()) {
+                    park(ServalPoller.EPOLLIN);
+                    n = netImpl.readNonBlocking(getFD(), dst);
+                }
+                if (n == ServalNetworkStack.UNAVAILABLE) {
+                    n = 0;
+                }
+                completed = true;
+            } finally {
+                end(completed);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Parks the current thread until the socket is ready for {@code
+     * event}, or the channel is closed or the thread interrupted.
+     */
+    private void park(int event) throws IOException {
+        impl.threads.add();
+        try {
+            impl.threads.park(getFD(), event, 0, null);
+        } finally {
+            impl.threads.remove();
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length)
+        throws IOException {
+        if (offset < 0 || length < 0 || offset > dsts.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (dsts[i].hasRemaining()) {
+                return read(dsts[i]);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (src == null) {
+            throw new NullPointerException();
+        }
+        synchronized (writeLock) {
+            ensureOpen();
+            if (!isConnected()) {
+                throw new NotYetConnectedException();
+            }
+            int n = 0;
+            boolean completed = false;
+            try {
+                begin();
+                n = netImpl.write(getFD(), src);
+                completed = true;
+            } finally {
+                end(completed);
+            }
+            return n;
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException {
+        if (offset < 0 || length < 0 || offset > srcs.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        // Gather into one datagram
+        int size = 0;
+        for (int i = offset; i < offset + length; i++) {
+            size += srcs[i].remaining();
+        }
+        ByteBuffer datagram = ByteBuffer.allocateDirect(size);
+        for (int i = offset; i < offset + length; i++) {
+            datagram.put(srcs[i].duplicate());
+        }
+        datagram.flip();
+
+        int n = write(datagram);
+
+        if (n > 0) {
+            for (int i = offset; i < offset + length; i++) {
+                srcs[i].position(srcs[i].limit());
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public MembershipKey join(InetAddress group, NetworkInterface interf)
+        throws IOException {
+        throw new UnsupportedOperationException("Multicast not supported");
+    }
+
+    @Override
+    public MembershipKey join(InetAddress group, NetworkInterface interf,
+                              InetAddress source) throws IOException {
+        throw new UnsupportedOperationException("Multicast not supported");
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException {
+        netImpl.setNonBlocking(getFD(), !block);
+    }
+
+    /**
+     * Closes the channel. While the channel is registered with a
+     * selector, the descriptor is only shut down to wake up blocked
+     * threads; the selector closes it through {@link #kill()} once the
+     * channel has been deregistered, so that the descriptor cannot be
+     * reused while still in the selector's epoll set.
+     */
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+        synchronized (stateLock) {
+            if (isRegistered()) {
+                preClose();
+            } else {
+                socket.close();
+            }
+        }
+    }
+
+    private void preClose() {
+        try {
+            netImpl.shutdownInput(getFD());
+        } catch (IOException e) {
+            // Not connected
+        }
+        try {
+            netImpl.shutdownOutput(getFD());
+        } catch (IOException e) {
+            // Not connected
+        }
+    }
+
+    /**
+     * Closes the descriptor of a channel closed while registered.
+     */
+    void kill() throws IOException {
+        synchronized (stateLock) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getClass().getName());
+        sb.append('[');
+        if (!isOpen()) {
+            sb.append("closed");
+        } else if (isConnected()) {
+            sb.append("connected remote=").append(remoteAddress.getServiceID());
+        } else {
+            sb.append("unconnected");
+        }
+        return sb.append(']').toString();
+    }
+}
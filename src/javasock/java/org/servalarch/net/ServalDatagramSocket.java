@@ -6,6 +6,7 @@ import java.net.SocketException;
 import java.net.SocketOptions;
 import java.net.InetAddress;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import org.servalarch.net.ServalDatagramSocketImpl;
 import org.servalarch.net.ServiceID;
@@ -45,6 +46,8 @@ public class ServalDatagramSocket {
 
     private Object lock = new Lock();
 
+    private DatagramChannel channel;
+
     /**
      * Constructs a Serval datagram socket which is bound to any
      * available serviceID on the localhost.
@@ -382,9 +385,8 @@ public class ServalDatagramSocket {
      * pack}. All fields of {@code pack} must be set according to the data
      * received. If the received data is longer than the packet buffer size it
      * is truncated. This method blocks until a packet is received or a timeout
-     * has expired. If a security manager exists, its {@code checkAccept} method
-     * determines whether or not a packet is discarded. Any packets from
-     * unacceptable origins are silently discarded.
+     * has expired. If the socket is connected, packets from other senders
+     * are silently discarded.
      *
      * @param pack
      *            the {@code ServalDatagramPacket} to store the received data.
@@ -393,116 +395,17 @@ public class ServalDatagramSocket {
      */
     public synchronized int receive(ServalDatagramPacket pack) 
         throws IOException, IllegalArgumentException {
-        int ret = 0;
-
         //checkClosedAndBind(true);
         checkClosedAndBind(false);
 
-        ServiceID senderServiceID;
-        InetAddress senderAddr;
-        ServalDatagramPacket tempPack = new ServalDatagramPacket(new byte[1], 1);
-
-        // means that we have received the packet into the temporary buffer
-        boolean copy = false;
-        
-        SecurityManager security = System.getSecurityManager();
-
-        if (serviceID != null || security != null) {
-            // The socket is connected or we need to check security
-            // permissions
-
-            // Check pack before peeking
-            if (pack == null) {
-                throw new NullPointerException();
-            }
-        
-            // iterate over incoming packets
-            while (true) {
-                copy = false;
-
-                // let's get sender's serviceID and address
-                try {
-                    impl.peekData(tempPack);
-                    SocketAddress sa = tempPack.getSocketAddress();
-
-                    if (!(sa instanceof ServalSocketAddress)) {
-                        throw new IllegalArgumentException("Bad socket address");
-                    }
-
-                    ServalSocketAddress ssa = (ServalSocketAddress)sa;
-                    senderServiceID = ssa.getServiceID();
-
-                    senderAddr = tempPack.getAddress();
-                } catch (SocketException e) {
-                    if (e.getMessage().equals(
-                            "The socket does not support the operation")) {
-                        // receive packet to temporary buffer
-                        tempPack = new ServalDatagramPacket(
-                            new byte[pack.getData().length],
-                            pack.getData().length);
-                        impl.receive(tempPack);
-                        // tempPack's length field is now updated,
-                        // capacity is unchanged let's extract
-                        // serviceID and address
-                        SocketAddress sa = tempPack.getSocketAddress();
-                        
-                        if (!(sa instanceof ServalSocketAddress)) {
-                            throw new IllegalArgumentException("Bad socket address");
-                        }
-
-                        ServalSocketAddress ssa = (ServalSocketAddress)sa;
-                        senderServiceID = ssa.getServiceID();
-                        senderAddr = tempPack.getAddress();
-                        copy = true;
-                    } else {
-                        throw e;
-                    }
-                }
-
-                if (serviceID == null) {
-                    /*
-                    // if we are not connected let's check if we are allowed to
-                    // receive packets from sender's address and port
-                    try {
-                        security.checkAccept(senderAddr.getHostName(),
-                                senderPort);
-                        // address & port are valid
-                        break;
-                    } catch (SecurityException e) {
-                        if (!copy) {
-                            // drop this packet and continue
-                            impl.receive(tempPack);
-                        }
-                    }
-                    */
-                    break;
-                } else if (serviceID.equals(senderServiceID) && 
-                           (address == null || address.equals(senderAddr))) {
-                    // we are connected and the packet came
-                    // from the serviceID and address we are connected to
-                    break;
-                } else if (!copy) {
-                    // drop packet and continue
-                    ret = impl.receive(tempPack);
-                }
-            }
-        }
-
-        if (copy) {
-            System.arraycopy(tempPack.getData(), 0, pack.getData(), 
-                             pack.getOffset(), tempPack.getLength());
-            // we shouldn't update the pack's capacity field in order to be
-            // compatible with RI
-            pack.setLength(tempPack.getLength());
-            pack.setServiceID(tempPack.getServiceID());
-            pack.setAddress(tempPack.getAddress());
-        } else {
-            pack.setLength(pack.getData().length);
-            ret = impl.receive(pack);
-            // pack's length field is now updated by native code call;
-            // pack's capacity field is unchanged
+        if (pack == null) {
+            throw new NullPointerException();
         }
-        return ret;
+        // The payload, sender serviceID and address are filled in by
+        // a single native call, which also drops datagrams that do not
+        // come from the connected peer. pack's length field is updated;
+        // its capacity field is unchanged.
+        return impl.receive(pack);
     }
 
     /**
@@ -520,6 +423,15 @@ public class ServalDatagramSocket {
         //checkClosedAndBind(true);
         checkClosedAndBind(false);
 
+        checkDestination(pack);
+        impl.send(pack);
+    }
+
+    /**
+     * Checks the destination of a packet to send, filling in the
+     * connected serviceID and address if the packet has none.
+     */
+    private void checkDestination(ServalDatagramPacket pack) {
         InetAddress packAddr = pack.getAddress();
         SocketAddress sa;
         
@@ -572,7 +484,139 @@ public class ServalDatagramSocket {
             }
             */
         }
-        impl.send(pack);
+    }
+
+    /**
+     * Receives a batch of datagrams into {@code packs} with a single
+     * system call. This method blocks until at least one datagram is
+     * received or the timeout has expired, and then fills as many
+     * further packets as there are datagrams already queued. Each
+     * filled packet gets the length of its datagram and the serviceID
+     * and address of its sender. Unlike {@link
+     * #receive(ServalDatagramPacket)}, packets are not peeked at first;
+     * a connected socket relies on the kernel to only deliver datagrams
+     * from its peer.
+     *
+     * @param packs
+     *            the packets to store the received datagrams in.
+     * @return the number of packets filled, starting at index 0.
+     * @throws IOException
+     *                if an error occurs while receiving the datagrams.
+     */
+    public int receiveBatch(ServalDatagramPacket[] packs) throws IOException {
+        return receiveBatch(packs, 0, packs.length);
+    }
+
+    /**
+     * Receives a batch of datagrams into {@code count} packets of
+     * {@code packs} starting at {@code offset}.
+     *
+     * @see #receiveBatch(ServalDatagramPacket[])
+     */
+    public synchronized int receiveBatch(ServalDatagramPacket[] packs,
+                                         int offset, int count)
+        throws IOException {
+        checkClosedAndBind(false);
+        checkBatch(packs, offset, count);
+        return impl.receive(packs, offset, count);
+    }
+
+    /**
+     * Sends a batch of packets with as few system calls as possible,
+     * each packet being checked as by {@link #send(ServalDatagramPacket)}.
+     *
+     * @param packs
+     *            the packets to send.
+     * @return the number of packets sent.
+     * @throws IOException
+     *                if an error occurs while sending the packets.
+     */
+    public int sendBatch(ServalDatagramPacket[] packs) throws IOException {
+        return sendBatch(packs, 0, packs.length);
+    }
+
+    /**
+     * Sends {@code count} packets of {@code packs} starting at {@code
+     * offset}.
+     *
+     * @see #sendBatch(ServalDatagramPacket[])
+     */
+    public int sendBatch(ServalDatagramPacket[] packs, int offset, int count)
+        throws IOException {
+        checkClosedAndBind(false);
+        checkBatch(packs, offset, count);
+
+        for (int i = offset; i < offset + count; i++) {
+            checkDestination(packs[i]);
+        }
+
+        int sent = 0;
+
+        while (sent < count) {
+            int n = impl.send(packs, offset + sent, count - sent);
+            if (n <= 0) {
+                break;
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    private static void checkBatch(ServalDatagramPacket[] packs, int offset,
+                                   int count) {
+        if (offset < 0 || count < 0 || offset > packs.length - count) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = offset; i < offset + count; i++) {
+            if (packs[i] == null) {
+                throw new NullPointerException();
+            }
+        }
+    }
+
+    /**
+     * Receives a datagram from the connected peer into the remaining
+     * space of {@code dst}, advancing its position by the length of the
+     * datagram. When {@code dst} is a direct buffer the datagram is
+     * received straight into its memory without any intermediate copy
+     * or allocation. If the datagram is longer than the remaining space
+     * it is truncated. This method blocks until a datagram is received
+     * or the timeout has expired.
+     *
+     * @param dst
+     *            the buffer to store the received datagram in.
+     * @return the number of bytes received.
+     * @throws IOException
+     *                if the socket is not connected or an error occurs
+     *                while receiving the datagram.
+     */
+    public int receive(ByteBuffer dst) throws IOException {
+        checkClosedAndBind(false);
+        if (!isConnected()) {
+            throw new SocketException("Socket is not connected");
+        }
+        return impl.receive(dst);
+    }
+
+    /**
+     * Sends the remaining bytes of {@code src} as a single datagram to
+     * the connected peer, advancing its position by the number of bytes
+     * sent. When {@code src} is a direct buffer the data is sent
+     * straight from its memory without any intermediate copy.
+     *
+     * @param src
+     *            the buffer holding the datagram to send.
+     * @return the number of bytes sent.
+     * @throws IOException
+     *                if the socket is not connected or an error occurs
+     *                while sending the datagram.
+     */
+    public int send(ByteBuffer src) throws IOException {
+        checkClosedAndBind(false);
+        if (!isConnected()) {
+            throw new SocketException("Socket is not connected");
+        }
+        return impl.send(src);
     }
 
     /**
@@ -693,6 +737,16 @@ public class ServalDatagramSocket {
      * @throws SocketException
      *             if a problem occurs creating or binding the socket.
      */
+    /**
+     * Creates an unbound datagram socket for a channel, using the
+     * channel's already created socket implementation.
+     */
+    ServalDatagramSocket(ServalDatagramSocketImpl socketImpl,
+                         DatagramChannel channel) {
+        impl = socketImpl;
+        this.channel = channel;
+    }
+
     public ServalDatagramSocket(SocketAddress localAddr) throws SocketException {
         if (localAddr != null) {
             if (!(localAddr instanceof ServalSocketAddress)) {
@@ -914,13 +968,12 @@ public class ServalDatagramSocket {
     }
 
     /**
-     * Gets the related DatagramChannel of this socket. This implementation
-     * returns always {@code null}.
+     * Gets the related DatagramChannel of this socket.
      *
      * @return the related DatagramChannel or {@code null} if this socket was
-     *         not created by a {@code DatagramChannel} object.
+     *         not created by a {@code ServalDatagramChannel} object.
      */
     public DatagramChannel getChannel() {
-        return null;
+        return channel;
     }
 }
@@ -3,11 +3,13 @@ package org.servalarch.net;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.net.SocketOptions;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.servalarch.platform.ServalNetworkStack;
 
 /**
@@ -66,6 +68,8 @@ public class ServalDatagramSocketImpl implements SocketOptions {
      * the native level
      */
     private InetAddress connectedAddress = null;
+    private byte[] connectedAddrBytes = null;
+    private byte[] connectedServiceIDBytes = null;
 
     /**
      * used to store the trafficClass value which is simply returned as the
@@ -74,6 +78,29 @@ public class ServalDatagramSocketImpl implements SocketOptions {
      */
     private int trafficClass;
 
+    // Lock held by the receiving thread, guarding the receive state
+    private final Object recvLock = new Object();
+
+    // Sender of the last received datagram, kept to avoid creating
+    // a new ServiceID and InetAddress for every datagram
+    private final byte[] srcServiceID =
+        new byte[ServiceID.SERVICE_ID_MAX_LENGTH];
+    private final byte[] srcAddr = new byte[4];
+    private final byte[] lastSrcAddr = new byte[4];
+    private ServiceID lastSrcServiceID;
+    private InetAddress lastSrcAddress;
+
+    // Threads blocked on the socket, also those of its channel
+    final ServalThreadSet threads = new ServalThreadSet();
+
+    // Destinations of unconnected sends
+    private final ServalAddressCache addrCache = new ServalAddressCache();
+
+    // Batch I/O state, allocated on first use
+    private Batch recvBatch;
+    private final Object sendBatchLock = new Object();
+    private Batch sendBatch;
+
     public ServalDatagramSocketImpl(FileDescriptor fd, 
                                     ServiceID localServiceID) {
         this.fd = fd;
@@ -136,6 +163,8 @@ public class ServalDatagramSocketImpl implements SocketOptions {
         }
 
         netImpl.listen(fd, backlog);
+        // Accept waits on the poller rather than in the native code
+        netImpl.setNonBlocking(fd, true);
     }
 
     /**
@@ -151,25 +180,35 @@ public class ServalDatagramSocketImpl implements SocketOptions {
             throw new IOException("socket not created");
         }
 
-        FileDescriptor clientFd = netImpl.accept(fd, s, 0);
+        threads.add();
+        try {
+            FileDescriptor clientFd = netImpl.accept(fd, s, 0);
 
-        if (clientFd == null) {
-            throw new IOException("client socket not created");
+            while (clientFd == null) {
+                threads.park(fd, ServalPoller.EPOLLIN, 0, null);
+                clientFd = netImpl.accept(fd, s, 0);
+            }
+            s.fd = clientFd;
+            s.isNativeConnected = true;
+        } finally {
+            threads.remove();
         }
-        s.fd = clientFd;
-        s.isNativeConnected = true;
     }
 
     public void close() {
         synchronized (fd) {
-            if (fd.valid()) {
-                try {
-                    netImpl.close(fd);
-                } catch (IOException e) {
+            if (netImpl.isValid(fd)) {
+                // Threads blocked on the socket close it once woken up
+                if (threads.close(fd)) {
+                    try {
+                        netImpl.close(fd);
+                    } catch (IOException e) {
+                    }
                 }
                 fd = new FileDescriptor();
             }
         }
+        addrCache.clear();
     }
 
     public void create() throws SocketException {
@@ -203,32 +242,97 @@ public class ServalDatagramSocketImpl implements SocketOptions {
         }
     }
     
-    public int receive(ServalDatagramPacket pack) throws java.io.IOException {
-        int ret = 0;
+    /**
+     * Receives a datagram into {@code pack}, setting its length and the
+     * serviceID and address of the sender. A socket connected at the
+     * native level only accepts datagrams from its peer; others are
+     * dropped by the native code.
+     * 
+     * @return the length of the received datagram.
+     */
+    public int receive(ServalDatagramPacket pack) throws IOException {
+        return receive(pack, false);
+    }
 
-        try {
-            if (isNativeConnected) {
-                // do not peek
-                ret = netImpl.recvConnectedDatagram(fd, pack, 
-                                                    pack.getData(), 
-                                                    pack.getOffset(), 
-                                                    pack.getLength(), 
-                                                    receiveTimeout, false);
-                updatePacketRecvAddress(pack);
+    private int receive(ServalDatagramPacket pack, boolean peek)
+        throws IOException {
+        synchronized (recvLock) {
+            byte[] filterServiceID = null;
+            byte[] filterAddr = null;
+
+            if (isNativeConnected && connectedServiceID != null) {
+                filterServiceID = connectedServiceIDBytes;
+                filterAddr = connectedAddrBytes;
+            }
+
+            int ret;
+            threads.add();
+            try {
+                long deadline = ServalThreadSet.deadline(receiveTimeout);
+
+                while (true) {
+                    try {
+                        ret = netImpl.recvfrom(fd, pack.getData(),
+                                               pack.getOffset(),
+                                               pack.getCapacity(), -1, peek,
+                                               filterServiceID, filterAddr,
+                                               srcServiceID, srcAddr);
+                        break;
+                    } catch (SocketTimeoutException e) {
+                        // Nothing queued
+                    }
+                    threads.park(fd, ServalPoller.EPOLLIN, deadline,
+                                 "Receive timed out");
+                }
+            } finally {
+                threads.remove();
+            }
+            pack.setLengthOnly(ret);
+            pack.setServiceID(senderServiceID());
+            pack.setAddress(senderAddress());
+            return ret;
+        }
+    }
+
+    /**
+     * Returns the serviceID in {@code srcServiceID}, reusing the one
+     * of the previous datagram if unchanged.
+     */
+    private ServiceID senderServiceID() {
+        if (lastSrcServiceID == null
+            || !lastSrcServiceID.equals(srcServiceID, 0)) {
+            if (connectedServiceID != null
+                && connectedServiceID.equals(srcServiceID, 0)) {
+                lastSrcServiceID = connectedServiceID;
             } else {
-                // receiveDatagramImpl2
-                /*
-                ret = netImpl.receiveDatagram(fd, pack, 
-                pack.getData(), 
-                pack.getOffset(), 
-                pack.getLength(), 
-                receiveTimeout, false);
-                */
+                lastSrcServiceID = ServiceID.valueOf(srcServiceID, 0);
             }
-        } catch (InterruptedIOException e) {
-            throw new SocketTimeoutException(e.getMessage());
         }
-        return ret;
+        return lastSrcServiceID;
+    }
+
+    /**
+     * Returns the address in {@code srcAddr}, reusing the one of the
+     * previous datagram if unchanged.
+     */
+    private InetAddress senderAddress() throws UnknownHostException {
+        if (isZero(srcAddr)) {
+            return isNativeConnected ? connectedAddress : null;
+        }
+        if (lastSrcAddress == null || !Arrays.equals(lastSrcAddr, srcAddr)) {
+            System.arraycopy(srcAddr, 0, lastSrcAddr, 0, srcAddr.length);
+            lastSrcAddress = InetAddress.getByAddress(srcAddr.clone());
+        }
+        return lastSrcAddress;
+    }
+
+    private static boolean isZero(byte[] b) {
+        for (byte x : b) {
+            if (x != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void send(ServalDatagramPacket packet) throws IOException {
@@ -238,16 +342,263 @@ public class ServalDatagramSocketImpl implements SocketOptions {
                                           packet.getLength(), 
                                           bindToDevice);
         } else {
-            // sendDatagramImpl2
-            /*
-            netImpl.sendDatagram(fd, packet.getData(),
-                               packet.getOffset(), 
-                               packet.getLength(),
-                               packet.getPort(), 
-                               bindToDevice, 
-                               trafficClass, 
-                               packet.getAddress());
-            */
+            synchronized (addrCache) {
+                long sockAddr = addrCache.lookup(packet.getServiceID(),
+                                                 packet.getAddress(), 0);
+                netImpl.sendto(fd, packet.getData(), packet.getOffset(),
+                               packet.getLength(), sockAddr);
+            }
+        }
+    }
+
+    /**
+     * Receives a datagram into the remaining space of {@code buf}. The
+     * socket must be connected at the native level.
+     *
+     * @return the length of the received datagram.
+     */
+    public int receive(ByteBuffer buf) throws IOException {
+        if (!isNativeConnected) {
+            throw new SocketException("Socket is not connected");
+        }
+        threads.add();
+        try {
+            int ret = netImpl.readNonBlocking(fd, buf);
+
+            if (ret == ServalNetworkStack.UNAVAILABLE) {
+                long deadline = ServalThreadSet.deadline(receiveTimeout);
+
+                do {
+                    threads.park(fd, ServalPoller.EPOLLIN, deadline,
+                                 "Receive timed out");
+                    ret = netImpl.readNonBlocking(fd, buf);
+                } while (ret == ServalNetworkStack.UNAVAILABLE);
+            }
+            // -1 is a zero-length datagram
+            return ret < 0 ? 0 : ret;
+        } finally {
+            threads.remove();
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of {@code buf} as one datagram. The
+     * socket must be connected at the native level.
+     *
+     * @return the number of bytes sent.
+     */
+    public int send(ByteBuffer buf) throws IOException {
+        if (!isNativeConnected) {
+            throw new SocketException("Socket is not connected");
+        }
+        return netImpl.write(fd, buf);
+    }
+
+    /**
+     * Sends the remaining bytes of {@code buf} as one datagram to {@code
+     * target} on an unconnected socket.
+     *
+     * @return the number of bytes sent.
+     */
+    public int send(ByteBuffer buf, ServalSocketAddress target)
+        throws IOException {
+        synchronized (addrCache) {
+            long sockAddr = addrCache.lookup(target.getServiceID(),
+                                             target.getAddress(),
+                                             target.getPrefixBits());
+            return netImpl.sendto(fd, buf, sockAddr);
+        }
+    }
+
+    /**
+     * Receives up to {@code count} datagrams into {@code packs} starting
+     * at {@code offset}, with a single system call. Blocks until the
+     * first datagram arrives or the timeout expires, then only takes
+     * the datagrams that are already queued. Each filled packet gets the
+     * length of its datagram and the serviceID and address of its
+     * sender; packets beyond the returned count are left untouched.
+     * 
+     * @return the number of packets filled, which is 0 only if {@code
+     *         count} is.
+     */
+    public int receive(ServalDatagramPacket[] packs, int offset, int count)
+        throws IOException {
+        synchronized (recvLock) {
+            if (recvBatch == null) {
+                recvBatch = new Batch();
+            }
+            Batch b = recvBatch;
+            int n = Math.min(count, Batch.MAX_PACKETS);
+
+            for (int i = 0; i < n; i++) {
+                ServalDatagramPacket pack = packs[offset + i];
+                b.bufs[i] = pack.getData();
+                b.offsets[i] = pack.getOffset();
+                b.lengths[i] = pack.getCapacity();
+            }
+
+            int ret;
+            threads.add();
+            try {
+                long deadline = ServalThreadSet.deadline(receiveTimeout);
+
+                while ((ret = netImpl.recvmmsg(fd, b.bufs, b.offsets,
+                                               b.lengths, n, -1, b.serviceIDs,
+                                               b.addresses)) == 0 && n > 0) {
+                    threads.park(fd, ServalPoller.EPOLLIN, deadline,
+                                 "Receive timed out");
+                }
+            } finally {
+                threads.remove();
+                Arrays.fill(b.bufs, 0, n, null);
+            }
+
+            ServiceID lastServiceID = null;
+            InetAddress lastAddress = null;
+
+            for (int i = 0; i < ret; i++) {
+                ServalDatagramPacket pack = packs[offset + i];
+                pack.setLengthOnly(b.lengths[i]);
+
+                // Consecutive datagrams usually come from the same
+                // sender, so share its serviceID and address
+                if (lastServiceID == null
+                    || !b.sameServiceID(i, i - 1)) {
+                    lastServiceID = b.serviceID(i);
+                }
+                if (i == 0 || !b.sameAddress(i, i - 1)) {
+                    lastAddress = b.address(i);
+                }
+                if (isNativeConnected && lastAddress == null) {
+                    lastAddress = connectedAddress;
+                }
+                pack.setServiceID(lastServiceID);
+                pack.setAddress(lastAddress);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Sends {@code count} packets of {@code packs}, starting at {@code
+     * offset}, with a single system call. Packets go to the connected
+     * peer if the socket is connected at the native level, otherwise
+     * to their own serviceID and address.
+     * 
+     * Waits while the send buffer is full.
+     * 
+     * @return the number of packets sent, which may be less than {@code
+     *         count}.
+     */
+    public int send(ServalDatagramPacket[] packs, int offset, int count)
+        throws IOException {
+        synchronized (sendBatchLock) {
+            if (sendBatch == null) {
+                sendBatch = new Batch();
+            }
+            Batch b = sendBatch;
+            int n = Math.min(count, Batch.MAX_PACKETS);
+            boolean connected = isNativeConnected;
+
+            for (int i = 0; i < n; i++) {
+                ServalDatagramPacket pack = packs[offset + i];
+                b.bufs[i] = pack.getData();
+                b.offsets[i] = pack.getOffset();
+                b.lengths[i] = pack.getLength();
+
+                if (!connected) {
+                    b.setDestination(i, pack.getServiceID(),
+                                     pack.getAddress());
+                }
+            }
+            int ret;
+            threads.add();
+            try {
+                // The native call never waits, as it pins the arrays
+                while ((ret = netImpl.sendmmsg(fd, b.bufs, b.offsets,
+                                               b.lengths, n,
+                                               connected ? null : b.serviceIDs,
+                                               b.addresses)) == 0 && n > 0) {
+                    threads.park(fd, ServalPoller.EPOLLOUT, 0, null);
+                }
+            } finally {
+                threads.remove();
+                Arrays.fill(b.bufs, 0, n, null);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Arrays describing a batch of packets to the native recvmmsg and
+     * sendmmsg calls. Each socket keeps one for each direction, so that
+     * batch I/O does not allocate beyond the received serviceIDs.
+     */
+    private static final class Batch {
+        static final int MAX_PACKETS = 64;
+
+        private static final int ADDR_LEN = 4;
+
+        private static final int ID_LEN = ServiceID.SERVICE_ID_MAX_LENGTH;
+
+        final byte[][] bufs = new byte[MAX_PACKETS][];
+
+        final int[] offsets = new int[MAX_PACKETS];
+
+        final int[] lengths = new int[MAX_PACKETS];
+
+        final byte[] serviceIDs = new byte[MAX_PACKETS * ID_LEN];
+
+        final byte[] addresses = new byte[MAX_PACKETS * ADDR_LEN];
+
+        boolean sameServiceID(int i, int j) {
+            return regionEquals(serviceIDs, i * ID_LEN, j * ID_LEN, ID_LEN);
+        }
+
+        boolean sameAddress(int i, int j) {
+            return regionEquals(addresses, i * ADDR_LEN, j * ADDR_LEN,
+                                ADDR_LEN);
+        }
+
+        ServiceID serviceID(int i) {
+            return ServiceID.valueOf(serviceIDs, i * ID_LEN);
+        }
+
+        /**
+         * Returns the sender address of packet {@code i}, or {@code null}
+         * if the kernel did not report one.
+         */
+        InetAddress address(int i) throws UnknownHostException {
+            byte[] addr = Arrays.copyOfRange(addresses, i * ADDR_LEN,
+                                             (i + 1) * ADDR_LEN);
+            for (byte x : addr) {
+                if (x != 0) {
+                    return InetAddress.getByAddress(addr);
+                }
+            }
+            return null;
+        }
+
+        void setDestination(int i, ServiceID serviceID, InetAddress addr) {
+            serviceID.getID(serviceIDs, i * ID_LEN);
+            byte[] a = addr != null ? addr.getAddress() : null;
+
+            if (a != null && a.length == ADDR_LEN) {
+                System.arraycopy(a, 0, addresses, i * ADDR_LEN, ADDR_LEN);
+            } else {
+                Arrays.fill(addresses, i * ADDR_LEN, (i + 1) * ADDR_LEN,
+                            (byte) 0);
+            }
+        }
+
+        private static boolean regionEquals(byte[] b, int i, int j,
+                                            int len) {
+            for (int k = 0; k < len; k++) {
+                if (b[i + k] != b[j + k]) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
@@ -318,9 +669,39 @@ public class ServalDatagramSocketImpl implements SocketOptions {
     public void connect(ServiceID serviceID, InetAddress inetAddr, 
                         int timeout)
         throws SocketException {
-        
-        netImpl.connect(fd, serviceID, inetAddr, timeout);
+        threads.add();
+        try {
+            // Wait for the handshake on the poller, then leave the
+            // socket in blocking mode like the native connect does
+            netImpl.setNonBlocking(fd, true);
+            try {
+                if (!netImpl.startConnect(fd, serviceID, inetAddr)) {
+                    long deadline = ServalThreadSet.deadline(timeout);
+
+                    do {
+                        threads.park(fd, ServalPoller.EPOLLOUT, deadline,
+                                     "Connect timed out");
+                    } while (!netImpl.finishConnect(fd, 0));
+                }
+            } finally {
+                if (!threads.isClosing()) {
+                    netImpl.setNonBlocking(fd, false);
+                }
+            }
+        } catch (SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            SocketException se = new SocketException(e.getMessage());
+            se.initCause(e);
+            throw se;
+        } finally {
+            threads.remove();
+        }
         connectedServiceID = serviceID;
+        connectedAddress = inetAddr;
+        connectedAddrBytes = inetAddr != null ? inetAddr.getAddress() : null;
+        connectedServiceIDBytes =
+            serviceID != null ? serviceID.getID() : null;
         isNativeConnected = true;
     }
     public void connect(ServiceID serviceID, int timeout) 
@@ -337,47 +718,16 @@ public class ServalDatagramSocketImpl implements SocketOptions {
         }
         connectedServiceID = null;
         connectedAddress = null;
+        connectedAddrBytes = null;
+        connectedServiceIDBytes = null;
         isNativeConnected = false;
     }
 
     public int peekData(ServalDatagramPacket pack) throws IOException {
-        try {
-            if (isNativeConnected) {
-                netImpl.recvConnectedDatagram(fd, pack, 
-                                              pack.getData(), 
-                                              pack.getOffset(), 
-                                              pack.getLength(), 
-                                              receiveTimeout, true); // peek
-                updatePacketRecvAddress(pack);
-            } else {
-                /*
-                netImpl.receiveDatagram(fd, pack, 
-                                      pack.getData(), 
-                                      pack.getOffset(), 
-                                      pack.getLength(), 
-                                      receiveTimeout, true); // peek
-                */
-                return -1;
-            }
-        } catch (InterruptedIOException e) {
-            throw new SocketTimeoutException(e.toString());
-        }
+        receive(pack, true);
         return 0;
     }
 
-    /**
-     * Set the received address and port in the packet. We do this when the
-     * Datagram socket is connected at the native level and the
-     * recvConnnectedDatagramImpl does not update the packet with address from
-     * which the packet was received
-     * 
-     * @param packet
-     *            the packet to be updated
-     */
-    private void updatePacketRecvAddress(ServalDatagramPacket packet) {
-        packet.setSocketAddress(new ServalSocketAddress(connectedServiceID));
-        packet.setAddress(connectedAddress);
-    }
     /**
      * Gets the {@code FileDescriptor} of this datagram socket, which
      * is invalid if the socket is closed or not bound.
@@ -45,5 +45,6 @@ public class ServalPlainServerSocketImpl extends ServalPlainSocketImpl {
         } else {
             netImpl.createDatagramSocket(fd, 0);
         }
+        netImpl.setNonBlocking(fd, true);
     }
 }
@@ -20,24 +20,36 @@ package org.servalarch.net;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.lang.reflect.Field;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.Proxy;
 import java.net.SocketAddress;
 import java.net.SocketException;
-import java.net.SocketImpl;
 import java.net.SocketOptions;
 import java.net.SocketTimeoutException;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.servalarch.platform.ServalNetworkStack;
 
 /**
  * A concrete connected-socket implementation.
+ * <p>
+ * The descriptor is put in non-blocking mode. Operations that would
+ * block park the calling thread on a {@link ServalPoller} instead of
+ * blocking in the native code, so that virtual threads do not pin
+ * their carrier thread while waiting for the network.
+ * <p>
+ * A reader and a writer never wait for each other: each side has its
+ * own lock and state, and closing the socket is an atomic transition
+ * of its {@link ServalThreadSet}, which takes no lock either.
  */
 public class ServalPlainSocketImpl extends ServalSocketImpl {
 
@@ -51,7 +63,8 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
 
     static final int FLAG_SHUTDOWN = 8;
 
-    private static Field fdField;
+    // Serval-specific option, mapped to TCP_CORK by the stack
+    static final int TCP_CORK = 10002;
 
     private boolean tcpNoDelay = true;
 
@@ -64,14 +77,52 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
 
     protected ServalNetworkStack netImpl = ServalNetworkStack.getInstance();
 
-    public int receiveTimeout = 0;
+    public volatile int receiveTimeout = 0;
 
     public boolean streaming = true;
 
-    public boolean shutdownInput;
+    public volatile boolean shutdownInput;
 
     Proxy proxy;
 
+    // Serializes readers and accepting threads; a lock rather than a
+    // monitor, which would pin a waiting virtual thread
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    // Serializes writers and connecting threads
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Threads blocked on the socket, also those of its channel
+    final ServalThreadSet threads = new ServalThreadSet();
+
+    // Size of the buffer of transfers that cannot stay in the kernel
+    private static final int TRANSFER_BUFFER_SIZE = 65536;
+
+    // Write coalescing, guarded by writeLock: small stream writes are
+    // gathered in a direct buffer, sent once it is full, on flush, or
+    // coalesceDelay nanoseconds after its first byte was written
+    private ByteBuffer pending;
+    private long coalesceDelay;
+    private boolean corked;
+    private ScheduledFuture<?> pendingFlush;
+
+    // The bytes of read() and write(int), guarded by readLock and
+    // writeLock
+    private final byte[] readByte = new byte[1];
+    private final byte[] writeByte = new byte[1];
+
+    // The streams, which keep no state of their own
+    private final InputStream inputStream = new ServalSocketInputStream(this);
+    private final OutputStream outputStream =
+        new ServalSocketOutputStream(this);
+
+    // Sends the pending bytes once the coalescing delay has expired
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushExpired();
+        }
+    };
+
     public ServalPlainSocketImpl() {
         super();
         fd = new FileDescriptor();
@@ -117,58 +168,42 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
             return;
         }
     	 */
+        FileDescriptor newFd;
+
+        threads.add();
+        readLock.lock();
         try {
-            if (newImpl instanceof ServalPlainSocketImpl) {
-                newImpl.fd = netImpl.accept(fd, newImpl, receiveTimeout);
-            } else {
-                // if newImpl is not an instance of PlainSocketImpl, use
-                // reflection to get/set protected fields.
-                if (null == fdField) {
-                    fdField = getSocketImplField("fd");
-                }
-                FileDescriptor newFd = (FileDescriptor) fdField.get(newImpl);
-                // call accept instead of acceptStreamImpl (native impl is identical)
-                newFd = netImpl.accept(fd, newImpl, receiveTimeout);
-                /*
-                if (null == localportField) {
-                    localportField = getSocketImplField("localport"); //$NON-NLS-1$
-                }
-                localportField.setInt(newImpl, getLocalPort());
-                */
-            }
-        } catch (InterruptedIOException e) {
-            throw new SocketTimeoutException(e.getMessage());
-        } catch (IllegalAccessException e) {
-            // empty
-        }
-    }
+            newFd = netImpl.accept(fd, newImpl, 0);
+            if (newFd == null) {
+                long deadline = ServalThreadSet.deadline(receiveTimeout);
 
-    /**
-     * gets SocketImpl field by reflection.
-     */
-    private Field getSocketImplField(final String fieldName) {
-        return AccessController.doPrivileged(new PrivilegedAction<Field>() {
-            public Field run() {
-                Field field = null;
-                try {
-                    field = SocketImpl.class.getDeclaredField(fieldName);
-                    field.setAccessible(true);
-                } catch (NoSuchFieldException e) {
-                    throw new Error(e);
-                }
-                return field;
+                do {
+                    threads.park(fd, ServalPoller.EPOLLIN, deadline,
+                                 "Accept timed out");
+                    newFd = netImpl.accept(fd, newImpl, 0);
+                } while (newFd == null);
             }
-        });
+        } finally {
+            readLock.unlock();
+            threads.remove();
+        }
+        netImpl.setNonBlocking(newFd, true);
+        newImpl.fd = newFd;
     }
 
     @Override
-    protected synchronized int available() throws IOException {
+    protected int available() throws IOException {
         // we need to check if the input has been shutdown. If so
         // we should return that there is no data to be read
         if (shutdownInput == true) {
             return 0;
         }
-        return netImpl.availableStream(fd);
+        threads.add();
+        try {
+            return netImpl.availableStream(fd);
+        } finally {
+            threads.remove();
+        }
     }
 
     @Override
@@ -182,18 +217,29 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
 
     @Override
     protected void close() throws IOException {
-        synchronized (fd) {
-            if (fd.valid()) {
-                if ((netImpl.getSocketFlags() & FLAG_SHUTDOWN) != 0) {
-                    try {
-                        shutdownOutput();
-                    } catch (Exception e) {
-                    }
-                }
-                netImpl.close(fd);
-                fd = new FileDescriptor();
+        // The descriptor is kept, as the closed state of the thread set
+        // stops any further use of it, and only the first call of
+        // threads.close() gets to close it
+        if (threads.isClosing() || !netImpl.isValid(fd)) {
+            return;
+        }
+        flushOnClose();
+        if ((netImpl.getSocketFlags() & FLAG_SHUTDOWN) != 0) {
+            try {
+                shutdownOutput();
+            } catch (Exception e) {
             }
         }
+        // Threads blocked on the socket close it once woken up
+        if (threads.close(fd)) {
+            netImpl.close(fd);
+        }
+    }
+
+    private void ensureOpen() throws SocketException {
+        if (threads.isClosing() || !netImpl.isValid(fd)) {
+            throw new SocketException("Invalid file descriptor");
+        }
     }
 
     @Override
@@ -228,11 +274,23 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
             normalAddr = anAddr.isAnyLocalAddress() ? 
         		InetAddress.getLocalHost() : anAddr;
         
+        threads.add();
+        writeLock.lock();
         try {
-            netImpl.connect(fd, aService, normalAddr, timeout);
+            if (!netImpl.startConnect(fd, aService, normalAddr)) {
+                long deadline = ServalThreadSet.deadline(timeout);
+
+                do {
+                    threads.park(fd, ServalPoller.EPOLLOUT, deadline,
+                                 "Connect timed out");
+                } while (!netImpl.finishConnect(fd, 0));
+            }
         } catch (ConnectException e) {
             throw new ConnectException(aService + ":" + anAddr + " - "
                     + e.getMessage());
+        } finally {
+            writeLock.unlock();
+            threads.remove();
         }
         super.address = normalAddr;
         super.remoteServiceID = aService;
@@ -246,6 +304,7 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
         } else {
             netImpl.createDatagramSocket(fd, 0);
         }
+        netImpl.setNonBlocking(fd, true);
     }
 
     @Override
@@ -254,12 +313,9 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
     }
 
     @Override
-    protected synchronized InputStream getInputStream() throws IOException {
-        if (!fd.valid()) {
-            throw new SocketException("Invalid file descriptor");
-        }
-
-        return new ServalSocketInputStream(this);
+    protected InputStream getInputStream() throws IOException {
+        ensureOpen();
+        return inputStream;
     }
 
     @Override
@@ -271,7 +327,14 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
         } else {
             // Call the native first so there will be
             // an exception if the socket if closed.
-            Object result = netImpl.getOption(fd, optID);
+            Object result;
+
+            threads.add();
+            try {
+                result = netImpl.getOption(fd, optID);
+            } finally {
+                threads.remove();
+            }
             if (optID == SocketOptions.TCP_NODELAY
                     && (netImpl.getSocketFlags() & TCP_NODELAY) != 0) {
                 return Boolean.valueOf(tcpNoDelay);
@@ -281,11 +344,9 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
     }
 
     @Override
-    protected synchronized OutputStream getOutputStream() throws IOException {
-        if (!fd.valid()) {
-            throw new SocketException("Invalid file descriptor");
-        }
-        return new ServalSocketOutputStream(this);
+    protected OutputStream getOutputStream() throws IOException {
+        ensureOpen();
+        return outputStream;
     }
 
     @Override
@@ -305,6 +366,7 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
         if (optID == SocketOptions.SO_TIMEOUT) {
             receiveTimeout = ((Integer) val).intValue();
         } else {
+            threads.add();
             try {
                 netImpl.setOption(fd, optID, val);
                 if (optID == SocketOptions.TCP_NODELAY
@@ -317,6 +379,8 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
                 if (optID != SocketOptions.IP_TOS) {
                     throw e;
                 }
+            } finally {
+                threads.remove();
             }
 
             /*
@@ -340,7 +404,12 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
     @Override
     protected void shutdownInput() throws IOException {
         shutdownInput = true;
-        netImpl.shutdownInput(fd);
+        threads.add();
+        try {
+            netImpl.shutdownInput(fd);
+        } finally {
+            threads.remove();
+        }
     }
 
     /**
@@ -348,7 +417,15 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
      */
     @Override
     protected void shutdownOutput() throws IOException {
-        netImpl.shutdownOutput(fd);
+        threads.add();
+        writeLock.lock();
+        try {
+            sendPending(true);
+            netImpl.shutdownOutput(fd);
+        } finally {
+            writeLock.unlock();
+            threads.remove();
+        }
     }
 
     @Override
@@ -368,7 +445,12 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
 
     @Override
     protected void sendUrgentData(int value) throws IOException {
-        netImpl.sendUrgentData(fd, (byte) value);
+        threads.add();
+        try {
+            netImpl.sendUrgentData(fd, (byte) value);
+        } finally {
+            threads.remove();
+        }
     }
 
     FileDescriptor getFD() {
@@ -381,29 +463,627 @@ public class ServalPlainSocketImpl extends ServalSocketImpl {
     }
     
     int read(byte[] buffer, int offset, int count) throws IOException {
+        return read(buffer, offset, count, null);
+    }
+
+    /**
+     * Reads a single byte of the input stream.
+     *
+     * @return the byte, or -1 at the end of the stream.
+     */
+    int read() throws IOException {
+        readLock.lock();
+        try {
+            int n = read(readByte, 0, 1, null);
+
+            return n == -1 ? -1 : readByte[0] & 0xFF;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    int read(ByteBuffer buffer) throws IOException {
+        return read(null, 0, buffer.remaining(), buffer);
+    }
+
+    /**
+     * Reads into {@code buffer} at {@code offset}, or into {@code buf}
+     * if non-null, waiting for data for at most the receive timeout.
+     */
+    private int read(byte[] buffer, int offset, int count, ByteBuffer buf)
+        throws IOException {
         if (shutdownInput) {
             return -1;
         }
-        int read = netImpl.read(fd, buffer, offset, count, receiveTimeout);
-        // Return of zero bytes for a blocking socket means a timeout occurred
-        if (read == 0) {
-            throw new SocketTimeoutException();
+        if (count == 0) {
+            return 0;
         }
-        // Return of -1 indicates the peer was closed
-        if (read == -1) {
-            shutdownInput = true;
+        threads.add();
+        readLock.lock();
+        try {
+            int read = readNonBlocking(buffer, offset, count, buf);
+
+            if (read == ServalNetworkStack.UNAVAILABLE) {
+                long deadline = ServalThreadSet.deadline(receiveTimeout);
+
+                do {
+                    threads.park(fd, ServalPoller.EPOLLIN, deadline,
+                                 "Read timed out");
+                    read = readNonBlocking(buffer, offset, count, buf);
+                } while (read == ServalNetworkStack.UNAVAILABLE);
+            }
+            // Return of -1 indicates the peer was closed
+            if (read == -1) {
+                shutdownInput = true;
+            }
+            return read;
+        } finally {
+            readLock.unlock();
+            threads.remove();
+        }
+    }
+
+    /**
+     * Reads into {@code length} buffers starting at {@code
+     * bufs[offset]} in order with a single system call, waiting for
+     * data for at most the receive timeout.
+     */
+    long read(ByteBuffer[] bufs, int offset, int length) throws IOException {
+        if (shutdownInput) {
+            return -1;
+        }
+        if (!ServalSocketChannel.hasRemaining(bufs, offset, length)) {
+            return 0;
+        }
+        threads.add();
+        readLock.lock();
+        try {
+            long read = netImpl.readNonBlocking(fd, bufs, offset, length);
+
+            if (read == ServalNetworkStack.UNAVAILABLE) {
+                long deadline = ServalThreadSet.deadline(receiveTimeout);
+
+                do {
+                    threads.park(fd, ServalPoller.EPOLLIN, deadline,
+                                 "Read timed out");
+                    read = netImpl.readNonBlocking(fd, bufs, offset, length);
+                } while (read == ServalNetworkStack.UNAVAILABLE);
+            }
+            if (read == -1) {
+                shutdownInput = true;
+            }
+            return read;
+        } finally {
+            readLock.unlock();
+            threads.remove();
         }
-        return read;
     }
 
+    private int readNonBlocking(byte[] buffer, int offset, int count,
+                                ByteBuffer buf) throws IOException {
+        if (buf != null) {
+            return netImpl.readNonBlocking(fd, buf);
+        }
+        return netImpl.readNonBlocking(fd, buffer, offset, count);
+    }
+
+    /**
+     * Writes all of {@code count} bytes to a stream socket, or a single
+     * datagram to a connected datagram socket, waiting as long as the
+     * send buffer is full.
+     */
     int write(byte[] buffer, int offset, int count) throws IOException {
+        threads.add();
+        writeLock.lock();
+        try {
+            int written = 0;
+
+            sendPending(true);
+            while (true) {
+                // A non-streaming socket is connected, so its datagrams
+                // go to the peer
+                int n = netImpl.write(fd, buffer, offset + written,
+                                      count - written);
+
+                written += n;
+                if (written == count || (n > 0 && !streaming)) {
+                    return written;
+                }
+                if (n == 0) {
+                    threads.park(fd, ServalPoller.EPOLLOUT, 0, null);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+            threads.remove();
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of {@code length} buffers starting at
+     * {@code bufs[offset]} to a stream socket, as many buffers as
+     * possible with each system call, waiting as long as the send
+     * buffer is full.
+     */
+    long write(ByteBuffer[] bufs, int offset, int length)
+        throws IOException {
+        threads.add();
+        writeLock.lock();
+        try {
+            long written = 0;
+
+            sendPending(true);
+            while (ServalSocketChannel.hasRemaining(bufs, offset, length)) {
+                long n = netImpl.write(fd, bufs, offset, length);
+
+                written += n;
+                if (n == 0) {
+                    threads.park(fd, ServalPoller.EPOLLOUT, 0, null);
+                }
+            }
+            return written;
+        } finally {
+            writeLock.unlock();
+            threads.remove();
+        }
+    }
+
+    int write(ByteBuffer buffer) throws IOException {
+        threads.add();
+        writeLock.lock();
+        try {
+            int written = 0;
+
+            sendPending(true);
+            while (true) {
+                int n = netImpl.write(fd, buffer);
+
+                written += n;
+                if (!buffer.hasRemaining() || (n > 0 && !streaming)) {
+                    return written;
+                }
+                if (n == 0) {
+                    threads.park(fd, ServalPoller.EPOLLOUT, 0, null);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+            threads.remove();
+        }
+    }
+
+    /**
+     * Sets up write coalescing for the output stream. Stream writes of
+     * less than {@code threshold} bytes are gathered in a direct buffer
+     * of that size, which is sent once full, when the stream is
+     * flushed, or {@code delay} milliseconds after its first byte was
+     * written, if {@code delay} is positive. Other writes send the
+     * gathered bytes first. A threshold of 0 sends the gathered bytes
+     * and turns coalescing off.
+     *
+     * @param cork
+     *            whether the stack also holds back partial segments
+     *            until the stream is flushed, with TCP_CORK.
+     */
+    void setWriteCoalescing(int threshold, int delay, boolean cork)
+        throws IOException {
+        if (threshold < 0 || delay < 0) {
+            throw new IllegalArgumentException();
+        }
         if (!streaming) {
-           /*
-              return netImpl.sendDatagram2(fd, buffer, offset, count, port,
-                    address);
-           */
-        	throw new IOException("Not implemented for non-streaming sockets");
+            throw new SocketException("Not a stream socket");
+        }
+        threads.add();
+        writeLock.lock();
+        try {
+            sendPending(true);
+            if (threshold == 0) {
+                pending = null;
+            } else if (pending == null || pending.capacity() != threshold) {
+                pending = ByteBuffer.allocateDirect(threshold);
+            }
+            coalesceDelay = TimeUnit.MILLISECONDS.toNanos(delay);
+            if (cork != corked) {
+                netImpl.setOption(fd, TCP_CORK, Boolean.valueOf(cork));
+                corked = cork;
+            }
+        } finally {
+            writeLock.unlock();
+            threads.remove();
+        }
+    }
+
+    /**
+     * Writes bytes of the output stream, gathering them if coalescing
+     * is on.
+     */
+    void writeCoalesced(byte[] buffer, int offset, int count)
+        throws IOException {
+        threads.add();
+        writeLock.lock();
+        try {
+            ByteBuffer buf = pending;
+
+            if (buf == null || count >= buf.capacity()) {
+                write(buffer, offset, count);
+                return;
+            }
+            if (count > buf.remaining()) {
+                sendPending(true);
+            }
+            buf.put(buffer, offset, count);
+            if (!buf.hasRemaining()) {
+                sendPending(true);
+            } else if (pendingFlush == null && coalesceDelay > 0) {
+                pendingFlush = Flusher.executor.schedule(flushTask,
+                    coalesceDelay, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            writeLock.unlock();
+            threads.remove();
+        }
+    }
+
+    void writeCoalesced(int value) throws IOException {
+        writeLock.lock();
+        try {
+            writeByte[0] = (byte) value;
+            writeCoalesced(writeByte, 0, 1);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the gathered bytes of the output stream and, when corked,
+     * the partial segment held back by the stack.
+     */
+    void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if ((pending == null || pending.position() == 0) && !corked) {
+                return;
+            }
+            threads.add();
+            try {
+                sendPending(true);
+                push();
+            } finally {
+                threads.remove();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void flushExpired() {
+        // Never waits on the socket, as the flusher thread serves all
+        // of them: the thread holding the lock may be parked with a
+        // full send buffer, so the flush is tried again later
+        if (!writeLock.tryLock()) {
+            Flusher.executor.schedule(flushTask, coalesceDelay,
+                                      TimeUnit.NANOSECONDS);
+            return;
+        }
+        try {
+            threads.add();
+            try {
+                pendingFlush = null;
+                if (sendPending(false)) {
+                    push();
+                } else if (coalesceDelay > 0) {
+                    pendingFlush = Flusher.executor.schedule(flushTask,
+                        coalesceDelay, TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                threads.remove();
+            }
+        } catch (IOException e) {
+            // The bytes stay pending, and the next write reports the error
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends what fits the send buffer of the gathered bytes of the
+     * output stream, and the segment held back by the cork, before the
+     * socket is closed. Never waits: if a writer holds the lock, it may
+     * be parked until the close wakes it up, and the bytes are lost.
+     */
+    private void flushOnClose() {
+        if (!writeLock.tryLock()) {
+            return;
+        }
+        try {
+            threads.add();
+            try {
+                sendPending(false);
+                if (corked) {
+                    netImpl.setOption(fd, TCP_CORK, Boolean.FALSE);
+                    corked = false;
+                }
+            } finally {
+                threads.remove();
+            }
+        } catch (IOException e) {
+            // Best effort, the socket is being closed anyway
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the gathered bytes of the output stream, with writeLock
+     * held.
+     *
+     * @param wait
+     *            whether to wait as long as the send buffer is full.
+     * @return {@code true} if no bytes are left pending.
+     */
+    private boolean sendPending(boolean wait) throws IOException {
+        ByteBuffer buf = pending;
+
+        if (buf == null || buf.position() == 0) {
+            return true;
+        }
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                if (netImpl.write(fd, buf) == 0) {
+                    if (!wait) {
+                        return false;
+                    }
+                    threads.park(fd, ServalPoller.EPOLLOUT, 0, null);
+                }
+            }
+            return true;
+        } finally {
+            buf.compact();
+        }
+    }
+
+    private void push() throws SocketException {
+        if (corked) {
+            // Uncorking sends the partial segment
+            netImpl.setOption(fd, TCP_CORK, Boolean.FALSE);
+            netImpl.setOption(fd, TCP_CORK, Boolean.TRUE);
+        }
+    }
+
+    // Holds the thread that sends the bytes of expired coalescing delays
+    private static final class Flusher {
+        static final ScheduledThreadPoolExecutor executor =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Serval Write Flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        static {
+            executor.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Sends up to {@code count} bytes of a file, starting at {@code
+     * position}, with sendfile, so that they are not copied into the
+     * Java heap. Falls back to copying through a buffer when the file
+     * descriptor of {@code src} is not accessible or the stack cannot
+     * transfer data within the kernel.
+     *
+     * @return the number of bytes sent, less than {@code count} only if
+     *         the end of the file was reached.
+     */
+    long transferFrom(FileChannel src, long position, long count)
+        throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException();
+        }
+        FileDescriptor file = netImpl.supportsSplice() ?
+            fileDescriptor(src) : null;
+
+        if (file == null) {
+            return copyFrom(src, position, count);
+        }
+        threads.add();
+        writeLock.lock();
+        try {
+            long sent = 0;
+
+            sendPending(true);
+            while (sent < count) {
+                long n = netImpl.sendfile(fd, file, position + sent,
+                                          count - sent);
+
+                if (n == ServalNetworkStack.UNAVAILABLE) {
+                    threads.park(fd, ServalPoller.EPOLLOUT, 0, null);
+                } else if (n == 0) {
+                    // End of file
+                    break;
+                } else {
+                    sent += n;
+                }
+            }
+            return sent;
+        } finally {
+            writeLock.unlock();
+            threads.remove();
+        }
+    }
+
+    private long copyFrom(FileChannel src, long position, long count)
+        throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect((int)
+            Math.min(count, TRANSFER_BUFFER_SIZE));
+        long sent = 0;
+
+        while (sent < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - sent));
+            if (src.read(buf, position + sent) <= 0) {
+                break;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                sent += write(buf);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Forwards up to {@code count} bytes from this socket to {@code
+     * target}, splicing them through a pipe within the kernel, like the
+     * translator does. Waits for data for at most the receive timeout
+     * of this socket. Falls back to copying through a buffer when the
+     * stack cannot transfer data within the kernel.
+     *
+     * @return the number of bytes forwarded, less than {@code count} if
+     *         the end of the stream was reached or the receive timeout
+     *         expired after some data was forwarded, or -1 if the end of
+     *         the stream was reached before any data.
+     */
+    long transferTo(ServalPlainSocketImpl target, long count)
+        throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (shutdownInput) {
+            return -1;
+        }
+        if (!netImpl.supportsSplice()) {
+            return copyTo(target, count);
+        }
+        int[] pipe = new int[2];
+
+        threads.add();
+        readLock.lock();
+        try {
+            target.threads.add();
+            target.writeLock.lock();
+            try {
+                target.sendPending(true);
+                netImpl.pipeCreate(pipe);
+                try {
+                    return splice(target, count, pipe);
+                } finally {
+                    netImpl.closeFd(pipe[0]);
+                    netImpl.closeFd(pipe[1]);
+                }
+            } finally {
+                target.writeLock.unlock();
+                target.threads.remove();
+            }
+        } finally {
+            readLock.unlock();
+            threads.remove();
+        }
+    }
+
+    private long splice(ServalPlainSocketImpl target, long count, int[] pipe)
+        throws IOException {
+        int in = netImpl.getFdValue(fd);
+        int out = netImpl.getFdValue(target.fd);
+        long deadline = ServalThreadSet.deadline(receiveTimeout);
+        long forwarded = 0;
+        long inPipe = 0;
+
+        while (forwarded < count || inPipe > 0) {
+            if (inPipe == 0) {
+                long n = netImpl.splice(in, pipe[1], count - forwarded);
+
+                if (n == -1) {
+                    shutdownInput = true;
+                    return forwarded > 0 ? forwarded : -1;
+                } else if (n == ServalNetworkStack.UNAVAILABLE) {
+                    try {
+                        threads.park(fd, ServalPoller.EPOLLIN, deadline,
+                                     "Read timed out");
+                    } catch (SocketTimeoutException e) {
+                        if (forwarded > 0) {
+                            return forwarded;
+                        }
+                        throw e;
+                    }
+                    continue;
+                }
+                inPipe = n;
+            }
+            // Drain the pipe before reading more, so that it never
+            // holds data once the transfer is over
+            long n = netImpl.splice(pipe[0], out, inPipe);
+
+            if (n == ServalNetworkStack.UNAVAILABLE) {
+                target.threads.park(target.fd, ServalPoller.EPOLLOUT, 0,
+                                    null);
+            } else {
+                inPipe -= n;
+                forwarded += n;
+            }
+        }
+        return forwarded;
+    }
+
+    private long copyTo(ServalPlainSocketImpl target, long count)
+        throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect((int)
+            Math.min(count, TRANSFER_BUFFER_SIZE));
+        long forwarded = 0;
+
+        while (forwarded < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - forwarded));
+
+            int n;
+
+            try {
+                n = read(buf);
+            } catch (SocketTimeoutException e) {
+                if (forwarded > 0) {
+                    return forwarded;
+                }
+                throw e;
+            }
+            if (n < 0) {
+                return forwarded > 0 ? forwarded : -1;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                forwarded += target.write(buf);
+            }
+        }
+        return forwarded;
+    }
+
+    /**
+     * Returns the descriptor of a file channel of the default provider,
+     * read from its private {@code fd} field, or {@code null} if it is
+     * not accessible, which on Java 9 and later takes running with
+     * {@code --add-opens java.base/sun.nio.ch=ALL-UNNAMED}.
+     */
+    private static FileDescriptor fileDescriptor(FileChannel ch) {
+        for (Class<?> c = ch.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField("fd");
+                if (f.getType() != FileDescriptor.class) {
+                    return null;
+                }
+                f.setAccessible(true);
+                return (FileDescriptor) f.get(ch);
+            } catch (NoSuchFieldException e) {
+                // Try the superclass
+            } catch (Exception e) {
+                // Typically InaccessibleObjectException
+                return null;
+            }
         }
-        return netImpl.write(fd, buffer, offset, count);
+        return null;
     }
 }
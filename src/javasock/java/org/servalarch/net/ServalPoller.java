@@ -0,0 +1,402 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * Parks threads waiting for a Serval socket to become ready, so that
+ * blocking socket operations do not block inside the native code.
+ * <p>
+ * An operation on a Serval socket that would block registers the
+ * descriptor with a poller for a single event and parks the calling
+ * thread, which the poller thread unparks once epoll reports the
+ * descriptor ready. Since a
+ * parked virtual thread releases its carrier thread, a large number of
+ * virtual threads can each own a connection. As in the JDK, reads and
+ * writes use separate pollers, so that a reader and a writer can wait
+ * on the same descriptor at the same time. Several threads may also
+ * wait for the same event, for instance one receiving through a channel
+ * and another through its socket, which have locks of their own; they
+ * are all unparked when the descriptor becomes ready.
+ * <p>
+ * Where io_uring is available, a poller waits on a {@link ServalRing}
+ * instead of epoll. A parking thread then submits a one-shot poll
+ * request with a single system call, and only has to cancel it if it
+ * was woken up for another reason than the descriptor becoming ready,
+ * whereas epoll needs one call to add the descriptor and another one to
+ * remove it again. The cancellation is not even submitted right away,
+ * but with the next request or wait on the ring, or when a socket is
+ * closed, see {@link #flush}. A thread blocked in a channel may also hand the
+ * operation itself to the ring, see {@link #execute}, and is unparked
+ * once the kernel has carried it out.
+ * <p>
+ * Should waiting for events fail for another reason than a signal, the
+ * poller thread stops and the threads parked on it fail with the error.
+ * The next thread to park gets a new poller.
+ */
+final class ServalPoller implements Runnable {
+
+    // Values from <sys/epoll.h>
+    private static final int EPOLL_CTL_ADD = 1;
+    private static final int EPOLL_CTL_DEL = 2;
+    private static final int EPOLL_CTL_MOD = 3;
+    static final int EPOLLIN = 0x001;
+    static final int EPOLLOUT = 0x004;
+    private static final int EPOLLONESHOT = 1 << 30;
+
+    private static final int MAX_EVENTS = 64;
+
+    private static final ServalNetworkStack netImpl =
+        ServalNetworkStack.getInstance();
+
+    private static volatile ServalPoller readPoller = null;
+
+    private static volatile ServalPoller writePoller = null;
+
+    // The io_uring instance, or null if the poller uses epoll
+    private final ServalRing ring;
+
+    private final int epfd;
+
+    private final int event;
+
+    // Parked threads, indexed by descriptor, each linked to the next
+    // one waiting on the same descriptor; guarded by the map, which also
+    // keeps the epoll set in step with it
+    private final HashMap<Integer, Waiter> waiters =
+        new HashMap<Integer, Waiter>();
+
+    // Sequence numbers of the poll requests of the ring
+    private final AtomicInteger nextSeq = new AtomicInteger();
+
+    // The error that stopped the poller thread, set with the map held
+    private volatile IOException failure = null;
+
+    private static final class Waiter {
+        final Thread thread;
+        final long userData;
+        volatile boolean ready = false;
+        // The result of the completion, written before ready
+        int result;
+        Waiter next;
+
+        Waiter(Thread thread, long userData) {
+            this.thread = thread;
+            this.userData = userData;
+        }
+    }
+
+    private ServalPoller(int event) throws IOException {
+        this.ring = ServalRing.open(netImpl);
+        this.epfd = ring == null ? netImpl.epollCreate() : -1;
+        this.event = event;
+    }
+
+    private static ServalPoller poller(int event) throws IOException {
+        ServalPoller p = event == EPOLLIN ? readPoller : writePoller;
+
+        if (p == null) {
+            synchronized (ServalPoller.class) {
+                p = event == EPOLLIN ? readPoller : writePoller;
+                if (p == null) {
+                    p = new ServalPoller(event);
+                    Thread t = new Thread(p, event == EPOLLIN ?
+                                          "Serval Read Poller" :
+                                          "Serval Write Poller");
+                    t.setDaemon(true);
+                    t.start();
+                    if (event == EPOLLIN) {
+                        readPoller = p;
+                    } else {
+                        writePoller = p;
+                    }
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Parks the current thread until {@code fd} is ready for {@code
+     * event}, {@link #EPOLLIN} or {@link #EPOLLOUT}, or the thread is
+     * interrupted. Like {@link LockSupport#park}, this may also return
+     * spuriously, so callers retry their operation in a loop.
+     *
+     * @param nanos
+     *            the maximum time to wait, 0 to wait without limit.
+     */
+    static void park(FileDescriptor fd, int event, long nanos)
+        throws IOException {
+        poller(event).poll(netImpl.getFdValue(fd), nanos);
+    }
+
+    private void poll(int fdVal, long nanos) throws IOException {
+        Integer key = Integer.valueOf(fdVal);
+        Waiter self = new Waiter(Thread.currentThread(), ring == null ? 0 :
+                                 ServalRing.userData(fdVal,
+                                                     nextSeq.incrementAndGet()));
+
+        synchronized (waiters) {
+            checkFailure();
+            Waiter first = waiters.get(key);
+
+            // The descriptor is in the epoll set once for all of its
+            // waiters, and re-armed for each new one, whereas each
+            // waiter has a request of its own on the ring
+            if (ring == null) {
+                netImpl.epollCtl(epfd, first == null ? EPOLL_CTL_ADD :
+                                 EPOLL_CTL_MOD, fdVal, event | EPOLLONESHOT);
+            }
+            self.next = first;
+            waiters.put(key, self);
+        }
+        try {
+            if (ring != null) {
+                ring.pollAdd(fdVal, event, self.userData);
+                ring.submit();
+            }
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+            checkFailure();
+        } finally {
+            synchronized (waiters) {
+                if (unlink(key, self) && ring == null && failure == null) {
+                    netImpl.epollCtl(epfd, EPOLL_CTL_DEL, fdVal, 0);
+                }
+            }
+            if (ring != null && !self.ready && failure == null) {
+                // Submitted with the next request, or by flush() before
+                // the socket is closed; a late completion is skipped
+                ring.pollRemove(self.userData);
+            }
+        }
+    }
+
+    /**
+     * Submits the cancellations of poll requests that {@link #park}
+     * left queued on the rings, so that they no longer hold on to a
+     * socket that is about to be closed.
+     */
+    static void flush() {
+        flush(readPoller);
+        flush(writePoller);
+    }
+
+    private static void flush(ServalPoller p) {
+        if (p != null && p.ring != null) {
+            try {
+                p.ring.flush();
+            } catch (IOException e) {
+                // Left to the next submission, or to the poller thread
+            }
+        }
+    }
+
+    /**
+     * Returns whether the poller for {@code event} waits on a ring,
+     * which can then {@link #execute} requests.
+     */
+    static boolean hasRing(int event) throws IOException {
+        return poller(event).ring != null;
+    }
+
+    /**
+     * Queues {@code req} on the ring of the poller for {@code event} and
+     * parks the current thread until it completes. If the thread is
+     * unparked before, e.g. because the socket is being closed or the
+     * thread was interrupted, the request is cancelled, but the thread
+     * still waits for its completion, since the kernel may be using the
+     * buffer until then, and an operation under way may complete anyway.
+     *
+     * @param nanos
+     *            the maximum time to wait, 0 to wait without limit.
+     * @return the result of the request, {@link ServalRing#CANCELED} if
+     *         it was cancelled.
+     * @throws IOException
+     *             if the request could not be queued, or the poller
+     *             failed before it completed.
+     */
+    static int execute(FileDescriptor fd, int event, ServalRing.Request req,
+                       long nanos) throws IOException {
+        return poller(event).execute(netImpl.getFdValue(fd), req, nanos);
+    }
+
+    private int execute(int fdVal, ServalRing.Request req, long nanos)
+        throws IOException {
+        Integer key = Integer.valueOf(fdVal);
+        Waiter self = new Waiter(Thread.currentThread(),
+                                 ServalRing.userData(fdVal,
+                                                     nextSeq.incrementAndGet()));
+        boolean interrupted = false;
+
+        synchronized (waiters) {
+            checkFailure();
+            self.next = waiters.get(key);
+            waiters.put(key, self);
+        }
+        try {
+            ring.queue(req, fdVal, self.userData);
+            ring.submit();
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+            if (!self.ready) {
+                checkFailure();
+                ring.cancel(self.userData);
+                ring.submit();
+                while (!self.ready) {
+                    // Nothing completes the request after a failure
+                    checkFailure();
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            synchronized (waiters) {
+                unlink(key, self);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return self.result;
+    }
+
+    /**
+     * Throws the error that stopped the poller thread, if any.
+     */
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+
+        if (e != null) {
+            throw new IOException("Serval poller failed", e);
+        }
+    }
+
+    /**
+     * Stops the poller after waiting for events failed with {@code e}.
+     * The poller is replaced for new operations, and the threads parked
+     * on it are unparked to fail with the error. Its epoll instance or
+     * ring is left open, since those threads may still be using it.
+     */
+    private void fail(IOException e) {
+        synchronized (ServalPoller.class) {
+            if (readPoller == this) {
+                readPoller = null;
+            } else if (writePoller == this) {
+                writePoller = null;
+            }
+        }
+        synchronized (waiters) {
+            failure = e;
+            for (Waiter first : waiters.values()) {
+                for (Waiter w = first; w != null; w = w.next) {
+                    LockSupport.unpark(w.thread);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes {@code w} from the waiters of its descriptor, with the map
+     * held.
+     *
+     * @return {@code true} if no thread is left waiting on the
+     *         descriptor.
+     */
+    private boolean unlink(Integer key, Waiter w) {
+        Waiter first = waiters.get(key);
+
+        if (first == w) {
+            if (w.next == null) {
+                waiters.remove(key);
+                return true;
+            }
+            waiters.put(key, w.next);
+        } else {
+            Waiter prev = first;
+
+            while (prev.next != w) {
+                prev = prev.next;
+            }
+            prev.next = w.next;
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        if (ring != null) {
+            runRing();
+            return;
+        }
+        int[] fds = new int[MAX_EVENTS];
+        int[] events = new int[MAX_EVENTS];
+
+        while (true) {
+            int n;
+
+            // Interrupted waits return no events rather than failing
+            try {
+                n = netImpl.epollWait(epfd, fds, events, -1);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            synchronized (waiters) {
+                for (int i = 0; i < n; i++) {
+                    Waiter w = waiters.get(Integer.valueOf(fds[i]));
+
+                    // The event was one-shot, so all of them retry
+                    for (; w != null; w = w.next) {
+                        LockSupport.unpark(w.thread);
+                    }
+                }
+            }
+        }
+    }
+
+    private void runRing() {
+        long[] userData = new long[MAX_EVENTS];
+        int[] results = new int[MAX_EVENTS];
+
+        while (true) {
+            int n;
+
+            // Interrupted waits return no completions rather than failing
+            try {
+                n = ring.await(userData, results, -1);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            synchronized (waiters) {
+                for (int i = 0; i < n; i++) {
+                    Waiter w = waiters.get(Integer.valueOf(ServalRing.fd(userData[i])));
+
+                    // Skip the completions of cancelled requests
+                    while (w != null && w.userData != userData[i]) {
+                        w = w.next;
+                    }
+                    if (w != null) {
+                        w.result = results[i];
+                        w.ready = true;
+                        LockSupport.unpark(w.thread);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * An io_uring instance that waits for descriptors to become ready, as
+ * used by {@link ServalSelector} and {@link ServalPoller} instead of
+ * epoll where the kernel supports it, and that runs the receives,
+ * sends, accepts and connects of threads blocked in a channel.
+ * <p>
+ * With epoll, every change of the descriptors to watch is an
+ * epoll_ctl system call. A ring instead queues one-shot poll requests
+ * in memory shared with the kernel and submits them together with the
+ * next wait, so that an event loop arming and re-arming many
+ * descriptors makes a single io_uring_enter call per iteration. Each
+ * request carries a 64-bit user data, which holds the descriptor and a
+ * sequence number, so that the completion of a request that was
+ * cancelled or replaced in the meantime can be told apart.
+ * <p>
+ * A {@link Request} instead moves the data itself, and completes with
+ * the result of the operation once the kernel could carry it out, so
+ * that a thread blocked in a read does not need one system call to
+ * wait for data and another one to read it. Selectors, and the event
+ * loops built on them, still only wait for readiness on the ring,
+ * since they hand ready channels to code that reads and writes by
+ * itself.
+ * <p>
+ * Requests can be queued and submitted by any thread, while
+ * completions are only reaped by the thread waiting on the ring.
+ * Setting the {@value #URING_PROPERTY} system property to {@code
+ * false} disables io_uring.
+ */
+final class ServalRing {
+
+    /**
+     * The system property that disables io_uring when {@code false}.
+     */
+    static final String URING_PROPERTY = "org.servalarch.net.uring";
+
+    // Values from <poll.h>, which are the same as for epoll
+    static final int POLLIN = 0x001;
+    static final int POLLOUT = 0x004;
+    static final int POLLERR = 0x008;
+    static final int POLLHUP = 0x010;
+
+    /**
+     * The result of a cancelled request, -ECANCELED.
+     */
+    static final int CANCELED = -125;
+
+    private static final int ENTRIES = 256;
+
+    private static final int OP_RECV = 0;
+    private static final int OP_SEND = 1;
+    private static final int OP_ACCEPT = 2;
+    private static final int OP_CONNECT = 3;
+
+    /**
+     * An operation on a socket to run on a ring, for {@link
+     * ServalPoller#execute}. The buffer of a receive or send, and the
+     * address of a connect, are used by the kernel until the request
+     * completes.
+     */
+    static final class Request {
+        final int op;
+        final ByteBuffer buf;
+        final int position;
+        final int length;
+        final ServalSocketAddress address;
+
+        private Request(int op, ByteBuffer buf, ServalSocketAddress address) {
+            this.op = op;
+            this.buf = buf;
+            this.position = buf != null ? buf.position() : 0;
+            this.length = buf != null ? buf.remaining() : 0;
+            this.address = address;
+        }
+
+        /**
+         * Receives into the remaining space of a direct buffer, without
+         * advancing its position.
+         */
+        static Request recv(ByteBuffer dst) {
+            return new Request(OP_RECV, dst, null);
+        }
+
+        /**
+         * Sends the remaining bytes of a direct buffer, without
+         * advancing its position.
+         */
+        static Request send(ByteBuffer src) {
+            return new Request(OP_SEND, src, null);
+        }
+
+        static Request accept() {
+            return new Request(OP_ACCEPT, null, null);
+        }
+
+        /**
+         * Connects to {@code remote}, whose socket address is built in
+         * {@code sockaddr}, a direct buffer of at least {@link
+         * ServalNetworkStack#SOCKADDR_SIZE} bytes.
+         */
+        static Request connect(ServalSocketAddress remote,
+                               ByteBuffer sockaddr) {
+            return new Request(OP_CONNECT, sockaddr, remote);
+        }
+    }
+
+    private static final boolean enabled =
+        !"false".equals(System.getProperty(URING_PROPERTY));
+
+    private final ServalNetworkStack netImpl;
+
+    private final long ring;
+
+    // Set when a request is queued, cleared before submitting
+    private volatile boolean queued = false;
+
+    private ServalRing(ServalNetworkStack netImpl, long ring) {
+        this.netImpl = netImpl;
+        this.ring = ring;
+    }
+
+    /**
+     * Creates a ring.
+     *
+     * @return the ring, or {@code null} if io_uring is not available
+     *         or disabled.
+     */
+    static ServalRing open(ServalNetworkStack netImpl) {
+        if (!enabled) {
+            return null;
+        }
+        long ring = netImpl.uringCreate(ENTRIES);
+
+        return ring == 0 ? null : new ServalRing(netImpl, ring);
+    }
+
+    static long userData(int fd, int seq) {
+        return ((long) fd << 32) | (seq & 0xffffffffL);
+    }
+
+    static int fd(long userData) {
+        return (int) (userData >> 32);
+    }
+
+    /**
+     * Queues a one-shot poll of {@code fd} for the given poll events.
+     */
+    synchronized void pollAdd(int fd, int events, long userData)
+        throws IOException {
+        queued = true;
+        while (!netImpl.uringPollAdd(ring, fd, events, userData)) {
+            // Submission ring full
+            netImpl.uringSubmit(ring);
+        }
+    }
+
+    /**
+     * Queues the cancellation of the poll with the given user data.
+     */
+    synchronized void pollRemove(long userData) throws IOException {
+        queued = true;
+        while (!netImpl.uringPollRemove(ring, userData)) {
+            netImpl.uringSubmit(ring);
+        }
+    }
+
+    /**
+     * Queues {@code req} on {@code fd}.
+     */
+    synchronized void queue(Request req, int fd, long userData)
+        throws IOException {
+        queued = true;
+        while (!queueOnce(req, fd, userData)) {
+            netImpl.uringSubmit(ring);
+        }
+    }
+
+    private boolean queueOnce(Request req, int fd, long userData)
+        throws IOException {
+        switch (req.op) {
+        case OP_RECV:
+            return netImpl.uringRecv(ring, fd, req.buf, req.position,
+                                     req.length, userData);
+        case OP_SEND:
+            return netImpl.uringSend(ring, fd, req.buf, req.position,
+                                     req.length, userData);
+        case OP_ACCEPT:
+            return netImpl.uringAccept(ring, fd, userData);
+        default:
+            return netImpl.uringConnect(ring, fd, req.buf,
+                                        req.address.getServiceID(),
+                                        req.address.getAddress(), userData);
+        }
+    }
+
+    /**
+     * Queues the cancellation of the request with the given user data.
+     */
+    synchronized void cancel(long userData) throws IOException {
+        queued = true;
+        while (!netImpl.uringCancel(ring, userData)) {
+            netImpl.uringSubmit(ring);
+        }
+    }
+
+    /**
+     * Submits the queued requests without waiting.
+     */
+    void submit() throws IOException {
+        queued = false;
+        netImpl.uringSubmit(ring);
+    }
+
+    /**
+     * Submits the queued requests, if any, without waiting. Requests
+     * queued by another thread meanwhile are submitted with them.
+     */
+    void flush() throws IOException {
+        if (queued) {
+            submit();
+        }
+    }
+
+    /**
+     * Submits the queued requests and waits for completions, like
+     * {@link ServalNetworkStack#uringWait}.
+     */
+    int await(long[] userData, int[] results, int timeout)
+        throws IOException {
+        queued = false;
+        return netImpl.uringWait(ring, userData, results, timeout);
+    }
+
+    /**
+     * Closes the ring, which cancels its requests. It must not be used
+     * anymore.
+     */
+    void close() {
+        netImpl.uringClose(ring);
+    }
+}
@@ -0,0 +1,101 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+
+/**
+ * Selection key of a channel registered with a {@code ServalSelector}.
+ */
+final class ServalSelectionKey extends AbstractSelectionKey {
+
+    private final SelectableChannel channel;
+
+    private final ServalSelector selector;
+
+    /**
+     * The descriptor registered with epoll.
+     */
+    final int fd;
+
+    // State of the poll request of the key when the selector uses
+    // io_uring, guarded by the update lock of the selector: the poll
+    // events wanted, those of the queued request, and the sequence
+    // number identifying that request
+    int ringEvents;
+    int armedEvents;
+    int seq;
+
+    // The events of the descriptor in the epoll set when the selector
+    // uses epoll, 0 while it is left out of it, guarded by the update
+    // lock of the selector
+    int epollEvents;
+
+    private volatile int interestOps;
+
+    // Only modified by the selecting thread
+    private volatile int readyOps;
+
+    ServalSelectionKey(SelectableChannel channel, ServalSelector selector,
+                       int fd) {
+        this.channel = channel;
+        this.selector = selector;
+        this.fd = fd;
+    }
+
+    private void ensureValid() {
+        if (!isValid()) {
+            throw new CancelledKeyException();
+        }
+    }
+
+    @Override
+    public SelectableChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public Selector selector() {
+        return selector;
+    }
+
+    @Override
+    public int interestOps() {
+        ensureValid();
+        return interestOps;
+    }
+
+    @Override
+    public SelectionKey interestOps(int ops) {
+        ensureValid();
+        if ((ops & ~channel.validOps()) != 0) {
+            throw new IllegalArgumentException();
+        }
+        // Set before the selector is told, as a select in progress may
+        // return as soon as it is
+        interestOps = ops;
+        selector.setInterest(this, ops);
+        return this;
+    }
+
+    int nioInterestOps() {
+        return interestOps;
+    }
+
+    @Override
+    public int readyOps() {
+        ensureValid();
+        return readyOps;
+    }
+
+    int nioReadyOps() {
+        return readyOps;
+    }
+
+    void nioReadyOps(int ops) {
+        readyOps = ops;
+    }
+}
@@ -0,0 +1,594 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * An epoll based selector for Serval channels.
+ * <p>
+ * Where io_uring is available, the selector instead arms a one-shot
+ * poll request per key on a {@link ServalRing}, and re-arms it every
+ * time it completes while the key is interested in some event, which
+ * gives the level-triggered behaviour of epoll. Interest changes are
+ * then only queued, and submitted together with the next select.
+ * <p>
+ * The selector also accepts the socket, server socket, datagram and pipe
+ * channels of the default provider, so that Serval and IP traffic can be
+ * multiplexed by the same event loop. The descriptor of such a channel
+ * is read from its private {@code fd} field, which on Java 9 and later
+ * requires running with {@code --add-opens java.base/sun.nio.ch=ALL-UNNAMED}.
+ */
+final class ServalSelector extends AbstractSelector {
+
+    // Values from <sys/epoll.h>
+    private static final int EPOLL_CTL_ADD = 1;
+    private static final int EPOLL_CTL_DEL = 2;
+    private static final int EPOLL_CTL_MOD = 3;
+    private static final int EPOLLIN = 0x001;
+    private static final int EPOLLOUT = 0x004;
+    private static final int EPOLLERR = 0x008;
+    private static final int EPOLLHUP = 0x010;
+
+    private static final int MAX_EVENTS = 256;
+
+    private final ServalNetworkStack netImpl = ServalNetworkStack.getInstance();
+
+    // The io_uring instance, or null if the selector uses epoll
+    private final ServalRing ring;
+
+    private final int epfd;
+
+    private final int wakeupFd;
+
+    private final long[] readyData;
+
+    private final int[] readyFds = new int[MAX_EVENTS];
+
+    private final int[] readyEvents = new int[MAX_EVENTS];
+
+    // Registered keys, indexed by descriptor
+    private final Map<Integer, ServalSelectionKey> fdToKey =
+        new HashMap<Integer, ServalSelectionKey>();
+
+    private final Set<SelectionKey> keys = new HashSet<SelectionKey>();
+
+    private final Set<SelectionKey> publicKeys =
+        Collections.unmodifiableSet(keys);
+
+    private final Set<SelectionKey> selectedKeys = new HashSet<SelectionKey>();
+
+    private final Set<SelectionKey> publicSelectedKeys =
+        new UngrowableSet(selectedKeys);
+
+    // Lock serializing epoll_ctl against deregistration and close
+    private final Object updateLock = new Object();
+
+    private final Object wakeupLock = new Object();
+
+    private boolean wakeupPending = false;
+
+    // Whether a thread waits on the ring, guarded by updateLock
+    private boolean selecting = false;
+
+    private volatile boolean closed = false;
+
+    ServalSelector(SelectorProvider provider) throws IOException {
+        super(provider);
+        ring = ServalRing.open(netImpl);
+        if (ring != null) {
+            epfd = -1;
+            readyData = new long[MAX_EVENTS];
+            try {
+                wakeupFd = netImpl.eventfdCreate();
+            } catch (IOException e) {
+                ring.close();
+                throw e;
+            }
+            ring.pollAdd(wakeupFd, EPOLLIN, ServalRing.userData(wakeupFd, 0));
+            return;
+        }
+        epfd = netImpl.epollCreate();
+        readyData = null;
+        try {
+            wakeupFd = netImpl.eventfdCreate();
+        } catch (IOException e) {
+            netImpl.closeFd(epfd);
+            throw e;
+        }
+        netImpl.epollCtl(epfd, EPOLL_CTL_ADD, wakeupFd, EPOLLIN);
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new ClosedSelectorException();
+        }
+    }
+
+    @Override
+    public Set<SelectionKey> keys() {
+        ensureOpen();
+        return publicKeys;
+    }
+
+    @Override
+    public Set<SelectionKey> selectedKeys() {
+        ensureOpen();
+        return publicSelectedKeys;
+    }
+
+    @Override
+    protected SelectionKey register(AbstractSelectableChannel ch, int ops,
+                                    Object att) {
+        ensureOpen();
+        ServalSelectionKey key =
+            new ServalSelectionKey(ch, this, descriptor(ch));
+        key.attach(att);
+
+        synchronized (publicKeys) {
+            synchronized (updateLock) {
+                ensureOpen();
+                fdToKey.put(Integer.valueOf(key.fd), key);
+            }
+            keys.add(key);
+        }
+        key.interestOps(ops);
+        return key;
+    }
+
+    /**
+     * Updates the epoll events of a key. Called when its interest set
+     * changes, which takes effect even for a select in progress. A key
+     * without events is left out of the epoll set, as epoll reports
+     * EPOLLHUP and EPOLLERR whatever the events, which would make
+     * every select return at once.
+     */
+    void setInterest(ServalSelectionKey key, int ops) {
+        int events = 0;
+
+        if ((ops & (SelectionKey.OP_READ | SelectionKey.OP_ACCEPT)) != 0) {
+            events |= EPOLLIN;
+        }
+        if ((ops & (SelectionKey.OP_WRITE | SelectionKey.OP_CONNECT)) != 0) {
+            events |= EPOLLOUT;
+        }
+        synchronized (updateLock) {
+            ensureOpen();
+            if (fdToKey.get(Integer.valueOf(key.fd)) != key) {
+                throw new CancelledKeyException();
+            }
+            try {
+                if (ring == null) {
+                    if (events != key.epollEvents) {
+                        int op = key.epollEvents == 0 ? EPOLL_CTL_ADD
+                            : events == 0 ? EPOLL_CTL_DEL : EPOLL_CTL_MOD;
+
+                        netImpl.epollCtl(epfd, op, key.fd, events);
+                        key.epollEvents = events;
+                    }
+                } else {
+                    key.ringEvents = events;
+                    if (events != key.armedEvents) {
+                        arm(key);
+                        if (selecting) {
+                            ring.submit();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Queues the poll request of a key for its current events, after
+     * cancelling the request already queued, if any. Called with
+     * updateLock held.
+     */
+    private void arm(ServalSelectionKey key) throws IOException {
+        if (key.armedEvents != 0) {
+            ring.pollRemove(ServalRing.userData(key.fd, key.seq));
+            key.armedEvents = 0;
+        }
+        key.seq++;
+        if (key.ringEvents != 0) {
+            ring.pollAdd(key.fd, key.ringEvents,
+                         ServalRing.userData(key.fd, key.seq));
+            key.armedEvents = key.ringEvents;
+        }
+    }
+
+    @Override
+    public int select() throws IOException {
+        return lockAndDoSelect(-1);
+    }
+
+    @Override
+    public int select(long timeout) throws IOException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        if (timeout == 0) {
+            return lockAndDoSelect(-1);
+        }
+        return lockAndDoSelect(timeout > Integer.MAX_VALUE ?
+                               Integer.MAX_VALUE : (int) timeout);
+    }
+
+    @Override
+    public int selectNow() throws IOException {
+        return lockAndDoSelect(0);
+    }
+
+    private int lockAndDoSelect(int timeout) throws IOException {
+        synchronized (this) {
+            ensureOpen();
+            synchronized (publicKeys) {
+                synchronized (publicSelectedKeys) {
+                    return doSelect(timeout);
+                }
+            }
+        }
+    }
+
+    private int doSelect(int timeout) throws IOException {
+        int n;
+
+        processDeregisterQueue();
+        try {
+            begin();
+            if (ring == null) {
+                n = netImpl.epollWait(epfd, readyFds, readyEvents, timeout);
+            } else {
+                synchronized (updateLock) {
+                    selecting = true;
+                }
+                try {
+                    n = ring.await(readyData, readyEvents, timeout);
+                } finally {
+                    synchronized (updateLock) {
+                        selecting = false;
+                    }
+                }
+            }
+        } finally {
+            end();
+        }
+        if (ring != null) {
+            n = reapRing(n);
+        }
+        processDeregisterQueue();
+
+        int updated = 0;
+
+        for (int i = 0; i < n; i++) {
+            int fd = readyFds[i];
+
+            if (fd == wakeupFd) {
+                synchronized (wakeupLock) {
+                    netImpl.eventfdDrain(wakeupFd);
+                    wakeupPending = false;
+                }
+                continue;
+            }
+            ServalSelectionKey key = fdToKey.get(Integer.valueOf(fd));
+
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+            int ops = translateReadyOps(key, readyEvents[i]);
+
+            if (ops == 0) {
+                continue;
+            }
+            if (selectedKeys.contains(key)) {
+                int oldOps = key.nioReadyOps();
+                if ((oldOps | ops) != oldOps) {
+                    key.nioReadyOps(oldOps | ops);
+                    updated++;
+                }
+            } else {
+                key.nioReadyOps(ops);
+                selectedKeys.add(key);
+                updated++;
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Turns the completions of the ring into ready descriptors and
+     * events, as returned by epoll, and re-arms the poll requests that
+     * completed.
+     *
+     * @return the number of ready descriptors.
+     */
+    private int reapRing(int n) throws IOException {
+        int ready = 0;
+
+        synchronized (updateLock) {
+            for (int i = 0; i < n; i++) {
+                long data = readyData[i];
+                int fd = ServalRing.fd(data);
+                int res = readyEvents[i];
+
+                if (fd == wakeupFd) {
+                    ring.pollAdd(wakeupFd, EPOLLIN, data);
+                    readyFds[ready] = fd;
+                    readyEvents[ready++] = EPOLLIN;
+                    continue;
+                }
+                ServalSelectionKey key = fdToKey.get(Integer.valueOf(fd));
+
+                // Skip the completions of replaced or cancelled requests
+                if (key == null || data != ServalRing.userData(fd, key.seq)) {
+                    continue;
+                }
+                key.armedEvents = 0;
+                arm(key);
+                if (res == ServalRing.CANCELED) {
+                    continue;
+                }
+                readyFds[ready] = fd;
+                readyEvents[ready++] = res < 0 ? EPOLLERR : res;
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Translates epoll events to the ready operations of a key, limited
+     * to its interest set.
+     */
+    private static int translateReadyOps(ServalSelectionKey key, int events) {
+        int interest = key.nioInterestOps();
+        SelectableChannel ch = key.channel();
+        int ops = 0;
+
+        if ((events & (EPOLLERR | EPOLLHUP)) != 0) {
+            // Let the channel operation report the error
+            return interest;
+        }
+        if ((events & EPOLLIN) != 0) {
+            ops |= interest & (SelectionKey.OP_READ | SelectionKey.OP_ACCEPT);
+        }
+        if ((events & EPOLLOUT) != 0) {
+            if (ch instanceof SocketChannel) {
+                SocketChannel sc = (SocketChannel) ch;
+                if (sc.isConnectionPending()) {
+                    ops |= interest & SelectionKey.OP_CONNECT;
+                }
+                if (sc.isConnected()) {
+                    ops |= interest & SelectionKey.OP_WRITE;
+                }
+            } else {
+                ops |= interest & (SelectionKey.OP_WRITE | SelectionKey.OP_CONNECT);
+            }
+        }
+        return ops;
+    }
+
+    private void processDeregisterQueue() throws IOException {
+        Set<SelectionKey> cancelled = cancelledKeys();
+
+        synchronized (cancelled) {
+            if (cancelled.isEmpty()) {
+                return;
+            }
+            Iterator<SelectionKey> it = cancelled.iterator();
+
+            while (it.hasNext()) {
+                ServalSelectionKey key = (ServalSelectionKey) it.next();
+                it.remove();
+                removeKey(key);
+            }
+        }
+    }
+
+    private void removeKey(ServalSelectionKey key) throws IOException {
+        synchronized (updateLock) {
+            Integer fd = Integer.valueOf(key.fd);
+            if (fdToKey.get(fd) == key) {
+                fdToKey.remove(fd);
+                if (ring == null) {
+                    if (key.epollEvents != 0) {
+                        netImpl.epollCtl(epfd, EPOLL_CTL_DEL, key.fd, 0);
+                        key.epollEvents = 0;
+                    }
+                } else if (key.armedEvents != 0) {
+                    // Cancel the request before the channel is closed
+                    key.ringEvents = 0;
+                    arm(key);
+                    ring.submit();
+                }
+            }
+        }
+        keys.remove(key);
+        selectedKeys.remove(key);
+        deregister(key);
+
+        SelectableChannel ch = key.channel();
+
+        if (!ch.isOpen() && !ch.isRegistered()) {
+            kill(ch);
+        }
+    }
+
+    @Override
+    public Selector wakeup() {
+        synchronized (wakeupLock) {
+            if (!wakeupPending && !closed) {
+                try {
+                    netImpl.eventfdSignal(wakeupFd);
+                    wakeupPending = true;
+                } catch (IOException e) {
+                    // Nothing to do, the next select will not be woken up
+                }
+            }
+        }
+        return this;
+    }
+
+    @Override
+    protected void implCloseSelector() throws IOException {
+        wakeup();
+        synchronized (this) {
+            synchronized (publicKeys) {
+                synchronized (publicSelectedKeys) {
+                    synchronized (wakeupLock) {
+                        closed = true;
+                    }
+                    processDeregisterQueue();
+                    for (SelectionKey k : keys.toArray(new SelectionKey[keys.size()])) {
+                        ServalSelectionKey key = (ServalSelectionKey) k;
+                        key.cancel();
+                        synchronized (cancelledKeys()) {
+                            cancelledKeys().remove(key);
+                        }
+                        removeKey(key);
+                    }
+                    if (ring != null) {
+                        ring.close();
+                    } else {
+                        netImpl.closeFd(epfd);
+                    }
+                    netImpl.closeFd(wakeupFd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the descriptor of a channel, which is either one of the
+     * Serval channels or a channel of the default provider.
+     */
+    private int descriptor(SelectableChannel ch) {
+        FileDescriptor fd;
+
+        if (ch instanceof ServalSocketChannel) {
+            fd = ((ServalSocketChannel) ch).getFD();
+        } else if (ch instanceof ServalServerSocketChannel) {
+            fd = ((ServalServerSocketChannel) ch).getFD();
+        } else if (ch instanceof ServalDatagramChannel) {
+            fd = ((ServalDatagramChannel) ch).getFD();
+        } else {
+            fd = foreignDescriptor(ch);
+        }
+        return netImpl.getFdValue(fd);
+    }
+
+    private static FileDescriptor foreignDescriptor(SelectableChannel ch) {
+        for (Class<?> c = ch.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField("fd");
+                if (f.getType() != FileDescriptor.class) {
+                    continue;
+                }
+                f.setAccessible(true);
+                return (FileDescriptor) f.get(ch);
+            } catch (NoSuchFieldException e) {
+                // Try the superclass
+            } catch (Exception e) {
+                // Typically InaccessibleObjectException when
+                // sun.nio.ch is not opened to us
+                IllegalSelectorException ise = new IllegalSelectorException();
+                ise.initCause(e);
+                throw ise;
+            }
+        }
+        throw new IllegalSelectorException();
+    }
+
+    /**
+     * Closes the descriptor of a channel that was closed while
+     * registered, once it is no longer registered with any selector.
+     */
+    private static void kill(SelectableChannel ch) throws IOException {
+        if (ch instanceof ServalSocketChannel) {
+            ((ServalSocketChannel) ch).kill();
+        } else if (ch instanceof ServalServerSocketChannel) {
+            ((ServalServerSocketChannel) ch).kill();
+        } else if (ch instanceof ServalDatagramChannel) {
+            ((ServalDatagramChannel) ch).kill();
+        } else {
+            // Channels of the default provider defer their close to
+            // their selectors in the same way
+            for (Class<?> c = ch.getClass(); c != null; c = c.getSuperclass()) {
+                try {
+                    Method m = c.getDeclaredMethod("kill");
+                    m.setAccessible(true);
+                    m.invoke(ch);
+                    return;
+                } catch (NoSuchMethodException e) {
+                    // Try the superclass
+                } catch (Exception e) {
+                    IOException ioe = new IOException("Could not close " + ch);
+                    ioe.initCause(e);
+                    throw ioe;
+                }
+            }
+        }
+    }
+
+    /**
+     * Selected-key set that supports removal but not addition.
+     */
+    private static class UngrowableSet extends AbstractSet<SelectionKey> {
+        private final Set<SelectionKey> set;
+
+        UngrowableSet(Set<SelectionKey> set) {
+            this.set = set;
+        }
+
+        @Override
+        public int size() {
+            return set.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return set.contains(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return set.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            set.clear();
+        }
+
+        @Override
+        public Iterator<SelectionKey> iterator() {
+            return set.iterator();
+        }
+
+        @Override
+        public boolean add(SelectionKey key) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
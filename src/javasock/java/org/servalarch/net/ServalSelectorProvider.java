@@ -0,0 +1,72 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.nio.channels.Pipe;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+
+/**
+ * Selector provider for Serval channels. Use {@link #provider()} to
+ * open {@code ServalSocketChannel}s, {@code ServalServerSocketChannel}s
+ * and {@code ServalDatagramChannel}s.
+ */
+public class ServalSelectorProvider extends SelectorProvider {
+
+    private static final Object lock = new Object();
+
+    private static ServalSelectorProvider provider = null;
+
+    protected ServalSelectorProvider() {
+    }
+
+    /**
+     * Returns the system-wide Serval selector provider.
+     */
+    public static ServalSelectorProvider provider() {
+        synchronized (lock) {
+            if (provider == null) {
+                provider = new ServalSelectorProvider();
+            }
+            return provider;
+        }
+    }
+
+    @Override
+    public ServalDatagramChannel openDatagramChannel() throws IOException {
+        return new ServalDatagramChannel(this);
+    }
+
+    @Override
+    public ServalDatagramChannel openDatagramChannel(ProtocolFamily family)
+        throws IOException {
+        throw new UnsupportedOperationException("Protocol family not supported");
+    }
+
+    @Override
+    public Pipe openPipe() throws IOException {
+        return SelectorProvider.provider().openPipe();
+    }
+
+    /**
+     * Opens an epoll based selector. Besides Serval channels, the
+     * selector accepts the channels of the default provider, so that
+     * Serval and TCP/IP channels can share one event loop.
+     */
+    @Override
+    public AbstractSelector openSelector() throws IOException {
+        return new ServalSelector(this);
+    }
+
+    @Override
+    public ServalServerSocketChannel openServerSocketChannel()
+        throws IOException {
+        return new ServalServerSocketChannel(this);
+    }
+
+    @Override
+    public ServalSocketChannel openSocketChannel() throws IOException {
+        return new ServalSocketChannel(this);
+    }
+}
@@ -41,8 +41,13 @@ public class ServalServerSocket {
 
     private boolean isBound;
 
+    // Number of bits of the serviceID bound, 0 for all of them
+    private int bindBits;
+
     private boolean isClosed;
 
+    private ServerSocketChannel channel;
+
     // BEGIN android-removed: we do this statically, when we start the VM.
     // static {
     //    Platform.getNetworkSystem().oneTimeInitialization(true);
@@ -76,6 +81,16 @@ public class ServalServerSocket {
         this.impl = impl;
     }
 
+    /**
+     * Creates a server socket for a channel, using the channel's already
+     * created socket implementation.
+     */
+    ServalServerSocket(ServalSocketImpl impl, ServerSocketChannel channel) {
+        this.impl = impl;
+        this.channel = channel;
+        isCreated = true;
+    }
+
     /**
      * Constructs a new {@code ServerSocket} instance bound to the nominated
      * serviceID on the localhost. The default number of pending connections may be
@@ -403,6 +418,7 @@ public class ServalServerSocket {
         }
         InetAddress addr = null;
         ServiceID serviceID = null;
+        int bits = 0;
         
         if (localAddr != null) {
             if (!(localAddr instanceof ServalSocketAddress)) {
@@ -414,10 +430,12 @@ public class ServalServerSocket {
                 throw new SocketException("No serviceID");
             }
             addr = servalAddr.getAddress();
+            bits = servalAddr.getPrefixBits();
         }
         
         if (serviceID == null)
         	throw new SocketException("Invalid serviceID");
+        checkListen(serviceID, bits);
         /*
         SecurityManager security = System.getSecurityManager();
         if (security != null) {
@@ -427,7 +445,9 @@ public class ServalServerSocket {
         
         synchronized (this) {
             try {
-                impl.bind(serviceID, addr);
+                impl.bind(serviceID, addr, bits > 0 ? bits
+                          : ServiceID.SERVICE_ID_MAX_BITS);
+                bindBits = bits;
                 isBound = true;
                 impl.listen(backlog > 0 ? backlog : defaultBacklog());
             } catch (IOException e) {
@@ -437,6 +457,29 @@ public class ServalServerSocket {
         }
     }
 
+    /**
+     * Binds this server socket to the first {@code bindBits} bits of
+     * {@code serviceID}, so that it accepts the connections to all the
+     * serviceIDs with that prefix. {@link ServalSocket#getLocalServiceID()}
+     * of an accepted socket gives the serviceID the peer connected to.
+     *
+     * @param serviceID
+     *            the serviceID prefix to listen on.
+     * @param bindBits
+     *            the length of the prefix, or {@code 0} for the whole
+     *            serviceID.
+     * @throws IOException
+     *             if the socket is already bound or a problem occurs during
+     *             binding.
+     */
+    public void bind(ServiceID serviceID, int bindBits) throws IOException {
+        if (bindBits < 0 || bindBits > ServiceID.SERVICE_ID_MAX_BITS) {
+            throw new IllegalArgumentException("Bad prefix to listen to: " +
+                                               bindBits);
+        }
+        bind(new ServalSocketAddress(serviceID, bindBits), defaultBacklog());
+    }
+
     /**
      * Gets the local socket address of this server socket or {@code null} if
      * the socket is unbound. This is useful on multihomed hosts.
@@ -447,7 +490,8 @@ public class ServalServerSocket {
         if (!isBound()) {
             return null;
         }
-        return new ServalSocketAddress(getLocalServiceID(), getInetAddress());
+        return new ServalSocketAddress(getLocalServiceID(), getInetAddress(),
+                                       bindBits);
     }
 
     /**
@@ -556,13 +600,12 @@ public class ServalServerSocket {
 
     /**
      * Gets the related channel if this instance was created by a
-     * {@code ServerSocketChannel}. The current implementation returns always {@code
-     * null}.
+     * {@code ServalServerSocketChannel}.
      *
      * @return the related {@code ServerSocketChannel} if any.
      */
     public ServerSocketChannel getChannel() {
-        return null;
+        return channel;
     }
 
     /**
@@ -0,0 +1,283 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NotYetBoundException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * A selectable channel for listening Serval stream sockets. In
+ * non-blocking mode {@link #accept()} returns {@code null} when no
+ * connection is pending, so a single thread can serve many listening
+ * services through a selector.
+ * <p>
+ * Since a Serval server socket is not a {@code java.net.ServerSocket},
+ * {@link #socket()} is not supported; use {@link #servalServerSocket()}
+ * instead.
+ *
+ * @see ServalSelectorProvider
+ */
+public class ServalServerSocketChannel extends ServerSocketChannel {
+
+    private final ServalNetworkStack netImpl = ServalNetworkStack.getInstance();
+
+    final ServalPlainServerSocketImpl impl;
+
+    private final ServalServerSocket socket;
+
+    // Lock held by the thread currently blocked in accept
+    private final Object acceptLock = new Object();
+
+    // Lock protecting the bound state
+    private final Object stateLock = new Object();
+
+    /**
+     * Creates an unbound channel with a new Serval stream socket.
+     */
+    protected ServalServerSocketChannel(SelectorProvider provider)
+        throws IOException {
+        super(provider);
+        impl = new ServalPlainServerSocketImpl();
+        impl.create(true);
+        socket = new ServalServerSocket(impl, this);
+    }
+
+    /**
+     * Opens an unbound Serval server socket channel.
+     */
+    public static ServalServerSocketChannel open() throws IOException {
+        return ServalSelectorProvider.provider().openServerSocketChannel();
+    }
+
+    /**
+     * Not supported, a Serval server socket cannot be represented as a
+     * {@code java.net.ServerSocket}.
+     *
+     * @throws UnsupportedOperationException always.
+     * @see #servalServerSocket()
+     */
+    @Override
+    public ServerSocket socket() {
+        throw new UnsupportedOperationException("Use servalServerSocket()");
+    }
+
+    /**
+     * Returns the Serval server socket associated with this channel.
+     */
+    public ServalServerSocket servalServerSocket() {
+        return socket;
+    }
+
+    FileDescriptor getFD() {
+        return impl.getFD();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Binds the channel to a local serviceID and starts listening for
+     * connections.
+     *
+     * @param local
+     *            the {@code ServalSocketAddress} to listen on.
+     * @param backlog
+     *            the number of pending connections, or {@code 0} for the
+     *            default.
+     */
+    @Override
+    public ServalServerSocketChannel bind(SocketAddress local, int backlog)
+        throws IOException {
+        if (local != null && !(local instanceof ServalSocketAddress)) {
+            throw new UnsupportedAddressTypeException();
+        }
+        synchronized (stateLock) {
+            ensureOpen();
+            if (socket.isBound()) {
+                throw new AlreadyBoundException();
+            }
+            socket.bind((ServalSocketAddress) local,
+                        backlog > 0 ? backlog : ServalServerSocket.defaultBacklog());
+        }
+        return this;
+    }
+
+    @Override
+    public <T> ServalServerSocketChannel setOption(SocketOption<T> name, T value)
+        throws IOException {
+        int optID = ServalChannelOptions.optionID(supportedOptions(), name, value);
+
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid value 'null'");
+        }
+        synchronized (stateLock) {
+            ensureOpen();
+            impl.setOption(optID, value);
+        }
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        int optID = ServalChannelOptions.optionID(supportedOptions(), name, null);
+
+        synchronized (stateLock) {
+            ensureOpen();
+            return ServalChannelOptions.value(name, impl.getOption(optID));
+        }
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return ServalChannelOptions.SERVER_OPTIONS;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        synchronized (stateLock) {
+            ensureOpen();
+            return socket.getLocalSocketAddress();
+        }
+    }
+
+    /**
+     * Accepts a connection. The returned channel is in blocking mode.
+     *
+     * @return the channel of the new connection, or {@code null} if this
+     *         channel is non-blocking and no connection is pending.
+     */
+    @Override
+    public ServalSocketChannel accept() throws IOException {
+        synchronized (acceptLock) {
+            ensureOpen();
+            if (!socket.isBound()) {
+                throw new NotYetBoundException();
+            }
+            ServalPlainSocketImpl newImpl = new ServalPlainSocketImpl();
+            FileDescriptor newFd = null;
+            try {
+                begin();
+                newFd = netImpl.accept(getFD(), newImpl, 0);
+                while (newFd == null && isBlocking() && isOpen()) {
+                    newFd = awaitAccept(newImpl);
+                }
+            } finally {
+                end(newFd != null);
+            }
+            if (newFd == null) {
+                return null;
+            }
+            netImpl.setNonBlocking(newFd, true);
+            newImpl.fd = newFd;
+            newImpl.localServiceID = impl.getLocalServiceID();
+            return new ServalSocketChannel(provider(), newImpl);
+        }
+    }
+
+    /**
+     * Parks the current thread until the socket is ready for {@code
+     * event}, or the channel is closed or the thread interrupted.
+     */
+    private void park(int event) throws IOException {
+        impl.threads.add();
+        try {
+            impl.threads.park(getFD(), event, 0, null);
+        } finally {
+            impl.threads.remove();
+        }
+    }
+
+    /**
+     * Waits for a connection in blocking mode and accepts it. Where the
+     * read poller has a ring, this is an accept request on it, which
+     * completes with the new connection, instead of parking until one is
+     * pending and accepting it.
+     *
+     * @return the descriptor of the connection, or {@code null} if the
+     *         thread was woken up without one.
+     */
+    private FileDescriptor awaitAccept(ServalPlainSocketImpl newImpl)
+        throws IOException {
+        if (ServalPoller.hasRing(ServalPoller.EPOLLIN)) {
+            int res;
+
+            impl.threads.add();
+            try {
+                res = impl.threads.execute(getFD(), ServalPoller.EPOLLIN,
+                                           ServalRing.Request.accept(), 0,
+                                           null);
+            } finally {
+                impl.threads.remove();
+            }
+            if (res == ServalRing.CANCELED) {
+                return null;
+            }
+            res = netImpl.uringResult(res, false);
+            if (res >= 0) {
+                return netImpl.uringAccepted(res);
+            }
+            // The kernel did not wait on the non-blocking socket
+        }
+        park(ServalPoller.EPOLLIN);
+        return netImpl.accept(getFD(), newImpl, 0);
+    }
+
+    /**
+     * The descriptor is non-blocking in either mode, a blocking accept
+     * parks on a {@link ServalPoller} instead.
+     */
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException {
+        // Nothing to do
+    }
+
+    /**
+     * Closes the channel. While the channel is registered with a
+     * selector, closing the descriptor is left to the selector, which
+     * calls {@link #kill()} once the channel has been deregistered.
+     */
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+        synchronized (stateLock) {
+            if (!isRegistered()) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the descriptor of a channel closed while registered.
+     */
+    void kill() throws IOException {
+        synchronized (stateLock) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getClass().getName());
+        sb.append('[');
+        if (!isOpen()) {
+            sb.append("closed");
+        } else if (!socket.isBound()) {
+            sb.append("unbound");
+        } else {
+            sb.append(socket.getLocalServiceID());
+        }
+        return sb.append(']').toString();
+    }
+}
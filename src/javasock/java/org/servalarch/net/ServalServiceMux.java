@@ -0,0 +1,308 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server for many services under one serviceID prefix. It listens once,
+ * on the prefix, and hands each accepted connection to the handler
+ * registered for the longest prefix of the serviceID the peer connected
+ * to, on a bounded pool of workers. Services can thus be added and
+ * removed without a server socket and an accept thread each.
+ * <p>
+ * Connections to serviceIDs without a handler are closed, and so are
+ * those that arrive while all workers are busy and the queue of the
+ * pool is full.
+ */
+public class ServalServiceMux implements Closeable {
+
+    /**
+     * Serves the connections to a service.
+     */
+    public interface Handler {
+        /**
+         * Serves an accepted connection, which the handler then owns
+         * and must close. It is closed for the handler if this throws.
+         *
+         * @param socket
+         *            the connection, whose local serviceID is the one
+         *            the peer connected to.
+         */
+        void handle(ServalSocket socket) throws IOException;
+    }
+
+    // Longest pause of the acceptor after repeated accept failures
+    private static final long MAX_BACKOFF_MS = 1000;
+
+    private static final AtomicInteger muxCount = new AtomicInteger();
+
+    private final ServiceIdTrie<Handler> handlers = new ServiceIdTrie<Handler>();
+
+    private final ServalServerSocket server;
+
+    private final Executor workers;
+
+    // The pool created by the mux, shut down on close
+    private final ThreadPoolExecutor pool;
+
+    private final Object stateLock = new Object();
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a mux serving connections on its own pool.
+     *
+     * @param threads
+     *            the number of workers.
+     * @param queue
+     *            the number of accepted connections that may wait for a
+     *            worker.
+     * @throws IOException
+     *             if the server socket cannot be created.
+     */
+    public ServalServiceMux(int threads, int queue) throws IOException {
+        this(newPool(threads, queue));
+    }
+
+    /**
+     * Creates a mux serving connections on {@code workers}, which could
+     * also be the executor of an event loop. It is not shut down when
+     * the mux is closed.
+     *
+     * @param workers
+     *            runs the handlers.
+     * @throws IOException
+     *             if the server socket cannot be created.
+     */
+    public ServalServiceMux(Executor workers) throws IOException {
+        if (workers == null) {
+            throw new NullPointerException("workers");
+        }
+        this.server = new ServalServerSocket();
+        this.workers = workers;
+        this.pool = null;
+    }
+
+    private ServalServiceMux(ThreadPoolExecutor pool) throws IOException {
+        this.server = new ServalServerSocket();
+        this.workers = pool;
+        this.pool = pool;
+    }
+
+    private static ThreadPoolExecutor newPool(int threads, int queue) {
+        if (threads <= 0 || queue <= 0) {
+            throw new IllegalArgumentException("Bad pool size");
+        }
+        final String name = "Serval Service Mux " + muxCount.incrementAndGet();
+        ThreadPoolExecutor p =
+            new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                   new ArrayBlockingQueue<Runnable>(queue),
+                                   new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + " Worker " +
+                                          count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        p.allowCoreThreadTimeOut(true);
+        return p;
+    }
+
+    /**
+     * Listens on the first {@code bindBits} bits of {@code serviceID}
+     * and starts accepting connections.
+     *
+     * @param serviceID
+     *            the serviceID prefix of the services.
+     * @param bindBits
+     *            the length of the prefix, or {@code 0} for the whole
+     *            serviceID.
+     * @throws IOException
+     *             if the mux is already bound or closed, or binding
+     *             fails.
+     */
+    public void bind(ServiceID serviceID, int bindBits) throws IOException {
+        bind(serviceID, bindBits, 0);
+    }
+
+    /**
+     * Listens on the first {@code bindBits} bits of {@code serviceID},
+     * with {@code backlog} pending connections or the default if
+     * {@code 0}, and starts accepting connections.
+     */
+    public void bind(ServiceID serviceID, int bindBits, int backlog)
+        throws IOException {
+        if (bindBits < 0 || bindBits > ServiceID.SERVICE_ID_MAX_BITS) {
+            throw new IllegalArgumentException("Bad prefix to listen to: " +
+                                               bindBits);
+        }
+        synchronized (stateLock) {
+            if (closed) {
+                throw new SocketException("Mux is closed");
+            }
+            server.bind(new ServalSocketAddress(serviceID, bindBits),
+                        backlog);
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    acceptLoop();
+                }
+            }, "Serval Service Mux Acceptor " + serviceID);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    /**
+     * Serves the serviceIDs with the first {@code bits} bits of
+     * {@code prefix} with {@code handler}, unless a longer prefix of
+     * them also has a handler.
+     *
+     * @return the handler previously registered for the prefix, or
+     *         {@code null}.
+     */
+    public Handler register(ServiceID prefix, int bits, Handler handler) {
+        return handlers.put(prefix, bits, handler);
+    }
+
+    /**
+     * Stops serving the first {@code bits} bits of {@code prefix}.
+     * Connections already handed to the handler are not affected.
+     *
+     * @return the handler of the prefix, or {@code null} if none was
+     *         registered.
+     */
+    public Handler unregister(ServiceID prefix, int bits) {
+        return handlers.remove(prefix, bits);
+    }
+
+    /**
+     * Returns the prefix the mux listens on, or {@code null} if it is
+     * not bound.
+     */
+    public ServalSocketAddress getLocalSocketAddress() {
+        return server.getLocalSocketAddress();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops accepting connections and, if the mux created its pool,
+     * shuts it down once the connections handed to it are served.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (stateLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            server.close();
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        int failures = 0;
+
+        while (!closed) {
+            ServalSocket socket;
+
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (closed || server.isClosed()) {
+                    break;
+                }
+                // A failed handshake only costs that connection, but a
+                // lasting failure such as a lack of descriptors would
+                // make the loop spin, so back off while failures
+                // persist
+                if (!backOff(++failures)) {
+                    break;
+                }
+                continue;
+            }
+            failures = 0;
+            dispatch(socket);
+        }
+    }
+
+    /**
+     * Sleeps after the given number of consecutive accept failures:
+     * not after the first, then from 1 ms doubling up to
+     * MAX_BACKOFF_MS. Returns false if the acceptor was interrupted,
+     * which also makes accept fail at once.
+     */
+    private static boolean backOff(int failures) {
+        if (failures < 2) {
+            return true;
+        }
+        long ms = Math.min(MAX_BACKOFF_MS, 1L << Math.min(failures - 2, 10));
+
+        try {
+            Thread.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void dispatch(final ServalSocket socket) {
+        ServiceID serviceID = socket.getLocalServiceID();
+        final Handler handler =
+            serviceID != null ? handlers.lookup(serviceID) : null;
+
+        if (handler == null) {
+            closeQuietly(socket);
+            return;
+        }
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.handle(socket);
+                    } catch (IOException e) {
+                        closeQuietly(socket);
+                    } catch (RuntimeException e) {
+                        closeQuietly(socket);
+                        throw e;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Overloaded or shut down
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(ServalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
@@ -27,7 +27,10 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.servalarch.platform.ServalNetworkStack;
 
 /**
@@ -41,21 +44,34 @@ public class ServalSocket {
 
     private volatile boolean isCreated = false;
 
-    private boolean isBound = false;
+    private volatile boolean isBound = false;
 
-    private boolean isConnected = false;
+    private volatile boolean isConnected = false;
 
-    private boolean isClosed = false;
+    // Close and shutdown bits of the state, each set once by an atomic
+    // transition rather than under a monitor that readers and writers
+    // would share
+    private static final int CLOSED = 1;
 
-    private boolean isInputShutdown = false;
+    private static final int INPUT_SHUTDOWN = 2;
 
-    private boolean isOutputShutdown = false;
+    private static final int OUTPUT_SHUTDOWN = 4;
+
+    private final AtomicInteger state = new AtomicInteger();
 
     private static class ConnectLock {
     }
 
     private Object connectLock = new ConnectLock();
 
+    private SocketChannel channel;
+
+    // The addresses last returned by getLocalSocketAddress() and
+    // getRemoteSocketAddress(), reused while they stay the same
+    private volatile ServalSocketAddress localSocketAddress;
+
+    private volatile ServalSocketAddress remoteSocketAddress;
+
     static final int MULTICAST_IF = 1;
 
     static final int MULTICAST_TTL = 2;
@@ -314,6 +330,16 @@ public class ServalSocket {
         impl = anImpl;
     }
 
+    /**
+     * Creates a socket for a channel, using the channel's already created
+     * socket implementation.
+     */
+    ServalSocket(ServalSocketImpl anImpl, SocketChannel channel) {
+        impl = anImpl;
+        this.channel = channel;
+        isCreated = true;
+    }
+
     /**
      * Checks whether the connection destination satisfies the security policy
      * and the validity of the port range.
@@ -352,11 +378,29 @@ public class ServalSocket {
      * @throws IOException
      *             if an error occurs while closing the socket.
      */
-    public synchronized void close() throws IOException {
-        isClosed = true;
+    public void close() throws IOException {
+        setState(CLOSED);
         impl.close();
     }
 
+    /**
+     * Sets a bit of the state.
+     *
+     * @return {@code false} if it was already set.
+     */
+    private boolean setState(int bit) {
+        while (true) {
+            int s = state.get();
+
+            if ((s & bit) != 0) {
+                return false;
+            }
+            if (state.compareAndSet(s, s | bit)) {
+                return true;
+            }
+        }
+    }
+
     /**
      * Gets the IP address of the target host this socket is connected to.
      *
@@ -401,6 +445,236 @@ public class ServalSocket {
                 .booleanValue();
     }
 
+    /**
+     * Reads data from this socket into the remaining space of the
+     * buffer {@code dst}, advancing its position by the number of bytes
+     * read. When {@code dst} is a direct buffer the data is received
+     * straight into its memory without any intermediate copy. This
+     * method blocks until at least one byte is available or the
+     * {@code SO_TIMEOUT} has expired.
+     *
+     * @param dst
+     *            the buffer to read into.
+     * @return the number of bytes read or {@code -1} if the end of the
+     *         stream has been reached.
+     * @throws IOException
+     *             if an error occurs while reading or the socket is in an
+     *             invalid state.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        checkClosedAndCreate(false);
+        if (isInputShutdown()) {
+            return -1;
+        }
+        return getPlainImpl().read(dst);
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer {@code src} to this
+     * socket, advancing its position accordingly. When {@code src} is a
+     * direct buffer the data is sent straight from its memory without
+     * any intermediate copy.
+     *
+     * @param src
+     *            the buffer to write.
+     * @return the number of bytes written.
+     * @throws IOException
+     *             if an error occurs while writing or the socket is in an
+     *             invalid state.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        checkClosedAndCreate(false);
+        if (isOutputShutdown()) {
+            throw new SocketException("Output is shut down!");
+        }
+        ServalPlainSocketImpl plainImpl = getPlainImpl();
+        int total = 0;
+
+        while (src.hasRemaining()) {
+            total += plainImpl.write(src);
+        }
+        return total;
+    }
+
+    /**
+     * Reads data from this socket into the buffers {@code dsts}, filling
+     * them in order with a single system call. Direct and heap buffers
+     * are both filled in place. This method blocks until at least one
+     * byte is available or the {@code SO_TIMEOUT} has expired.
+     *
+     * @param dsts
+     *            the buffers to read into.
+     * @param offset
+     *            the index of the first buffer to read into.
+     * @param length
+     *            the number of buffers to use.
+     * @return the number of bytes read or {@code -1} if the end of the
+     *         stream has been reached.
+     * @throws IOException
+     *             if an error occurs while reading or the socket is in an
+     *             invalid state.
+     */
+    public long read(ByteBuffer[] dsts, int offset, int length)
+        throws IOException {
+        if (offset < 0 || length < 0 || offset > dsts.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkClosedAndCreate(false);
+        if (isInputShutdown()) {
+            return -1;
+        }
+        return getPlainImpl().read(dsts, offset, length);
+    }
+
+    /**
+     * Reads data from this socket into all of the buffers {@code dsts},
+     * like {@code read(dsts, 0, dsts.length)}.
+     */
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    /**
+     * Writes all remaining bytes of the buffers {@code srcs} to this
+     * socket in order, advancing their positions accordingly. The
+     * buffers are gathered by the kernel, so that, e.g., a message
+     * header and its payload are sent with a single system call and
+     * without being copied into a common buffer.
+     *
+     * @param srcs
+     *            the buffers to write.
+     * @param offset
+     *            the index of the first buffer to write.
+     * @param length
+     *            the number of buffers to write.
+     * @return the number of bytes written.
+     * @throws IOException
+     *             if an error occurs while writing or the socket is in an
+     *             invalid state.
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException {
+        if (offset < 0 || length < 0 || offset > srcs.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkClosedAndCreate(false);
+        if (isOutputShutdown()) {
+            throw new SocketException("Output is shut down!");
+        }
+        return getPlainImpl().write(srcs, offset, length);
+    }
+
+    /**
+     * Writes all of the buffers {@code srcs} to this socket, like
+     * {@code write(srcs, 0, srcs.length)}.
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Turns on write coalescing for the output stream of this socket, so
+     * that many small writes, such as those of {@code write(int)}, go
+     * out as a few large sends rather than one system call each. Writes
+     * of less than {@code threshold} bytes are gathered in a reusable
+     * buffer, which is sent once full, when the stream is flushed, or
+     * {@code delay} milliseconds after its first byte was written. The
+     * other writes of this socket send the gathered bytes first, so the
+     * order of the data is kept. Closing the socket sends the gathered
+     * bytes that fit the send buffer, unless a writer is blocked on the
+     * socket; flush the stream first to be sure they are all sent.
+     *
+     * @param threshold
+     *            the size of the buffer in bytes, or {@code 0} to turn
+     *            coalescing off.
+     * @param delay
+     *            the maximum time in milliseconds a byte is held back,
+     *            or {@code 0} to hold it until the buffer is full or
+     *            flushed.
+     * @param cork
+     *            whether the stack should also hold back partial
+     *            segments until the stream is flushed, with TCP_CORK.
+     * @throws IOException
+     *             if an error occurs while sending the gathered bytes or
+     *             setting the option, or this is a channel socket.
+     */
+    public void setWriteCoalescing(int threshold, int delay, boolean cork)
+        throws IOException {
+        checkClosedAndCreate(true);
+        if (channel != null) {
+            throw new SocketException("Not supported by channel sockets");
+        }
+        getPlainImpl().setWriteCoalescing(threshold, delay, cork);
+    }
+
+    /**
+     * Sends up to {@code count} bytes of the file {@code src}, starting
+     * at {@code position}, to this socket. The data is moved with
+     * sendfile within the kernel, without passing through the Java
+     * heap, provided that the descriptor of {@code src} is accessible,
+     * which on Java 9 and later takes running with {@code --add-opens
+     * java.base/sun.nio.ch=ALL-UNNAMED}. Otherwise it is copied
+     * through a buffer. The position of {@code src} is not changed.
+     *
+     * @param src
+     *            the file to send.
+     * @param position
+     *            the position in the file of the first byte to send.
+     * @param count
+     *            the maximum number of bytes to send.
+     * @return the number of bytes sent, which is less than {@code
+     *         count} only if the end of the file was reached.
+     * @throws IOException
+     *             if an error occurs while sending or the socket is in an
+     *             invalid state.
+     */
+    public long transferFrom(FileChannel src, long position, long count)
+        throws IOException {
+        checkClosedAndCreate(false);
+        if (isOutputShutdown()) {
+            throw new SocketException("Output is shut down!");
+        }
+        return getPlainImpl().transferFrom(src, position, count);
+    }
+
+    /**
+     * Forwards up to {@code count} bytes received by this socket to the
+     * socket {@code target}. The data is spliced from one socket to the
+     * other through a pipe within the kernel, without passing through
+     * the Java heap. This method blocks until {@code count} bytes have
+     * been forwarded, the end of the stream has been reached or the
+     * {@code SO_TIMEOUT} of this socket has expired.
+     *
+     * @param target
+     *            the socket to forward the data to.
+     * @param count
+     *            the maximum number of bytes to forward.
+     * @return the number of bytes forwarded, or {@code -1} if the end of
+     *         the stream was reached before any data.
+     * @throws IOException
+     *             if an error occurs while forwarding or either socket is
+     *             in an invalid state.
+     */
+    public long transferTo(ServalSocket target, long count)
+        throws IOException {
+        checkClosedAndCreate(false);
+        target.checkClosedAndCreate(false);
+        if (isInputShutdown()) {
+            return -1;
+        }
+        if (target.isOutputShutdown()) {
+            throw new SocketException("Output is shut down!");
+        }
+        return getPlainImpl().transferTo(target.getPlainImpl(), count);
+    }
+
+    private ServalPlainSocketImpl getPlainImpl() throws SocketException {
+        if (!(impl instanceof ServalPlainSocketImpl)) {
+            throw new SocketException("Socket implementation does not support buffers");
+        }
+        return (ServalPlainSocketImpl) impl;
+    }
+
     /**
      * Gets the local IP address this socket is bound to.
      *
@@ -428,7 +702,17 @@ public class ServalSocket {
         if (!isBound()) {
             return null;
         }
-        return impl.getLocalServiceID();
+        ServiceID serviceID = impl.getLocalServiceID();
+
+        // An accepted socket learns the serviceID its peer connected
+        // to, which may be longer than the prefix its server bound,
+        // from the stack
+        if (serviceID == null) {
+            serviceID = ServalNetworkStack.getInstance()
+                .getSocketLocalServiceID(impl.fd);
+            impl.localServiceID = serviceID;
+        }
+        return serviceID;
     }
 
     /**
@@ -482,7 +766,7 @@ public class ServalSocket {
      *             if an error occurs while reading the socket option.
      * @see SocketOptions#SO_RCVBUF
      */
-    public synchronized int getReceiveBufferSize() throws SocketException {
+    public int getReceiveBufferSize() throws SocketException {
         checkClosedAndCreate(true);
         return ((Integer) impl.getOption(SocketOptions.SO_RCVBUF)).intValue();
     }
@@ -495,7 +779,7 @@ public class ServalSocket {
      *             if an error occurs while reading the socket option.
      * @see SocketOptions#SO_SNDBUF
      */
-    public synchronized int getSendBufferSize() throws SocketException {
+    public int getSendBufferSize() throws SocketException {
         checkClosedAndCreate(true);
         return ((Integer) impl.getOption(SocketOptions.SO_SNDBUF)).intValue();
     }
@@ -510,8 +794,12 @@ public class ServalSocket {
      *             if an error occurs while reading the socket option.
      * @see SocketOptions#SO_TIMEOUT
      */
-    public synchronized int getSoTimeout() throws SocketException {
+    public int getSoTimeout() throws SocketException {
         checkClosedAndCreate(true);
+        if (impl instanceof ServalPlainSocketImpl) {
+            // Without boxing the value
+            return ((ServalPlainSocketImpl) impl).receiveTimeout;
+        }
         return ((Integer) impl.getOption(SocketOptions.SO_TIMEOUT)).intValue();
     }
 
@@ -579,7 +867,7 @@ public class ServalSocket {
      *             is an invalid size.
      * @see SocketOptions#SO_SNDBUF
      */
-    public synchronized void setSendBufferSize(int size) throws SocketException {
+    public void setSendBufferSize(int size) throws SocketException {
         checkClosedAndCreate(true);
         if (size < 1) {
             throw new IllegalArgumentException("bad size");
@@ -598,7 +886,7 @@ public class ServalSocket {
      *             is an invalid size.
      * @see SocketOptions#SO_RCVBUF
      */
-    public synchronized void setReceiveBufferSize(int size)
+    public void setReceiveBufferSize(int size)
             throws SocketException {
         checkClosedAndCreate(true);
         if (size < 1) {
@@ -654,11 +942,15 @@ public class ServalSocket {
      *             if an error occurs while setting the option.
      * @see SocketOptions#SO_TIMEOUT
      */
-    public synchronized void setSoTimeout(int timeout) throws SocketException {
+    public void setSoTimeout(int timeout) throws SocketException {
         checkClosedAndCreate(true);
         if (timeout < 0) {
             throw new IllegalArgumentException("negative timeout");
         }
+        if (impl instanceof ServalPlainSocketImpl) {
+            ((ServalPlainSocketImpl) impl).receiveTimeout = timeout;
+            return;
+        }
         impl.setOption(SocketOptions.SO_TIMEOUT, Integer.valueOf(timeout));
     }
 
@@ -746,8 +1038,10 @@ public class ServalSocket {
             throw new SocketException("Input is shut down"); //$NON-NLS-1$
         }
         checkClosedAndCreate(false);
+        if (!setState(INPUT_SHUTDOWN)) {
+            throw new SocketException("Input is shut down"); //$NON-NLS-1$
+        }
         impl.shutdownInput();
-        isInputShutdown = true;
     }
 
     /**
@@ -765,8 +1059,10 @@ public class ServalSocket {
             throw new SocketException("Output is shut down");
         }
         checkClosedAndCreate(false);
+        if (!setState(OUTPUT_SHUTDOWN)) {
+            throw new SocketException("Output is shut down");
+        }
         impl.shutdownOutput();
-        isOutputShutdown = true;
     }
 
     /**
@@ -821,7 +1117,15 @@ public class ServalSocket {
         if (!isBound()) {
             return null;
         }
-        return new ServalSocketAddress(getLocalServiceID(), getLocalAddress());
+        ServalSocketAddress addr = localSocketAddress;
+        ServiceID serviceID = getLocalServiceID();
+        InetAddress inetAddr = getLocalAddress();
+
+        if (!isSame(addr, serviceID, inetAddr)) {
+            addr = new ServalSocketAddress(serviceID, inetAddr);
+            localSocketAddress = addr;
+        }
+        return addr;
     }
 
     /**
@@ -834,7 +1138,28 @@ public class ServalSocket {
         if (!isConnected()) {
             return null;
         }
-        return new ServalSocketAddress(getServiceID(), getInetAddress());
+        ServalSocketAddress addr = remoteSocketAddress;
+        ServiceID serviceID = getServiceID();
+        InetAddress inetAddr = getInetAddress();
+
+        if (!isSame(addr, serviceID, inetAddr)) {
+            addr = new ServalSocketAddress(serviceID, inetAddr);
+            remoteSocketAddress = addr;
+        }
+        return addr;
+    }
+
+    // Whether a returned address can be returned again, which it cannot
+    // once the caller has set its prefix bits
+    private static boolean isSame(ServalSocketAddress addr,
+                                  ServiceID serviceID, InetAddress inetAddr) {
+        return addr != null && addr.getPrefixBits() == 0
+            && equal(addr.getServiceID(), serviceID)
+            && equal(addr.getAddress(), inetAddr);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
@@ -862,7 +1187,7 @@ public class ServalSocket {
      * @return {@code true} if the socket is closed, {@code false} otherwise.
      */
     public boolean isClosed() {
-        return isClosed;
+        return (state.get() & CLOSED) != 0;
     }
 
     /**
@@ -1034,7 +1359,7 @@ public class ServalSocket {
      *         {@code false} otherwise.
      */
     public boolean isInputShutdown() {
-        return isInputShutdown;
+        return (state.get() & INPUT_SHUTDOWN) != 0;
     }
 
     /**
@@ -1045,7 +1370,7 @@ public class ServalSocket {
      *         {@code false} otherwise.
      */
     public boolean isOutputShutdown() {
-        return isOutputShutdown;
+        return (state.get() & OUTPUT_SHUTDOWN) != 0;
     }
 
     /**
@@ -1170,13 +1495,13 @@ public class ServalSocket {
     }
 
     /**
-     * Gets the SocketChannel of this socket, if one is available. The current
-     * implementation of this method returns always {@code null}.
+     * Gets the SocketChannel of this socket, if one is available. Only
+     * sockets obtained from a {@link ServalSocketChannel} have a channel.
      *
      * @return the related SocketChannel or {@code null} if no channel exists.
      */
     public SocketChannel getChannel() {
-        return null;
+        return channel;
     }
 
     /**
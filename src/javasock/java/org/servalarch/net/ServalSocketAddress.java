@@ -64,4 +64,27 @@ public class ServalSocketAddress extends SocketAddress {
     public String getHostName() {
         return "getHostName not implemented";
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServalSocketAddress)) {
+            return false;
+        }
+        ServalSocketAddress other = (ServalSocketAddress) o;
+        return prefix_bits == other.prefix_bits
+            && (serviceID == null ? other.serviceID == null
+                : serviceID.equals(other.serviceID))
+            && (address == null ? other.address == null
+                : address.equals(other.address));
+    }
+
+    @Override
+    public int hashCode() {
+        int h = serviceID != null ? serviceID.hashCode() : 0;
+        h = 31 * h + (address != null ? address.hashCode() : 0);
+        return 31 * h + prefix_bits;
+    }
 }
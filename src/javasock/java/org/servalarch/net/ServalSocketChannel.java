@@ -0,0 +1,694 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ConnectionPendingException;
+import java.nio.channels.NoConnectionPendingException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * A selectable channel for Serval stream sockets. The channel operates
+ * directly on the AF_SERVAL file descriptor of its {@code
+ * ServalPlainSocketImpl}, so it supports non-blocking connect, read and
+ * write. In blocking mode, connects, and reads and writes of direct
+ * buffers, are run as requests on the {@link ServalRing} of a {@link
+ * ServalPoller} where io_uring is available.
+ * <p>
+ * Since a Serval socket is not a {@code java.net.Socket}, {@link
+ * #socket()} is not supported; use {@link #servalSocket()} instead.
+ *
+ * @see ServalSelectorProvider
+ */
+public class ServalSocketChannel extends SocketChannel {
+
+    private static final int ST_UNCONNECTED = 0;
+
+    private static final int ST_PENDING = 1;
+
+    private static final int ST_CONNECTED = 2;
+
+    private final ServalNetworkStack netImpl = ServalNetworkStack.getInstance();
+
+    final ServalPlainSocketImpl impl;
+
+    private final ServalSocket socket;
+
+    // Lock held by the current reading thread
+    private final Object readLock = new Object();
+
+    // Lock held by the current writing thread
+    private final Object writeLock = new Object();
+
+    // Lock protecting the connection state
+    private final Object stateLock = new Object();
+
+    private volatile int state = ST_UNCONNECTED;
+
+    private ServalSocketAddress remoteAddress;
+
+    // The socket address of a connect request on the ring, made on
+    // the first one; guarded by stateLock
+    private ByteBuffer sockaddr = null;
+
+    private volatile boolean isInputShutdown = false;
+
+    private volatile boolean isOutputShutdown = false;
+
+    /**
+     * Creates an unconnected channel with a new Serval stream socket.
+     */
+    protected ServalSocketChannel(SelectorProvider provider) throws IOException {
+        super(provider);
+        impl = new ServalPlainSocketImpl();
+        impl.create(true);
+        socket = new ServalSocket(impl, this);
+    }
+
+    /**
+     * Creates a connected channel for a socket returned by accept.
+     */
+    ServalSocketChannel(SelectorProvider provider, ServalPlainSocketImpl impl) {
+        super(provider);
+        this.impl = impl;
+        socket = new ServalSocket(impl, this);
+        socket.accepted();
+        state = ST_CONNECTED;
+    }
+
+    /**
+     * Opens an unconnected Serval socket channel.
+     */
+    public static ServalSocketChannel open() throws IOException {
+        return ServalSelectorProvider.provider().openSocketChannel();
+    }
+
+    /**
+     * Opens a Serval socket channel and connects it to {@code remote}.
+     */
+    public static ServalSocketChannel open(SocketAddress remote)
+        throws IOException {
+        ServalSocketChannel channel = open();
+        try {
+            channel.connect(remote);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Not supported, a Serval socket cannot be represented as a {@code
+     * java.net.Socket}.
+     *
+     * @throws UnsupportedOperationException always.
+     * @see #servalSocket()
+     */
+    @Override
+    public Socket socket() {
+        throw new UnsupportedOperationException("Use servalSocket()");
+    }
+
+    /**
+     * Returns the Serval socket associated with this channel.
+     */
+    public ServalSocket servalSocket() {
+        return socket;
+    }
+
+    FileDescriptor getFD() {
+        return impl.getFD();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static ServalSocketAddress checkAddress(SocketAddress sa) {
+        if (sa == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!(sa instanceof ServalSocketAddress)) {
+            throw new UnsupportedAddressTypeException();
+        }
+        ServalSocketAddress ssa = (ServalSocketAddress) sa;
+        if (ssa.getServiceID() == null) {
+            throw new UnresolvedAddressException();
+        }
+        return ssa;
+    }
+
+    @Override
+    public ServalSocketChannel bind(SocketAddress local) throws IOException {
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                synchronized (stateLock) {
+                    ensureOpen();
+                    if (state == ST_PENDING) {
+                        throw new ConnectionPendingException();
+                    }
+                    socket.bind(local);
+                }
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public <T> ServalSocketChannel setOption(SocketOption<T> name, T value)
+        throws IOException {
+        int optID = ServalChannelOptions.optionID(supportedOptions(), name, value);
+
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid value 'null'");
+        }
+        synchronized (stateLock) {
+            ensureOpen();
+            impl.setOption(optID, value);
+        }
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        int optID = ServalChannelOptions.optionID(supportedOptions(), name, null);
+
+        synchronized (stateLock) {
+            ensureOpen();
+            return ServalChannelOptions.value(name, impl.getOption(optID));
+        }
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return ServalChannelOptions.STREAM_OPTIONS;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return state == ST_CONNECTED;
+    }
+
+    @Override
+    public boolean isConnectionPending() {
+        return state == ST_PENDING;
+    }
+
+    /**
+     * Connects this channel to a remote service. In non-blocking mode
+     * the connection is only initiated and has to be completed with
+     * {@link #finishConnect()}.
+     *
+     * @param remote
+     *            the {@code ServalSocketAddress} of the remote service.
+     * @return {@code true} if the connection was established.
+     */
+    @Override
+    public boolean connect(SocketAddress remote) throws IOException {
+        ServalSocketAddress ssa = checkAddress(remote);
+
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                synchronized (stateLock) {
+                    ensureOpen();
+                    if (state == ST_CONNECTED) {
+                        throw new AlreadyConnectedException();
+                    }
+                    if (state == ST_PENDING) {
+                        throw new ConnectionPendingException();
+                    }
+                    boolean connected = false;
+                    try {
+                        begin();
+                        if (isBlocking()
+                            && ServalPoller.hasRing(ServalPoller.EPOLLOUT)) {
+                            connected = ringConnect(ssa);
+                        } else {
+                            connected = netImpl.startConnect(getFD(),
+                                                             ssa.getServiceID(),
+                                                             ssa.getAddress());
+                            if (!connected && isBlocking()) {
+                                connected = awaitConnect();
+                            }
+                        }
+                    } catch (IOException e) {
+                        close();
+                        throw e;
+                    } finally {
+                        end(connected);
+                    }
+                    remoteAddress = ssa;
+                    if (connected) {
+                        setConnected();
+                    } else {
+                        state = ST_PENDING;
+                    }
+                    return connected;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                synchronized (stateLock) {
+                    ensureOpen();
+                    if (state == ST_CONNECTED) {
+                        return true;
+                    }
+                    if (state != ST_PENDING) {
+                        throw new NoConnectionPendingException();
+                    }
+                    boolean connected = false;
+                    try {
+                        begin();
+                        connected = netImpl.finishConnect(getFD(), 0);
+                        if (!connected && isBlocking()) {
+                            connected = awaitConnect();
+                        }
+                    } catch (IOException e) {
+                        close();
+                        throw e;
+                    } finally {
+                        end(connected);
+                    }
+                    if (connected) {
+                        setConnected();
+                    }
+                    return connected;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a pending connection in blocking mode.
+     */
+    private boolean awaitConnect() throws IOException {
+        while (isOpen()) {
+            park(ServalPoller.EPOLLOUT);
+            if (netImpl.finishConnect(getFD(), 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Connects in blocking mode with a connect request on the ring of
+     * the write poller, which completes once the connection is
+     * established, rather than parking until the socket is writable and
+     * then checking for an error. Falls back to the latter if the
+     * request did not establish the connection.
+     */
+    private boolean ringConnect(ServalSocketAddress ssa) throws IOException {
+        if (sockaddr == null) {
+            sockaddr = ByteBuffer.allocateDirect(
+                ServalNetworkStack.SOCKADDR_SIZE);
+        }
+        int res = execute(ServalPoller.EPOLLOUT,
+                          ServalRing.Request.connect(ssa, sockaddr));
+
+        if (res == ServalRing.CANCELED) {
+            // The connection may not even have been initiated
+            return isOpen() && (netImpl.startConnect(getFD(),
+                                                     ssa.getServiceID(),
+                                                     ssa.getAddress())
+                                || awaitConnect());
+        }
+        return netImpl.uringResult(res, true) == 0 || awaitConnect();
+    }
+
+    /**
+     * Parks the current thread until the socket is ready for {@code
+     * event}, or the channel is closed or the thread interrupted.
+     */
+    private void park(int event) throws IOException {
+        impl.threads.add();
+        try {
+            impl.threads.park(getFD(), event, 0, null);
+        } finally {
+            impl.threads.remove();
+        }
+    }
+
+    /**
+     * Runs {@code req} on the ring of the poller for {@code event},
+     * waiting like {@link #park}.
+     *
+     * @return the result of the request, or {@link ServalRing#CANCELED}.
+     */
+    private int execute(int event, ServalRing.Request req)
+        throws IOException {
+        impl.threads.add();
+        try {
+            return impl.threads.execute(getFD(), event, req, 0, null);
+        } finally {
+            impl.threads.remove();
+        }
+    }
+
+    /**
+     * Waits for data in blocking mode and reads it into {@code dst}. A
+     * direct buffer is filled by a receive request on the ring of the
+     * read poller if it has one, which completes once data has arrived,
+     * instead of parking until the socket is readable and reading again.
+     *
+     * @return like {@link ServalNetworkStack#readNonBlocking}.
+     */
+    private int awaitRead(ByteBuffer dst) throws IOException {
+        if (dst.isDirect() && ServalPoller.hasRing(ServalPoller.EPOLLIN)) {
+            int pos = dst.position();
+            int n = execute(ServalPoller.EPOLLIN,
+                            ServalRing.Request.recv(dst));
+
+            if (n == ServalRing.CANCELED) {
+                return ServalNetworkStack.UNAVAILABLE;
+            }
+            n = netImpl.uringResult(n, false);
+            if (n == 0) {
+                return -1;
+            } else if (n > 0) {
+                dst.position(pos + n);
+                return n;
+            }
+            // The kernel did not wait on the non-blocking socket
+        }
+        park(ServalPoller.EPOLLIN);
+        return netImpl.readNonBlocking(getFD(), dst);
+    }
+
+    /**
+     * Waits in blocking mode until some of {@code src} can be written.
+     * Like {@link #awaitRead}, a direct buffer is sent by a request on
+     * the ring of the write poller if it has one.
+     *
+     * @return the number of bytes written meanwhile.
+     */
+    private int awaitWrite(ByteBuffer src) throws IOException {
+        if (src.isDirect() && ServalPoller.hasRing(ServalPoller.EPOLLOUT)) {
+            int pos = src.position();
+            int n = execute(ServalPoller.EPOLLOUT,
+                            ServalRing.Request.send(src));
+
+            if (n == ServalRing.CANCELED) {
+                return 0;
+            }
+            n = netImpl.uringResult(n, false);
+            if (n >= 0) {
+                src.position(pos + n);
+                return n;
+            }
+        }
+        park(ServalPoller.EPOLLOUT);
+        return 0;
+    }
+
+    private void setConnected() {
+        impl.remoteServiceID = remoteAddress.getServiceID();
+        impl.address = remoteAddress.getAddress();
+        socket.accepted();
+        state = ST_CONNECTED;
+    }
+
+    @Override
+    public ServalSocketChannel shutdownInput() throws IOException {
+        synchronized (stateLock) {
+            ensureOpen();
+            if (!isConnected()) {
+                throw new NotYetConnectedException();
+            }
+            if (!isInputShutdown) {
+                impl.shutdownInput();
+                isInputShutdown = true;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public ServalSocketChannel shutdownOutput() throws IOException {
+        synchronized (stateLock) {
+            ensureOpen();
+            if (!isConnected()) {
+                throw new NotYetConnectedException();
+            }
+            if (!isOutputShutdown) {
+                impl.shutdownOutput();
+                isOutputShutdown = true;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        synchronized (stateLock) {
+            ensureOpen();
+            return remoteAddress;
+        }
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        synchronized (stateLock) {
+            ensureOpen();
+            return socket.getLocalSocketAddress();
+        }
+    }
+
+    private void ensureReadOpen() throws ClosedChannelException {
+        ensureOpen();
+        if (!isConnected()) {
+            throw new NotYetConnectedException();
+        }
+    }
+
+    private void ensureWriteOpen() throws IOException {
+        ensureOpen();
+        if (isOutputShutdown) {
+            throw new ClosedChannelException();
+        }
+        if (!isConnected()) {
+            throw new NotYetConnectedException();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (dst == null) {
+            throw new NullPointerException();
+        }
+        synchronized (readLock) {
+            ensureReadOpen();
+            if (isInputShutdown) {
+                return -1;
+            }
+            int n = 0;
+            try {
+                begin();
+                n = netImpl.readNonBlocking(getFD(), dst);
+                while (n == ServalNetworkStack.UNAVAILABLE && isBlocking()
+                       && isOpen()) {
+                    n = awaitRead(dst);
+                }
+                if (n == ServalNetworkStack.UNAVAILABLE) {
+                    n = 0;
+                } else if (n < 0) {
+                    isInputShutdown = true;
+                }
+            } finally {
+                end(n > 0);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Reads into the buffers in order with a single system call.
+     */
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length)
+        throws IOException {
+        if (offset < 0 || length < 0 || offset > dsts.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        synchronized (readLock) {
+            ensureReadOpen();
+            if (isInputShutdown) {
+                return -1;
+            }
+            long n = 0;
+            try {
+                begin();
+                n = netImpl.readNonBlocking(getFD(), dsts, offset, length);
+                while (n == ServalNetworkStack.UNAVAILABLE && isBlocking()
+                       && isOpen()) {
+                    park(ServalPoller.EPOLLIN);
+                    n = netImpl.readNonBlocking(getFD(), dsts, offset, length);
+                }
+                if (n == ServalNetworkStack.UNAVAILABLE) {
+                    n = 0;
+                } else if (n < 0) {
+                    isInputShutdown = true;
+                }
+            } finally {
+                end(n > 0);
+            }
+            return n;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (src == null) {
+            throw new NullPointerException();
+        }
+        synchronized (writeLock) {
+            ensureWriteOpen();
+            int total = 0;
+            try {
+                begin();
+                do {
+                    int n = netImpl.write(getFD(), src);
+                    if (n == 0) {
+                        if (!isBlocking() || !isOpen()) {
+                            break;
+                        }
+                        n = awaitWrite(src);
+                    }
+                    total += n;
+                } while (isBlocking() && src.hasRemaining());
+            } finally {
+                end(total > 0);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Writes the buffers in order, as many of them as possible with
+     * each system call, so that a header and a payload go out together.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException {
+        if (offset < 0 || length < 0 || offset > srcs.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        synchronized (writeLock) {
+            ensureWriteOpen();
+            long total = 0;
+            try {
+                begin();
+                while (hasRemaining(srcs, offset, length)) {
+                    long n = netImpl.write(getFD(), srcs, offset, length);
+                    if (n == 0) {
+                        if (!isBlocking() || !isOpen()) {
+                            break;
+                        }
+                        park(ServalPoller.EPOLLOUT);
+                    }
+                    total += n;
+                    if (!isBlocking()) {
+                        break;
+                    }
+                }
+            } finally {
+                end(total > 0);
+            }
+            return total;
+        }
+    }
+
+    static boolean hasRemaining(ByteBuffer[] bufs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bufs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The descriptor is non-blocking in either mode, blocking
+     * operations park on a {@link ServalPoller} instead.
+     */
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException {
+        // Nothing to do
+    }
+
+    /**
+     * Closes the channel. While the channel is registered with a
+     * selector, the descriptor is only shut down to wake up blocked
+     * threads; the selector closes it through {@link #kill()} once the
+     * channel has been deregistered, so that the descriptor cannot be
+     * reused while still in the selector's epoll set.
+     */
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+        synchronized (stateLock) {
+            if (isRegistered()) {
+                preClose();
+            } else {
+                socket.close();
+            }
+        }
+    }
+
+    private void preClose() {
+        try {
+            netImpl.shutdownInput(getFD());
+        } catch (IOException e) {
+            // Not connected
+        }
+        try {
+            netImpl.shutdownOutput(getFD());
+        } catch (IOException e) {
+            // Not connected
+        }
+    }
+
+    /**
+     * Closes the descriptor of a channel closed while registered.
+     */
+    void kill() throws IOException {
+        synchronized (stateLock) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getClass().getName());
+        sb.append('[');
+        if (!isOpen()) {
+            sb.append("closed");
+        } else if (isConnectionPending()) {
+            sb.append("connection-pending remote=").append(remoteAddress);
+        } else if (isConnected()) {
+            sb.append("connected remote=").append(remoteAddress);
+        } else {
+            sb.append("unconnected");
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -55,9 +55,7 @@ class ServalSocketInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
-        byte[] buffer = new byte[1];
-        int result = socket.read(buffer, 0, 1);
-        return (-1 == result) ? result : buffer[0] & 0xFF;
+        return socket.read();
     }
 
     @Override
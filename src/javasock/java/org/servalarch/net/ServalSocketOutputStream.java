@@ -39,12 +39,21 @@ class ServalSocketOutputStream extends OutputStream {
 
     @Override
     public void close() throws IOException {
-        socket.close();
+        try {
+            socket.flush();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        socket.flush();
     }
 
     @Override
     public void write(byte[] buffer) throws IOException {
-        socket.write(buffer, 0, buffer.length);
+        socket.writeCoalesced(buffer, 0, buffer.length);
     }
 
     @Override
@@ -53,7 +62,7 @@ class ServalSocketOutputStream extends OutputStream {
         if (buffer != null) {
             if (0 <= offset && offset <= buffer.length && 0 <= count
                     && count <= buffer.length - offset) {
-                socket.write(buffer, offset, count);
+                socket.writeCoalesced(buffer, offset, count);
             } else {
                 throw new ArrayIndexOutOfBoundsException("Out of boundes");
             }
@@ -64,8 +73,6 @@ class ServalSocketOutputStream extends OutputStream {
 
     @Override
     public void write(int oneByte) throws IOException {
-        byte[] buffer = new byte[1];
-        buffer[0] = (byte) (oneByte & 0xFF);
-        socket.write(buffer, 0, 1);
+        socket.writeCoalesced(oneByte);
     }
 }
@@ -0,0 +1,247 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import org.servalarch.platform.ServalNetworkStack;
+
+/**
+ * The threads in a blocking operation on a Serval socket, which wait
+ * for the socket on a {@link ServalPoller}.
+ * <p>
+ * Closing the socket from another thread unparks them, so that they
+ * fail with a {@code SocketException} right away, and the descriptor
+ * is only closed when the last of them has left. Until then its number
+ * cannot be reused by a new socket, which would otherwise see the
+ * operations of the threads woken up. An interrupted thread stops
+ * waiting with an {@code InterruptedIOException}.
+ * <p>
+ * The set takes no lock, so that a reader and a writer on the same
+ * socket never wait for each other: the threads are counted in an
+ * atomic state word that also holds the closed bit, and only those
+ * parked on the poller are recorded in order to be unparked: the first
+ * one per event in a field of its own, any others, such as a thread
+ * receiving through a channel while another receives through its
+ * socket, in a set made when first needed.
+ */
+final class ServalThreadSet {
+
+    private final ServalNetworkStack netImpl = ServalNetworkStack.getInstance();
+
+    // Set once the socket is closed, above the count of threads
+    private static final int CLOSED = 1 << 31;
+
+    private final AtomicInteger state = new AtomicInteger();
+
+    // The threads parked for EPOLLIN and for EPOLLOUT
+    private final AtomicReference<Thread> reader =
+        new AtomicReference<Thread>();
+    private final AtomicReference<Thread> writer =
+        new AtomicReference<Thread>();
+
+    // The threads parked while another was recorded for their event
+    private final AtomicReference<Set<Thread>> others =
+        new AtomicReference<Set<Thread>>();
+
+    // The descriptor to close when the last thread leaves, written
+    // before the closed bit is set
+    private volatile FileDescriptor pendingClose = null;
+
+    /**
+     * Returns the {@link System#nanoTime()} deadline of an operation
+     * with a timeout in milliseconds, or 0 if {@code timeout} is not
+     * positive.
+     */
+    static long deadline(int timeout) {
+        return timeout > 0 ? System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+    }
+
+    /**
+     * Adds the current thread, which is about to start a blocking
+     * operation.
+     *
+     * @throws SocketException
+     *             if the socket is closed.
+     */
+    void add() throws SocketException {
+        while (true) {
+            int s = state.get();
+
+            if ((s & CLOSED) != 0) {
+                throw new SocketException("Socket closed");
+            }
+            if (state.compareAndSet(s, s + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the current thread once its operation is done, closing
+     * the descriptor if the socket was closed in the meantime and no
+     * other thread is left.
+     */
+    void remove() {
+        if (state.decrementAndGet() == CLOSED) {
+            FileDescriptor fd = pendingClose;
+
+            pendingClose = null;
+            ServalPoller.flush();
+            try {
+                netImpl.close(fd);
+            } catch (IOException e) {
+                // Nobody left to report it to
+            }
+        }
+    }
+
+    boolean isClosing() {
+        return (state.get() & CLOSED) != 0;
+    }
+
+    /**
+     * Marks the socket as closed and unparks the threads in blocking
+     * operations.
+     *
+     * @return {@code true} if the caller should close {@code fd} now,
+     *         {@code false} if the last thread to leave closes it, or
+     *         the socket was already closed.
+     */
+    boolean close(FileDescriptor fd) {
+        if (isClosing()) {
+            return false;
+        }
+        pendingClose = fd;
+        while (true) {
+            int s = state.get();
+
+            if ((s & CLOSED) != 0) {
+                return false;
+            }
+            if (state.compareAndSet(s, s | CLOSED)) {
+                if (s == 0) {
+                    pendingClose = null;
+                    ServalPoller.flush();
+                    return true;
+                }
+                break;
+            }
+        }
+        LockSupport.unpark(reader.get());
+        LockSupport.unpark(writer.get());
+        Set<Thread> extra = others.get();
+
+        if (extra != null) {
+            for (Thread t : extra) {
+                LockSupport.unpark(t);
+            }
+        }
+        return false;
+    }
+
+    private Set<Thread> others() {
+        Set<Thread> extra = others.get();
+
+        if (extra == null) {
+            others.compareAndSet(null, Collections.newSetFromMap(
+                new ConcurrentHashMap<Thread, Boolean>()));
+            extra = others.get();
+        }
+        return extra;
+    }
+
+    /**
+     * Parks the current thread until {@code fd} is ready for {@code
+     * event}. Returns early if the thread is unparked, so callers retry
+     * their operation afterwards.
+     *
+     * @param deadline
+     *            the {@link System#nanoTime()} at which to give up, or 0
+     *            to wait without limit.
+     * @throws SocketTimeoutException
+     *             if the deadline has passed.
+     * @throws SocketException
+     *             if the socket has been closed.
+     */
+    void park(FileDescriptor fd, int event, long deadline,
+              String timeoutMessage) throws IOException {
+        await(fd, event, null, deadline, timeoutMessage);
+    }
+
+    /**
+     * Runs {@code req} on the ring of the poller for {@code event}, see
+     * {@link ServalPoller#execute}, and waits for it like {@link #park}.
+     *
+     * @return the result of the request, {@link ServalRing#CANCELED} if
+     *         the thread was unparked before it could complete, so that
+     *         callers retry it.
+     * @throws SocketException
+     *             if the socket has been closed and the request did not
+     *             complete.
+     */
+    int execute(FileDescriptor fd, int event, ServalRing.Request req,
+                long deadline, String timeoutMessage) throws IOException {
+        return await(fd, event, req, deadline, timeoutMessage);
+    }
+
+    private int await(FileDescriptor fd, int event, ServalRing.Request req,
+                      long deadline, String timeoutMessage)
+        throws IOException {
+        int result = ServalRing.CANCELED;
+        long nanos = 0;
+
+        if (deadline != 0) {
+            nanos = deadline - System.nanoTime();
+            if (nanos <= 0) {
+                throw new SocketTimeoutException(timeoutMessage);
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting");
+        }
+        AtomicReference<Thread> parked =
+            event == ServalPoller.EPOLLIN ? reader : writer;
+        Thread self = Thread.currentThread();
+
+        // Recorded before the closed bit is checked, which close() sets
+        // before it looks for threads to unpark
+        boolean recorded = parked.compareAndSet(null, self);
+        Set<Thread> extra = null;
+
+        if (!recorded) {
+            extra = others();
+            extra.add(self);
+        }
+        try {
+            if (!isClosing()) {
+                if (req == null) {
+                    ServalPoller.park(fd, event, nanos);
+                } else {
+                    result = ServalPoller.execute(fd, event, req, nanos);
+                }
+            }
+        } finally {
+            if (recorded) {
+                parked.set(null);
+            } else {
+                extra.remove(self);
+            }
+        }
+        // Data the kernel already moved is not thrown away
+        if (result == ServalRing.CANCELED && isClosing()) {
+            throw new SocketException("Socket closed");
+        }
+        return result;
+    }
+}
@@ -1,68 +1,352 @@
 /* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
 package org.servalarch.net;
 
-public class ServiceID {
-    private byte[] identifier = null;
+/**
+ * A 256-bit Serval serviceID.
+ * <p>
+ * ServiceIDs are immutable values, kept as four 64-bit words in
+ * network (big-endian) order, so that equality, hashing, ordering and
+ * prefix comparisons take constant time and serviceIDs can be used as
+ * map keys without copying. Bit 0 of a serviceID is the most
+ * significant bit of its first byte, as for the prefix bits of a
+ * {@code ServalSocketAddress}.
+ */
+public final class ServiceID implements Comparable<ServiceID> {
     public static final int SERVICE_ID_MAX_BITS = 256;
     public static final int SERVICE_ID_MAX_LENGTH = 32;
-    private String idStr = null;
-    
+
+    private static final int WORDS = 4;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Read directly by the native code, keep in sync
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+    private final boolean valid;
+
+    // Computed on first use; racy but the string is immutable
+    private String idStr;
+
     public ServiceID() {
         // Creates an invalid serviceID
+        this(0, 0, 0, 0, false);
     }
     public ServiceID(byte[] id) {
-        if (id.length != SERVICE_ID_MAX_LENGTH) {
-            throw new IllegalArgumentException("Bad serviceID length");
-        }
-        this.identifier = id;
+        this(checkLength(id), 0);
     }
     /**
        Convenience function that allows one to create a serviceID
        based on a short integer (2 bytes).
      */
     public ServiceID(short id) {
-        this.identifier = new byte[SERVICE_ID_MAX_LENGTH];
-        this.identifier[0] = 0;
-        this.identifier[1] = 0;
-        this.identifier[2] = (byte)((id >> 8) & 0xff);
-        this.identifier[3] = (byte)((id) & 0xff);
+        this((long) (id & 0xffff) << 32, 0, 0, 0, true);
     }
     /*
        Convenience function that allows one to create a serviceID
        based on a integer (4 bytes).
      */
     public ServiceID(int id) {
-        this.identifier = new byte[SERVICE_ID_MAX_LENGTH];
-        this.identifier[0] = (byte)((id >> 24) & 0xff);
-        this.identifier[1] = (byte)((id >> 16) & 0xff);
-        this.identifier[2] = (byte)((id >> 8) & 0xff);
-        this.identifier[3] = (byte)((id) & 0xff);
+        this((long) id << 32, 0, 0, 0, true);
+    }
+
+    private ServiceID(byte[] id, int off) {
+        this(word(id, off), word(id, off + 8), word(id, off + 16),
+             word(id, off + 24), true);
+    }
+
+    private ServiceID(long w0, long w1, long w2, long w3, boolean valid) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.valid = valid;
+    }
+
+    private static byte[] checkLength(byte[] id) {
+        if (id.length != SERVICE_ID_MAX_LENGTH) {
+            throw new IllegalArgumentException("Bad serviceID length");
+        }
+        return id;
+    }
+
+    private static long word(byte[] b, int off) {
+        long w = 0;
+
+        for (int i = 0; i < 8; i++) {
+            w = (w << 8) | (b[off + i] & 0xff);
+        }
+        return w;
     }
-    
+
+    /**
+     * Returns the serviceID in the 32 bytes of {@code id} starting at
+     * {@code off}, the interned instance if one is cached.
+     */
+    public static ServiceID valueOf(byte[] id, int off) {
+        if (off < 0 || off > id.length - SERVICE_ID_MAX_LENGTH) {
+            throw new IndexOutOfBoundsException();
+        }
+        long w0 = word(id, off);
+        long w1 = word(id, off + 8);
+        long w2 = word(id, off + 16);
+        long w3 = word(id, off + 24);
+        int slot = Interned.slot(hash(w0, w1, w2, w3));
+        ServiceID s = Interned.cache[slot];
+
+        if (s != null && s.equalWords(w0, w1, w2, w3)) {
+            return s;
+        }
+        s = new ServiceID(w0, w1, w2, w3, true);
+        Interned.cache[slot] = s;
+        return s;
+    }
+
+    /**
+     * Parses a serviceID in the hexadecimal form returned by
+     * {@link #toString()}. Fewer than 64 digits give the leading part
+     * of the serviceID, the remaining bits being zero.
+     *
+     * @throws NumberFormatException if {@code s} is empty, longer than
+     *         64 digits or not hexadecimal.
+     */
+    public static ServiceID parse(CharSequence s) {
+        int n = s.length();
+
+        if (n == 0 || n > SERVICE_ID_MAX_LENGTH * 2) {
+            throw new NumberFormatException("Bad serviceID length: " + s);
+        }
+        long[] w = new long[WORDS];
+
+        for (int i = 0; i < n; i++) {
+            int d = Character.digit(s.charAt(i), 16);
+
+            if (d < 0) {
+                throw new NumberFormatException("Bad serviceID: " + s);
+            }
+            w[i >> 4] |= (long) d << (60 - ((i & 15) << 2));
+        }
+        return new ServiceID(w[0], w[1], w[2], w[3], true);
+    }
+
+    /**
+     * Returns a canonical instance equal to this serviceID. Interning
+     * is best effort: the cache is bounded and instances may be
+     * evicted, so interned serviceIDs must still be compared with
+     * {@link #equals(Object)}.
+     */
+    public ServiceID intern() {
+        if (!valid) {
+            return this;
+        }
+        int slot = Interned.slot(hashCode());
+        ServiceID s = Interned.cache[slot];
+
+        if (s != null && s.equalWords(w0, w1, w2, w3)) {
+            return s;
+        }
+        Interned.cache[slot] = this;
+        return this;
+    }
+
+    /**
+     * Returns a copy of the identifier, or {@code null} if the
+     * serviceID is invalid.
+     */
     public byte[] getID() {
-        return identifier;
+        if (!valid) {
+            return null;
+        }
+        byte[] id = new byte[SERVICE_ID_MAX_LENGTH];
+
+        getID(id, 0);
+        return id;
+    }
+
+    /**
+     * Copies the identifier to the 32 bytes of {@code dst} starting
+     * at {@code off}; an invalid serviceID copies all zeros.
+     */
+    public void getID(byte[] dst, int off) {
+        if (off < 0 || off > dst.length - SERVICE_ID_MAX_LENGTH) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = 0; i < WORDS; i++) {
+            long w = getWord(i);
+
+            for (int j = 7; j >= 0; j--) {
+                dst[off + j] = (byte) w;
+                w >>>= 8;
+            }
+            off += 8;
+        }
+    }
+
+    /**
+     * Returns the 64-bit word {@code i} (0 to 3) of the identifier in
+     * network order, word 0 holding its first 8 bytes.
+     */
+    public long getWord(int i) {
+        switch (i) {
+        case 0:
+            return w0;
+        case 1:
+            return w1;
+        case 2:
+            return w2;
+        case 3:
+            return w3;
+        default:
+            throw new IndexOutOfBoundsException("word " + i);
+        }
+    }
+
+    /**
+     * Returns bit {@code i} (0 to 255) of the identifier.
+     */
+    public int getBit(int i) {
+        if (i < 0 || i >= SERVICE_ID_MAX_BITS) {
+            throw new IndexOutOfBoundsException("bit " + i);
+        }
+        return (int) (getWord(i >> 6) >>> (63 - (i & 63))) & 1;
+    }
+
+    /**
+     * Returns whether the 32 bytes of {@code id} starting at
+     * {@code off} hold this serviceID.
+     */
+    public boolean equals(byte[] id, int off) {
+        if (off < 0 || off > id.length - SERVICE_ID_MAX_LENGTH) {
+            throw new IndexOutOfBoundsException();
+        }
+        return valid && equalWords(word(id, off), word(id, off + 8),
+                                   word(id, off + 16), word(id, off + 24));
+    }
+
+    /**
+     * Returns whether the first {@code bits} bits of this serviceID
+     * and {@code other} are equal.
+     */
+    public boolean prefixEquals(ServiceID other, int bits) {
+        if (bits < 0 || bits > SERVICE_ID_MAX_BITS) {
+            throw new IllegalArgumentException("Bad prefix length " + bits);
+        }
+        int i = 0;
+
+        // Whole words, then the leading bits of the last one
+        for (; bits >= 64; bits -= 64, i++) {
+            if (getWord(i) != other.getWord(i)) {
+                return false;
+            }
+        }
+        return bits == 0
+            || ((getWord(i) ^ other.getWord(i)) >>> (64 - bits)) == 0;
+    }
+
+    /**
+     * Returns the number of leading bits this serviceID and
+     * {@code other} have in common, 256 if they are equal.
+     */
+    public int commonPrefixLength(ServiceID other) {
+        for (int i = 0; i < WORDS; i++) {
+            long x = getWord(i) ^ other.getWord(i);
+
+            if (x != 0) {
+                return (i << 6) + Long.numberOfLeadingZeros(x);
+            }
+        }
+        return SERVICE_ID_MAX_BITS;
     }
 
     public int getLength() {
-        return identifier != null ? identifier.length : 0;
+        return valid ? SERVICE_ID_MAX_LENGTH : 0;
     }
-    
+
     public boolean valid() {
         // FIXME: do something useful here.
-        return identifier != null;
+        return valid;
+    }
+
+    private boolean equalWords(long w0, long w1, long w2, long w3) {
+        return this.w0 == w0 && this.w1 == w1 && this.w2 == w2
+            && this.w3 == w3;
     }
-    
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServiceID)) {
+            return false;
+        }
+        ServiceID s = (ServiceID) o;
+
+        return valid == s.valid && equalWords(s.w0, s.w1, s.w2, s.w3);
+    }
+
+    private static int hash(long w0, long w1, long w2, long w3) {
+        long h = ((w0 * 31 + w1) * 31 + w2) * 31 + w3;
+
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash(w0, w1, w2, w3);
+    }
+
+    /**
+     * Orders serviceIDs as unsigned 256-bit numbers, invalid
+     * serviceIDs first.
+     */
+    @Override
+    public int compareTo(ServiceID o) {
+        if (valid != o.valid) {
+            return valid ? 1 : -1;
+        }
+        for (int i = 0; i < WORDS; i++) {
+            long a = getWord(i);
+            long b = o.getWord(i);
+
+            if (a != b) {
+                return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+            }
+        }
+        return 0;
+    }
+
     @Override
     public String toString() {
-    	if (identifier == null) 
-    		return "0";
-    	
-    	if (idStr == null) {
-    		idStr = "";
-    		for (int i = 0; i < identifier.length; i++) {
-    			idStr += String.format("%02x", identifier[i]);
-    		}
-    	}
-    	return idStr;
+        if (!valid) {
+            return "0";
+        }
+        String s = idStr;
+
+        if (s == null) {
+            char[] c = new char[SERVICE_ID_MAX_LENGTH * 2];
+
+            for (int i = 0; i < c.length; i++) {
+                long w = getWord(i >> 4);
+
+                c[i] = HEX[(int) (w >>> (60 - ((i & 15) << 2))) & 0xf];
+            }
+            idStr = s = new String(c);
+        }
+        return s;
+    }
+
+    /**
+     * Bounded, direct-mapped cache of interned serviceIDs. Slots are
+     * read and written without locking: serviceIDs are immutable, so
+     * a racing reader sees either a complete instance or another one.
+     */
+    private static final class Interned {
+        static final int SIZE = 1024;
+        static final ServiceID[] cache = new ServiceID[SIZE];
+
+        static int slot(int hash) {
+            return (hash ^ (hash >>> 16)) & (SIZE - 1);
+        }
     }
 }
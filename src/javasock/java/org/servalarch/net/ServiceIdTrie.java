@@ -0,0 +1,471 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.net;
+
+/**
+ * Map from serviceID prefixes to values, resolving serviceIDs by
+ * longest prefix match like the service table of the stack does. It
+ * lets an application that binds a serviceID prefix (a
+ * {@code ServalServerSocket} or {@code ServalServerDatagramSocket}
+ * with bind bits) dispatch on the full serviceID a peer asked for.
+ * <p>
+ * The trie is multibit and path compressed: every node holds a prefix
+ * and has 16 slots, indexed by the 4 bits that follow it, and a child
+ * may be any number of bits longer than its parent, so that a lookup
+ * visits about one node per 4 distinguishing bits. A child less than
+ * 4 bits longer than its parent fills all the slots its prefix covers.
+ * <p>
+ * Nodes are immutable. An update copies the nodes on the path it
+ * changes and then publishes the new root, so lookups take no lock,
+ * do not allocate and always see a consistent trie, while updates are
+ * serialized on the trie.
+ *
+ * @param <V> the type of the values.
+ */
+public final class ServiceIdTrie<V> {
+
+    private static final int STRIDE = 4;
+    private static final int SLOTS = 1 << STRIDE;
+    private static final int MAX_BITS = ServiceID.SERVICE_ID_MAX_BITS;
+
+    private static final class Node<V> {
+        // The prefix, with the bits past it clear
+        final long k0;
+        final long k1;
+        final long k2;
+        final long k3;
+        final int bits;
+        // Mask of the prefix bits in its last, partial word
+        final long mask;
+        // Null for the branching nodes that hold no prefix
+        final V value;
+        // Null if the node has no children
+        final Node<V>[] children;
+
+        Node(long[] key, int bits, V value, Node<V>[] children) {
+            this.k0 = key[0] & mask(bits, 0);
+            this.k1 = key[1] & mask(bits, 1);
+            this.k2 = key[2] & mask(bits, 2);
+            this.k3 = key[3] & mask(bits, 3);
+            this.bits = bits;
+            this.mask = (bits & 63) != 0 ? -1L << (64 - (bits & 63)) : 0;
+            this.value = value;
+            this.children = children;
+        }
+
+        long word(int i) {
+            switch (i) {
+            case 0:
+                return k0;
+            case 1:
+                return k1;
+            case 2:
+                return k2;
+            default:
+                return k3;
+            }
+        }
+
+        long[] key() {
+            return new long[] { k0, k1, k2, k3 };
+        }
+
+        boolean matches(long q0, long q1, long q2, long q3) {
+            long d0 = q0 ^ k0;
+            long d1 = q1 ^ k1;
+            long d2 = q2 ^ k2;
+            long d3 = q3 ^ k3;
+
+            switch (bits >> 6) {
+            case 0:
+                return (d0 & mask) == 0;
+            case 1:
+                return d0 == 0 && (d1 & mask) == 0;
+            case 2:
+                return (d0 | d1) == 0 && (d2 & mask) == 0;
+            case 3:
+                return (d0 | d1 | d2) == 0 && (d3 & mask) == 0;
+            default:
+                return (d0 | d1 | d2 | d3) == 0;
+            }
+        }
+
+        boolean matches(long[] q) {
+            return matches(q[0], q[1], q[2], q[3]);
+        }
+
+        Node<V> withValue(V v) {
+            return v == value ? this : new Node<V>(key(), bits, v, children);
+        }
+
+        Node<V> withChildren(Node<V>[] c) {
+            return new Node<V>(key(), bits, value, c);
+        }
+    }
+
+    // Holds the 0-bit prefix, and thus is never removed
+    private volatile Node<V> root =
+        new Node<V>(new long[4], 0, null, null);
+
+    // Number of prefixes, guarded by the trie
+    private int size;
+
+    // Previous value of the prefix being updated, guarded by the trie
+    private V previous;
+
+    private static long mask(int bits, int word) {
+        int n = bits - (word << 6);
+
+        return n >= 64 ? -1L : n <= 0 ? 0 : -1L << (64 - n);
+    }
+
+    /**
+     * Returns the STRIDE bits following the first 'bits' bits of a
+     * serviceID, reading the bits past its end as zero.
+     */
+    private static int index(long q0, long q1, long q2, long q3, int bits) {
+        int off = bits & 63;
+        long w;
+        long next;
+
+        switch (bits >> 6) {
+        case 0:
+            w = q0;
+            next = q1;
+            break;
+        case 1:
+            w = q1;
+            next = q2;
+            break;
+        case 2:
+            w = q2;
+            next = q3;
+            break;
+        default:
+            w = q3;
+            next = 0;
+            break;
+        }
+        if (off <= 64 - STRIDE) {
+            return (int) (w >>> (64 - STRIDE - off)) & (SLOTS - 1);
+        }
+        return (int) ((w << (off - 64 + STRIDE))
+                      | (next >>> (128 - STRIDE - off))) & (SLOTS - 1);
+    }
+
+    private static int index(long[] q, int bits) {
+        return index(q[0], q[1], q[2], q[3], bits);
+    }
+
+    private static int commonPrefixLength(long[] k, Node<?> n) {
+        for (int i = 0; i < 4; i++) {
+            long x = k[i] ^ n.word(i);
+
+            if (x != 0) {
+                return (i << 6) + Long.numberOfLeadingZeros(x);
+            }
+        }
+        return MAX_BITS;
+    }
+
+    private static long[] key(ServiceID prefix, int bits) {
+        if (!prefix.valid()) {
+            throw new IllegalArgumentException("Invalid serviceID");
+        }
+        if (bits < 0 || bits > MAX_BITS) {
+            throw new IllegalArgumentException("Bad prefix length " + bits);
+        }
+        long[] k = new long[4];
+
+        for (int i = 0; i < 4; i++) {
+            k[i] = prefix.getWord(i) & mask(bits, i);
+        }
+        return k;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] newSlots() {
+        return (Node<V>[]) new Node<?>[SLOTS];
+    }
+
+    private static <V> Node<V>[] copySlots(Node<V> n) {
+        return n.children != null ? n.children.clone()
+            : ServiceIdTrie.<V>newSlots();
+    }
+
+    /**
+     * Puts child 'c' in the slots of a node of 'bits' bits.
+     */
+    private static <V> Node<V>[] place(Node<V>[] slots, Node<V> c,
+                                       int bits) {
+        if (slots == null) {
+            slots = newSlots();
+        }
+        int first = index(c.k0, c.k1, c.k2, c.k3, bits);
+        int count = c.bits - bits >= STRIDE ? 1
+            : 1 << (bits + STRIDE - c.bits);
+
+        for (int i = first; i < first + count; i++) {
+            slots[i] = c;
+        }
+        return slots;
+    }
+
+    /**
+     * Replaces child 'c' by 'r' in all the slots it fills.
+     */
+    private static <V> void replace(Node<V>[] slots, Node<V> c, Node<V> r) {
+        for (int i = 0; i < SLOTS; i++) {
+            if (slots[i] == c) {
+                slots[i] = r;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the longest prefix of {@code serviceID} in
+     * the trie, or {@code null} if none is.
+     */
+    public V lookup(ServiceID serviceID) {
+        if (!serviceID.valid()) {
+            return null;
+        }
+        long q0 = serviceID.getWord(0);
+        long q1 = serviceID.getWord(1);
+        long q2 = serviceID.getWord(2);
+        long q3 = serviceID.getWord(3);
+        V best = null;
+        Node<V> n = root;
+
+        // A node that does not match ends the search, as the nodes
+        // below it extend its prefix
+        do {
+            if (!n.matches(q0, q1, q2, q3)) {
+                break;
+            }
+            if (n.value != null) {
+                best = n.value;
+            }
+            Node<V>[] c = n.children;
+
+            if (c == null) {
+                break;
+            }
+            n = c[index(q0, q1, q2, q3, n.bits)];
+        } while (n != null);
+
+        return best;
+    }
+
+    /**
+     * Returns the value of exactly the first {@code bits} bits of
+     * {@code prefix}, or {@code null} if the trie does not hold that
+     * prefix.
+     */
+    public V get(ServiceID prefix, int bits) {
+        long[] k = key(prefix, bits);
+        Node<V> n = root;
+
+        while (n != null && n.bits <= bits && n.matches(k)) {
+            if (n.bits == bits) {
+                return n.value;
+            }
+            n = n.children != null ? n.children[index(k, n.bits)] : null;
+        }
+        return null;
+    }
+
+    /**
+     * Maps the first {@code bits} bits of {@code prefix} to
+     * {@code value}; 0 bits gives a default for all serviceIDs.
+     *
+     * @return the previous value of the prefix, or {@code null}.
+     */
+    public synchronized V put(ServiceID prefix, int bits, V value) {
+        long[] k = key(prefix, bits);
+
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        previous = null;
+        root = insertBelow(root, k, bits, value);
+
+        V old = previous;
+
+        previous = null;
+        if (old == null) {
+            size++;
+        }
+        return old;
+    }
+
+    /**
+     * Inserts a prefix in the subtrie of 'n', whose prefix is a prefix
+     * of it.
+     */
+    private Node<V> insertBelow(Node<V> n, long[] k, int bits, V value) {
+        if (bits == n.bits) {
+            previous = n.value;
+            return n.withValue(value);
+        }
+        Node<V>[] slots = copySlots(n);
+        int s = index(k, n.bits);
+        Node<V> c = slots[s];
+
+        if (bits - n.bits >= STRIDE) {
+            // The new prefix goes in a single slot
+            Node<V> r = insertAt(c, k, bits, value);
+
+            if (c != null) {
+                replace(slots, c, r);
+            } else {
+                slots[s] = r;
+            }
+        } else if (c != null && c.bits <= bits) {
+            // A child covers all the slots of the new prefix
+            replace(slots, c, insertBelow(c, k, bits, value));
+        } else {
+            // The new prefix fills several slots, and the children in
+            // them go below it
+            int count = 1 << (n.bits + STRIDE - bits);
+            Node<V>[] below = null;
+
+            for (int i = s; i < s + count; i++) {
+                c = slots[i];
+                if (c != null && (i == s || c != slots[i - 1])) {
+                    below = place(below, c, bits);
+                }
+            }
+            Node<V> x = new Node<V>(k, bits, value, below);
+
+            for (int i = s; i < s + count; i++) {
+                slots[i] = x;
+            }
+        }
+        return n.withChildren(slots);
+    }
+
+    /**
+     * Inserts a prefix in place of child 'c' of a node the prefix is
+     * at least STRIDE bits longer than.
+     */
+    private Node<V> insertAt(Node<V> c, long[] k, int bits, V value) {
+        if (c == null) {
+            return new Node<V>(k, bits, value, null);
+        }
+        int common = Math.min(commonPrefixLength(k, c),
+                              Math.min(bits, c.bits));
+
+        if (common == c.bits) {
+            return insertBelow(c, k, bits, value);
+        }
+        Node<V> x = new Node<V>(k, bits, value, null);
+
+        if (common == bits) {
+            // Above the child
+            return x.withChildren(place(null, c, bits));
+        }
+        // The prefixes part at bit 'common', joined by a branching node
+        Node<V>[] slots = place(place(null, c, common), x, common);
+
+        return new Node<V>(k, common, null, slots);
+    }
+
+    /**
+     * Removes the first {@code bits} bits of {@code prefix} from the
+     * trie.
+     *
+     * @return the value of the prefix, or {@code null} if the trie
+     *         did not hold it.
+     */
+    public synchronized V remove(ServiceID prefix, int bits) {
+        long[] k = key(prefix, bits);
+
+        previous = null;
+        root = removeBelow(root, k, bits);
+
+        V old = previous;
+
+        previous = null;
+        if (old != null) {
+            size--;
+        }
+        return old;
+    }
+
+    /**
+     * Removes a prefix from the subtrie of 'n', whose prefix is a
+     * prefix of it.
+     */
+    private Node<V> removeBelow(Node<V> n, long[] k, int bits) {
+        if (bits == n.bits) {
+            previous = n.value;
+            return n.withValue(null);
+        }
+        Node<V> c = n.children != null ? n.children[index(k, n.bits)] : null;
+
+        if (c == null || c.bits > bits || !c.matches(k)) {
+            return n;
+        }
+        Node<V> r = removeBelow(c, k, bits);
+
+        if (r == c) {
+            return n;
+        }
+        Node<V>[] slots = n.children.clone();
+
+        replace(slots, c, prune(r, n.bits));
+        for (Node<V> s : slots) {
+            if (s != null) {
+                return n.withChildren(slots);
+            }
+        }
+        return n.withChildren(null);
+    }
+
+    /**
+     * Returns what is left of a child of a node of 'bits' bits once it
+     * has lost its prefix or its children: nothing if it holds
+     * neither, and its only child if it has no prefix and that child
+     * would fill the same slot.
+     */
+    private static <V> Node<V> prune(Node<V> c, int bits) {
+        if (c.value != null) {
+            return c;
+        }
+        if (c.children == null) {
+            return null;
+        }
+        Node<V> only = null;
+
+        for (Node<V> s : c.children) {
+            if (s != null && s != only) {
+                if (only != null) {
+                    return c;
+                }
+                only = s;
+            }
+        }
+        return c.bits - bits >= STRIDE ? only : c;
+    }
+
+    /**
+     * Removes all prefixes.
+     */
+    public synchronized void clear() {
+        root = new Node<V>(new long[4], 0, null, null);
+        size = 0;
+    }
+
+    /**
+     * Returns the number of prefixes in the trie.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        Node<V> n = root;
+
+        return n.value == null && n.children == null;
+    }
+}
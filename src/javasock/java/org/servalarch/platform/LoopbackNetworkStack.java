@@ -0,0 +1,1396 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.platform;
+
+import org.servalarch.net.ServalDatagramSocketImpl;
+import org.servalarch.net.ServalSocketImpl;
+import org.servalarch.net.ServiceID;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A network stack backend that connects the sockets of this JVM to each
+ * other, without any native code. It lets applications built on the
+ * Serval sockets and channels be tested and profiled in isolation from
+ * the kernel, or on hosts without a Serval stack.
+ * <p>
+ * Sockets bind serviceIDs with a prefix length, and connections and
+ * datagrams go to the socket with the longest matching prefix. Streams
+ * have the usual flow control: a writer blocks while the receive buffer
+ * of its peer is full. Datagrams are dropped once the receive buffer of
+ * their destination is full, or if no socket serves their destination.
+ * IPv4 addresses are accepted but ignored, since all sockets live on
+ * the same host, and received datagrams appear to come from 127.0.0.1.
+ * <p>
+ * By default data is delivered immediately. Optionally, a link model
+ * delays deliveries by a fixed one-way latency, and serializes the data
+ * sent by each socket at a fixed bandwidth; connections are then
+ * established after one round trip. The model is set with the {@value
+ * #LATENCY_PROPERTY} (in microseconds) and {@value #BANDWIDTH_PROPERTY}
+ * (in bits per second) system properties, or with the constructor.
+ * <p>
+ * The selector support emulates epoll and eventfd, so {@link
+ * org.servalarch.net.ServalSelector} works unchanged, but it cannot
+ * poll channels of other providers.
+ */
+public class LoopbackNetworkStack extends ServalNetworkStack {
+	/**
+	 * The system property with the one-way latency of the link model,
+	 * in microseconds.
+	 */
+	public static final String LATENCY_PROPERTY =
+			"org.servalarch.net.loopback.latency";
+
+	/**
+	 * The system property with the bandwidth of the link model, in
+	 * bits per second.
+	 */
+	public static final String BANDWIDTH_PROPERTY =
+			"org.servalarch.net.loopback.bandwidth";
+
+	/* Socket options, as used by the native stack */
+	static final int IP_TOS = 3;
+	static final int SO_REUSEADDR = 4;
+	static final int SO_KEEPALIVE = 8;
+	static final int SO_BROADCAST = 32;
+	static final int SO_LINGER = 128;
+	static final int SO_SNDBUF = 4097;
+	static final int SO_RCVBUF = 4098;
+	static final int SO_OOBINLINE = 4099;
+	static final int SO_RCVTIMEOUT = 4102;
+	static final int REUSEADDR_AND_REUSEPORT = 10001;
+	static final int TCP_CORK = 10002;
+
+	private static final int EPOLL_CTL_ADD = 1;
+	private static final int EPOLL_CTL_DEL = 2;
+	private static final int EPOLL_CTL_MOD = 3;
+
+	private static final int SERVICE_ID_LENGTH = ServiceID.SERVICE_ID_MAX_LENGTH;
+
+	private static final byte[] NULL_SERVICE_ID = new byte[SERVICE_ID_LENGTH];
+
+	private static final InetAddress LOOPBACK_ADDRESS;
+
+	static {
+		InetAddress addr = null;
+
+		try {
+			addr = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		} catch (UnknownHostException e) {
+			// Not possible for a 4 byte address
+		}
+		LOOPBACK_ADDRESS = addr;
+	}
+
+	private final long latency;
+	private final long bandwidth;
+	private final Link link;
+
+	private final AtomicInteger nextFd = new AtomicInteger(3);
+	private final AtomicLong nextEphemeral = new AtomicLong(1);
+	private final AtomicLong nextSockAddr = new AtomicLong(1);
+
+	private final ConcurrentHashMap<FileDescriptor, LoopbackSocket> sockets =
+			new ConcurrentHashMap<FileDescriptor, LoopbackSocket>();
+
+	/* Sockets, epoll instances and eventfds by their integer descriptor */
+	private final ConcurrentHashMap<Integer, Object> descriptors =
+			new ConcurrentHashMap<Integer, Object>();
+
+	private final ConcurrentHashMap<Long, byte[]> sockAddrs =
+			new ConcurrentHashMap<Long, byte[]>();
+
+	private final ServiceTable streamServices = new ServiceTable();
+	private final ServiceTable datagramServices = new ServiceTable();
+
+	/**
+	 * Creates a loopback stack with the link model given by the system
+	 * properties, if any.
+	 */
+	public LoopbackNetworkStack() {
+		this(Long.getLong(LATENCY_PROPERTY, 0).longValue(),
+				TimeUnit.MICROSECONDS,
+				Long.getLong(BANDWIDTH_PROPERTY, 0).longValue());
+	}
+
+	/**
+	 * Creates a loopback stack with a link model.
+	 *
+	 * @param latency
+	 *            the one-way latency of the link, or 0 for none.
+	 * @param unit
+	 *            the unit of {@code latency}.
+	 * @param bandwidth
+	 *            the bandwidth at which each socket sends, in bits per
+	 *            second, or 0 for unlimited.
+	 */
+	public LoopbackNetworkStack(long latency, TimeUnit unit, long bandwidth) {
+		if (latency < 0 || bandwidth < 0) {
+			throw new IllegalArgumentException("Bad link model");
+		}
+		this.latency = unit.toNanos(latency);
+		this.bandwidth = bandwidth;
+
+		if (latency > 0 || bandwidth > 0) {
+			link = new Link();
+			link.start();
+		} else {
+			link = null;
+		}
+	}
+
+	/**
+	 * A binding of a socket to a serviceID prefix.
+	 */
+	private static final class Binding {
+		final byte[] id;
+		final int bits;
+		final LoopbackSocket socket;
+
+		Binding(byte[] id, int bits, LoopbackSocket socket) {
+			this.id = id;
+			this.bits = bits;
+			this.socket = socket;
+		}
+
+		/**
+		 * Returns whether the serviceID at {@code off} of {@code other}
+		 * matches the prefix of this binding.
+		 */
+		boolean matches(byte[] other, int off) {
+			int n = bits >>> 3;
+
+			for (int i = 0; i < n; i++) {
+				if (id[i] != other[off + i]) {
+					return false;
+				}
+			}
+			int rem = bits & 7;
+
+			if (rem == 0) {
+				return true;
+			}
+			int mask = (0xff << (8 - rem)) & 0xff;
+
+			return ((id[n] ^ other[off + n]) & mask) == 0;
+		}
+	}
+
+	/**
+	 * The serviceIDs bound by the sockets of one type. Lookups scan an
+	 * immutable array of the bindings, longest prefix first, without
+	 * locking.
+	 */
+	private static final class ServiceTable {
+		private volatile Binding[] bindings = new Binding[0];
+
+		synchronized void bind(LoopbackSocket s, byte[] id, int bits)
+				throws SocketException {
+			Binding[] old = bindings;
+
+			for (Binding b : old) {
+				if (b.bits == bits && b.matches(id, 0)) {
+					throw new SocketException("Address already in use");
+				}
+			}
+			if (!s.setLocalId(id)) {
+				throw new SocketException("Socket is already bound");
+			}
+			Binding[] updated = new Binding[old.length + 1];
+			int i = 0;
+
+			while (i < old.length && old[i].bits >= bits) {
+				updated[i] = old[i];
+				i++;
+			}
+			updated[i] = new Binding(id, bits, s);
+			System.arraycopy(old, i, updated, i + 1, old.length - i);
+			bindings = updated;
+		}
+
+		synchronized void unbind(LoopbackSocket s) {
+			Binding[] old = bindings;
+
+			for (int i = 0; i < old.length; i++) {
+				if (old[i].socket == s) {
+					Binding[] updated = new Binding[old.length - 1];
+
+					System.arraycopy(old, 0, updated, 0, i);
+					System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+					bindings = updated;
+					return;
+				}
+			}
+		}
+
+		LoopbackSocket lookup(byte[] id, int off) {
+			for (Binding b : bindings) {
+				if (b.matches(id, off)) {
+					return b.socket;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A delivery of the link model that is due at a given time.
+	 */
+	private static final class Delivery implements Comparable<Delivery> {
+		final long at;
+		final long seq;
+		final Runnable task;
+
+		Delivery(long at, long seq, Runnable task) {
+			this.at = at;
+			this.seq = seq;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Delivery other) {
+			long d = at - other.at;
+
+			if (d != 0) {
+				return d < 0 ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Runs the deliveries of the link model when they are due, in the
+	 * order of their due time and, for equal times, of scheduling.
+	 */
+	private static final class Link extends Thread {
+		private final PriorityQueue<Delivery> queue =
+				new PriorityQueue<Delivery>();
+		private long seq = 0;
+
+		Link() {
+			super("LoopbackLink");
+			setDaemon(true);
+		}
+
+		synchronized void schedule(long at, Runnable task) {
+			Delivery d = new Delivery(at, seq++, task);
+
+			queue.add(d);
+			if (queue.peek() == d) {
+				notify();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Delivery d;
+
+				synchronized (this) {
+					while (true) {
+						d = queue.peek();
+						try {
+							if (d == null) {
+								wait();
+								continue;
+							}
+							long delay = d.at - System.nanoTime();
+
+							if (delay <= 0) {
+								queue.poll();
+								break;
+							}
+							TimeUnit.NANOSECONDS.timedWait(this, delay);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+				d.task.run();
+			}
+		}
+	}
+
+	/**
+	 * An emulated epoll instance. Waiting re-evaluates the events of
+	 * all watched descriptors whenever one of them signals a change.
+	 */
+	static final class Epoll {
+		final int fd;
+
+		/**
+		 * The events of interest of a descriptor, replaced by every
+		 * {@code ctl} call so that disarming a one-shot registration
+		 * cannot affect a later one.
+		 */
+		private static final class Interest {
+			final int events;
+			volatile boolean disarmed = false;
+
+			Interest(int events) {
+				this.events = events;
+			}
+		}
+
+		private final HashMap<LoopbackPollable, Interest> interest =
+				new HashMap<LoopbackPollable, Interest>();
+		private LoopbackPollable[] watched = new LoopbackPollable[0];
+		private Interest[] masks = new Interest[0];
+		private boolean changed = false;
+		private long seq = 0;
+
+		Epoll(int fd) {
+			this.fd = fd;
+		}
+
+		synchronized void wakeup() {
+			seq++;
+			notifyAll();
+		}
+
+		int ctl(int op, LoopbackPollable p, int events) throws IOException {
+			if (op == EPOLL_CTL_ADD) {
+				// Before publishing, so that no signal is missed
+				p.addWatcher(this);
+			}
+			synchronized (this) {
+				Interest old = interest.get(p);
+
+				switch (op) {
+				case EPOLL_CTL_ADD:
+					if (old != null) {
+						throw new IOException("File exists");
+					}
+					interest.put(p, new Interest(events));
+					break;
+				case EPOLL_CTL_MOD:
+					if (old == null) {
+						throw new IOException("No such file or directory");
+					}
+					interest.put(p, new Interest(events));
+					break;
+				case EPOLL_CTL_DEL:
+					if (old == null) {
+						return -1;
+					}
+					interest.remove(p);
+					break;
+				default:
+					throw new IOException("Invalid argument");
+				}
+				changed = true;
+				wakeup();
+			}
+			if (op == EPOLL_CTL_DEL) {
+				p.removeWatcher(this);
+			}
+			return 0;
+		}
+
+		synchronized void remove(LoopbackPollable p) {
+			if (interest.remove(p) != null) {
+				changed = true;
+				wakeup();
+			}
+		}
+
+		void close() {
+			LoopbackPollable[] ps;
+
+			synchronized (this) {
+				ps = interest.keySet().toArray(
+						new LoopbackPollable[interest.size()]);
+				interest.clear();
+				changed = true;
+			}
+			for (LoopbackPollable p : ps) {
+				p.removeWatcher(this);
+			}
+		}
+
+		/**
+		 * Disarms a one-shot registration that is about to be
+		 * reported, unless a concurrent waiter already did.
+		 */
+		private synchronized boolean disarm(Interest in) {
+			if (in.disarmed) {
+				return false;
+			}
+			in.disarmed = true;
+			return true;
+		}
+
+		int waitEvents(int[] fds, int[] events, int timeout) {
+			long deadline = timeout > 0 ? System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+
+			while (true) {
+				LoopbackPollable[] ps;
+				Interest[] ms;
+				long s;
+
+				synchronized (this) {
+					if (changed) {
+						ps = new LoopbackPollable[interest.size()];
+						ms = new Interest[ps.length];
+						int i = 0;
+
+						for (Map.Entry<LoopbackPollable, Interest> e :
+								interest.entrySet()) {
+							ps[i] = e.getKey();
+							ms[i++] = e.getValue();
+						}
+						watched = ps;
+						masks = ms;
+						changed = false;
+					}
+					ps = watched;
+					ms = masks;
+					s = seq;
+				}
+				int n = 0;
+
+				for (int i = 0; i < ps.length && n < fds.length; i++) {
+					Interest in = ms[i];
+					int ready;
+
+					if (in.disarmed) {
+						continue;
+					}
+					ready = ps[i].readyEvents() & (in.events
+							| LoopbackPollable.EPOLLERR | LoopbackPollable.EPOLLHUP);
+
+					if (ready != 0 && ((in.events
+							& LoopbackPollable.EPOLLONESHOT) == 0 || disarm(in))) {
+						fds[n] = ps[i].fd;
+						events[n++] = ready;
+					}
+				}
+				if (n > 0 || timeout == 0) {
+					return n;
+				}
+				synchronized (this) {
+					if (seq != s) {
+						continue;
+					}
+					try {
+						if (timeout < 0) {
+							wait();
+						} else {
+							long remaining = deadline - System.nanoTime();
+
+							if (remaining <= 0) {
+								return 0;
+							}
+							TimeUnit.NANOSECONDS.timedWait(this, remaining);
+						}
+					} catch (InterruptedException e) {
+						// Like a signal interrupting epoll_wait
+						Thread.currentThread().interrupt();
+						return 0;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * An emulated eventfd, readable while it has been signaled and not
+	 * drained.
+	 */
+	private static final class EventFd extends LoopbackPollable {
+		private long count = 0;
+
+		EventFd(int fd) {
+			super(fd);
+		}
+
+		void signal() {
+			synchronized (this) {
+				count++;
+			}
+			signalWatchers();
+		}
+
+		synchronized void drain() {
+			count = 0;
+		}
+
+		@Override
+		synchronized int readyEvents() {
+			return count > 0 ? EPOLLIN : 0;
+		}
+	}
+
+	int allocFd() {
+		return nextFd.getAndIncrement();
+	}
+
+	boolean delayed() {
+		return link != null;
+	}
+
+	/**
+	 * Runs a delivery of {@code len} bytes sent by {@code from}, at
+	 * once if there is no link model, otherwise when the data has been
+	 * serialized at the bandwidth of the link and has crossed it.
+	 * Deliveries from a socket happen in the order they were made.
+	 */
+	void deliver(LoopbackSocket from, int len, Runnable task) {
+		if (link == null) {
+			task.run();
+			return;
+		}
+		long now = System.nanoTime();
+
+		synchronized (from.tx) {
+			long done = now;
+
+			if (bandwidth > 0) {
+				if (from.busyUntil - now > 0) {
+					done = from.busyUntil;
+				}
+				done += len * 8000000000L / bandwidth;
+				from.busyUntil = done;
+			}
+			long at = done + latency;
+
+			if (at - from.lastDelivery < 0) {
+				at = from.lastDelivery;
+			}
+			from.lastDelivery = at;
+			link.schedule(at, task);
+		}
+	}
+
+	LoopbackSocket lookup(int type, byte[] id, int off) {
+		if (id == null) {
+			return null;
+		}
+		return (type == LoopbackSocket.STREAM ? streamServices
+				: datagramServices).lookup(id, off);
+	}
+
+	private LoopbackSocket socket(FileDescriptor fd) throws SocketException {
+		LoopbackSocket s = fd != null ? sockets.get(fd) : null;
+
+		if (s == null) {
+			throw new SocketException("Bad file descriptor");
+		}
+		return s;
+	}
+
+	private FileDescriptor register(FileDescriptor fd, LoopbackSocket s) {
+		sockets.put(fd, s);
+		descriptors.put(Integer.valueOf(s.fd), s);
+		return fd;
+	}
+
+	private static byte[] idOf(ServiceID serviceID) {
+		byte[] id = serviceID != null ? serviceID.getID() : null;
+
+		// A missing serviceID is the all-zero serviceID, as in the
+		// native stack
+		return id != null ? id : new byte[SERVICE_ID_LENGTH];
+	}
+
+	private byte[] ephemeralId() {
+		byte[] id = new byte[SERVICE_ID_LENGTH];
+		long n = nextEphemeral.getAndIncrement();
+
+		id[0] = (byte) 0xff;
+		id[1] = (byte) 0xfe;
+		for (int i = SERVICE_ID_LENGTH - 1; n != 0; i--) {
+			id[i] = (byte) n;
+			n >>>= 8;
+		}
+		return id;
+	}
+
+	/**
+	 * Gives an unbound socket an ephemeral serviceID, which datagram
+	 * sockets also bind so that they can be replied to.
+	 */
+	private void ensureBound(LoopbackSocket s) throws SocketException {
+		if (s.getLocalId() != null) {
+			return;
+		}
+		byte[] id = ephemeralId();
+
+		if (s.type == LoopbackSocket.DGRAM) {
+			try {
+				datagramServices.bind(s, id, ServiceID.SERVICE_ID_MAX_BITS);
+			} catch (SocketException e) {
+				// Bound concurrently
+				if (s.getLocalId() == null) {
+					throw e;
+				}
+			}
+		} else {
+			s.setLocalId(id);
+		}
+	}
+
+	private static void checkBounds(byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset > data.length - length) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	private static void checkBounds(ByteBuffer[] bufs, int offset, int length) {
+		if (offset < 0 || length < 0 || offset > bufs.length - length) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	@Override
+	public boolean isValid(FileDescriptor fd) {
+		return fd != null && sockets.containsKey(fd);
+	}
+
+	private int createSocket(FileDescriptor fd, int type)
+			throws SocketException {
+		if (sockets.containsKey(fd)) {
+			throw new SocketException("Socket already created");
+		}
+		LoopbackSocket s = new LoopbackSocket(this, type, allocFd());
+
+		register(fd, s);
+		return s.fd;
+	}
+
+	@Override
+	public int createDatagramSocket(FileDescriptor fd, int protocol)
+			throws SocketException {
+		return createSocket(fd, LoopbackSocket.DGRAM);
+	}
+
+	@Override
+	public int createStreamSocket(FileDescriptor fd, int protocol)
+			throws SocketException {
+		return createSocket(fd, LoopbackSocket.STREAM);
+	}
+
+	@Override
+	public int bind(FileDescriptor fd, ServiceID serviceID, int bindBits)
+			throws SocketException {
+		LoopbackSocket s = socket(fd);
+		byte[] id = idOf(serviceID);
+		int bits = bindBits;
+
+		if (Arrays.equals(id, NULL_SERVICE_ID)) {
+			// The kernel refuses the null serviceID, here it gets an
+			// ephemeral one like a socket that sends without binding
+			ensureBound(s);
+			return 0;
+		}
+		if (bits <= 0 || bits > ServiceID.SERVICE_ID_MAX_BITS) {
+			bits = ServiceID.SERVICE_ID_MAX_BITS;
+		}
+		(s.type == LoopbackSocket.STREAM ? streamServices : datagramServices)
+				.bind(s, id, bits);
+		return 0;
+	}
+
+	@Override
+	public int listen(FileDescriptor fd, int backlog) throws SocketException {
+		// The backlog is not enforced
+		socket(fd).listen();
+		return 0;
+	}
+
+	private FileDescriptor accept(FileDescriptor fd, Object sImpl, int timeout)
+			throws IOException {
+		if (sImpl == null) {
+			throw new NullPointerException();
+		}
+		LoopbackSocket s = socket(fd).accept(timeout);
+
+		return s != null ? register(new FileDescriptor(), s) : null;
+	}
+
+	@Override
+	public FileDescriptor accept(FileDescriptor fd,
+			ServalDatagramSocketImpl sImpl, int timeout) throws IOException {
+		return accept(fd, (Object) sImpl, timeout);
+	}
+
+	@Override
+	public FileDescriptor accept(FileDescriptor fd, ServalSocketImpl sImpl,
+			int timeout) throws IOException {
+		return accept(fd, (Object) sImpl, timeout);
+	}
+
+	@Override
+	public int connect(FileDescriptor fd, ServiceID serviceID,
+			InetAddress address, int timeout) throws SocketException {
+		LoopbackSocket s = socket(fd);
+
+		if (s.type == LoopbackSocket.DGRAM) {
+			connectDatagram(s, serviceID);
+			return 0;
+		}
+		startConnect(s, serviceID);
+		try {
+			if (!s.finishConnect(timeout > 0 ? timeout : -1)) {
+				throw new ConnectException("Connection timed out");
+			}
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			SocketException se = new SocketException(e.getMessage());
+			se.initCause(e);
+			throw se;
+		}
+		return 0;
+	}
+
+	private void connectDatagram(LoopbackSocket s, ServiceID serviceID)
+			throws SocketException {
+		byte[] id = idOf(serviceID);
+		LoopbackSocket target = datagramServices.lookup(id, 0);
+
+		if (target == null) {
+			throw new ConnectException("Connection refused");
+		}
+		ensureBound(s);
+		s.connectDatagram(target, id);
+	}
+
+	private void startConnect(LoopbackSocket s, ServiceID serviceID)
+			throws SocketException {
+		byte[] id = idOf(serviceID);
+		LoopbackSocket listener = streamServices.lookup(id, 0);
+
+		if (listener == null || !listener.isListening()) {
+			throw new ConnectException("Connection refused");
+		}
+		ensureBound(s);
+		s.startConnect(listener, id);
+	}
+
+	@Override
+	public boolean startConnect(FileDescriptor fd, ServiceID serviceID,
+			InetAddress address) throws SocketException {
+		LoopbackSocket s = socket(fd);
+
+		if (s.type == LoopbackSocket.DGRAM) {
+			connectDatagram(s, serviceID);
+			return true;
+		}
+		startConnect(s, serviceID);
+		return finishConnect(fd, 0);
+	}
+
+	@Override
+	public boolean finishConnect(FileDescriptor fd, int timeout)
+			throws SocketException {
+		try {
+			return socket(fd).finishConnect(timeout);
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			SocketException se = new SocketException(e.getMessage());
+			se.initCause(e);
+			throw se;
+		}
+	}
+
+	@Override
+	public void setNonBlocking(FileDescriptor fd, boolean nonBlocking)
+			throws SocketException {
+		socket(fd).nonBlocking = nonBlocking;
+	}
+
+	@Override
+	public int disconnect(FileDescriptor fd) throws SocketException {
+		socket(fd).disconnect();
+		return 0;
+	}
+
+	private int sendDatagram(LoopbackSocket s, byte[] data, int offset,
+			ByteBuffer buf, int length, byte[] dstId, int dstOff)
+			throws IOException {
+		LoopbackSocket dst;
+
+		ensureBound(s);
+		if (dstId != null) {
+			dst = datagramServices.lookup(dstId, dstOff);
+		} else {
+			dst = s.connectedDestination();
+		}
+		return s.sendDatagram(dst, data, offset, buf, length);
+	}
+
+	@Override
+	public int write(FileDescriptor fd, byte[] data, int offset, int length)
+			throws IOException {
+		LoopbackSocket s = socket(fd);
+
+		checkBounds(data, offset, length);
+		if (s.type == LoopbackSocket.STREAM) {
+			return s.write(data, offset, null, length);
+		}
+		return sendDatagram(s, data, offset, null, length, null, 0);
+	}
+
+	@Override
+	public int read(FileDescriptor fd, byte[] data, int offset, int length,
+			int timeout) throws IOException {
+		LoopbackSocket s = socket(fd);
+		int ret;
+
+		checkBounds(data, offset, length);
+		if (s.type == LoopbackSocket.STREAM) {
+			ret = s.read(data, offset, null, length, timeout, false);
+		} else {
+			ret = s.receiveDatagram(data, offset, null, length, timeout,
+					false, null, null, 0, null, 0);
+			if (ret == 0) {
+				// Zero-length datagram
+				ret = -1;
+			}
+		}
+		if (ret == LoopbackSocket.AGAIN) {
+			throw new SocketTimeoutException();
+		}
+		return ret;
+	}
+
+	@Override
+	public int recvfrom(FileDescriptor fd, byte[] data, int offset,
+			int length, int timeout, boolean peek, byte[] filterServiceID,
+			byte[] filterAddr, byte[] srcServiceID, byte[] srcAddr)
+			throws IOException {
+		LoopbackSocket s = socket(fd);
+		int ret;
+
+		checkBounds(data, offset, length);
+		if (s.type == LoopbackSocket.STREAM) {
+			ret = s.read(data, offset, null, length, timeout, peek);
+		} else {
+			ret = s.receiveDatagram(data, offset, null, length, timeout,
+					peek, filterServiceID, srcServiceID, 0, srcAddr, 0);
+		}
+		if (ret == LoopbackSocket.AGAIN) {
+			throw new SocketTimeoutException();
+		}
+		return ret;
+	}
+
+	@Override
+	public int read(FileDescriptor fd, ByteBuffer buf, int timeout)
+			throws IOException {
+		LoopbackSocket s = socket(fd);
+		int ret;
+
+		if (buf.isReadOnly()) {
+			throw new ReadOnlyBufferException();
+		}
+		if (s.type == LoopbackSocket.STREAM) {
+			ret = s.read(null, 0, buf, buf.remaining(), timeout, false);
+		} else {
+			ret = s.receiveDatagram(null, 0, buf, buf.remaining(), timeout,
+					false, null, null, 0, null, 0);
+			if (ret == 0) {
+				ret = -1;
+			}
+		}
+		return ret == LoopbackSocket.AGAIN ? 0 : ret;
+	}
+
+	@Override
+	public int readNonBlocking(FileDescriptor fd, byte[] data, int offset,
+			int length) throws IOException {
+		LoopbackSocket s = socket(fd);
+
+		checkBounds(data, offset, length);
+		if (s.type == LoopbackSocket.STREAM) {
+			return s.read(data, offset, null, length, -1, false);
+		}
+		int ret = s.receiveDatagram(data, offset, null, length, -1, false,
+				null, null, 0, null, 0);
+
+		return ret == 0 ? -1 : ret;
+	}
+
+	@Override
+	public int readNonBlocking(FileDescriptor fd, ByteBuffer buf)
+			throws IOException {
+		LoopbackSocket s = socket(fd);
+
+		if (buf.isReadOnly()) {
+			throw new ReadOnlyBufferException();
+		}
+		if (!buf.hasRemaining()) {
+			return 0;
+		}
+		if (s.type == LoopbackSocket.STREAM) {
+			return s.read(null, 0, buf, buf.remaining(), -1, false);
+		}
+		int ret = s.receiveDatagram(null, 0, buf, buf.remaining(), -1, false,
+				null, null, 0, null, 0);
+
+		return ret == 0 ? -1 : ret;
+	}
+
+	@Override
+	public int write(FileDescriptor fd, ByteBuffer buf) throws IOException {
+		LoopbackSocket s = socket(fd);
+
+		if (s.type == LoopbackSocket.STREAM) {
+			return s.write(null, 0, buf, buf.remaining());
+		}
+		return sendDatagram(s, null, 0, buf, buf.remaining(), null, 0);
+	}
+
+	@Override
+	public long readNonBlocking(FileDescriptor fd, ByteBuffer[] bufs,
+			int offset, int length) throws IOException {
+		checkBounds(bufs, offset, length);
+		long total = 0;
+
+		for (int i = offset; i < offset + length; i++) {
+			int want = bufs[i].remaining();
+
+			if (want == 0) {
+				continue;
+			}
+			int ret = readNonBlocking(fd, bufs[i]);
+
+			if (ret < 0) {
+				return total > 0 ? total : ret;
+			}
+			total += ret;
+			if (ret < want) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public long write(FileDescriptor fd, ByteBuffer[] bufs, int offset,
+			int length) throws IOException {
+		checkBounds(bufs, offset, length);
+		long total = 0;
+
+		for (int i = offset; i < offset + length; i++) {
+			total += write(fd, bufs[i]);
+			if (bufs[i].hasRemaining()) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public int recvmmsg(FileDescriptor fd, byte[][] bufs, int[] offsets,
+			int[] lengths, int count, int timeout, byte[] srcServiceIDs,
+			byte[] srcAddrs) throws IOException {
+		LoopbackSocket s = socket(fd);
+		int n = 0;
+
+		while (n < count) {
+			checkBounds(bufs[n], offsets[n], lengths[n]);
+
+			// Only wait for the first datagram
+			int ret = s.receiveDatagram(bufs[n], offsets[n], null,
+					lengths[n], n == 0 ? timeout : -1, false, null,
+					srcServiceIDs, n * SERVICE_ID_LENGTH, srcAddrs, n * 4);
+
+			if (ret == LoopbackSocket.AGAIN) {
+				break;
+			}
+			lengths[n++] = ret;
+		}
+		return n;
+	}
+
+	@Override
+	public int sendmmsg(FileDescriptor fd, byte[][] bufs, int[] offsets,
+			int[] lengths, int count, byte[] dstServiceIDs, byte[] dstAddrs)
+			throws IOException {
+		LoopbackSocket s = socket(fd);
+
+		for (int i = 0; i < count; i++) {
+			checkBounds(bufs[i], offsets[i], lengths[i]);
+			sendDatagram(s, bufs[i], offsets[i], null, lengths[i],
+					dstServiceIDs, i * SERVICE_ID_LENGTH);
+		}
+		return count;
+	}
+
+	@Override
+	public long createSockAddr(ServiceID serviceID, InetAddress addr,
+			int prefixBits) {
+		long handle = nextSockAddr.getAndIncrement();
+
+		sockAddrs.put(Long.valueOf(handle), idOf(serviceID));
+		return handle;
+	}
+
+	@Override
+	public void freeSockAddr(long sockAddr) {
+		sockAddrs.remove(Long.valueOf(sockAddr));
+	}
+
+	private byte[] sockAddr(long sockAddr) throws SocketException {
+		byte[] id = sockAddrs.get(Long.valueOf(sockAddr));
+
+		if (id == null) {
+			throw new SocketException("Bad socket address");
+		}
+		return id;
+	}
+
+	@Override
+	public int sendto(FileDescriptor fd, byte[] data, int offset, int length,
+			long sockAddr) throws IOException {
+		LoopbackSocket s = socket(fd);
+
+		checkBounds(data, offset, length);
+		return sendDatagram(s, data, offset, null, length, sockAddr(sockAddr),
+				0);
+	}
+
+	@Override
+	public int sendto(FileDescriptor fd, ByteBuffer buf, long sockAddr)
+			throws IOException {
+		return sendDatagram(socket(fd), null, 0, buf, buf.remaining(),
+				sockAddr(sockAddr), 0);
+	}
+
+	@Override
+	public void sendConnectedDatagram(FileDescriptor fd, byte[] data,
+			int offset, int length, boolean bindToDevice) throws IOException {
+		write(fd, data, offset, length);
+	}
+
+	@Override
+	public int close(FileDescriptor fd) throws IOException {
+		LoopbackSocket s = fd != null ? sockets.remove(fd) : null;
+
+		if (s == null) {
+			return -1;
+		}
+		descriptors.remove(Integer.valueOf(s.fd));
+		s.close();
+		(s.type == LoopbackSocket.STREAM ? streamServices : datagramServices)
+				.unbind(s);
+		return 0;
+	}
+
+	@Override
+	public ServiceID getSocketLocalServiceID(FileDescriptor fd) {
+		LoopbackSocket s = fd != null ? sockets.get(fd) : null;
+		byte[] id = s != null ? s.getLocalId() : null;
+
+		return id != null ? new ServiceID(id) : null;
+	}
+
+	@Override
+	public InetAddress getSocketLocalAddress(FileDescriptor fd) {
+		return LOOPBACK_ADDRESS;
+	}
+
+	@Override
+	public int setOption(FileDescriptor fd, int optID, int boolValue,
+			int intValue) throws SocketException {
+		LoopbackSocket s = socket(fd);
+
+		switch (optID) {
+		case IP_TOS:
+		case SO_SNDBUF:
+		case SO_RCVBUF:
+		case SO_RCVTIMEOUT:
+			s.setOption(optID, intValue);
+			break;
+		case REUSEADDR_AND_REUSEPORT:
+			s.setOption(SO_REUSEADDR, boolValue != 0 ? 1 : 0);
+			break;
+		case SO_REUSEADDR:
+		case SO_KEEPALIVE:
+		case SO_BROADCAST:
+		case SO_LINGER:
+		case SO_OOBINLINE:
+		case TCP_CORK:
+			/* Kept for getOption only, as writes are not segmented */
+			s.setOption(optID, boolValue != 0 ? 1 : 0);
+			break;
+		default:
+			throw new IllegalArgumentException("Bad socket option");
+		}
+		return 0;
+	}
+
+	@Override
+	public int getOption(FileDescriptor fd, int optID) throws SocketException {
+		LoopbackSocket s = socket(fd);
+
+		switch (optID) {
+		case REUSEADDR_AND_REUSEPORT:
+			return s.getOption(SO_REUSEADDR);
+		case IP_TOS:
+		case SO_SNDBUF:
+		case SO_RCVBUF:
+		case SO_RCVTIMEOUT:
+		case SO_REUSEADDR:
+		case SO_KEEPALIVE:
+		case SO_BROADCAST:
+		case SO_LINGER:
+		case SO_OOBINLINE:
+		case TCP_CORK:
+			return s.getOption(optID);
+		default:
+			throw new IllegalArgumentException("Bad socket option");
+		}
+	}
+
+	@Override
+	public int getSocketFlags() {
+		return 0;
+	}
+
+	@Override
+	public int availableStream(FileDescriptor fd) throws SocketException {
+		return socket(fd).available();
+	}
+
+	@Override
+	public ServiceID getServiceByName(String service) {
+		return null;
+	}
+
+	@Override
+	public void shutdownInput(FileDescriptor fd) throws SocketException {
+		socket(fd).shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput(FileDescriptor fd) throws SocketException {
+		socket(fd).shutdownOutput();
+	}
+
+	@Override
+	public boolean supportsUrgentData(FileDescriptor fd) {
+		return false;
+	}
+
+	@Override
+	public void sendUrgentData(FileDescriptor fd, byte val) {
+	}
+
+	/**
+	 * Returns the integer descriptor of a loopback socket, or -1 for
+	 * any other descriptor, which cannot be polled.
+	 */
+	@Override
+	public int getFdValue(FileDescriptor fd) {
+		LoopbackSocket s = fd != null ? sockets.get(fd) : null;
+
+		return s != null ? s.fd : -1;
+	}
+
+	@Override
+	public int epollCreate() throws IOException {
+		Epoll ep = new Epoll(allocFd());
+
+		descriptors.put(Integer.valueOf(ep.fd), ep);
+		return ep.fd;
+	}
+
+	private Object descriptor(int fd) throws IOException {
+		Object o = descriptors.get(Integer.valueOf(fd));
+
+		if (o == null) {
+			throw new IOException("Bad file descriptor");
+		}
+		return o;
+	}
+
+	private Epoll epoll(int epfd) throws IOException {
+		Object o = descriptor(epfd);
+
+		if (!(o instanceof Epoll)) {
+			throw new IOException("Invalid argument");
+		}
+		return (Epoll) o;
+	}
+
+	@Override
+	public int epollCtl(int epfd, int op, int fd, int events)
+			throws IOException {
+		Epoll ep = epoll(epfd);
+		Object o = descriptors.get(Integer.valueOf(fd));
+
+		if (!(o instanceof LoopbackPollable)) {
+			if (op == EPOLL_CTL_DEL) {
+				// Already gone because the descriptor was closed
+				return -1;
+			}
+			throw new IOException("Bad file descriptor");
+		}
+		return ep.ctl(op, (LoopbackPollable) o, events);
+	}
+
+	@Override
+	public int epollWait(int epfd, int[] fds, int[] events, int timeout)
+			throws IOException {
+		return epoll(epfd).waitEvents(fds, events, timeout);
+	}
+
+	@Override
+	public int eventfdCreate() throws IOException {
+		EventFd efd = new EventFd(allocFd());
+
+		descriptors.put(Integer.valueOf(efd.fd), efd);
+		return efd.fd;
+	}
+
+	private EventFd eventfd(int fd) throws IOException {
+		Object o = descriptor(fd);
+
+		if (!(o instanceof EventFd)) {
+			throw new IOException("Invalid argument");
+		}
+		return (EventFd) o;
+	}
+
+	@Override
+	public void eventfdSignal(int fd) throws IOException {
+		eventfd(fd).signal();
+	}
+
+	@Override
+	public void eventfdDrain(int fd) throws IOException {
+		eventfd(fd).drain();
+	}
+
+	@Override
+	public void closeFd(int fd) throws IOException {
+		Object o = descriptor(fd);
+
+		if (o instanceof LoopbackSocket) {
+			// Sockets are closed through their FileDescriptor
+			throw new IOException("Invalid argument");
+		}
+		descriptors.remove(Integer.valueOf(fd));
+		if (o instanceof Epoll) {
+			((Epoll) o).close();
+		} else {
+			((EventFd) o).detachWatchers();
+		}
+	}
+
+	/*
+	 * No zero-copy transfers, the sockets exist in the Java heap only.
+	 */
+	@Override
+	public boolean supportsSplice() {
+		return false;
+	}
+
+	@Override
+	public long sendfile(FileDescriptor fd, FileDescriptor file,
+			long position, long count) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void pipeCreate(int[] fds) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public long splice(int fdIn, int fdOut, long count) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	/*
+	 * No io_uring emulation, the selectors use the epoll one.
+	 */
+	@Override
+	public long uringCreate(int entries) {
+		return 0;
+	}
+
+	@Override
+	public boolean uringPollAdd(long ring, int fd, int events,
+			long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringPollRemove(long ring, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringRecv(long ring, int fd, ByteBuffer buf,
+			int position, int length, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringSend(long ring, int fd, ByteBuffer buf,
+			int position, int length, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringAccept(long ring, int fd, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringConnect(long ring, int fd, ByteBuffer addr,
+			ServiceID serviceID, InetAddress address, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean uringCancel(long ring, long userData) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int uringResult(int result, boolean connect) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public FileDescriptor uringAccepted(int fd) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int uringSubmit(long ring) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int uringWait(long ring, long[] userData, int[] results,
+			int timeout) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void uringClose(long ring) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,65 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.platform;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A descriptor of the loopback stack that can be watched by its epoll
+ * emulation, i.e., a socket or an eventfd.
+ */
+abstract class LoopbackPollable {
+	static final int EPOLLIN = 0x001;
+	static final int EPOLLOUT = 0x004;
+	static final int EPOLLERR = 0x008;
+	static final int EPOLLHUP = 0x010;
+	static final int EPOLLONESHOT = 1 << 30;
+
+	/**
+	 * The integer descriptor handed out by {@code getFdValue}.
+	 */
+	final int fd;
+
+	private final CopyOnWriteArrayList<LoopbackNetworkStack.Epoll> watchers =
+			new CopyOnWriteArrayList<LoopbackNetworkStack.Epoll>();
+
+	LoopbackPollable(int fd) {
+		this.fd = fd;
+	}
+
+	/**
+	 * Returns the epoll events that are currently pending. Must not be
+	 * called with the lock of this object held, since it may take the
+	 * lock of a peer.
+	 */
+	abstract int readyEvents();
+
+	void addWatcher(LoopbackNetworkStack.Epoll ep) {
+		watchers.addIfAbsent(ep);
+	}
+
+	void removeWatcher(LoopbackNetworkStack.Epoll ep) {
+		watchers.remove(ep);
+	}
+
+	/**
+	 * Wakes up the epoll instances watching this descriptor, which
+	 * then re-evaluate its events. Called after every state change
+	 * that may make the descriptor ready.
+	 */
+	void signalWatchers() {
+		for (LoopbackNetworkStack.Epoll ep : watchers) {
+			ep.wakeup();
+		}
+	}
+
+	/**
+	 * Removes this descriptor from all epoll instances, as the kernel
+	 * does when a file is closed.
+	 */
+	void detachWatchers() {
+		for (LoopbackNetworkStack.Epoll ep : watchers) {
+			ep.remove(this);
+		}
+		watchers.clear();
+	}
+}
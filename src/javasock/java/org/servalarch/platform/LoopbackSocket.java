@@ -0,0 +1,878 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.platform;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A socket of the {@link LoopbackNetworkStack}.
+ * <p>
+ * The lock of a socket guards its receive state and is also the monitor
+ * that its readers and the writers of its peer wait on. Stream data is
+ * kept in a ring buffer of the size of the receive buffer, which a
+ * writer blocks on once it is full. Datagrams are queued until they
+ * exceed the receive buffer, after which further datagrams are dropped.
+ */
+final class LoopbackSocket extends LoopbackPollable {
+	static final int STREAM = 1;
+	static final int DGRAM = 2;
+
+	/**
+	 * Returned by the receive operations if no data arrived within the
+	 * timeout, or the socket is non-blocking and has no data.
+	 */
+	static final int AGAIN = ServalNetworkStack.UNAVAILABLE;
+
+	static final int DEFAULT_BUFFER_SIZE = 131072;
+
+	private static final int MIN_BUFFER_SIZE = 2048;
+
+	private static final byte[] LOOPBACK_ADDR = { 127, 0, 0, 1 };
+
+	/**
+	 * A queued datagram, with the serviceID of its sender.
+	 */
+	static final class Datagram {
+		final byte[] data;
+		final byte[] srcId;
+
+		Datagram(byte[] data, byte[] srcId) {
+			this.data = data;
+			this.srcId = srcId;
+		}
+	}
+
+	final LoopbackNetworkStack stack;
+	final int type;
+
+	volatile boolean closed = false;
+	volatile boolean nonBlocking = false;
+	volatile boolean outputShutdown = false;
+
+	private byte[] localId;
+	private boolean listening = false;
+	private ArrayDeque<LoopbackSocket> pending;
+	private boolean connecting = false;
+	private boolean connected = false;
+	private String connectError;
+	private LoopbackSocket peer;
+	private byte[] peerId;
+	private int rcvbuf = DEFAULT_BUFFER_SIZE;
+	private int sndbuf = DEFAULT_BUFFER_SIZE;
+	private HashMap<Integer, Integer> options;
+
+	// Stream receive state
+	private byte[] ring;
+	private int head = 0;
+	private int count = 0;
+	private int inflight = 0;
+	private boolean eof = false;
+	private boolean inputShutdown = false;
+	private boolean reset = false;
+
+	// Datagram receive state
+	private ArrayDeque<Datagram> queue;
+	private int queued = 0;
+
+	// Transmit state of the link model, guarded by tx
+	final Object tx = new Object();
+	long busyUntil;
+	long lastDelivery;
+
+	LoopbackSocket(LoopbackNetworkStack stack, int type, int fd) {
+		super(fd);
+		this.stack = stack;
+		this.type = type;
+		busyUntil = lastDelivery = System.nanoTime();
+	}
+
+	private void checkOpen() throws SocketException {
+		if (closed) {
+			throw new SocketException("Socket closed");
+		}
+	}
+
+	/**
+	 * Returns the deadline of a receive timeout in milliseconds, where
+	 * 0 (and, for the callers that do not wait, -1) means no deadline.
+	 */
+	private static long deadline(int timeout) {
+		if (timeout <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+
+	/**
+	 * Waits on this socket until notified or the deadline passes. Must
+	 * be called with the lock held.
+	 *
+	 * @return {@code false} if the deadline has passed.
+	 */
+	private boolean await(long deadline) throws InterruptedIOException {
+		try {
+			if (deadline == Long.MAX_VALUE) {
+				wait();
+				return true;
+			}
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	synchronized byte[] getLocalId() {
+		return localId;
+	}
+
+	/**
+	 * Sets the serviceID of the socket, if it has none yet.
+	 *
+	 * @return {@code false} if the socket already has a serviceID.
+	 */
+	synchronized boolean setLocalId(byte[] id) throws SocketException {
+		checkOpen();
+		if (localId != null) {
+			return false;
+		}
+		localId = id;
+		return true;
+	}
+
+	synchronized boolean isListening() {
+		return listening;
+	}
+
+	synchronized void listen() throws SocketException {
+		checkOpen();
+		if (localId == null) {
+			throw new SocketException("Socket is not bound");
+		}
+		if (connected || connecting) {
+			throw new SocketException("Socket is already connected");
+		}
+		if (pending == null) {
+			pending = new ArrayDeque<LoopbackSocket>();
+		}
+		listening = true;
+	}
+
+	/**
+	 * Queues an incoming connection on a listening socket.
+	 *
+	 * @return {@code false} if the socket no longer listens.
+	 */
+	boolean enqueue(LoopbackSocket s) {
+		synchronized (this) {
+			if (closed || !listening) {
+				return false;
+			}
+			pending.add(s);
+			notifyAll();
+		}
+		signalWatchers();
+		return true;
+	}
+
+	/**
+	 * Accepts an incoming connection.
+	 *
+	 * @return the accepted socket, or {@code null} if none arrived
+	 *         within the timeout or the socket is non-blocking.
+	 */
+	synchronized LoopbackSocket accept(int timeout) throws IOException {
+		long deadline = deadline(timeout);
+
+		while (pending == null || pending.isEmpty()) {
+			checkOpen();
+			if (!listening) {
+				throw new SocketException("Socket is not listening");
+			}
+			if (nonBlocking || !await(deadline)) {
+				return null;
+			}
+		}
+		return pending.poll();
+	}
+
+	private synchronized int bufferSize() {
+		return rcvbuf;
+	}
+
+	/**
+	 * Starts connecting a stream socket to {@code listener}, which
+	 * serves {@code id}. The accepted socket is queued on the listener
+	 * one link delay later, and this socket is connected one round
+	 * trip later; without a link model, both happen at once.
+	 */
+	void startConnect(final LoopbackSocket listener, byte[] id)
+			throws SocketException {
+		final LoopbackSocket server =
+				new LoopbackSocket(stack, STREAM, stack.allocFd());
+		int size = listener.bufferSize();
+
+		synchronized (this) {
+			checkOpen();
+			if (connected) {
+				throw new SocketException("Socket is already connected");
+			}
+			if (connecting) {
+				return;
+			}
+			if (listening) {
+				throw new SocketException("Socket is listening");
+			}
+			ring = new byte[rcvbuf];
+			peer = server;
+			connecting = true;
+			connectError = null;
+		}
+		synchronized (server) {
+			server.localId = id;
+			server.rcvbuf = size;
+			server.ring = new byte[size];
+			server.peer = this;
+			server.connected = true;
+		}
+		stack.deliver(this, 0, new Runnable() {
+			@Override
+			public void run() {
+				if (listener.enqueue(server)) {
+					stack.deliver(server, 0, new Runnable() {
+						@Override
+						public void run() {
+							established(null);
+						}
+					});
+				} else {
+					server.close();
+					established("Connection refused");
+				}
+			}
+		});
+	}
+
+	private void established(String error) {
+		synchronized (this) {
+			if (!connecting) {
+				return;
+			}
+			connecting = false;
+			if (error == null) {
+				connected = true;
+			} else {
+				connectError = error;
+				peer = null;
+			}
+			notifyAll();
+		}
+		signalWatchers();
+	}
+
+	/**
+	 * Waits for a connection started with {@link #startConnect} to be
+	 * established, at most {@code timeout} milliseconds (0 means do
+	 * not wait, -1 means wait forever).
+	 *
+	 * @return {@code true} if the socket is connected.
+	 */
+	synchronized boolean finishConnect(int timeout) throws IOException {
+		long deadline = timeout < 0 ? Long.MAX_VALUE : System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		while (connecting) {
+			checkOpen();
+			if (timeout == 0 || !await(deadline)) {
+				return false;
+			}
+		}
+		checkOpen();
+		if (connectError != null) {
+			String error = connectError;
+			connectError = null;
+			throw new ConnectException(error);
+		}
+		return connected;
+	}
+
+	/**
+	 * Connects a datagram socket to the service {@code id}, served by
+	 * {@code target}. If the target listens, a socket is queued for it
+	 * to accept and the two sockets exchange datagrams directly;
+	 * otherwise datagrams are sent to whatever socket serves {@code id}
+	 * at the time.
+	 */
+	void connectDatagram(LoopbackSocket target, byte[] id)
+			throws SocketException {
+		LoopbackSocket server = null;
+
+		if (target.isListening()) {
+			byte[] local = getLocalId();
+
+			server = new LoopbackSocket(stack, DGRAM, stack.allocFd());
+			synchronized (server) {
+				server.localId = id;
+				server.peerId = local;
+				server.peer = this;
+				server.connected = true;
+			}
+		}
+		synchronized (this) {
+			checkOpen();
+			peer = server;
+			peerId = id;
+			connected = true;
+		}
+		if (server != null && !target.enqueue(server)) {
+			disconnect();
+			throw new ConnectException("Connection refused");
+		}
+	}
+
+	synchronized void disconnect() {
+		if (type == DGRAM) {
+			peer = null;
+			peerId = null;
+			connected = false;
+		}
+	}
+
+	/**
+	 * Returns the socket that datagrams sent on this connected socket
+	 * go to, or {@code null} if there is none.
+	 */
+	synchronized LoopbackSocket connectedDestination() throws SocketException {
+		checkOpen();
+		if (!connected) {
+			throw new SocketException("Socket is not connected");
+		}
+		if (peer != null) {
+			return peer;
+		}
+		return stack.lookup(DGRAM, peerId, 0);
+	}
+
+	/**
+	 * Reads stream data into {@code dst} at {@code off}, or into the
+	 * buffer {@code bdst} if non-null.
+	 *
+	 * @param timeout
+	 *            the receive timeout in milliseconds, 0 to wait forever
+	 *            or -1 not to wait.
+	 * @return the number of bytes read, -1 at end of stream, or
+	 *         {@link #AGAIN}.
+	 */
+	int read(byte[] dst, int off, ByteBuffer bdst, int len, int timeout,
+			boolean peek) throws IOException {
+		LoopbackSocket p;
+		int n;
+
+		synchronized (this) {
+			long deadline = deadline(timeout);
+
+			while (count == 0) {
+				checkOpen();
+				if (reset) {
+					throw new SocketException("Connection reset");
+				}
+				if (eof || inputShutdown) {
+					return -1;
+				}
+				if (!connected) {
+					throw new SocketException("Socket is not connected");
+				}
+				if (len == 0) {
+					return 0;
+				}
+				if (nonBlocking || timeout < 0 || !await(deadline)) {
+					return AGAIN;
+				}
+			}
+			n = Math.min(len, count);
+
+			int first = Math.min(n, ring.length - head);
+
+			copyOut(ring, head, dst, off, bdst, first);
+			copyOut(ring, 0, dst, off + first, bdst, n - first);
+
+			if (peek) {
+				return n;
+			}
+			count -= n;
+			head = count == 0 ? 0 : (head + n) % ring.length;
+			notifyAll();
+			p = peer;
+		}
+		// The peer may be able to write again
+		if (p != null) {
+			p.signalWatchers();
+		}
+		return n;
+	}
+
+	/**
+	 * Writes stream data from {@code src} at {@code off}, or from the
+	 * buffer {@code bsrc} if non-null, to the peer. Blocks until all
+	 * of it is written, unless the socket is non-blocking.
+	 *
+	 * @return the number of bytes written.
+	 */
+	int write(byte[] src, int off, ByteBuffer bsrc, int len)
+			throws IOException {
+		LoopbackSocket p;
+
+		synchronized (this) {
+			checkOpen();
+			if (outputShutdown) {
+				throw new SocketException("Socket output is shutdown");
+			}
+			if (reset) {
+				throw new SocketException("Connection reset");
+			}
+			if (!connected) {
+				throw new SocketException("Socket is not connected");
+			}
+			p = peer;
+		}
+		return p.receive(this, src, off, bsrc, len);
+	}
+
+	private int receive(LoopbackSocket from, byte[] src, int off,
+			ByteBuffer bsrc, int len) throws IOException {
+		boolean delayed = stack.delayed();
+		int done = 0;
+
+		synchronized (this) {
+			while (done < len) {
+				if (from.closed) {
+					throw new SocketException("Socket closed");
+				}
+				if (closed) {
+					throw new SocketException("Broken pipe");
+				}
+				if (inputShutdown) {
+					// Discarded by the peer
+					if (bsrc != null) {
+						bsrc.position(bsrc.position() + len - done);
+					}
+					return len;
+				}
+				int space = ring.length - count - inflight;
+
+				if (space <= 0) {
+					if (from.nonBlocking) {
+						break;
+					}
+					try {
+						await(Long.MAX_VALUE);
+					} catch (InterruptedIOException e) {
+						e.bytesTransferred = done;
+						throw e;
+					}
+					continue;
+				}
+				int n = Math.min(space, len - done);
+
+				if (delayed) {
+					final byte[] data = new byte[n];
+
+					copyIn(src, off + done, bsrc, data, 0, n);
+					inflight += n;
+					stack.deliver(from, n, new Runnable() {
+						@Override
+						public void run() {
+							deliverStream(data);
+						}
+					});
+				} else {
+					int tail = (head + count) % ring.length;
+					int first = Math.min(n, ring.length - tail);
+
+					copyIn(src, off + done, bsrc, ring, tail, first);
+					copyIn(src, off + done + first, bsrc, ring, 0, n - first);
+					count += n;
+					notifyAll();
+				}
+				done += n;
+			}
+		}
+		if (done > 0 && !delayed) {
+			signalWatchers();
+		}
+		return done;
+	}
+
+	private void deliverStream(byte[] data) {
+		synchronized (this) {
+			inflight -= data.length;
+			if (closed || inputShutdown) {
+				return;
+			}
+			int tail = (head + count) % ring.length;
+			int first = Math.min(data.length, ring.length - tail);
+
+			System.arraycopy(data, 0, ring, tail, first);
+			System.arraycopy(data, first, ring, 0, data.length - first);
+			count += data.length;
+			notifyAll();
+		}
+		signalWatchers();
+	}
+
+	private void deliverEof() {
+		synchronized (this) {
+			eof = true;
+			notifyAll();
+		}
+		signalWatchers();
+	}
+
+	private void deliverReset() {
+		synchronized (this) {
+			reset = true;
+			notifyAll();
+		}
+		signalWatchers();
+	}
+
+	/**
+	 * Sends a datagram from {@code src} at {@code off}, or from the
+	 * buffer {@code bsrc} if non-null, to {@code dst}, which is {@code
+	 * null} if no socket serves the destination, in which case the
+	 * datagram is dropped.
+	 *
+	 * @return the number of bytes sent.
+	 */
+	int sendDatagram(LoopbackSocket dst, byte[] src, int off,
+			ByteBuffer bsrc, int len) throws IOException {
+		checkOpen();
+		if (outputShutdown) {
+			throw new SocketException("Socket output is shutdown");
+		}
+		byte[] data = new byte[len];
+
+		copyIn(src, off, bsrc, data, 0, len);
+
+		if (dst != null) {
+			final LoopbackSocket to = dst;
+			final Datagram d = new Datagram(data, getLocalId());
+
+			if (stack.delayed()) {
+				stack.deliver(this, len, new Runnable() {
+					@Override
+					public void run() {
+						to.deliverDatagram(d);
+					}
+				});
+			} else {
+				to.deliverDatagram(d);
+			}
+		}
+		return len;
+	}
+
+	private void deliverDatagram(Datagram d) {
+		synchronized (this) {
+			if (closed || inputShutdown || queued >= rcvbuf) {
+				return;
+			}
+			if (queue == null) {
+				queue = new ArrayDeque<Datagram>();
+			}
+			queue.add(d);
+			queued += d.data.length;
+			notifyAll();
+		}
+		signalWatchers();
+	}
+
+	/**
+	 * Receives a datagram into {@code dst} at {@code off}, or into the
+	 * buffer {@code bdst} if non-null, truncated to {@code len} bytes.
+	 * Datagrams from other services than {@code filterId}, if non-null,
+	 * are dropped. The serviceID and address of the sender are copied
+	 * into {@code srcId} and {@code srcAddr}, if non-null.
+	 *
+	 * @param timeout
+	 *            the receive timeout in milliseconds, 0 to wait forever
+	 *            or -1 not to wait.
+	 * @return the received length, or {@link #AGAIN}.
+	 */
+	int receiveDatagram(byte[] dst, int off, ByteBuffer bdst, int len,
+			int timeout, boolean peek, byte[] filterId, byte[] srcId,
+			int srcIdOff, byte[] srcAddr, int srcAddrOff) throws IOException {
+		Datagram d;
+
+		synchronized (this) {
+			long deadline = deadline(timeout);
+
+			while (true) {
+				checkOpen();
+				d = queue != null ? queue.peek() : null;
+
+				if (d != null) {
+					if (filterId != null && !Arrays.equals(d.srcId, filterId)) {
+						// Not from the connected peer, drop it
+						queue.poll();
+						queued -= d.data.length;
+						continue;
+					}
+					if (!peek) {
+						queue.poll();
+						queued -= d.data.length;
+					}
+					break;
+				}
+				if (inputShutdown) {
+					return 0;
+				}
+				if (nonBlocking || timeout < 0 || !await(deadline)) {
+					return AGAIN;
+				}
+			}
+		}
+		int n = Math.min(len, d.data.length);
+
+		copyOut(d.data, 0, dst, off, bdst, n);
+
+		if (srcId != null) {
+			System.arraycopy(d.srcId, 0, srcId, srcIdOff, d.srcId.length);
+		}
+		if (srcAddr != null) {
+			System.arraycopy(LOOPBACK_ADDR, 0, srcAddr, srcAddrOff,
+					LOOPBACK_ADDR.length);
+		}
+		return n;
+	}
+
+	synchronized int available() throws SocketException {
+		checkOpen();
+		if (type == STREAM) {
+			return count;
+		}
+		Datagram d = queue != null ? queue.peek() : null;
+
+		return d != null ? d.data.length : 0;
+	}
+
+	void shutdownInput() throws SocketException {
+		LoopbackSocket p;
+
+		synchronized (this) {
+			checkOpen();
+			inputShutdown = true;
+			count = 0;
+			head = 0;
+			queue = null;
+			queued = 0;
+			notifyAll();
+			p = peer;
+		}
+		signalWatchers();
+		if (p != null) {
+			p.signalWatchers();
+		}
+	}
+
+	void shutdownOutput() throws SocketException {
+		final LoopbackSocket p;
+
+		synchronized (this) {
+			checkOpen();
+			if (outputShutdown) {
+				return;
+			}
+			outputShutdown = true;
+			p = type == STREAM && connected ? peer : null;
+		}
+		if (p != null) {
+			// Ordered after the data still on the link
+			stack.deliver(this, 0, new Runnable() {
+				@Override
+				public void run() {
+					p.deliverEof();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Closes the socket. The peer of a stream socket sees the end of
+	 * the stream, and connections that were not yet accepted are reset.
+	 */
+	void close() {
+		final LoopbackSocket p;
+		LoopbackSocket[] orphans = null;
+		boolean finish;
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			p = peer;
+			finish = type == STREAM && (connected || connecting)
+					&& !outputShutdown;
+			if (pending != null) {
+				orphans = pending.toArray(new LoopbackSocket[pending.size()]);
+				pending.clear();
+			}
+			listening = false;
+			count = 0;
+			queue = null;
+			notifyAll();
+		}
+		detachWatchers();
+
+		if (p != null) {
+			if (finish) {
+				stack.deliver(this, 0, new Runnable() {
+					@Override
+					public void run() {
+						p.deliverEof();
+					}
+				});
+			}
+			// Wake up the writers of either side blocked on the peer
+			synchronized (p) {
+				p.notifyAll();
+			}
+			p.signalWatchers();
+		}
+		if (orphans != null) {
+			for (LoopbackSocket s : orphans) {
+				final LoopbackSocket client;
+
+				synchronized (s) {
+					client = s.peer;
+				}
+				s.close();
+				if (client != null && s.type == STREAM) {
+					stack.deliver(s, 0, new Runnable() {
+						@Override
+						public void run() {
+							client.deliverReset();
+						}
+					});
+				}
+			}
+		}
+	}
+
+	synchronized void setOption(int opt, int value) throws SocketException {
+		checkOpen();
+		switch (opt) {
+		case LoopbackNetworkStack.SO_RCVBUF:
+			// Takes effect for connections made afterwards
+			rcvbuf = Math.max(value, MIN_BUFFER_SIZE);
+			break;
+		case LoopbackNetworkStack.SO_SNDBUF:
+			sndbuf = Math.max(value, MIN_BUFFER_SIZE);
+			break;
+		default:
+			if (options == null) {
+				options = new HashMap<Integer, Integer>();
+			}
+			options.put(Integer.valueOf(opt), Integer.valueOf(value));
+			break;
+		}
+	}
+
+	synchronized int getOption(int opt) throws SocketException {
+		checkOpen();
+		switch (opt) {
+		case LoopbackNetworkStack.SO_RCVBUF:
+			return rcvbuf;
+		case LoopbackNetworkStack.SO_SNDBUF:
+			return sndbuf;
+		default:
+			Integer value = options != null ?
+					options.get(Integer.valueOf(opt)) : null;
+			return value != null ? value.intValue() : 0;
+		}
+	}
+
+	@Override
+	int readyEvents() {
+		LoopbackSocket p = null;
+		int events = 0;
+
+		synchronized (this) {
+			if (closed) {
+				return 0;
+			}
+			if (listening) {
+				return pending.isEmpty() ? 0 : EPOLLIN;
+			}
+			if (type == DGRAM) {
+				if ((queue != null && !queue.isEmpty()) || inputShutdown) {
+					events |= EPOLLIN;
+				}
+				return events | EPOLLOUT;
+			}
+			if (count > 0 || eof || inputShutdown || reset) {
+				events |= EPOLLIN;
+			}
+			if (reset) {
+				events |= EPOLLERR | EPOLLHUP;
+			} else if (eof && outputShutdown) {
+				events |= EPOLLHUP;
+			}
+			if (connectError != null) {
+				events |= EPOLLERR | EPOLLOUT;
+			} else if (connected) {
+				p = peer;
+			}
+		}
+		if (p != null && p.writable()) {
+			events |= EPOLLOUT;
+		}
+		return events;
+	}
+
+	/**
+	 * Returns whether a write to this socket by its peer would not
+	 * block.
+	 */
+	private synchronized boolean writable() {
+		return closed || inputShutdown || ring.length - count - inflight > 0;
+	}
+
+	private static void copyIn(byte[] src, int off, ByteBuffer bsrc,
+			byte[] dst, int dstOff, int n) {
+		if (n == 0) {
+			return;
+		}
+		if (bsrc != null) {
+			bsrc.get(dst, dstOff, n);
+		} else {
+			System.arraycopy(src, off, dst, dstOff, n);
+		}
+	}
+
+	private static void copyOut(byte[] src, int srcOff, byte[] dst, int off,
+			ByteBuffer bdst, int n) {
+		if (n == 0) {
+			return;
+		}
+		if (bdst != null) {
+			bdst.put(src, srcOff, n);
+		} else {
+			System.arraycopy(src, srcOff, dst, off, n);
+		}
+	}
+}
@@ -4,15 +4,49 @@ package org.servalarch.platform;
 import org.servalarch.net.ServalDatagramSocketImpl;
 import org.servalarch.net.ServalSocketImpl;
 import org.servalarch.net.ServiceID;
-import org.servalarch.net.ServalDatagramPacket;
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
 import java.net.SocketException;
-
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * The socket operations used by the Serval socket and channel classes.
+ * <p>
+ * This class is also the interface of pluggable network stack
+ * backends. The default backend calls the AF_SERVAL socket API of the
+ * host through the servalnet_jni library. Other backends, such as the
+ * in-process {@link LoopbackNetworkStack}, subclass this class and
+ * override all of its public methods, including those that are not
+ * native, since those call into the library as well.
+ * <p>
+ * The backend is chosen the first time {@link #getInstance()} is
+ * called and is then shared by all sockets. It is taken from the
+ * {@value #STACK_PROPERTY} system property, which is either {@code
+ * native} (the default), {@code loopback}, {@code ffm} for the backend
+ * built on the Foreign Function and Memory API (in a separate jar, see
+ * src/javaffm), or the name of a subclass with a public no-argument
+ * constructor. Alternatively, a backend can be installed with {@link
+ * #setInstance} before the first socket is created.
+ */
 public class ServalNetworkStack {
-	private static ServalNetworkStack stack = null;
+	/**
+	 * The system property naming the network stack backend.
+	 */
+	public static final String STACK_PROPERTY = "org.servalarch.net.stack";
+
+	private static final String FFM_STACK =
+			"org.servalarch.platform.FfmNetworkStack";
+
+	private static volatile ServalNetworkStack stack = null;
+
+	/**
+	 * Returned by the non-blocking reads when no data is queued.
+	 */
+	public static final int UNAVAILABLE = -2;
 
 	private native void nativeInit();
 
@@ -25,37 +59,410 @@ public class ServalNetworkStack {
 	public native int bind(FileDescriptor fd, ServiceID serviceID, int bindBits)
 			throws SocketException;
 
-	public native int listen(FileDescriptor fd, int backlog);
+	public native int listen(FileDescriptor fd, int backlog)
+			throws SocketException;
 
 	public native FileDescriptor accept(FileDescriptor fd,
 			ServalDatagramSocketImpl sImpl, int timeout)
-					throws InterruptedIOException;
+					throws IOException;
 
 	public native FileDescriptor accept(FileDescriptor fd,
 			ServalSocketImpl sImpl, int timeout) 
-					throws InterruptedIOException;
+					throws IOException;
 
 	public native int connect(FileDescriptor fd, ServiceID serviceID,
 			InetAddress address, int timeout) throws SocketException;
 
+	/**
+	 * Initiates a connection without waiting for it to be established.
+	 * 
+	 * @return {@code true} if the connection was established
+	 *         immediately, {@code false} if it is still in progress.
+	 */
+	public native boolean startConnect(FileDescriptor fd, ServiceID serviceID,
+			InetAddress address) throws SocketException;
+
+	/**
+	 * Completes a connection initiated with {@code startConnect}, waiting
+	 * at most {@code timeout} milliseconds (0 means do not wait, -1 means
+	 * wait forever).
+	 * 
+	 * @return {@code true} if the connection is established.
+	 */
+	public native boolean finishConnect(FileDescriptor fd, int timeout)
+			throws SocketException;
+
+	public native void setNonBlocking(FileDescriptor fd, boolean nonBlocking)
+			throws SocketException;
+
 	public native int disconnect(FileDescriptor fd) throws SocketException;
 
-	/*
-	 * private native int sendto(FileDescriptor fd, byte[] data, int flags);
-	 * private native int recvfrom(FileDescriptor fd, byte[] data, int flags);
-	 */
 	public native int write(FileDescriptor fd, byte[] data, int offset,
-			int length) throws InterruptedIOException;
+			int length) throws IOException;
 
 	public native int read(FileDescriptor fd, byte[] data, int offset,
-			int length, int timeout) throws InterruptedIOException;
+			int length, int timeout) throws IOException;
 
 	private native int send(FileDescriptor fd, byte[] data, int offset,
-			int length) throws InterruptedIOException;
+			int length) throws IOException;
 
 	private native int recv(FileDescriptor fd, byte[] data, int offset,
 			int length, int timeout, boolean peek)
-			throws InterruptedIOException;
+			throws IOException;
+
+	/**
+	 * Receives a datagram into {@code data} together with the
+	 * serviceID and IPv4 address of its sender, which are copied into
+	 * {@code srcServiceID} (32 bytes) and {@code srcAddr} (4 bytes, all
+	 * zero if unknown). If {@code filterServiceID} is non-null,
+	 * datagrams from other senders are dropped by the native code, so
+	 * a connected socket needs neither a peek nor a second receive. A
+	 * negative {@code timeout} does not wait, even if the socket is in
+	 * blocking mode.
+	 * 
+	 * @return the length of the datagram.
+	 * @throws SocketTimeoutException
+	 *             if no datagram arrived in time.
+	 */
+	public native int recvfrom(FileDescriptor fd, byte[] data, int offset,
+			int length, int timeout, boolean peek, byte[] filterServiceID,
+			byte[] filterAddr, byte[] srcServiceID, byte[] srcAddr)
+			throws IOException;
+
+	private native int recvDirect(FileDescriptor fd, ByteBuffer buf,
+			int position, int length, int timeout)
+			throws IOException;
+
+	private native int sendDirect(FileDescriptor fd, ByteBuffer buf,
+			int position, int length) throws IOException;
+
+	/**
+	 * Reads from the socket into the remaining space of a buffer and
+	 * advances the buffer's position by the number of bytes read.
+	 * Direct buffers are filled by the native code in place, without
+	 * any intermediate copy; heap buffers fall back to the array-based
+	 * read.
+	 * 
+	 * @return the number of bytes read, 0 if no data arrived within
+	 *         the timeout or the socket is non-blocking and has no
+	 *         data, or -1 at end of stream.
+	 */
+	public int read(FileDescriptor fd, ByteBuffer buf, int timeout)
+			throws IOException {
+		int pos = buf.position();
+		int len = buf.limit() - pos;
+		int ret;
+
+		if (buf.isDirect()) {
+			if (buf.isReadOnly()) {
+				throw new ReadOnlyBufferException();
+			}
+			ret = recvDirect(fd, buf, pos, len, timeout);
+		} else {
+			try {
+				ret = read(fd, buf.array(), buf.arrayOffset() + pos, len,
+						timeout);
+			} catch (SocketTimeoutException e) {
+				ret = 0;
+			}
+		}
+
+		if (ret > 0) {
+			buf.position(pos + ret);
+		}
+		return ret;
+	}
+
+	public int read(FileDescriptor fd, ByteBuffer buf)
+			throws IOException {
+		return read(fd, buf, 0);
+	}
+
+	/**
+	 * Reads from the socket without waiting, also when it is in blocking
+	 * mode, for callers that wait for readiness themselves.
+	 * 
+	 * @return the number of bytes read, -1 at end of stream, or
+	 *         {@link #UNAVAILABLE} if no data is queued.
+	 */
+	public native int readNonBlocking(FileDescriptor fd, byte[] data,
+			int offset, int length) throws IOException;
+
+	/**
+	 * Reads from the socket without waiting into the remaining space of
+	 * a buffer and advances the buffer's position by the number of
+	 * bytes read.
+	 * 
+	 * @return the number of bytes read, -1 at end of stream, or
+	 *         {@link #UNAVAILABLE} if no data is queued.
+	 */
+	public int readNonBlocking(FileDescriptor fd, ByteBuffer buf)
+			throws IOException {
+		int pos = buf.position();
+		int len = buf.limit() - pos;
+		int ret;
+
+		if (len == 0) {
+			return 0;
+		}
+		if (buf.isDirect()) {
+			if (buf.isReadOnly()) {
+				throw new ReadOnlyBufferException();
+			}
+			ret = recvDirect(fd, buf, pos, len, -1);
+			if (ret == 0) {
+				ret = UNAVAILABLE;
+			}
+		} else {
+			ret = readNonBlocking(fd, buf.array(), buf.arrayOffset() + pos,
+					len);
+		}
+
+		if (ret > 0) {
+			buf.position(pos + ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer to the socket and
+	 * advances the buffer's position by the number of bytes
+	 * written. Direct buffers are handed to the native code in place.
+	 * 
+	 * @return the number of bytes written.
+	 */
+	public int write(FileDescriptor fd, ByteBuffer buf)
+			throws IOException {
+		int pos = buf.position();
+		int len = buf.limit() - pos;
+		int ret;
+
+		if (buf.isDirect()) {
+			ret = sendDirect(fd, buf, pos, len);
+		} else if (buf.hasArray()) {
+			ret = write(fd, buf.array(), buf.arrayOffset() + pos, len);
+		} else {
+			/* Read-only heap buffer, its array is not accessible */
+			byte[] data = new byte[len];
+			buf.duplicate().get(data);
+			ret = write(fd, data, 0, len);
+		}
+
+		if (ret > 0) {
+			buf.position(pos + ret);
+		}
+		return ret;
+	}
+
+	private native long readv(FileDescriptor fd, Object[] bufs,
+			int[] positions, int[] lengths, int count) throws IOException;
+
+	private native long writev(FileDescriptor fd, Object[] bufs,
+			int[] positions, int[] lengths, int count) throws IOException;
+
+	/**
+	 * Reads from the socket without waiting into the remaining space of
+	 * {@code length} buffers starting at {@code bufs[offset]}, filling
+	 * them in order with a single system call, and advances their
+	 * positions by the number of bytes read into each. Heap buffers are
+	 * filled in place, just like direct ones.
+	 * 
+	 * @return the number of bytes read, -1 at end of stream, or
+	 *         {@link #UNAVAILABLE} if no data is queued.
+	 */
+	public long readNonBlocking(FileDescriptor fd, ByteBuffer[] bufs,
+			int offset, int length) throws IOException {
+		IoVector v = new IoVector(bufs, offset, length, true);
+
+		if (v.count == 0) {
+			return 0;
+		}
+		long ret = readv(fd, v.bases, v.positions, v.lengths, v.count);
+
+		if (ret > 0) {
+			v.advance(ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the remaining bytes of {@code length} buffers starting at
+	 * {@code bufs[offset]} to the socket with a single system call,
+	 * without waiting, and advances their positions by the number of
+	 * bytes written from each.
+	 * 
+	 * @return the number of bytes written, 0 if the send buffer is
+	 *         full.
+	 */
+	public long write(FileDescriptor fd, ByteBuffer[] bufs, int offset,
+			int length) throws IOException {
+		IoVector v = new IoVector(bufs, offset, length, false);
+
+		if (v.count == 0) {
+			return 0;
+		}
+		long ret = writev(fd, v.bases, v.positions, v.lengths, v.count);
+
+		if (ret > 0) {
+			v.advance(ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * The non-empty buffers of a scatter/gather operation, as passed to
+	 * the native code: the memory of a direct buffer or the array of a
+	 * heap buffer, with the position and length of the region to use.
+	 */
+	private static final class IoVector {
+		/* Maximum number of buffers moved by one native call */
+		private static final int MAX_BUFFERS = 64;
+
+		final ByteBuffer[] bufs;
+		final Object[] bases;
+		final int[] positions;
+		final int[] lengths;
+		int count = 0;
+
+		IoVector(ByteBuffer[] srcs, int offset, int length, boolean read) {
+			if (offset < 0 || length < 0 || offset > srcs.length - length) {
+				throw new IndexOutOfBoundsException();
+			}
+			int n = Math.min(length, MAX_BUFFERS);
+
+			bufs = new ByteBuffer[n];
+			bases = new Object[n];
+			positions = new int[n];
+			lengths = new int[n];
+
+			for (int i = offset; i < offset + length && count < n; i++) {
+				ByteBuffer buf = srcs[i];
+				int pos = buf.position();
+				int len = buf.limit() - pos;
+
+				if (len == 0) {
+					continue;
+				}
+				if (read && buf.isReadOnly()) {
+					throw new ReadOnlyBufferException();
+				}
+				if (buf.isDirect()) {
+					bases[count] = buf;
+					positions[count] = pos;
+				} else if (buf.hasArray()) {
+					bases[count] = buf.array();
+					positions[count] = buf.arrayOffset() + pos;
+				} else {
+					/* Read-only heap buffer, its array is not accessible */
+					byte[] data = new byte[len];
+					buf.duplicate().get(data);
+					bases[count] = data;
+					positions[count] = 0;
+				}
+				bufs[count] = buf;
+				lengths[count++] = len;
+			}
+		}
+
+		/**
+		 * Advances the positions of the buffers by {@code n} bytes in
+		 * total, filling or draining them in order.
+		 */
+		void advance(long n) {
+			for (int i = 0; i < count && n > 0; i++) {
+				int len = (int) Math.min(n, lengths[i]);
+
+				bufs[i].position(bufs[i].position() + len);
+				n -= len;
+			}
+		}
+	}
+
+	/**
+	 * Receives up to {@code count} datagrams with a single recvmmsg
+	 * call. Datagram {@code i} is stored in {@code bufs[i]} at
+	 * {@code offsets[i]}, truncated to {@code lengths[i]} bytes, and its
+	 * received length is written back to {@code lengths[i]}. The
+	 * serviceID and IPv4 address of its sender are stored at offset
+	 * {@code i * 32} of {@code srcServiceIDs} and {@code i * 4} of
+	 * {@code srcAddrs}; the address is all-zero if the kernel did not
+	 * report one. A negative {@code timeout} does not wait.
+	 * 
+	 * @return the number of datagrams received, 0 if none arrived within
+	 *         the timeout or the socket is non-blocking.
+	 */
+	public native int recvmmsg(FileDescriptor fd, byte[][] bufs,
+			int[] offsets, int[] lengths, int count, int timeout,
+			byte[] srcServiceIDs, byte[] srcAddrs)
+			throws IOException;
+
+	/**
+	 * Sends {@code count} datagrams with a single sendmmsg call, without
+	 * waiting for room in the send buffer. If
+	 * {@code dstServiceIDs} is {@code null} they are sent to the
+	 * connected peer, otherwise to the serviceIDs and (unless all-zero)
+	 * IPv4 addresses laid out as for {@link #recvmmsg}.
+	 * 
+	 * @return the number of datagrams sent, 0 if the send buffer is
+	 *         full.
+	 */
+	public native int sendmmsg(FileDescriptor fd, byte[][] bufs,
+			int[] offsets, int[] lengths, int count, byte[] dstServiceIDs,
+			byte[] dstAddrs) throws IOException;
+
+	/**
+	 * Resolves a destination for {@link #sendto} into native memory,
+	 * which must be released with {@link #freeSockAddr}.
+	 * 
+	 * @return a handle to the native socket address.
+	 */
+	public native long createSockAddr(ServiceID serviceID, InetAddress addr,
+			int prefixBits);
+
+	public native void freeSockAddr(long sockAddr);
+
+	/**
+	 * Sends a datagram on an unconnected socket to a destination
+	 * resolved by {@link #createSockAddr}.
+	 * 
+	 * @return the number of bytes sent, 0 if the socket is
+	 *         non-blocking and its send buffer is full.
+	 */
+	public native int sendto(FileDescriptor fd, byte[] data, int offset,
+			int length, long sockAddr) throws IOException;
+
+	private native int sendtoDirect(FileDescriptor fd, ByteBuffer buf,
+			int position, int length, long sockAddr)
+			throws IOException;
+
+	/**
+	 * Sends the remaining bytes of a buffer as one datagram to a
+	 * destination resolved by {@link #createSockAddr}, and advances the
+	 * buffer's position by the number of bytes sent.
+	 */
+	public int sendto(FileDescriptor fd, ByteBuffer buf, long sockAddr)
+			throws IOException {
+		int pos = buf.position();
+		int len = buf.limit() - pos;
+		int ret;
+
+		if (buf.isDirect()) {
+			ret = sendtoDirect(fd, buf, pos, len, sockAddr);
+		} else if (buf.hasArray()) {
+			ret = sendto(fd, buf.array(), buf.arrayOffset() + pos, len,
+					sockAddr);
+		} else {
+			/* Read-only heap buffer, its array is not accessible */
+			byte[] data = new byte[len];
+			buf.duplicate().get(data);
+			ret = sendto(fd, data, 0, len, sockAddr);
+		}
+
+		if (ret > 0) {
+			buf.position(pos + ret);
+		}
+		return ret;
+	}
 
 	public native int close(FileDescriptor fd) throws IOException;
 
@@ -64,7 +471,7 @@ public class ServalNetworkStack {
 	public native InetAddress getSocketLocalAddress(FileDescriptor fd);
 
 	public native int setOption(FileDescriptor fd, int optID, int boolValue,
-			int intValue);
+			int intValue) throws SocketException;
 
 	public int setOption(FileDescriptor fd, int optID, Object val)
 			throws SocketException {
@@ -81,11 +488,13 @@ public class ServalNetworkStack {
 		return setOption(fd, optID, boolVal, intVal);
 	}
 
-	public native int getOption(FileDescriptor fd, int optID);
+	public native int getOption(FileDescriptor fd, int optID)
+			throws SocketException;
 
 	public native int getSocketFlags();
 
-	public native int availableStream(FileDescriptor fd);
+	public native int availableStream(FileDescriptor fd)
+			throws SocketException;
 
 	public native ServiceID getServiceByName(String service);
 
@@ -97,34 +506,273 @@ public class ServalNetworkStack {
 
 	public native void sendUrgentData(FileDescriptor fd, byte val);
 
-	private ServalNetworkStack() {
-		nativeInit();
+	/*
+	 * Selector support. These operate on integer descriptors so that
+	 * the selector can also poll channels of other providers.
+	 */
+	public native int getFdValue(FileDescriptor fd);
+
+	public native int epollCreate() throws IOException;
+
+	public native int epollCtl(int epfd, int op, int fd, int events)
+			throws IOException;
+
+	public native int epollWait(int epfd, int[] fds, int[] events,
+			int timeout) throws IOException;
+
+	public native int eventfdCreate() throws IOException;
+
+	public native void eventfdSignal(int fd) throws IOException;
+
+	public native void eventfdDrain(int fd) throws IOException;
+
+	public native void closeFd(int fd) throws IOException;
+
+	/*
+	 * Zero-copy transfers, which move data between descriptors within
+	 * the kernel. Only available if supportsSplice returns true.
+	 */
+
+	/**
+	 * Returns whether the backend supports {@link #sendfile}, {@link
+	 * #pipeCreate} and {@link #splice}.
+	 */
+	public boolean supportsSplice() {
+		return true;
+	}
+
+	/**
+	 * Sends up to {@code count} bytes of a file, starting at {@code
+	 * position}, to a stream socket without waiting.
+	 * 
+	 * @return the number of bytes sent, 0 at end of file, or
+	 *         {@link #UNAVAILABLE} if the send buffer is full.
+	 */
+	public native long sendfile(FileDescriptor fd, FileDescriptor file,
+			long position, long count) throws IOException;
+
+	/**
+	 * Creates a non-blocking pipe, storing its read and write ends in
+	 * {@code fds[0]} and {@code fds[1]}. Both must be closed with
+	 * {@link #closeFd}.
+	 */
+	public native void pipeCreate(int[] fds) throws IOException;
+
+	/**
+	 * Moves up to {@code count} bytes from a socket into a pipe, or
+	 * from a pipe into a socket, without waiting.
+	 * 
+	 * @return the number of bytes moved, -1 at end of stream, or
+	 *         {@link #UNAVAILABLE} if the input has no data or the
+	 *         output no room.
+	 */
+	public native long splice(int fdIn, int fdOut, long count)
+			throws IOException;
+
+	/*
+	 * io_uring support, used instead of epoll where available. A ring
+	 * is referred to by the handle returned by uringCreate. Requests
+	 * are queued without a system call and submitted with the next
+	 * uringSubmit or uringWait.
+	 */
+
+	/**
+	 * The size of the direct buffer holding the address of a
+	 * {@link #uringConnect} request.
+	 */
+	public static final int SOCKADDR_SIZE = 64;
+
+	/**
+	 * Creates an io_uring instance.
+	 * 
+	 * @return a handle to the ring, or 0 if io_uring is not available.
+	 */
+	public native long uringCreate(int entries);
+
+	/**
+	 * Queues a one-shot poll of {@code fd} for the given poll events.
+	 * Its completion carries {@code userData} and the ready events.
+	 * 
+	 * @return {@code false} if the submission ring is full.
+	 */
+	public native boolean uringPollAdd(long ring, int fd, int events,
+			long userData);
+
+	/**
+	 * Queues the cancellation of the poll with the given user data,
+	 * which then completes with -ECANCELED.
+	 * 
+	 * @return {@code false} if the submission ring is full.
+	 */
+	public native boolean uringPollRemove(long ring, long userData);
+
+	/**
+	 * Queues a receive into the {@code length} bytes of the direct
+	 * buffer {@code buf} from {@code position}, which completes once
+	 * data has arrived, with the number of bytes received, 0 at end of
+	 * stream, or -errno. The buffer must not be released until then.
+	 * 
+	 * @return {@code false} if the submission ring is full.
+	 */
+	public native boolean uringRecv(long ring, int fd, ByteBuffer buf,
+			int position, int length, long userData);
+
+	/**
+	 * Queues a send of the {@code length} bytes of the direct buffer
+	 * {@code buf} from {@code position}, which completes once some of
+	 * them could be sent, with their number or -errno.
+	 * 
+	 * @return {@code false} if the submission ring is full.
+	 */
+	public native boolean uringSend(long ring, int fd, ByteBuffer buf,
+			int position, int length, long userData);
+
+	/**
+	 * Queues the accept of a connection on the listening socket
+	 * {@code fd}, which completes with the descriptor of the connection,
+	 * to be passed to {@link #uringAccepted}, or -errno.
+	 * 
+	 * @return {@code false} if the submission ring is full.
+	 */
+	public native boolean uringAccept(long ring, int fd, long userData);
+
+	/**
+	 * Queues a connection of {@code fd} to a service, which completes
+	 * with 0 once it is established, or -errno. The address is built in
+	 * {@code addr}, a direct buffer of {@link #SOCKADDR_SIZE} bytes that
+	 * must not be released until then.
+	 * 
+	 * @return {@code false} if the submission ring is full.
+	 */
+	public native boolean uringConnect(long ring, int fd, ByteBuffer addr,
+			ServiceID serviceID, InetAddress address, long userData)
+			throws SocketException;
+
+	/**
+	 * Queues the cancellation of the request with the given user data,
+	 * which then completes with -ECANCELED unless it was already under
+	 * way.
+	 * 
+	 * @return {@code false} if the submission ring is full.
+	 */
+	public native boolean uringCancel(long ring, long userData);
+
+	/**
+	 * Interprets the result of a receive, send, accept or connect
+	 * request.
+	 * 
+	 * @return {@code result} if it is not an error, or
+	 *         {@link #UNAVAILABLE} if the request could not complete
+	 *         without waiting, which kernels that do not wait on
+	 *         non-blocking sockets report, or if a connection is still
+	 *         in progress.
+	 * @throws IOException
+	 *             for other errors, a {@code ConnectException} if
+	 *             {@code connect}.
+	 */
+	public native int uringResult(int result, boolean connect)
+			throws IOException;
+
+	/**
+	 * Returns a descriptor for a connection accepted by a
+	 * {@link #uringAccept} request.
+	 */
+	public native FileDescriptor uringAccepted(int fd);
+
+	/**
+	 * Submits the queued requests without waiting.
+	 * 
+	 * @return the number of requests submitted.
+	 */
+	public native int uringSubmit(long ring) throws IOException;
+
+	/**
+	 * Submits the queued requests and waits at most {@code timeout}
+	 * milliseconds (0 means do not wait, -1 means wait forever) for
+	 * completions, storing their user data and results.
+	 * 
+	 * @return the number of completions, 0 on timeout or when
+	 *         interrupted by a signal.
+	 */
+	public native int uringWait(long ring, long[] userData, int[] results,
+			int timeout) throws IOException;
+
+	public native void uringClose(long ring);
+
+	/**
+	 * Returns whether {@code fd} refers to an open socket of this
+	 * stack.
+	 */
+	public boolean isValid(FileDescriptor fd) {
+		return fd.valid();
+	}
+
+	/**
+	 * Creates a backend. Subclasses must not depend on the native
+	 * library, which is only loaded for the native backend.
+	 */
+	protected ServalNetworkStack() {
 	}
 
 	static public ServalNetworkStack getInstance() {
-		return stack == null ? new ServalNetworkStack() : stack;
+		ServalNetworkStack s = stack;
+
+		if (s == null) {
+			synchronized (ServalNetworkStack.class) {
+				s = stack;
+				if (s == null) {
+					s = createStack(System.getProperty(STACK_PROPERTY,
+							"native"));
+					stack = s;
+				}
+			}
+		}
+		return s;
 	}
 
-	public int recvConnectedDatagram(FileDescriptor fd,
-			ServalDatagramPacket pack, byte[] data, int offset, int length,
-			int timeout, boolean peek) throws InterruptedIOException {
-		int len = recv(fd, data, offset, length, timeout, peek);
+	/**
+	 * Installs the network stack backend. This must happen before any
+	 * socket is created, since sockets keep the backend they were
+	 * created with.
+	 * 
+	 * @throws IllegalStateException
+	 *             if another backend is already in use.
+	 */
+	static public void setInstance(ServalNetworkStack s) {
+		synchronized (ServalNetworkStack.class) {
+			if (stack != null && stack != s) {
+				throw new IllegalStateException(
+						"Another network stack is already in use");
+			}
+			stack = s;
+		}
+	}
 
-		if (len > 0) {
-			pack.setLength(len);
-		} else {
-			pack.setLength(0);
+	private static ServalNetworkStack createStack(String name) {
+		if (name.equals("native")) {
+			System.loadLibrary("servalnet_jni");
+			ServalNetworkStack s = new ServalNetworkStack();
+			s.nativeInit();
+			return s;
+		} else if (name.equals("loopback")) {
+			return new LoopbackNetworkStack();
+		} else if (name.equals("ffm")) {
+			name = FFM_STACK;
+		}
+		try {
+			return Class.forName(name).asSubclass(ServalNetworkStack.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("Bad network stack " + name,
+					e.getCause());
+		} catch (Exception e) {
+			throw new IllegalStateException("Bad network stack " + name, e);
 		}
-		return len;
 	}
 
 	public void sendConnectedDatagram(FileDescriptor fd, byte[] data,
 			int offset, int length, boolean bindToDevice)
-			throws InterruptedIOException {
+			throws IOException {
 		send(fd, data, offset, length);
 	}
-
-	static {
-		System.loadLibrary("servalnet_jni");
-	}
 }
@@ -0,0 +1,165 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.servalarch.net.ServiceID;
+import org.servalarch.net.ServiceIdTrie;
+
+/**
+ * Randomized check of ServiceIdTrie against a brute-force list of
+ * prefixes. Puts and removes prefixes of all lengths, clustered under
+ * a common base so that they nest and share the slots of the trie
+ * nodes, and after every update compares the size, the exact gets of
+ * all prefixes and longest prefix lookups with the list. Exits with
+ * status 1 on the first mismatch.
+ *
+ * Usage: ServiceIdTrieTest [rounds [seed]]
+ */
+public class ServiceIdTrieTest {
+
+    private static final int OPS_PER_ROUND = 500;
+    private static final int LOOKUPS_PER_OP = 8;
+
+    private static final class Entry {
+        final ServiceID prefix;
+        final int bits;
+        Integer value;
+
+        Entry(ServiceID prefix, int bits, Integer value) {
+            this.prefix = prefix;
+            this.bits = bits;
+            this.value = value;
+        }
+    }
+
+    private final Random random;
+    private final ServiceIdTrie<Integer> trie = new ServiceIdTrie<Integer>();
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private ServiceIdTrieTest(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Returns a serviceID with the first 'keep' bits of 'base' and
+     * random bits after them.
+     */
+    private ServiceID under(ServiceID base, int keep) {
+        byte[] id = base.getID();
+        byte[] rest = new byte[id.length];
+
+        random.nextBytes(rest);
+        for (int i = keep; i < ServiceID.SERVICE_ID_MAX_BITS; i++) {
+            int mask = 0x80 >>> (i & 7);
+
+            id[i >> 3] = (byte) ((id[i >> 3] & ~mask) | (rest[i >> 3] & mask));
+        }
+        return new ServiceID(id);
+    }
+
+    private Entry find(ServiceID prefix, int bits) {
+        for (Entry e : entries) {
+            if (e.bits == bits && e.prefix.prefixEquals(prefix, bits)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private Integer bruteLookup(ServiceID serviceID) {
+        Entry best = null;
+
+        for (Entry e : entries) {
+            if ((best == null || e.bits > best.bits)
+                && serviceID.prefixEquals(e.prefix, e.bits)) {
+                best = e;
+            }
+        }
+        return best != null ? best.value : null;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+
+    private static boolean same(Integer a, Integer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void round() {
+        ServiceID base = under(new ServiceID(0), 0);
+
+        for (int op = 0; op < OPS_PER_ROUND; op++) {
+            // Mostly short prefixes, which nest and fill several slots
+            ServiceID prefix = under(base, random.nextInt(12));
+            int bits = random.nextInt(5) == 0
+                ? random.nextInt(ServiceID.SERVICE_ID_MAX_BITS + 1)
+                : random.nextInt(24);
+            Entry e = find(prefix, bits);
+
+            if (random.nextInt(3) == 0) {
+                Integer old = trie.remove(prefix, bits);
+
+                check(same(old, e != null ? e.value : null),
+                      "remove " + prefix + "/" + bits);
+                if (e != null) {
+                    entries.remove(e);
+                }
+            } else {
+                Integer value = Integer.valueOf(random.nextInt());
+                Integer old = trie.put(prefix, bits, value);
+
+                check(same(old, e != null ? e.value : null),
+                      "put " + prefix + "/" + bits);
+                if (e != null) {
+                    e.value = value;
+                } else {
+                    entries.add(new Entry(prefix, bits, value));
+                }
+            }
+            check(trie.size() == entries.size(), "size");
+
+            for (Entry x : entries) {
+                check(same(trie.get(x.prefix, x.bits), x.value),
+                      "get " + x.prefix + "/" + x.bits);
+            }
+            for (int i = 0; i < LOOKUPS_PER_OP; i++) {
+                ServiceID id = under(base, random.nextInt(14));
+
+                check(same(trie.lookup(id), bruteLookup(id)),
+                      "lookup " + id);
+            }
+        }
+
+        // Removing everything must prune the trie back to empty
+        while (!entries.isEmpty()) {
+            Entry e = entries.remove(entries.size() - 1);
+
+            check(same(trie.remove(e.prefix, e.bits), e.value),
+                  "remove " + e.prefix + "/" + e.bits);
+        }
+        check(trie.isEmpty() && trie.size() == 0, "empty");
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long seed = args.length > 1 ? Long.parseLong(args[1])
+            : System.nanoTime();
+
+        System.out.println("ServiceIdTrieTest: " + rounds + " rounds, seed "
+                           + seed);
+
+        ServiceIdTrieTest test = new ServiceIdTrieTest(seed);
+
+        for (int i = 0; i < rounds; i++) {
+            test.round();
+        }
+        System.out.println("OK");
+    }
+}
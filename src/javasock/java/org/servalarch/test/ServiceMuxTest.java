@@ -0,0 +1,99 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.servalarch.net.ServalServiceMux;
+import org.servalarch.net.ServalSocket;
+import org.servalarch.net.ServiceID;
+
+/**
+ * Check of ServalServiceMux on the configured stack, the native one
+ * unless run with -Dorg.servalarch.net.stack=loopback. Binds a mux on
+ * a 16-bit prefix with handlers for a 24-bit and a 32-bit prefix under
+ * it, connects to serviceIDs under each, and checks that every
+ * connection reaches the handler of its longest prefix, with the
+ * serviceID the client connected to as the local serviceID of the
+ * accepted socket. Exits with status 1 on the first mismatch, so also
+ * if the stack cannot tell the accepted socket its serviceID.
+ *
+ * Usage: ServiceMuxTest [prefix]
+ */
+public class ServiceMuxTest {
+
+    private static final long WAIT_SECONDS = 5;
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * A handler that records the local serviceID of its connections
+     * and answers each with its tag.
+     */
+    private static ServalServiceMux.Handler handler(final char tag,
+                                                    final BlockingQueue<String> seen) {
+        return new ServalServiceMux.Handler() {
+            @Override
+            public void handle(ServalSocket socket) throws IOException {
+                ServiceID id = socket.getLocalServiceID();
+
+                seen.add(tag + " " + id);
+                socket.getInputStream().read();
+                socket.getOutputStream().write(tag);
+                socket.close();
+            }
+        };
+    }
+
+    private static void connect(ServiceID serviceID, char tag,
+                                BlockingQueue<String> seen)
+        throws IOException, InterruptedException {
+        ServalSocket s = new ServalSocket(serviceID);
+
+        try {
+            OutputStream out = s.getOutputStream();
+            InputStream in = s.getInputStream();
+
+            s.setSoTimeout((int) TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+            out.write(1);
+            out.flush();
+            check(in.read() == tag, "answer for " + serviceID);
+        } finally {
+            s.close();
+        }
+        String got = seen.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+
+        check((tag + " " + serviceID).equals(got),
+              "local serviceID for " + serviceID + ": " + got);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int prefix = args.length > 0 ? Integer.parseInt(args[0], 16) : 0x5b10;
+        BlockingQueue<String> seen = new ArrayBlockingQueue<String>(16);
+        ServalServiceMux mux = new ServalServiceMux(2, 4);
+
+        try {
+            mux.bind(new ServiceID(prefix << 16), 16);
+            mux.register(new ServiceID((prefix << 16) | 0x1000), 24,
+                         handler('A', seen));
+            mux.register(new ServiceID((prefix << 16) | 0x1234), 32,
+                         handler('B', seen));
+
+            connect(new ServiceID((prefix << 16) | 0x10ff), 'A', seen);
+            connect(new ServiceID((prefix << 16) | 0x1234), 'B', seen);
+            connect(new ServiceID((prefix << 16) | 0x1001), 'A', seen);
+        } finally {
+            mux.close();
+        }
+        System.out.println("OK");
+    }
+}
@@ -1,12 +1,28 @@
 /* -*- Mode: C; tab-width: 8; indent-tabs-mode: nil; c-basic-offset: 8 -*- */
+#ifndef _GNU_SOURCE
+/* For recvmmsg(), sendmmsg() and splice() */
+#define _GNU_SOURCE
+#endif
 #include <sys/socket.h>
 #include <unistd.h>
 #include <errno.h>
 #include <netinet/serval.h>
+#include <netinet/tcp.h>
 #include <poll.h>
 #include <string.h>
 #include <stdlib.h>
 #include <sys/ioctl.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sys/sendfile.h>
+#include <fcntl.h>
+#include <stdint.h>
+#if defined(HAVE_IO_URING)
+#include <endian.h>
+#include <linux/io_uring.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+#endif
 #include "JNIHelp.h"
 #include "org_servalarch_platform_ServalNetworkStack.h"
 
@@ -24,6 +40,7 @@
 #define JAVASOCKOPT_SO_BROADCAST 32
 #define JAVASOCKOPT_SO_LINGER 128
 #define JAVASOCKOPT_REUSEADDR_AND_REUSEPORT  10001
+#define JAVASOCKOPT_TCP_CORK  10002
 #define JAVASOCKOPT_SO_SNDBUF 4097
 #define JAVASOCKOPT_SO_RCVBUF 4098
 #define JAVASOCKOPT_SO_RCVTIMEOUT  4102
@@ -33,17 +50,17 @@ static int kernelStack = 1;
 
 static struct {
         jmethodID   constructor;
-        jmethodID   getID;
+        jfieldID    words[4];
         jclass      clazz;
 } gServiceIDFields;
 
+static const char *serviceIDWords[4] = { "w0", "w1", "w2", "w3" };
+
 static int fill_in_sockaddr_sv(JNIEnv *env, struct sockaddr_sv *svaddr, 
                                jobject srvid, int bits)
 {
-	jboolean isCopy;
-	jbyteArray byteArr = (*env)->CallObjectMethod(env, srvid, 
-						      gServiceIDFields.getID);
-	jbyte *arr = (*env)->GetByteArrayElements(env, byteArr, &isCopy);
+	unsigned char *id = (unsigned char *)&svaddr->sv_srvid;
+	int i, j;
 	
 	if (bits < 0 || (unsigned int)bits > 
             ((sizeof(svaddr->sv_srvid) * 8) - 1))
@@ -52,9 +69,22 @@ static int fill_in_sockaddr_sv(JNIEnv *env, struct sockaddr_sv *svaddr,
 	memset(svaddr, 0, sizeof(*svaddr));
 	svaddr->sv_family = AF_SERVAL;
 	svaddr->sv_prefix_bits = bits;
-	memcpy(&svaddr->sv_srvid, arr, sizeof(svaddr->sv_srvid));
-	
-	(*env)->ReleaseByteArrayElements(env, byteArr, arr, 0);
+
+        /* A null serviceID leaves the all-zero (any) serviceID */
+        if (srvid == NULL)
+                return 0;
+
+        /* Read the words of the serviceID in place rather than
+           through getID(), which returns a copy */
+        for (i = 0; i < 4; i++) {
+                jlong w = (*env)->GetLongField(env, srvid,
+                                               gServiceIDFields.words[i]);
+
+                for (j = 7; j >= 0; j--) {
+                        id[i * 8 + j] = (unsigned char)w;
+                        w = (jlong)((uint64_t)w >> 8);
+                }
+        }
 
         return 0;
 }
@@ -86,6 +116,7 @@ void Java_org_servalarch_platform_ServalNetworkStack_nativeInit(JNIEnv *env,
                                                                 jobject obj)
 {
 	jclass clazz;
+	int i;
 #if defined(AUTODETECT_STACK)
 	int sock = socket(AF_SERVAL, SOCK_DGRAM, 0);
 
@@ -110,11 +141,14 @@ void Java_org_servalarch_platform_ServalNetworkStack_nativeInit(JNIEnv *env,
 	}
 
 	gServiceIDFields.clazz = (*env)->NewGlobalRef(env, clazz);
-	gServiceIDFields.getID = (*env)->GetMethodID(env, clazz, 
-						     "getID", "()[B");
+	for (i = 0; i < 4; i++) {
+		gServiceIDFields.words[i] = 
+			(*env)->GetFieldID(env, clazz, serviceIDWords[i], "J");
 	
-	if (gServiceIDFields.getID == NULL) {
-		LOG_ERR("Could not find ServiceID.getID() function\n");
+		if (gServiceIDFields.words[i] == NULL) {
+			LOG_ERR("Could not find ServiceID.%s field\n",
+				serviceIDWords[i]);
+		}
 	}
 
 	gServiceIDFields.constructor = (*env)->GetMethodID(env, clazz, 
@@ -230,6 +264,11 @@ static jobject acceptCommon(JNIEnv *env, jobject obj, jobject fd, int timeout)
 	/* FIXME: set accepted serviceID and address */
 
 	if (ret == -1) {
+                if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                        /* Non-blocking socket without pending
+                         * connections, or SO_RCVTIMEO expired */
+                        return NULL;
+                }
                 LOG_ERR("Accept fail: %s\n", strerror(errno));
 		jniThrowSocketException(env, errno);
 		return NULL;
@@ -379,6 +418,145 @@ out:
 	return ret;
 }
 
+static int get_connect_error(JNIEnv *env, int sock)
+{
+        int err = 0;
+        socklen_t errlen = sizeof(err);
+
+        if (getsockopt(sock, SOL_SOCKET, SO_ERROR, &err, &errlen) == -1) {
+                LOG_ERR("getsockopt err=%s\n", strerror(errno));
+                jniThrowSocketException(env, errno);
+                return -1;
+        }
+
+        if (err != 0) {
+                jniThrowConnectException(env, err);
+                return -1;
+        }
+
+        return 0;
+}
+
+/*
+  Initiate a connection without waiting for it to complete, as needed
+  by non-blocking channels. Returns true if the connection was
+  established immediately and false if it is in progress, in which
+  case finishConnect() completes it.
+ */
+jboolean Java_org_servalarch_platform_ServalNetworkStack_startConnect(JNIEnv *env,
+                                                                      jobject obj,
+                                                                      jobject fd,
+                                                                      jobject service_id,
+                                                                      jobject ipaddr)
+{
+	struct {
+		struct sockaddr_sv svaddr;
+		struct sockaddr_in inaddr;
+	} sa;
+	socklen_t addrlen = sizeof(sa);
+	int sock, ret;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return JNI_FALSE;
+	}
+
+	memset(&sa, 0, sizeof(sa));
+	fill_in_sockaddr_sv(env, &sa.svaddr, service_id, 0);
+
+	if (ipaddr == NULL) {
+		addrlen = sizeof(sa.svaddr);
+	} else if (fill_in_sockaddr_in(env, &sa.inaddr, ipaddr) != 0) {
+		jniThrowException(env, "java/lang/IllegalArgumentException",
+				  "Bad IP address");
+                return JNI_FALSE;
+	}
+
+        do {
+                ret = connect(sock, (struct sockaddr *)&sa, addrlen);
+        } while (ret == -1 && errno == EINTR);
+
+        if (ret == 0)
+                return JNI_TRUE;
+
+        switch (errno) {
+        case EINPROGRESS:
+        case EALREADY:
+                return JNI_FALSE;
+        case EISCONN:
+                return JNI_TRUE;
+        default:
+                LOG_ERR("Connect failure: %s\n", strerror(errno));
+                jniThrowConnectException(env, errno);
+                break;
+        }
+
+        return JNI_FALSE;
+}
+
+/*
+  Complete a connection started with startConnect(). Waits at most
+  timeout milliseconds (0 = do not wait, -1 = wait forever). Returns
+  true once the connection is established.
+ */
+jboolean Java_org_servalarch_platform_ServalNetworkStack_finishConnect(JNIEnv *env,
+                                                                       jobject obj,
+                                                                       jobject fd,
+                                                                       jint timeout)
+{
+        struct pollfd fds;
+	int sock, ret;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return JNI_FALSE;
+	}
+
+        fds.fd = sock;
+        fds.events = POLLOUT;
+        fds.revents = 0;
+
+        do {
+                ret = poll(&fds, 1, timeout);
+        } while (ret == -1 && errno == EINTR);
+
+        if (ret == -1) {
+                LOG_ERR("poll fail: %s\n", strerror(errno));
+                jniThrowSocketException(env, errno);
+                return JNI_FALSE;
+        } else if (ret == 0) {
+                /* Still in progress */
+                return JNI_FALSE;
+        }
+
+        if (get_connect_error(env, sock) == -1)
+                return JNI_FALSE;
+
+        return JNI_TRUE;
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_setNonBlocking(JNIEnv *env,
+                                                                   jobject obj,
+                                                                   jobject fd,
+                                                                   jboolean nonBlocking)
+{
+	int sock, nonblock = nonBlocking ? 1 : 0;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return;
+	}
+
+        if (ioctl(sock, FIONBIO, &nonblock) == -1) {
+                LOG_ERR("Setting non-block failed: %s\n",
+                        strerror(errno));
+                jniThrowSocketException(env, errno);
+        }
+}
+
 jint Java_org_servalarch_platform_ServalNetworkStack_disconnect(JNIEnv *env, 
                                                                 jobject obj, 
                                                                 jobject fd)
@@ -387,6 +565,15 @@ jint Java_org_servalarch_platform_ServalNetworkStack_disconnect(JNIEnv *env,
 	return 0;
 }
 
+/* Sends up to this size are copied to the stack */
+#define SEND_STACK_BUFFER 8192
+
+/*
+  Send from a byte array. Small sends are copied to the stack, and
+  larger ones on a non-blocking socket send from the pinned array, so
+  that neither needs a copy on the C heap. A blocking send may wait
+  for the peer, so it cannot keep the array pinned meanwhile.
+ */
 jint Java_org_servalarch_platform_ServalNetworkStack_send(JNIEnv *env, 
                                                           jobject obj, 
                                                           jobject fd,
@@ -394,8 +581,11 @@ jint Java_org_servalarch_platform_ServalNetworkStack_send(JNIEnv *env,
                                                           jint offset, 
                                                           jint length)
 {	
-	int sock, ret;
-	jbyte* data;
+	int sock, ret, err = 0;
+	char stackbuf[SEND_STACK_BUFFER];
+	jbyte *elems = NULL;
+	char *data;
+        int pinned = 0;
 
 	sock = jniGetFDFromFileDescriptor(env, fd);
 
@@ -407,28 +597,53 @@ jint Java_org_servalarch_platform_ServalNetworkStack_send(JNIEnv *env,
 		return -1;
 	}
 
-	data = (*env)->GetByteArrayElements(env, buf, NULL);
+        if (offset < 0 || 
+            offset > (*env)->GetArrayLength(env, buf) - length) {
+                jniThrowIllegalArgumentException(env, "Bad offset or length");
+                return -1;
+        }
+
+        if (length <= SEND_STACK_BUFFER) {
+                (*env)->GetByteArrayRegion(env, buf, offset, length, 
+                                           (jbyte *)stackbuf);
+                data = stackbuf;
+        } else {
+                pinned = fcntl(sock, F_GETFL) & O_NONBLOCK;
 
-	if (data == NULL)
-		return -1;
+                if (pinned)
+                        elems = (*env)->GetPrimitiveArrayCritical(env, buf, NULL);
+                else
+                        elems = (*env)->GetByteArrayElements(env, buf, NULL);
+
+                if (elems == NULL)
+                        return -1;
+
+                data = (char *)elems + offset;
+        }
 
         do {
-                ret = send(sock, (((char *)data) + offset), length, 0);
+                ret = send(sock, data, length, 0);
                 /* Try again for non-critical errors */
         } while (ret == -1 && errno == EINTR);
 
+        if (ret == -1)
+                err = errno;
+
+        if (pinned)
+                (*env)->ReleasePrimitiveArrayCritical(env, buf, elems, JNI_ABORT);
+        else if (elems != NULL)
+                (*env)->ReleaseByteArrayElements(env, buf, elems, JNI_ABORT);
+
 	if (ret == -1) {
-		if (errno == EAGAIN || errno == EWOULDBLOCK) {
+		if (err == EAGAIN || err == EWOULDBLOCK) {
                         /* Send on a non-blocking socket --> return 0
                          * bytes sent */
 			ret = 0;
 		} else {
-			jniThrowSocketException(env, errno);
+			jniThrowSocketException(env, err);
 			ret = 0;
 		}
 	}
-
-	(*env)->ReleaseByteArrayElements(env, buf, data, 0);
 	
 	return ret;
 }
@@ -512,6 +727,163 @@ jint Java_org_servalarch_platform_ServalNetworkStack_recv(JNIEnv *env, jobject o
 	return ret;
 }
 
+/* Socket address of a datagram, the kernel appends the IP address of
+ * the peer after the serviceID */
+struct sv_msg_name {
+        struct sockaddr_sv svaddr;
+        struct sockaddr_in inaddr;
+};
+
+/* Datagrams up to this size are received on the stack */
+#define RECVFROM_STACK_BUFFER 2048
+
+/*
+  Receive a datagram together with the serviceID and IPv4 address of
+  its sender, which are written to srcServiceID and srcAddr (the
+  address is all-zero if the kernel did not report one). If
+  filterServiceID is non-NULL, datagrams from other serviceIDs (or
+  from other addresses than filterAddr, if non-NULL) are dropped. With
+  peek set, the accepted datagram is left queued. Returns the length
+  of the datagram, which is truncated to length bytes. A negative
+  timeout does not wait, even if the socket is in blocking mode.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_recvfrom(JNIEnv *env,
+                                                              jobject obj,
+                                                              jobject fd,
+                                                              jbyteArray buf,
+                                                              jint offset,
+                                                              jint length,
+                                                              jint timeout,
+                                                              jboolean peek,
+                                                              jbyteArray filterServiceID,
+                                                              jbyteArray filterAddr,
+                                                              jbyteArray srcServiceID,
+                                                              jbyteArray srcAddr)
+{
+        struct sv_msg_name name, filter;
+        char stackbuf[RECVFROM_STACK_BUFFER];
+        char *buffer = stackbuf;
+        int buflen = (length < 65536) ? length : 65536;
+        int flags = peek ? MSG_PEEK : 0;
+	int sock, ret;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return -1;
+	}
+
+        if (offset < 0 || length < 0) {
+                jniThrowIllegalArgumentException(env, "Bad offset or length");
+                return -1;
+        }
+
+        memset(&filter, 0, sizeof(filter));
+
+        if (filterServiceID != NULL) {
+                (*env)->GetByteArrayRegion(env, filterServiceID, 0,
+                                           sizeof(filter.svaddr.sv_srvid),
+                                           (jbyte *)&filter.svaddr.sv_srvid);
+                if (filterAddr != NULL)
+                        (*env)->GetByteArrayRegion(env, filterAddr, 0,
+                                                   sizeof(filter.inaddr.sin_addr),
+                                                   (jbyte *)&filter.inaddr.sin_addr);
+                if ((*env)->ExceptionCheck(env))
+                        return -1;
+        }
+
+        if (buflen > RECVFROM_STACK_BUFFER) {
+                buffer = (char *)malloc(buflen);
+
+                if (buffer == NULL) {
+                        jniThrowException(env, "java/lang/OutOfMemoryError",
+                                          "couldn't allocate enough memory for recv");
+                        return -1;
+                }
+        }
+
+        if (timeout < 0)
+                flags |= MSG_DONTWAIT;
+
+        while (1) {
+                socklen_t namelen = sizeof(name);
+
+                if (timeout > 0) {
+                        struct pollfd fds;
+                        fds.fd = sock;
+                        fds.events = POLLIN | POLLERR;
+                        fds.revents = 0;
+
+                        ret = poll(&fds, 1, timeout);
+
+                        if (ret == -1) {
+                                if (errno == EINTR)
+                                        continue;
+                                jniThrowSocketException(env, errno);
+                                break;
+                        } else if (ret == 0) {
+                                jniThrowSocketTimeoutException(env, EAGAIN);
+                                ret = -1;
+                                break;
+                        }
+                }
+
+                memset(&name, 0, sizeof(name));
+
+                ret = recvfrom(sock, buffer, buflen, flags,
+                               (struct sockaddr *)&name, &namelen);
+
+                if (ret == -1) {
+                        if (errno == EINTR)
+                                continue;
+                        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                                /* Timeout, in case SO_RCVTIMEO was set. */
+                                jniThrowSocketTimeoutException(env, errno);
+                        } else {
+                                jniThrowSocketException(env, errno);
+                        }
+                        break;
+                }
+
+                if (namelen < sizeof(name) ||
+                    name.inaddr.sin_family != AF_INET)
+                        memset(&name.inaddr.sin_addr, 0,
+                               sizeof(name.inaddr.sin_addr));
+
+                if (filterServiceID == NULL ||
+                    (memcmp(&name.svaddr.sv_srvid, &filter.svaddr.sv_srvid,
+                            sizeof(filter.svaddr.sv_srvid)) == 0 &&
+                     (filterAddr == NULL ||
+                      memcmp(&name.inaddr.sin_addr, &filter.inaddr.sin_addr,
+                             sizeof(filter.inaddr.sin_addr)) == 0)))
+                        break;
+
+                /* Not from the connected peer, drop it */
+                if (peek) {
+                        do {
+                                ret = recv(sock, buffer, 0, 0);
+                        } while (ret == -1 && errno == EINTR);
+                }
+        }
+
+        if (ret >= 0) {
+                if (ret > 0)
+                        (*env)->SetByteArrayRegion(env, buf, offset, ret,
+                                                   (jbyte *)buffer);
+                (*env)->SetByteArrayRegion(env, srcServiceID, 0,
+                                           sizeof(name.svaddr.sv_srvid),
+                                           (jbyte *)&name.svaddr.sv_srvid);
+                (*env)->SetByteArrayRegion(env, srcAddr, 0,
+                                           sizeof(name.inaddr.sin_addr),
+                                           (jbyte *)&name.inaddr.sin_addr);
+        }
+
+        if (buffer != stackbuf)
+                free(buffer);
+
+        return ret;
+}
+
 jint Java_org_servalarch_platform_ServalNetworkStack_write(JNIEnv *env, jobject obj,
                                                            jobject fd, jbyteArray data, jint offset, jint length)
 {
@@ -533,252 +905,2310 @@ jint Java_org_servalarch_platform_ServalNetworkStack_read(JNIEnv *env, jobject o
                                                                     offset, length, timeout, 0);
 }
 
-jint Java_org_servalarch_platform_ServalNetworkStack_close(JNIEnv *env, 
-                                                           jobject obj, 
-                                                           jobject fd)
+/*
+  Read from a socket without waiting, for callers that wait for
+  readiness themselves. Returns the number of bytes read, -1 at end of
+  stream, or UNAVAILABLE if no data is queued, so that a read
+  that would block does not cost an exception. As the receive cannot
+  block, it goes straight into the pinned array, without a temporary
+  buffer.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_readNonBlocking(JNIEnv *env,
+                                                                     jobject obj,
+                                                                     jobject fd,
+                                                                     jbyteArray buf,
+                                                                     jint offset,
+                                                                     jint length)
+{
+        jbyte *data;
+        int sock, ret, err = 0;
+
+        if (offset < 0 || length < 0) {
+                jniThrowIllegalArgumentException(env, "Bad offset or length");
+                return -1;
+        }
+
+        sock = jniGetFDFromFileDescriptor(env, fd);
+
+        if ((*env)->ExceptionCheck(env)) {
+                return -1;
+        }
+
+        if (offset > (*env)->GetArrayLength(env, buf) - length) {
+                jniThrowIllegalArgumentException(env, "Bad offset or length");
+                return -1;
+        }
+
+        if (length > 65536)
+                length = 65536;
+
+        data = (*env)->GetPrimitiveArrayCritical(env, buf, NULL);
+
+        if (data == NULL)
+                return -1;
+
+        do {
+                ret = recv(sock, (char *)data + offset, length, MSG_DONTWAIT);
+        } while (ret == -1 && errno == EINTR);
+
+        if (ret == -1)
+                err = errno;
+
+        /* Nothing to copy back if no data was received */
+        (*env)->ReleasePrimitiveArrayCritical(env, buf, data, 
+                                              ret > 0 ? 0 : JNI_ABORT);
+
+        if (ret == -1) {
+                if (err == EAGAIN || err == EWOULDBLOCK)
+                        ret = org_servalarch_platform_ServalNetworkStack_UNAVAILABLE;
+                else
+                        jniThrowSocketException(env, err);
+        } else if (ret == 0 && length > 0) {
+                /* Other end closed connection */
+                ret = -1;
+        }
+
+        return ret;
+}
+
+static char *get_direct_buffer(JNIEnv *env, jobject buf,
+                               jint position, jint length)
+{
+        char *data;
+
+        if (position < 0 || length < 0) {
+                jniThrowIllegalArgumentException(env, "Bad position or length");
+                return NULL;
+        }
+
+        data = (char *)(*env)->GetDirectBufferAddress(env, buf);
+
+        if (data == NULL) {
+                jniThrowIllegalArgumentException(env, "Not a direct buffer");
+                return NULL;
+        }
+
+        if ((jlong)position + length >
+            (*env)->GetDirectBufferCapacity(env, buf)) {
+                jniThrowIllegalArgumentException(env, "Bad position or length");
+                return NULL;
+        }
+
+        return data + position;
+}
+
+/*
+  Read directly into the memory backing a direct ByteBuffer, thus
+  avoiding both the temporary buffer and the extra copy of the
+  array-based read. Returns the number of bytes read, 0 if no data
+  arrived within the timeout (or the socket is non-blocking), and -1
+  on end of stream. A negative timeout does not wait.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_recvDirect(JNIEnv *env,
+                                                                jobject obj,
+                                                                jobject fd,
+                                                                jobject buf,
+                                                                jint position,
+                                                                jint length,
+                                                                jint timeout)
 {
 	int sock, ret;
+        char *data;
 
 	sock = jniGetFDFromFileDescriptor(env, fd);
-	
+
 	if ((*env)->ExceptionCheck(env)) {
 		return -1;
 	}
-	
-	ret = close(sock);
 
-	return ret;
-}
+        data = get_direct_buffer(env, buf, position, length);
 
-jobject 
-Java_org_servalarch_platform_ServalNetworkStack_getSocketLocalServiceID(JNIEnv *env, 
-                                                                        jobject obj, 
-                                                                        jobject fd)
-{
-	LOG_WARN("Not implemented!\n");
-	return NULL;
+        if (data == NULL)
+                return -1;
+
+	if (timeout > 0) {
+		struct pollfd fds;
+		fds.fd = sock;
+		fds.events = POLLIN | POLLERR;
+		fds.revents = 0;
+
+                do {
+                        ret = poll(&fds, 1, timeout);
+                } while (ret == -1 && errno == EINTR);
+
+		if (ret == -1) {
+                        jniThrowSocketException(env, errno);
+			return -1;
+                } else if (ret == 0) {
+                        return 0;
+                }
+	}
+
+        do {
+                ret = recv(sock, data, length,
+                           timeout < 0 ? MSG_DONTWAIT : 0);
+        } while (ret == -1 && errno == EINTR);
+
+        if (ret == -1) {
+                if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                        /* Non-blocking socket or SO_RCVTIMEO expired */
+                        ret = 0;
+                } else {
+                        jniThrowSocketException(env, errno);
+                }
+        } else if (ret == 0 && length > 0) {
+                /* Other end closed connection, return -1
+                 * similarly to InputStream.read() */
+                ret = -1;
+        }
+
+        return ret;
 }
 
-jint Java_org_servalarch_platform_ServalNetworkStack_setOption(JNIEnv *env, 
-                                                               jobject obj, 
-                                                               jobject fd, 
-                                                               jint opt, 
-                                                               jint bool_value, 
-                                                               jint int_value)
+/*
+  Write directly from the memory backing a direct ByteBuffer. Returns
+  the number of bytes written, which is 0 if the socket is
+  non-blocking and its send buffer is full.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_sendDirect(JNIEnv *env,
+                                                                jobject obj,
+                                                                jobject fd,
+                                                                jobject buf,
+                                                                jint position,
+                                                                jint length)
 {
-	int sock, ret = 0;
-	int bval = bool_value ? 1 : 0;
-	int ival = int_value;
+	int sock, ret;
+        char *data;
 
 	sock = jniGetFDFromFileDescriptor(env, fd);
-	
-	if ((*env)->ExceptionCheck(env))
+
+	if ((*env)->ExceptionCheck(env)) {
 		return -1;
+	}
 
-	switch (opt) {
-        case JAVASOCKOPT_IP_TOS:
-		ret = setsockopt(sock, IPPROTO_IP, 
-                                 IP_TOS, &ival, sizeof(ival));
-		break;
-        case JAVASOCKOPT_SO_KEEPALIVE:
-		ret = setsockopt(sock, SOL_SOCKET, 
-                                 SO_KEEPALIVE, &bval, sizeof(bval));
-                break;
-        case JAVASOCKOPT_SO_BROADCAST:
-		ret = setsockopt(sock, SOL_SOCKET, 
-                                 SO_BROADCAST, &bval, sizeof(bval));
-		break;
-        case JAVASOCKOPT_SO_LINGER:
-        {
-                struct linger l  = { bval, ival };
-		ret = setsockopt(sock, SOL_SOCKET, 
-                                 SO_LINGER, &l, sizeof(l));
-                break;
-        }
-        case JAVASOCKOPT_SO_REUSEADDR:
-        case JAVASOCKOPT_REUSEADDR_AND_REUSEPORT:
-		ret = setsockopt(sock, SOL_SOCKET, 
-                                 SO_REUSEADDR, &bval, sizeof(bval));
-                break;
-        case JAVASOCKOPT_SO_SNDBUF:
-		ret = setsockopt(sock, SOL_SOCKET, 
-                                 SO_SNDBUF, &ival, sizeof(ival));
-		break;
-        case JAVASOCKOPT_SO_RCVBUF:
-		ret = setsockopt(sock, SOL_SOCKET, 
-                                 SO_RCVBUF, &ival, sizeof(ival));
-		break;
-        case JAVASOCKOPT_SO_RCVTIMEOUT:
-        {
-                struct timeval timeout = { ival / 1000, 
-                                           (ival % 1000) * 1000 };
+        data = get_direct_buffer(env, buf, position, length);
 
-                LOG_DBG("SO_RCVTIMEO %ld.%06ld\n", 
-                        timeout.tv_sec, (long)timeout.tv_usec);
-		ret = setsockopt(sock, SOL_SOCKET, 
-                                 SO_RCVTIMEO, &timeout, sizeof(timeout));
-		break;
-        }
-        case JAVASOCKOPT_SO_OOBINLINE:
-		ret = setsockopt(sock, SOL_SOCKET, 
-                                 SO_OOBINLINE, &bval, sizeof(bval));
-                break;
-	default:
-		jniThrowException(env, "java/lang/IllegalArgumentException", 
-				  "Bad socket option");
-		return -1;
-	}
+        if (data == NULL)
+                return -1;
+
+        do {
+                ret = send(sock, data, length, 0);
+        } while (ret == -1 && errno == EINTR);
 
 	if (ret == -1) {
-		jniThrowSocketException(env, errno);
+		if (errno == EAGAIN || errno == EWOULDBLOCK) {
+			ret = 0;
+		} else {
+			jniThrowSocketException(env, errno);
+			ret = 0;
+		}
 	}
 
-	return ret;
+        return ret;
 }
 
-jint Java_org_servalarch_platform_ServalNetworkStack_getOption(JNIEnv *env, 
-                                                               jobject obj, 
-                                                               jobject fd, 
-                                                               jint opt)
+/* Maximum number of buffers moved by one readv/writev call */
+#define IOV_MAX_BATCH 64
+
+/*
+  Sets up one iovec per buffer of a scatter/gather operation. Each
+  element of bufs is either a direct ByteBuffer or a byte array, and
+  positions and lengths give the region to use in it. The byte arrays
+  are only collected here, their elements are pinned by
+  iov_pin_arrays() right before the system call. Returns the number of
+  byte arrays, or -1 with an exception pending.
+ */
+static int iov_setup(JNIEnv *env, jobjectArray bufs, jintArray positions,
+                     jintArray lengths, int count, struct iovec *iov,
+                     jbyteArray *arrays, int *arrayIdx)
 {
-	int sock, ret;
-	int val = 0;
-	socklen_t len = sizeof(val);
+        jint pos[IOV_MAX_BATCH], lens[IOV_MAX_BATCH];
+        int i, narrays = 0;
 
-	sock = jniGetFDFromFileDescriptor(env, fd);
-	
-	if ((*env)->ExceptionCheck(env))
-		return -1;
-	
-	switch (opt) {
-	case JAVASOCKOPT_IP_TOS:
-		ret = getsockopt(sock, IPPROTO_IP, IP_TOS, &val, &len);
-		break;
-        case JAVASOCKOPT_SO_KEEPALIVE:
-		ret = getsockopt(sock, SOL_SOCKET, SO_KEEPALIVE, &val, &len);
-                break;
-        case JAVASOCKOPT_SO_BROADCAST:
-		ret = getsockopt(sock, SOL_SOCKET, SO_BROADCAST, &val, &len);
-		break;
-        case JAVASOCKOPT_SO_LINGER:
-        {
-                struct linger l  = { 0, 0 };
-                len = sizeof(l);
-		ret = getsockopt(sock, SOL_SOCKET, SO_LINGER, &l, &len);
-                val = l.l_onoff;
-                break;
+        (*env)->GetIntArrayRegion(env, positions, 0, count, pos);
+        (*env)->GetIntArrayRegion(env, lengths, 0, count, lens);
+
+        if ((*env)->ExceptionCheck(env))
+                return -1;
+
+        /* The byte arrays are held until the call returns */
+        if ((*env)->EnsureLocalCapacity(env, count + 1) != 0)
+                return -1;
+
+        for (i = 0; i < count; i++) {
+                jobject buf = (*env)->GetObjectArrayElement(env, bufs, i);
+                char *data;
+
+                if (pos[i] < 0 || lens[i] < 0) {
+                        jniThrowIllegalArgumentException(env, "Bad position or length");
+                        goto err;
+                }
+
+                data = (char *)(*env)->GetDirectBufferAddress(env, buf);
+
+                if (data != NULL) {
+                        if ((jlong)pos[i] + lens[i] >
+                            (*env)->GetDirectBufferCapacity(env, buf)) {
+                                jniThrowIllegalArgumentException(env, "Bad position or length");
+                                goto err;
+                        }
+                        (*env)->DeleteLocalRef(env, buf);
+                        iov[i].iov_base = data + pos[i];
+                } else {
+                        if ((jlong)pos[i] + lens[i] >
+                            (*env)->GetArrayLength(env, (jarray)buf)) {
+                                jniThrowIllegalArgumentException(env, "Bad position or length");
+                                goto err;
+                        }
+                        /* Offset only, the base is set once pinned */
+                        iov[i].iov_base = (void *)(uintptr_t)pos[i];
+                        arrays[narrays] = (jbyteArray)buf;
+                        arrayIdx[narrays++] = i;
+                }
+                iov[i].iov_len = lens[i];
+                continue;
+        err:
+                (*env)->DeleteLocalRef(env, buf);
+                while (narrays > 0)
+                        (*env)->DeleteLocalRef(env, arrays[--narrays]);
+                return -1;
         }
-        case JAVASOCKOPT_SO_REUSEADDR:
-        case JAVASOCKOPT_REUSEADDR_AND_REUSEPORT:
-		ret = getsockopt(sock, SOL_SOCKET, SO_REUSEADDR, &val, &len);
-                break;
-        case JAVASOCKOPT_SO_SNDBUF:
-		ret = getsockopt(sock, SOL_SOCKET, SO_SNDBUF, &val, &len);
-		break;
-        case JAVASOCKOPT_SO_RCVBUF:
-		ret = getsockopt(sock, SOL_SOCKET, SO_RCVBUF, &val, &len);
-		break;
-        case JAVASOCKOPT_SO_RCVTIMEOUT:
-        {
-                struct timeval timeout = { 0, 0 };
-                len = sizeof(timeout);
-		ret = getsockopt(sock, SOL_SOCKET, SO_RCVTIMEO, &val, &len);
-                val = timeout.tv_sec * 1000 + (timeout.tv_usec / 1000);
-		break;
+
+        return narrays;
+}
+
+/*
+  Pins the byte arrays of a scatter/gather operation, so that the
+  system call reads or writes them in place. No JNI function may be
+  called until they are released by iov_unpin_arrays().
+ */
+static int iov_pin_arrays(JNIEnv *env, struct iovec *iov, jbyteArray *arrays,
+                          jbyte **elems, int *arrayIdx, int narrays)
+{
+        int i;
+
+        for (i = 0; i < narrays; i++) {
+                elems[i] = (jbyte *)(*env)->GetPrimitiveArrayCritical(env, arrays[i],
+                                                                     NULL);
+                if (elems[i] == NULL)
+                        break;
+                iov[arrayIdx[i]].iov_base = (char *)elems[i] +
+                        (uintptr_t)iov[arrayIdx[i]].iov_base;
         }
-        case JAVASOCKOPT_SO_OOBINLINE:
-		ret = getsockopt(sock, SOL_SOCKET, SO_OOBINLINE, &val, &len);
-	default:
-		jniThrowException(env, "java/lang/IllegalArgumentException", 
-				  "Bad socket option");
+
+        return i;
+}
+
+static void iov_unpin_arrays(JNIEnv *env, jbyteArray *arrays, jbyte **elems,
+                             int npinned, int narrays, int mode)
+{
+        while (npinned > 0) {
+                npinned--;
+                (*env)->ReleasePrimitiveArrayCritical(env, arrays[npinned],
+                                                      elems[npinned], mode);
+        }
+
+        while (narrays > 0)
+                (*env)->DeleteLocalRef(env, arrays[--narrays]);
+}
+
+/*
+  Read from a stream socket into up to count buffers with a single
+  system call, without waiting. Byte arrays are pinned and filled in
+  place, like direct buffers, instead of being copied. Returns the
+  number of bytes read, -1 at end of stream, or UNAVAILABLE if no data
+  is queued.
+ */
+jlong Java_org_servalarch_platform_ServalNetworkStack_readv(JNIEnv *env,
+                                                            jobject obj,
+                                                            jobject fd,
+                                                            jobjectArray bufs,
+                                                            jintArray positions,
+                                                            jintArray lengths,
+                                                            jint count)
+{
+        struct iovec iov[IOV_MAX_BATCH];
+        jbyteArray arrays[IOV_MAX_BATCH];
+        jbyte *elems[IOV_MAX_BATCH];
+        int arrayIdx[IOV_MAX_BATCH];
+        struct msghdr msg;
+        size_t total = 0;
+        int sock, narrays, npinned, err, i;
+        ssize_t ret;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
 		return -1;
 	}
 
-	if (ret == -1) {
-		jniThrowSocketException(env, errno);
+        if (count <= 0)
+                return 0;
+
+        if (count > IOV_MAX_BATCH)
+                count = IOV_MAX_BATCH;
+
+        narrays = iov_setup(env, bufs, positions, lengths, count, iov,
+                            arrays, arrayIdx);
+
+        if (narrays < 0)
                 return -1;
-	}
 
-	return val;
-}
+        for (i = 0; i < count; i++)
+                total += iov[i].iov_len;
 
-jint Java_org_servalarch_platform_ServalNetworkStack_getSocketFlags(JNIEnv *env, 
-                                                                    jobject obj)
-{
-	/* LOG_WARN("Not implemented!\n"); */
-	return 0;
+        memset(&msg, 0, sizeof(msg));
+        msg.msg_iov = iov;
+        msg.msg_iovlen = count;
+
+        npinned = iov_pin_arrays(env, iov, arrays, elems, arrayIdx, narrays);
+
+        if (npinned < narrays) {
+                iov_unpin_arrays(env, arrays, elems, npinned, narrays, 0);
+                jniThrowException(env, "java/lang/OutOfMemoryError",
+                                  "couldn't pin buffer for recvmsg");
+                return -1;
+        }
+
+        do {
+                ret = recvmsg(sock, &msg, MSG_DONTWAIT);
+        } while (ret == -1 && errno == EINTR);
+
+        err = errno;
+
+        iov_unpin_arrays(env, arrays, elems, npinned, narrays, 0);
+
+        if (ret == -1) {
+                if (err == EAGAIN || err == EWOULDBLOCK)
+                        ret = org_servalarch_platform_ServalNetworkStack_UNAVAILABLE;
+                else
+                        jniThrowSocketException(env, err);
+        } else if (ret == 0 && total > 0) {
+                /* Other end closed connection */
+                ret = -1;
+        }
+
+        return ret;
 }
 
-jint Java_org_servalarch_platform_ServalNetworkStack_availableStream(JNIEnv *env,
-                                                                     jobject obj, jobject fd)
+/*
+  Write up to count buffers to a stream socket with a single system
+  call, without waiting. Returns the number of bytes written, which is
+  0 if the send buffer is full.
+ */
+jlong Java_org_servalarch_platform_ServalNetworkStack_writev(JNIEnv *env,
+                                                             jobject obj,
+                                                             jobject fd,
+                                                             jobjectArray bufs,
+                                                             jintArray positions,
+                                                             jintArray lengths,
+                                                             jint count)
 {
-	int sock, ret = 0;
-	char message[2048];
+        struct iovec iov[IOV_MAX_BATCH];
+        jbyteArray arrays[IOV_MAX_BATCH];
+        jbyte *elems[IOV_MAX_BATCH];
+        int arrayIdx[IOV_MAX_BATCH];
+        struct msghdr msg;
+        int sock, narrays, npinned, err;
+        ssize_t ret;
 
 	sock = jniGetFDFromFileDescriptor(env, fd);
 
-	if ((*env)->ExceptionCheck(env))
+	if ((*env)->ExceptionCheck(env)) {
 		return -1;
+	}
 
-	if (sock == -1)
-		return -1;
-        
-	do {
-		struct timeval timeout = { 0, 1 };
-		fd_set fds;
+        if (count <= 0)
+                return 0;
 
-		FD_ZERO(&fds);
-		FD_SET(sock, &fds);
+        if (count > IOV_MAX_BATCH)
+                count = IOV_MAX_BATCH;
 
-		ret = select(sock + 1, &fds, NULL, NULL, &timeout);
+        narrays = iov_setup(env, bufs, positions, lengths, count, iov,
+                            arrays, arrayIdx);
 
-		if (ret == -1) {
-			if (errno == EINTR)
-				continue;
-			jniThrowSocketException(env, errno);
-			return -1;
-		} else if (ret == 0) {
-			// The read operation timed out, so answer 0 bytes available
-			return 0;
-		}
-	} while (ret <= 0);
+        if (narrays < 0)
+                return -1;
 
-	ret = recv(sock, message, sizeof(message), MSG_PEEK);
+        memset(&msg, 0, sizeof(msg));
+        msg.msg_iov = iov;
+        msg.msg_iovlen = count;
+
+        npinned = iov_pin_arrays(env, iov, arrays, elems, arrayIdx, narrays);
+
+        if (npinned < narrays) {
+                iov_unpin_arrays(env, arrays, elems, npinned, narrays,
+                                 JNI_ABORT);
+                jniThrowException(env, "java/lang/OutOfMemoryError",
+                                  "couldn't pin buffer for sendmsg");
+                return -1;
+        }
+
+        do {
+                ret = sendmsg(sock, &msg, MSG_DONTWAIT);
+        } while (ret == -1 && errno == EINTR);
+
+        err = errno;
+
+        iov_unpin_arrays(env, arrays, elems, npinned, narrays, JNI_ABORT);
 
 	if (ret == -1) {
-		jniThrowSocketException(env, errno);
-		return 0;
+		if (err == EAGAIN || err == EWOULDBLOCK) {
+			ret = 0;
+		} else {
+			jniThrowSocketException(env, err);
+			ret = 0;
+		}
 	}
-	return ret;
+
+        return ret;
 }
 
-jobject Java_org_servalarch_platform_ServalNetworkStack_getServiceByName(JNIEnv *env,
-                                                                         jobject obj, jstring name)
+/* Maximum number of datagrams moved by one recvmmsg/sendmmsg call */
+#define MMSG_MAX_BATCH 64
+
+#if defined(HAVE_RECVMMSG) && defined(HAVE_SENDMMSG)
+#define sv_mmsghdr mmsghdr
+#define sv_recvmmsg(sock, msgs, vlen, flags)            \
+        recvmmsg(sock, msgs, vlen, flags, NULL)
+#define sv_sendmmsg sendmmsg
+#else
+/*
+  Older C libraries, such as those of the early Android platforms the
+  NDK build targets, lack recvmmsg() and sendmmsg(). They are emulated
+  with a recvmsg() or sendmsg() call per datagram, which still saves a
+  JNI round trip per datagram. Like the real calls, they return the
+  number of datagrams moved before a failure, and only fail if none
+  was.
+ */
+struct sv_mmsghdr {
+        struct msghdr msg_hdr;
+        unsigned int msg_len;
+};
+
+static int sv_recvmmsg(int sock, struct sv_mmsghdr *msgs, unsigned int vlen,
+                       int flags)
 {
-	return NULL;
+        unsigned int i;
+        ssize_t ret;
+
+        for (i = 0; i < vlen; i++) {
+                ret = recvmsg(sock, &msgs[i].msg_hdr, flags);
+
+                if (ret == -1)
+                        return i > 0 ? (int)i : -1;
+
+                msgs[i].msg_len = ret;
+        }
+
+        return i;
 }
 
-void Java_org_servalarch_platform_ServalNetworkStack_shutdownInput(JNIEnv *env,
-                                                                   jobject obj, jobject fd)
+static int sv_sendmmsg(int sock, struct sv_mmsghdr *msgs, unsigned int vlen,
+                       int flags)
 {
+        unsigned int i;
+        ssize_t ret;
 
-}
+        for (i = 0; i < vlen; i++) {
+                ret = sendmsg(sock, &msgs[i].msg_hdr, flags);
 
-void Java_org_servalarch_platform_ServalNetworkStack_shutdownOutput(JNIEnv *env,
-                                                                    jobject obj, jobject fd)
+                if (ret == -1)
+                        return i > 0 ? (int)i : -1;
+
+                msgs[i].msg_len = ret;
+        }
+
+        return i;
+}
+#endif /* HAVE_RECVMMSG && HAVE_SENDMMSG */
+
+/*
+  Reads the offsets and lengths of a batch of packets and sets up one
+  iovec per packet, in the byte array of the packet. As with
+  iov_setup(), the arrays are only collected here and pinned by
+  iov_pin_arrays() right before the system call, so that the datagrams
+  are moved in place. Returns 0, or -1 with an exception pending.
+ */
+static int mmsg_setup(JNIEnv *env, jobjectArray bufs, jintArray offsets,
+                      jintArray lengths, int count, jint *offs, jint *lens,
+                      struct iovec *iov, jbyteArray *arrays, int *arrayIdx)
 {
+        int i;
+
+        (*env)->GetIntArrayRegion(env, offsets, 0, count, offs);
+        (*env)->GetIntArrayRegion(env, lengths, 0, count, lens);
+
+        if ((*env)->ExceptionCheck(env))
+                return -1;
+
+        /* The byte arrays are held until the call returns */
+        if ((*env)->EnsureLocalCapacity(env, count + 1) != 0)
+                return -1;
+
+        for (i = 0; i < count; i++) {
+                jbyteArray buf = (jbyteArray)(*env)->GetObjectArrayElement(env, bufs, i);
+
+                if (buf == NULL) {
+                        jniThrowNullPointerException(env, NULL);
+                        goto err;
+                }
+
+                if (offs[i] < 0 || lens[i] < 0 ||
+                    offs[i] > (*env)->GetArrayLength(env, buf) - lens[i]) {
+                        (*env)->DeleteLocalRef(env, buf);
+                        jniThrowIllegalArgumentException(env, "Bad offset or length");
+                        goto err;
+                }
+
+                /* Offset only, the base is set once pinned */
+                iov[i].iov_base = (void *)(uintptr_t)offs[i];
+                iov[i].iov_len = lens[i];
+                arrays[i] = buf;
+                arrayIdx[i] = i;
+        }
+
+        return 0;
+err:
+        while (i > 0)
+                (*env)->DeleteLocalRef(env, arrays[--i]);
 
+        return -1;
 }
 
-jboolean Java_org_servalarch_platform_ServalNetworkStack_supportsUrgentData(JNIEnv *env,
-                                                                            jobject obj, jobject fd)
+/*
+  Receive up to count datagrams with a single system call. A
+  non-negative timeout first waits for the first datagram, without
+  limit if 0, then the call only takes the datagrams already queued,
+  as the byte arrays of the packets are pinned while it runs. The
+  received lengths are written back to lengths, and the serviceID and
+  IPv4 address of each sender to srcServiceIDs and srcAddrs (an
+  all-zero address when the kernel did not report one). Returns the
+  number of datagrams received, or 0 if none arrived within the
+  timeout. A negative timeout does not wait.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_recvmmsg(JNIEnv *env,
+                                                              jobject obj,
+                                                              jobject fd,
+                                                              jobjectArray bufs,
+                                                              jintArray offsets,
+                                                              jintArray lengths,
+                                                              jint count,
+                                                              jint timeout,
+                                                              jbyteArray srcServiceIDs,
+                                                              jbyteArray srcAddrs)
 {
-	return JNI_FALSE;
-}
+        struct sv_mmsghdr msgs[MMSG_MAX_BATCH];
+        struct iovec iov[MMSG_MAX_BATCH];
+        struct sv_msg_name names[MMSG_MAX_BATCH];
+        jint offs[MMSG_MAX_BATCH], lens[MMSG_MAX_BATCH];
+        jbyteArray arrays[MMSG_MAX_BATCH];
+        jbyte *elems[MMSG_MAX_BATCH];
+        int arrayIdx[MMSG_MAX_BATCH];
+	int sock, ret, npinned, err, i;
 
-void Java_org_servalarch_platform_ServalNetworkStack_sendUrgentData(JNIEnv *env,
-                                                                    jobject obj, jobject fd, jbyte data)
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return -1;
+	}
+
+        if (count <= 0)
+                return 0;
+
+        if (count > MMSG_MAX_BATCH)
+                count = MMSG_MAX_BATCH;
+
+	if (timeout >= 0) {
+		struct pollfd fds;
+		fds.fd = sock;
+		fds.events = POLLIN | POLLERR;
+		fds.revents = 0;
+
+                do {
+                        ret = poll(&fds, 1, timeout > 0 ? timeout : -1);
+                } while (ret == -1 && errno == EINTR);
+
+		if (ret == -1) {
+                        jniThrowSocketException(env, errno);
+			return -1;
+                } else if (ret == 0) {
+                        return 0;
+                }
+	}
+
+        if (mmsg_setup(env, bufs, offsets, lengths, count, offs, lens, iov,
+                       arrays, arrayIdx) < 0)
+                return -1;
+
+        memset(msgs, 0, sizeof(msgs[0]) * count);
+
+        for (i = 0; i < count; i++) {
+                msgs[i].msg_hdr.msg_name = &names[i];
+                msgs[i].msg_hdr.msg_namelen = sizeof(names[i]);
+                msgs[i].msg_hdr.msg_iov = &iov[i];
+                msgs[i].msg_hdr.msg_iovlen = 1;
+        }
+
+        npinned = iov_pin_arrays(env, iov, arrays, elems, arrayIdx, count);
+
+        if (npinned < count) {
+                iov_unpin_arrays(env, arrays, elems, npinned, count, 0);
+                jniThrowException(env, "java/lang/OutOfMemoryError",
+                                  "couldn't pin buffers for recvmmsg");
+                return -1;
+        }
+
+        do {
+                ret = sv_recvmmsg(sock, msgs, count, MSG_DONTWAIT);
+        } while (ret == -1 && errno == EINTR);
+
+        err = errno;
+
+        iov_unpin_arrays(env, arrays, elems, npinned, count, 0);
+
+        if (ret == -1) {
+                if (err == EAGAIN || err == EWOULDBLOCK) {
+                        /* Nothing queued, or taken by another thread */
+                        ret = 0;
+                } else {
+                        jniThrowSocketException(env, err);
+                }
+                return ret;
+        }
+
+        for (i = 0; i < ret; i++) {
+                socklen_t namelen = msgs[i].msg_hdr.msg_namelen;
+                jbyte addr[4] = { 0, 0, 0, 0 };
+
+                lens[i] = msgs[i].msg_len;
+
+                if (namelen < sizeof(names[i].svaddr))
+                        memset(&names[i].svaddr.sv_srvid, 0,
+                               sizeof(names[i].svaddr.sv_srvid));
+
+                (*env)->SetByteArrayRegion(env, srcServiceIDs,
+                                           i * sizeof(names[i].svaddr.sv_srvid),
+                                           sizeof(names[i].svaddr.sv_srvid),
+                                           (jbyte *)&names[i].svaddr.sv_srvid);
+
+                if (namelen >= sizeof(names[i]) &&
+                    names[i].inaddr.sin_family == AF_INET)
+                        memcpy(addr, &names[i].inaddr.sin_addr, sizeof(addr));
+
+                (*env)->SetByteArrayRegion(env, srcAddrs, i * sizeof(addr),
+                                           sizeof(addr), addr);
+
+                if ((*env)->ExceptionCheck(env))
+                        return -1;
+        }
+
+        (*env)->SetIntArrayRegion(env, lengths, 0, ret, lens);
+
+        return ret;
+}
+
+/*
+  Send count datagrams with a single system call, without waiting, as
+  the byte arrays of the packets are pinned while it runs. If
+  dstServiceIDs is NULL the datagrams go to the connected peer,
+  otherwise each one is addressed to its serviceID in dstServiceIDs
+  and, unless all-zero, the IPv4 address in dstAddrs. Returns the
+  number of datagrams sent, which is 0 if the send buffer is full.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_sendmmsg(JNIEnv *env,
+                                                              jobject obj,
+                                                              jobject fd,
+                                                              jobjectArray bufs,
+                                                              jintArray offsets,
+                                                              jintArray lengths,
+                                                              jint count,
+                                                              jbyteArray dstServiceIDs,
+                                                              jbyteArray dstAddrs)
+{
+        struct sv_mmsghdr msgs[MMSG_MAX_BATCH];
+        struct iovec iov[MMSG_MAX_BATCH];
+        struct sv_msg_name names[MMSG_MAX_BATCH];
+        jint offs[MMSG_MAX_BATCH], lens[MMSG_MAX_BATCH];
+        jbyteArray arrays[MMSG_MAX_BATCH];
+        jbyte *elems[MMSG_MAX_BATCH];
+        int arrayIdx[MMSG_MAX_BATCH];
+	int sock, ret, npinned, err, i;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return -1;
+	}
+
+        if (count <= 0)
+                return 0;
+
+        if (count > MMSG_MAX_BATCH)
+                count = MMSG_MAX_BATCH;
+
+        if (mmsg_setup(env, bufs, offsets, lengths, count, offs, lens, iov,
+                       arrays, arrayIdx) < 0)
+                return -1;
+
+        memset(msgs, 0, sizeof(msgs[0]) * count);
+
+        /* The destinations are read before the arrays are pinned */
+        for (i = 0; i < count; i++) {
+                msgs[i].msg_hdr.msg_iov = &iov[i];
+                msgs[i].msg_hdr.msg_iovlen = 1;
+
+                if (dstServiceIDs != NULL) {
+                        jbyte addr[4];
+
+                        memset(&names[i], 0, sizeof(names[i]));
+                        names[i].svaddr.sv_family = AF_SERVAL;
+                        (*env)->GetByteArrayRegion(env, dstServiceIDs,
+                                                   i * sizeof(names[i].svaddr.sv_srvid),
+                                                   sizeof(names[i].svaddr.sv_srvid),
+                                                   (jbyte *)&names[i].svaddr.sv_srvid);
+                        (*env)->GetByteArrayRegion(env, dstAddrs, i * sizeof(addr),
+                                                   sizeof(addr), addr);
+                        msgs[i].msg_hdr.msg_name = &names[i];
+                        msgs[i].msg_hdr.msg_namelen = sizeof(names[i].svaddr);
+
+                        if (addr[0] | addr[1] | addr[2] | addr[3]) {
+                                names[i].inaddr.sin_family = AF_INET;
+                                memcpy(&names[i].inaddr.sin_addr, addr,
+                                       sizeof(addr));
+                                msgs[i].msg_hdr.msg_namelen = sizeof(names[i]);
+                        }
+                }
+
+                if ((*env)->ExceptionCheck(env)) {
+                        iov_unpin_arrays(env, arrays, elems, 0, count,
+                                         JNI_ABORT);
+                        return -1;
+                }
+        }
+
+        npinned = iov_pin_arrays(env, iov, arrays, elems, arrayIdx, count);
+
+        if (npinned < count) {
+                iov_unpin_arrays(env, arrays, elems, npinned, count,
+                                 JNI_ABORT);
+                jniThrowException(env, "java/lang/OutOfMemoryError",
+                                  "couldn't pin buffers for sendmmsg");
+                return -1;
+        }
+
+        do {
+                ret = sv_sendmmsg(sock, msgs, count, MSG_DONTWAIT);
+        } while (ret == -1 && errno == EINTR);
+
+        err = errno;
+
+        iov_unpin_arrays(env, arrays, elems, npinned, count, JNI_ABORT);
+
+	if (ret == -1) {
+		if (err == EAGAIN || err == EWOULDBLOCK) {
+			ret = 0;
+		} else {
+			jniThrowSocketException(env, err);
+		}
+	}
+
+        return ret;
+}
+
+/*
+  A resolved destination for sendto(), allocated once per destination
+  and cached by the Java side, so that repeated sends to the same
+  service skip building the socket address.
+ */
+struct sockaddr_handle {
+        socklen_t addrlen;
+        struct sv_msg_name name;
+};
+
+jlong Java_org_servalarch_platform_ServalNetworkStack_createSockAddr(JNIEnv *env,
+                                                                    jobject obj,
+                                                                    jobject service_id,
+                                                                    jobject ipaddr,
+                                                                    jint bits)
+{
+        struct sockaddr_handle *h;
+
+        if (service_id == NULL) {
+                jniThrowException(env, "java/lang/NullPointerException", NULL);
+                return 0;
+        }
+
+        h = (struct sockaddr_handle *)malloc(sizeof(*h));
+
+        if (h == NULL) {
+                jniThrowException(env, "java/lang/OutOfMemoryError",
+                                  "couldn't allocate socket address");
+                return 0;
+        }
+
+        memset(h, 0, sizeof(*h));
+        fill_in_sockaddr_sv(env, &h->name.svaddr, service_id, bits);
+        h->addrlen = sizeof(h->name.svaddr);
+
+        if (ipaddr != NULL) {
+                if (fill_in_sockaddr_in(env, &h->name.inaddr, ipaddr) != 0) {
+                        free(h);
+                        jniThrowException(env, "java/lang/IllegalArgumentException",
+                                          "Bad IP address");
+                        return 0;
+                }
+                h->addrlen = sizeof(h->name);
+        }
+
+        return (jlong)(intptr_t)h;
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_freeSockAddr(JNIEnv *env,
+                                                                 jobject obj,
+                                                                 jlong handle)
+{
+        free((void *)(intptr_t)handle);
+}
+
+static int sendto_common(JNIEnv *env, int sock, const char *data, int length,
+                         jlong handle)
+{
+        struct sockaddr_handle *h = (struct sockaddr_handle *)(intptr_t)handle;
+        int ret;
+
+        if (h == NULL) {
+                jniThrowException(env, "java/lang/NullPointerException", NULL);
+                return -1;
+        }
+
+        do {
+                ret = sendto(sock, data, length, 0,
+                             (struct sockaddr *)&h->name, h->addrlen);
+        } while (ret == -1 && errno == EINTR);
+
+	if (ret == -1) {
+		if (errno == EAGAIN || errno == EWOULDBLOCK) {
+			ret = 0;
+		} else {
+			jniThrowSocketException(env, errno);
+			ret = 0;
+		}
+	}
+
+        return ret;
+}
+
+/*
+  Send a datagram on an unconnected socket to the destination
+  previously resolved by createSockAddr(). Returns the number of bytes
+  sent, which is 0 if the socket is non-blocking and its send buffer
+  is full.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_sendto(JNIEnv *env,
+                                                            jobject obj,
+                                                            jobject fd,
+                                                            jbyteArray buf,
+                                                            jint offset,
+                                                            jint length,
+                                                            jlong handle)
+{
+        char stackbuf[RECVFROM_STACK_BUFFER];
+        char *data = stackbuf;
+	int sock, ret;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return -1;
+	}
+
+        if (offset < 0 || length < 0) {
+                jniThrowIllegalArgumentException(env, "Bad offset or length");
+                return -1;
+        }
+
+        if (length > RECVFROM_STACK_BUFFER) {
+                data = (char *)malloc(length);
+
+                if (data == NULL) {
+                        jniThrowException(env, "java/lang/OutOfMemoryError",
+                                          "couldn't allocate enough memory for send");
+                        return -1;
+                }
+        }
+
+        (*env)->GetByteArrayRegion(env, buf, offset, length, (jbyte *)data);
+
+        if ((*env)->ExceptionCheck(env))
+                ret = -1;
+        else
+                ret = sendto_common(env, sock, data, length, handle);
+
+        if (data != stackbuf)
+                free(data);
+
+        return ret;
+}
+
+/*
+  Like sendto(), but sends directly from the memory backing a direct
+  ByteBuffer.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_sendtoDirect(JNIEnv *env,
+                                                                  jobject obj,
+                                                                  jobject fd,
+                                                                  jobject buf,
+                                                                  jint position,
+                                                                  jint length,
+                                                                  jlong handle)
+{
+	int sock;
+        char *data;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return -1;
+	}
+
+        data = get_direct_buffer(env, buf, position, length);
+
+        if (data == NULL)
+                return -1;
+
+        return sendto_common(env, sock, data, length, handle);
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_close(JNIEnv *env, 
+                                                           jobject obj, 
+                                                           jobject fd)
+{
+	int sock, ret;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+	
+	if ((*env)->ExceptionCheck(env)) {
+		return -1;
+	}
+	
+	ret = close(sock);
+
+	return ret;
+}
+
+/*
+  Reads the local name of a socket into sv, and into in if it has an
+  address. For an accepted socket, the name holds the serviceID its
+  peer connected to rather than the prefix the listening socket was
+  bound to. Returns the length of the name, or -1 if the socket has no
+  Serval name.
+ */
+static int get_local_name(JNIEnv *env, jobject fd, struct sockaddr_sv *sv,
+                          struct sockaddr_in *in)
+{
+	struct {
+		struct sockaddr_sv svaddr;
+		struct sockaddr_in inaddr;
+	} sa;
+	socklen_t addrlen = sizeof(sa);
+	int sock;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env))
+		return -1;
+
+	memset(&sa, 0, sizeof(sa));
+
+	if (getsockname(sock, (struct sockaddr *)&sa, &addrlen) == -1 ||
+	    addrlen < sizeof(sa.svaddr) ||
+	    sa.svaddr.sv_family != AF_SERVAL)
+		return -1;
+
+	memcpy(sv, &sa.svaddr, sizeof(*sv));
+	memcpy(in, &sa.inaddr, sizeof(*in));
+
+	return addrlen;
+}
+
+jobject 
+Java_org_servalarch_platform_ServalNetworkStack_getSocketLocalServiceID(JNIEnv *env, 
+                                                                        jobject obj, 
+                                                                        jobject fd)
+{
+	struct sockaddr_sv svaddr;
+	struct sockaddr_in inaddr;
+	jbyteArray id;
+
+	if (get_local_name(env, fd, &svaddr, &inaddr) == -1)
+		return NULL;
+
+	id = (*env)->NewByteArray(env, sizeof(svaddr.sv_srvid));
+
+	if (id == NULL)
+		return NULL;
+
+	(*env)->SetByteArrayRegion(env, id, 0, sizeof(svaddr.sv_srvid),
+				   (jbyte *)&svaddr.sv_srvid);
+
+	return (*env)->NewObject(env, gServiceIDFields.clazz,
+				 gServiceIDFields.constructor, id);
+}
+
+jobject 
+Java_org_servalarch_platform_ServalNetworkStack_getSocketLocalAddress(JNIEnv *env, 
+                                                                      jobject obj, 
+                                                                      jobject fd)
+{
+	struct sockaddr_sv svaddr;
+	struct sockaddr_in inaddr;
+	jclass clazz;
+	jmethodID mid;
+	jbyteArray addr;
+	int len = get_local_name(env, fd, &svaddr, &inaddr);
+
+	/* Only bound to an address if the name has one */
+	if (len < (int)(sizeof(svaddr) + sizeof(inaddr)) ||
+	    inaddr.sin_family != AF_INET)
+		return NULL;
+
+	addr = (*env)->NewByteArray(env, sizeof(inaddr.sin_addr));
+
+	if (addr == NULL)
+		return NULL;
+
+	(*env)->SetByteArrayRegion(env, addr, 0, sizeof(inaddr.sin_addr),
+				   (jbyte *)&inaddr.sin_addr);
+
+	clazz = (*env)->FindClass(env, "java/net/InetAddress");
+
+	if (clazz == NULL)
+		return NULL;
+
+	mid = (*env)->GetStaticMethodID(env, clazz, "getByAddress",
+					"([B)Ljava/net/InetAddress;");
+
+	if (mid == NULL)
+		return NULL;
+
+	return (*env)->CallStaticObjectMethod(env, clazz, mid, addr);
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_setOption(JNIEnv *env, 
+                                                               jobject obj, 
+                                                               jobject fd, 
+                                                               jint opt, 
+                                                               jint bool_value, 
+                                                               jint int_value)
+{
+	int sock, ret = 0;
+	int bval = bool_value ? 1 : 0;
+	int ival = int_value;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+	
+	if ((*env)->ExceptionCheck(env))
+		return -1;
+
+	switch (opt) {
+        case JAVASOCKOPT_IP_TOS:
+		ret = setsockopt(sock, IPPROTO_IP, 
+                                 IP_TOS, &ival, sizeof(ival));
+		break;
+        case JAVASOCKOPT_SO_KEEPALIVE:
+		ret = setsockopt(sock, SOL_SOCKET, 
+                                 SO_KEEPALIVE, &bval, sizeof(bval));
+                break;
+        case JAVASOCKOPT_SO_BROADCAST:
+		ret = setsockopt(sock, SOL_SOCKET, 
+                                 SO_BROADCAST, &bval, sizeof(bval));
+		break;
+        case JAVASOCKOPT_SO_LINGER:
+        {
+                struct linger l  = { bval, ival };
+		ret = setsockopt(sock, SOL_SOCKET, 
+                                 SO_LINGER, &l, sizeof(l));
+                break;
+        }
+        case JAVASOCKOPT_SO_REUSEADDR:
+        case JAVASOCKOPT_REUSEADDR_AND_REUSEPORT:
+		ret = setsockopt(sock, SOL_SOCKET, 
+                                 SO_REUSEADDR, &bval, sizeof(bval));
+                break;
+        case JAVASOCKOPT_SO_SNDBUF:
+		ret = setsockopt(sock, SOL_SOCKET, 
+                                 SO_SNDBUF, &ival, sizeof(ival));
+		break;
+        case JAVASOCKOPT_SO_RCVBUF:
+		ret = setsockopt(sock, SOL_SOCKET, 
+                                 SO_RCVBUF, &ival, sizeof(ival));
+		break;
+        case JAVASOCKOPT_SO_RCVTIMEOUT:
+        {
+                struct timeval timeout = { ival / 1000, 
+                                           (ival % 1000) * 1000 };
+
+                LOG_DBG("SO_RCVTIMEO %ld.%06ld\n", 
+                        timeout.tv_sec, (long)timeout.tv_usec);
+		ret = setsockopt(sock, SOL_SOCKET, 
+                                 SO_RCVTIMEO, &timeout, sizeof(timeout));
+		break;
+        }
+        case JAVASOCKOPT_SO_OOBINLINE:
+		ret = setsockopt(sock, SOL_SOCKET, 
+                                 SO_OOBINLINE, &bval, sizeof(bval));
+                break;
+        case JAVASOCKOPT_TCP_CORK:
+		ret = setsockopt(sock, IPPROTO_TCP, 
+                                 TCP_CORK, &bval, sizeof(bval));
+                break;
+	default:
+		jniThrowException(env, "java/lang/IllegalArgumentException", 
+				  "Bad socket option");
+		return -1;
+	}
+
+	if (ret == -1) {
+		jniThrowSocketException(env, errno);
+	}
+
+	return ret;
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_getOption(JNIEnv *env, 
+                                                               jobject obj, 
+                                                               jobject fd, 
+                                                               jint opt)
+{
+	int sock, ret;
+	int val = 0;
+	socklen_t len = sizeof(val);
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+	
+	if ((*env)->ExceptionCheck(env))
+		return -1;
+	
+	switch (opt) {
+	case JAVASOCKOPT_IP_TOS:
+		ret = getsockopt(sock, IPPROTO_IP, IP_TOS, &val, &len);
+		break;
+        case JAVASOCKOPT_SO_KEEPALIVE:
+		ret = getsockopt(sock, SOL_SOCKET, SO_KEEPALIVE, &val, &len);
+                break;
+        case JAVASOCKOPT_SO_BROADCAST:
+		ret = getsockopt(sock, SOL_SOCKET, SO_BROADCAST, &val, &len);
+		break;
+        case JAVASOCKOPT_SO_LINGER:
+        {
+                struct linger l  = { 0, 0 };
+                len = sizeof(l);
+		ret = getsockopt(sock, SOL_SOCKET, SO_LINGER, &l, &len);
+                val = l.l_onoff;
+                break;
+        }
+        case JAVASOCKOPT_SO_REUSEADDR:
+        case JAVASOCKOPT_REUSEADDR_AND_REUSEPORT:
+		ret = getsockopt(sock, SOL_SOCKET, SO_REUSEADDR, &val, &len);
+                break;
+        case JAVASOCKOPT_SO_SNDBUF:
+		ret = getsockopt(sock, SOL_SOCKET, SO_SNDBUF, &val, &len);
+		break;
+        case JAVASOCKOPT_SO_RCVBUF:
+		ret = getsockopt(sock, SOL_SOCKET, SO_RCVBUF, &val, &len);
+		break;
+        case JAVASOCKOPT_SO_RCVTIMEOUT:
+        {
+                struct timeval timeout = { 0, 0 };
+                len = sizeof(timeout);
+		ret = getsockopt(sock, SOL_SOCKET, SO_RCVTIMEO, &val, &len);
+                val = timeout.tv_sec * 1000 + (timeout.tv_usec / 1000);
+		break;
+        }
+        case JAVASOCKOPT_SO_OOBINLINE:
+		ret = getsockopt(sock, SOL_SOCKET, SO_OOBINLINE, &val, &len);
+                break;
+        case JAVASOCKOPT_TCP_CORK:
+		ret = getsockopt(sock, IPPROTO_TCP, TCP_CORK, &val, &len);
+                break;
+	default:
+		jniThrowException(env, "java/lang/IllegalArgumentException", 
+				  "Bad socket option");
+		return -1;
+	}
+
+	if (ret == -1) {
+		jniThrowSocketException(env, errno);
+                return -1;
+	}
+
+	return val;
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_getSocketFlags(JNIEnv *env, 
+                                                                    jobject obj)
+{
+	/* LOG_WARN("Not implemented!\n"); */
+	return 0;
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_availableStream(JNIEnv *env,
+                                                                     jobject obj, jobject fd)
+{
+	int sock, ret = 0;
+	char message[2048];
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env))
+		return -1;
+
+	if (sock == -1)
+		return -1;
+        
+	do {
+		struct timeval timeout = { 0, 1 };
+		fd_set fds;
+
+		FD_ZERO(&fds);
+		FD_SET(sock, &fds);
+
+		ret = select(sock + 1, &fds, NULL, NULL, &timeout);
+
+		if (ret == -1) {
+			if (errno == EINTR)
+				continue;
+			jniThrowSocketException(env, errno);
+			return -1;
+		} else if (ret == 0) {
+			// The read operation timed out, so answer 0 bytes available
+			return 0;
+		}
+	} while (ret <= 0);
+
+	ret = recv(sock, message, sizeof(message), MSG_PEEK);
+
+	if (ret == -1) {
+		jniThrowSocketException(env, errno);
+		return 0;
+	}
+	return ret;
+}
+
+jobject Java_org_servalarch_platform_ServalNetworkStack_getServiceByName(JNIEnv *env,
+                                                                         jobject obj, jstring name)
+{
+	return NULL;
+}
+
+static void shutdownCommon(JNIEnv *env, jobject fd, int how)
+{
+	int sock;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env))
+		return;
+
+        if (shutdown(sock, how) == -1 && errno != ENOTCONN) {
+                jniThrowSocketException(env, errno);
+        }
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_shutdownInput(JNIEnv *env,
+                                                                   jobject obj, jobject fd)
+{
+        shutdownCommon(env, fd, SHUT_RD);
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_shutdownOutput(JNIEnv *env,
+                                                                    jobject obj, jobject fd)
+{
+        shutdownCommon(env, fd, SHUT_WR);
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_supportsUrgentData(JNIEnv *env,
+                                                                            jobject obj, jobject fd)
+{
+	return JNI_FALSE;
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_sendUrgentData(JNIEnv *env,
+                                                                    jobject obj, jobject fd, jbyte data)
+{
+}
+
+/*
+  Selector support. The selector works on plain integer descriptors so
+  that it can also poll the channels of other providers.
+ */
+#define EPOLL_MAX_EVENTS 256
+
+jint Java_org_servalarch_platform_ServalNetworkStack_getFdValue(JNIEnv *env,
+                                                                jobject obj,
+                                                                jobject fd)
+{
+        return jniGetFDFromFileDescriptor(env, fd);
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_epollCreate(JNIEnv *env,
+                                                                 jobject obj)
+{
+        int epfd = epoll_create(EPOLL_MAX_EVENTS);
+
+        if (epfd == -1) {
+                jniThrowIOException(env, errno);
+                return -1;
+        }
+
+        fcntl(epfd, F_SETFD, FD_CLOEXEC);
+
+        return epfd;
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_epollCtl(JNIEnv *env,
+                                                              jobject obj,
+                                                              jint epfd,
+                                                              jint op,
+                                                              jint fd,
+                                                              jint events)
+{
+        struct epoll_event ev;
+
+        memset(&ev, 0, sizeof(ev));
+        ev.events = events;
+        ev.data.fd = fd;
+
+        if (epoll_ctl(epfd, op, fd, &ev) == -1) {
+                if (op == EPOLL_CTL_DEL && 
+                    (errno == ENOENT || errno == EBADF)) {
+                        /* Already gone because the fd was closed */
+                        return -1;
+                }
+                jniThrowIOException(env, errno);
+                return -1;
+        }
+
+        return 0;
+}
+
+/*
+  Wait for events, storing the ready descriptors and their events in
+  the given arrays. Returns the number of ready descriptors, which is
+  0 on timeout or when interrupted by a signal.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_epollWait(JNIEnv *env,
+                                                               jobject obj,
+                                                               jint epfd,
+                                                               jintArray fds,
+                                                               jintArray events,
+                                                               jint timeout)
+{
+        struct epoll_event evs[EPOLL_MAX_EVENTS];
+        jint readyfds[EPOLL_MAX_EVENTS];
+        jint readyevents[EPOLL_MAX_EVENTS];
+        int max = (*env)->GetArrayLength(env, fds);
+        int i, ret;
+
+        if (max > EPOLL_MAX_EVENTS)
+                max = EPOLL_MAX_EVENTS;
+
+        ret = epoll_wait(epfd, evs, max, timeout);
+
+        if (ret == -1) {
+                if (errno == EINTR)
+                        return 0;
+                jniThrowIOException(env, errno);
+                return -1;
+        }
+
+        for (i = 0; i < ret; i++) {
+                readyfds[i] = evs[i].data.fd;
+                readyevents[i] = evs[i].events;
+        }
+
+        (*env)->SetIntArrayRegion(env, fds, 0, ret, readyfds);
+        (*env)->SetIntArrayRegion(env, events, 0, ret, readyevents);
+
+        return ret;
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_eventfdCreate(JNIEnv *env,
+                                                                   jobject obj)
+{
+        int fd = eventfd(0, 0);
+
+        if (fd == -1) {
+                jniThrowIOException(env, errno);
+                return -1;
+        }
+
+        fcntl(fd, F_SETFD, FD_CLOEXEC);
+        fcntl(fd, F_SETFL, fcntl(fd, F_GETFL) | O_NONBLOCK);
+
+        return fd;
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_eventfdSignal(JNIEnv *env,
+                                                                   jobject obj,
+                                                                   jint fd)
+{
+        uint64_t val = 1;
+
+        if (write(fd, &val, sizeof(val)) == -1 && errno != EAGAIN) {
+                jniThrowIOException(env, errno);
+        }
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_eventfdDrain(JNIEnv *env,
+                                                                  jobject obj,
+                                                                  jint fd)
+{
+        uint64_t val;
+
+        if (read(fd, &val, sizeof(val)) == -1 && errno != EAGAIN) {
+                jniThrowIOException(env, errno);
+        }
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_closeFd(JNIEnv *env,
+                                                             jobject obj,
+                                                             jint fd)
+{
+        if (close(fd) == -1) {
+                jniThrowIOException(env, errno);
+        }
+}
+
+/* Maximum number of bytes moved by one sendfile() or splice() call */
+#define SPLICE_MAX_CHUNK (1 << 30)
+
+/*
+  Send up to count bytes of a file, starting at position, to a stream
+  socket with sendfile(), so that the data never leaves the kernel.
+  Does not wait. Returns the number of bytes sent, 0 at end of file,
+  or UNAVAILABLE if the send buffer is full.
+ */
+jlong Java_org_servalarch_platform_ServalNetworkStack_sendfile(JNIEnv *env,
+                                                               jobject obj,
+                                                               jobject fd,
+                                                               jobject file,
+                                                               jlong position,
+                                                               jlong count)
+{
+        off_t off = position;
+        int sock, in;
+        ssize_t ret;
+
+	sock = jniGetFDFromFileDescriptor(env, fd);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return -1;
+	}
+
+	in = jniGetFDFromFileDescriptor(env, file);
+
+	if ((*env)->ExceptionCheck(env)) {
+		return -1;
+	}
+
+        if (position < 0 || count < 0) {
+                jniThrowIllegalArgumentException(env, "Bad position or count");
+                return -1;
+        }
+
+        if (count > SPLICE_MAX_CHUNK)
+                count = SPLICE_MAX_CHUNK;
+
+        do {
+                ret = sendfile(sock, in, &off, count);
+        } while (ret == -1 && errno == EINTR);
+
+        if (ret == -1) {
+                if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                        ret = org_servalarch_platform_ServalNetworkStack_UNAVAILABLE;
+                } else {
+                        jniThrowSocketException(env, errno);
+                }
+        }
+
+        return ret;
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_pipeCreate(JNIEnv *env,
+                                                                jobject obj,
+                                                                jintArray fds)
+{
+        jint p[2];
+
+        if (pipe(p) == -1) {
+                jniThrowIOException(env, errno);
+                return;
+        }
+
+        fcntl(p[0], F_SETFD, FD_CLOEXEC);
+        fcntl(p[0], F_SETFL, fcntl(p[0], F_GETFL) | O_NONBLOCK);
+        fcntl(p[1], F_SETFD, FD_CLOEXEC);
+        fcntl(p[1], F_SETFL, fcntl(p[1], F_GETFL) | O_NONBLOCK);
+
+        (*env)->SetIntArrayRegion(env, fds, 0, 2, p);
+
+        if ((*env)->ExceptionCheck(env)) {
+                close(p[0]);
+                close(p[1]);
+        }
+}
+
+/*
+  Move up to count bytes from a socket into a pipe, or from a pipe
+  into a socket, with splice(), like the translator does to forward
+  data between sockets. Does not wait. Returns the number of bytes
+  moved, -1 at end of stream, or UNAVAILABLE if the input has no data
+  or the output has no room.
+ */
+jlong Java_org_servalarch_platform_ServalNetworkStack_splice(JNIEnv *env,
+                                                             jobject obj,
+                                                             jint fdIn,
+                                                             jint fdOut,
+                                                             jlong count)
+{
+        ssize_t ret;
+
+        if (count <= 0)
+                return 0;
+
+        if (count > SPLICE_MAX_CHUNK)
+                count = SPLICE_MAX_CHUNK;
+
+        do {
+                ret = splice(fdIn, NULL, fdOut, NULL, count,
+                             SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+        } while (ret == -1 && errno == EINTR);
+
+        if (ret == -1) {
+                if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                        ret = org_servalarch_platform_ServalNetworkStack_UNAVAILABLE;
+                } else {
+                        jniThrowSocketException(env, errno);
+                }
+        } else if (ret == 0) {
+                /* End of stream of the input */
+                ret = -1;
+        }
+
+        return ret;
+}
+
+/*
+  io_uring support. A ring is used like an epoll instance, but the
+  requests to poll descriptors are queued in the submission ring
+  without a system call and submitted together with the next wait, so
+  that arming and disarming many descriptors costs a single
+  io_uring_enter. Receives, sends, accepts and connects can also be
+  queued on a ring, so that a blocking operation is a single request
+  completed by the kernel rather than a poll followed by the system
+  call. The ring is set up with the raw system calls, so that
+  liburing is not needed.
+ */
+#if defined(HAVE_IO_URING)
+
+/* Maximum number of completions reaped by one uringWait() */
+#define URING_MAX_COMPLETIONS 256
+
+struct serval_ring {
+        int fd;
+        unsigned sq_entries;
+        unsigned *sq_head;
+        unsigned *sq_tail;
+        unsigned *sq_mask;
+        struct io_uring_sqe *sqes;
+        unsigned *cq_head;
+        unsigned *cq_tail;
+        unsigned *cq_mask;
+        struct io_uring_cqe *cqes;
+        void *sq_ring;
+        size_t sq_ring_size;
+        void *cq_ring;
+        size_t cq_ring_size;
+        size_t sqes_size;
+};
+
+static void ring_free(struct serval_ring *r)
+{
+        if (r->sqes != NULL && r->sqes != MAP_FAILED)
+                munmap(r->sqes, r->sqes_size);
+        if (r->cq_ring != NULL && r->cq_ring != MAP_FAILED &&
+            r->cq_ring != r->sq_ring)
+                munmap(r->cq_ring, r->cq_ring_size);
+        if (r->sq_ring != NULL && r->sq_ring != MAP_FAILED)
+                munmap(r->sq_ring, r->sq_ring_size);
+        close(r->fd);
+        free(r);
+}
+
+/*
+  Returns a cleared submission queue entry, or NULL if the submission
+  ring is full. Callers serialize the submission side of a ring.
+ */
+static struct io_uring_sqe *ring_get_sqe(struct serval_ring *r)
+{
+        unsigned head = __atomic_load_n(r->sq_head, __ATOMIC_ACQUIRE);
+        unsigned tail = *r->sq_tail;
+        struct io_uring_sqe *sqe;
+
+        if (tail - head >= r->sq_entries)
+                return NULL;
+
+        sqe = &r->sqes[tail & *r->sq_mask];
+        memset(sqe, 0, sizeof(*sqe));
+
+        return sqe;
+}
+
+static void ring_queue_sqe(struct serval_ring *r)
+{
+        __atomic_store_n(r->sq_tail, *r->sq_tail + 1, __ATOMIC_RELEASE);
+}
+
+static unsigned ring_pending(struct serval_ring *r)
+{
+        return __atomic_load_n(r->sq_tail, __ATOMIC_ACQUIRE) -
+                __atomic_load_n(r->sq_head, __ATOMIC_ACQUIRE);
+}
+
+static unsigned ring_ready(struct serval_ring *r)
+{
+        return __atomic_load_n(r->cq_tail, __ATOMIC_ACQUIRE) - *r->cq_head;
+}
+
+/*
+  Submits the queued requests and waits for min_complete completions,
+  at most timeout milliseconds (-1 = wait forever).
+ */
+static int ring_enter(struct serval_ring *r, unsigned min_complete,
+                      int timeout)
+{
+        struct io_uring_getevents_arg arg;
+        struct __kernel_timespec ts;
+        unsigned to_submit = ring_pending(r);
+
+        if (min_complete == 0) {
+                if (to_submit == 0)
+                        return 0;
+                return syscall(__NR_io_uring_enter, r->fd, to_submit,
+                               0, 0, NULL, 0);
+        }
+
+        memset(&arg, 0, sizeof(arg));
+
+        if (timeout >= 0) {
+                ts.tv_sec = timeout / 1000;
+                ts.tv_nsec = (timeout % 1000) * 1000000LL;
+                arg.ts = (uint64_t)(uintptr_t)&ts;
+        }
+
+        return syscall(__NR_io_uring_enter, r->fd, to_submit, min_complete,
+                       IORING_ENTER_GETEVENTS | IORING_ENTER_EXT_ARG,
+                       &arg, sizeof(arg));
+}
+
+/*
+  Creates a ring with room for the given number of queued requests.
+  Returns 0 if io_uring is not available, e.g., on kernels before 5.11
+  or where it is disabled, in which case callers fall back to epoll.
+ */
+jlong Java_org_servalarch_platform_ServalNetworkStack_uringCreate(JNIEnv *env,
+                                                                  jobject obj,
+                                                                  jint entries)
+{
+        struct io_uring_params p;
+        struct serval_ring *r;
+        unsigned *sq_array;
+        unsigned i;
+        int fd;
+
+        memset(&p, 0, sizeof(p));
+
+        fd = syscall(__NR_io_uring_setup, entries, &p);
+
+        if (fd == -1)
+                return 0;
+
+        /* Timed waits need IORING_ENTER_EXT_ARG, and no completion may
+         * be dropped when the completion ring is full */
+        if (!(p.features & IORING_FEAT_EXT_ARG) ||
+            !(p.features & IORING_FEAT_NODROP)) {
+                close(fd);
+                return 0;
+        }
+
+        r = (struct serval_ring *)calloc(1, sizeof(*r));
+
+        if (r == NULL) {
+                close(fd);
+                jniThrowException(env, "java/lang/OutOfMemoryError",
+                                  "couldn't allocate ring");
+                return 0;
+        }
+
+        r->fd = fd;
+        r->sq_entries = p.sq_entries;
+        r->sq_ring_size = p.sq_off.array + p.sq_entries * sizeof(unsigned);
+        r->cq_ring_size = p.cq_off.cqes +
+                p.cq_entries * sizeof(struct io_uring_cqe);
+        r->sqes_size = p.sq_entries * sizeof(struct io_uring_sqe);
+
+        if (p.features & IORING_FEAT_SINGLE_MMAP) {
+                if (r->cq_ring_size > r->sq_ring_size)
+                        r->sq_ring_size = r->cq_ring_size;
+                r->cq_ring_size = r->sq_ring_size;
+        }
+
+        r->sq_ring = mmap(NULL, r->sq_ring_size, PROT_READ | PROT_WRITE,
+                          MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_SQ_RING);
+
+        if (r->sq_ring == MAP_FAILED)
+                goto fail;
+
+        if (p.features & IORING_FEAT_SINGLE_MMAP) {
+                r->cq_ring = r->sq_ring;
+        } else {
+                r->cq_ring = mmap(NULL, r->cq_ring_size,
+                                  PROT_READ | PROT_WRITE,
+                                  MAP_SHARED | MAP_POPULATE, fd,
+                                  IORING_OFF_CQ_RING);
+                if (r->cq_ring == MAP_FAILED)
+                        goto fail;
+        }
+
+        r->sqes = (struct io_uring_sqe *)mmap(NULL, r->sqes_size,
+                                              PROT_READ | PROT_WRITE,
+                                              MAP_SHARED | MAP_POPULATE,
+                                              fd, IORING_OFF_SQES);
+
+        if (r->sqes == MAP_FAILED)
+                goto fail;
+
+        r->sq_head = (unsigned *)((char *)r->sq_ring + p.sq_off.head);
+        r->sq_tail = (unsigned *)((char *)r->sq_ring + p.sq_off.tail);
+        r->sq_mask = (unsigned *)((char *)r->sq_ring + p.sq_off.ring_mask);
+        r->cq_head = (unsigned *)((char *)r->cq_ring + p.cq_off.head);
+        r->cq_tail = (unsigned *)((char *)r->cq_ring + p.cq_off.tail);
+        r->cq_mask = (unsigned *)((char *)r->cq_ring + p.cq_off.ring_mask);
+        r->cqes = (struct io_uring_cqe *)((char *)r->cq_ring + p.cq_off.cqes);
+
+        /* Slot i of the submission ring always holds entry i */
+        sq_array = (unsigned *)((char *)r->sq_ring + p.sq_off.array);
+
+        for (i = 0; i < p.sq_entries; i++)
+                sq_array[i] = i;
+
+        return (jlong)(intptr_t)r;
+fail:
+        LOG_ERR("io_uring mmap failed: %s\n", strerror(errno));
+        ring_free(r);
+        return 0;
+}
+
+/*
+  Queues a one-shot poll of fd for the given poll events, whose
+  completion carries userData and the ready events. Returns false if
+  the submission ring is full.
+ */
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringPollAdd(JNIEnv *env,
+                                                                      jobject obj,
+                                                                      jlong ring,
+                                                                      jint fd,
+                                                                      jint events,
+                                                                      jlong userData)
+{
+        struct serval_ring *r = (struct serval_ring *)(intptr_t)ring;
+        struct io_uring_sqe *sqe = ring_get_sqe(r);
+        uint32_t mask = (uint32_t)events;
+
+        if (sqe == NULL)
+                return JNI_FALSE;
+
+#if __BYTE_ORDER == __BIG_ENDIAN
+        /* The kernel reads the 32-bit mask as two swapped halves */
+        mask = (mask << 16) | (mask >> 16);
+#endif
+        sqe->opcode = IORING_OP_POLL_ADD;
+        sqe->fd = fd;
+        sqe->poll32_events = mask;
+        sqe->user_data = (uint64_t)userData;
+        ring_queue_sqe(r);
+
+        return JNI_TRUE;
+}
+
+/*
+  Queues the cancellation of the poll with the given userData. The
+  cancelled poll completes with -ECANCELED, the cancellation itself
+  only completes (with userData -1) if it fails.
+ */
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringPollRemove(JNIEnv *env,
+                                                                         jobject obj,
+                                                                         jlong ring,
+                                                                         jlong userData)
+{
+        struct serval_ring *r = (struct serval_ring *)(intptr_t)ring;
+        struct io_uring_sqe *sqe = ring_get_sqe(r);
+
+        if (sqe == NULL)
+                return JNI_FALSE;
+
+        sqe->opcode = IORING_OP_POLL_REMOVE;
+        sqe->fd = -1;
+        sqe->addr = (uint64_t)userData;
+        sqe->user_data = (uint64_t)-1;
+#if defined(IOSQE_CQE_SKIP_SUCCESS)
+        sqe->flags = IOSQE_CQE_SKIP_SUCCESS;
+#endif
+        ring_queue_sqe(r);
+
+        return JNI_TRUE;
+}
+
+/*
+  Queues a receive into, or a send from, the length bytes of a direct
+  buffer from position. Unlike a poll, such a request moves the data
+  itself: the kernel completes it once data has arrived or been
+  queued for sending, with the number of bytes moved or -errno, so the
+  buffer must stay valid until then. Returns false if the submission
+  ring is full.
+ */
+static jboolean ring_queue_data(JNIEnv *env, jlong ring, int opcode,
+                                jint fd, jobject buf, jint position,
+                                jint length, jlong userData)
+{
+        struct serval_ring *r = (struct serval_ring *)(intptr_t)ring;
+        struct io_uring_sqe *sqe;
+        char *data = get_direct_buffer(env, buf, position, length);
+
+        if (data == NULL)
+                return JNI_FALSE;
+
+        sqe = ring_get_sqe(r);
+
+        if (sqe == NULL)
+                return JNI_FALSE;
+
+        sqe->opcode = opcode;
+        sqe->fd = fd;
+        sqe->addr = (uint64_t)(uintptr_t)data;
+        sqe->len = length;
+        sqe->user_data = (uint64_t)userData;
+        ring_queue_sqe(r);
+
+        return JNI_TRUE;
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringRecv(JNIEnv *env,
+                                                                   jobject obj,
+                                                                   jlong ring,
+                                                                   jint fd,
+                                                                   jobject buf,
+                                                                   jint position,
+                                                                   jint length,
+                                                                   jlong userData)
+{
+        return ring_queue_data(env, ring, IORING_OP_RECV, fd, buf,
+                               position, length, userData);
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringSend(JNIEnv *env,
+                                                                   jobject obj,
+                                                                   jlong ring,
+                                                                   jint fd,
+                                                                   jobject buf,
+                                                                   jint position,
+                                                                   jint length,
+                                                                   jlong userData)
+{
+        return ring_queue_data(env, ring, IORING_OP_SEND, fd, buf,
+                               position, length, userData);
+}
+
+/*
+  Queues the accept of a connection on the listening socket fd, which
+  completes with the descriptor of the new connection or -errno.
+  Returns false if the submission ring is full.
+ */
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringAccept(JNIEnv *env,
+                                                                     jobject obj,
+                                                                     jlong ring,
+                                                                     jint fd,
+                                                                     jlong userData)
+{
+        struct serval_ring *r = (struct serval_ring *)(intptr_t)ring;
+        struct io_uring_sqe *sqe = ring_get_sqe(r);
+
+        if (sqe == NULL)
+                return JNI_FALSE;
+
+        /* The peer address is not needed, as for accept() */
+        sqe->opcode = IORING_OP_ACCEPT;
+        sqe->fd = fd;
+        sqe->user_data = (uint64_t)userData;
+        ring_queue_sqe(r);
+
+        return JNI_TRUE;
+}
+
+/*
+  Queues a connection of fd to a service, and to ipaddr if not null,
+  which completes with 0 once the connection is established, or
+  -errno. The address is built in the direct buffer addr, which must
+  hold SOCKADDR_SIZE bytes and stay valid until the request completes.
+  Returns false if the submission ring is full.
+ */
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringConnect(JNIEnv *env,
+                                                                      jobject obj,
+                                                                      jlong ring,
+                                                                      jint fd,
+                                                                      jobject addr,
+                                                                      jobject service_id,
+                                                                      jobject ipaddr,
+                                                                      jlong userData)
+{
+        struct serval_ring *r = (struct serval_ring *)(intptr_t)ring;
+	struct sockaddr_sv_in {
+		struct sockaddr_sv svaddr;
+		struct sockaddr_in inaddr;
+	} *sa;
+        struct io_uring_sqe *sqe;
+	socklen_t addrlen = sizeof(*sa);
+
+        if (sizeof(*sa) >
+            org_servalarch_platform_ServalNetworkStack_SOCKADDR_SIZE) {
+                jniThrowException(env, "java/lang/IllegalStateException",
+                                  "Address does not fit SOCKADDR_SIZE");
+                return JNI_FALSE;
+        }
+
+        sa = (struct sockaddr_sv_in *)get_direct_buffer(env, addr, 0,
+                                                        sizeof(*sa));
+
+        if (sa == NULL)
+                return JNI_FALSE;
+
+	memset(sa, 0, sizeof(*sa));
+	fill_in_sockaddr_sv(env, &sa->svaddr, service_id, 0);
+
+	if (ipaddr == NULL) {
+		addrlen = sizeof(sa->svaddr);
+	} else if (fill_in_sockaddr_in(env, &sa->inaddr, ipaddr) != 0) {
+		jniThrowException(env, "java/lang/IllegalArgumentException",
+				  "Bad IP address");
+                return JNI_FALSE;
+	}
+
+        sqe = ring_get_sqe(r);
+
+        if (sqe == NULL)
+                return JNI_FALSE;
+
+        sqe->opcode = IORING_OP_CONNECT;
+        sqe->fd = fd;
+        sqe->addr = (uint64_t)(uintptr_t)sa;
+        sqe->off = addrlen;
+        sqe->user_data = (uint64_t)userData;
+        ring_queue_sqe(r);
+
+        return JNI_TRUE;
+}
+
+/*
+  Queues the cancellation of the request with the given userData,
+  which then completes with -ECANCELED unless it was already under
+  way. Like a poll removal, the cancellation itself only completes
+  (with userData -1) if it fails.
+ */
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringCancel(JNIEnv *env,
+                                                                     jobject obj,
+                                                                     jlong ring,
+                                                                     jlong userData)
+{
+        struct serval_ring *r = (struct serval_ring *)(intptr_t)ring;
+        struct io_uring_sqe *sqe = ring_get_sqe(r);
+
+        if (sqe == NULL)
+                return JNI_FALSE;
+
+        sqe->opcode = IORING_OP_ASYNC_CANCEL;
+        sqe->fd = -1;
+        sqe->addr = (uint64_t)userData;
+        sqe->user_data = (uint64_t)-1;
+#if defined(IOSQE_CQE_SKIP_SUCCESS)
+        sqe->flags = IOSQE_CQE_SKIP_SUCCESS;
+#endif
+        ring_queue_sqe(r);
+
+        return JNI_TRUE;
+}
+
+/*
+  Submits the queued requests without waiting. Returns the number of
+  requests submitted.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_uringSubmit(JNIEnv *env,
+                                                                 jobject obj,
+                                                                 jlong ring)
+{
+        struct serval_ring *r = (struct serval_ring *)(intptr_t)ring;
+        int ret;
+
+        do {
+                ret = ring_enter(r, 0, 0);
+        } while (ret == -1 && errno == EINTR);
+
+        if (ret == -1) {
+                if (errno == EAGAIN || errno == EBUSY) {
+                        /* Out of memory or completions to be reaped
+                         * first, retried with the next submission */
+                        return 0;
+                }
+                jniThrowIOException(env, errno);
+        }
+
+        return ret;
+}
+
+/*
+  Submits the queued requests and waits at most timeout milliseconds
+  (0 = do not wait, -1 = wait forever) for completions, which are
+  stored in the given arrays. Returns the number of completions, which
+  is 0 on timeout or when interrupted by a signal. The completion side
+  of a ring must only be used by one thread at a time, but other
+  threads may queue and submit requests meanwhile.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_uringWait(JNIEnv *env,
+                                                               jobject obj,
+                                                               jlong ring,
+                                                               jlongArray userData,
+                                                               jintArray results,
+                                                               jint timeout)
+{
+        struct serval_ring *r = (struct serval_ring *)(intptr_t)ring;
+        jlong readyData[URING_MAX_COMPLETIONS];
+        jint readyResults[URING_MAX_COMPLETIONS];
+        int max = (*env)->GetArrayLength(env, userData);
+        unsigned head, tail;
+        int n = 0, ret;
+
+        if (max > URING_MAX_COMPLETIONS)
+                max = URING_MAX_COMPLETIONS;
+
+        ret = ring_enter(r, timeout != 0 && ring_ready(r) == 0 ? 1 : 0,
+                         timeout);
+
+        if (ret == -1 && errno != ETIME && errno != EINTR &&
+            errno != EAGAIN && errno != EBUSY) {
+                jniThrowIOException(env, errno);
+                return -1;
+        }
+
+        head = *r->cq_head;
+        tail = __atomic_load_n(r->cq_tail, __ATOMIC_ACQUIRE);
+
+        while (head != tail && n < max) {
+                struct io_uring_cqe *cqe = &r->cqes[head & *r->cq_mask];
+
+                readyData[n] = (jlong)cqe->user_data;
+                readyResults[n] = cqe->res;
+                head++;
+                n++;
+        }
+
+        __atomic_store_n(r->cq_head, head, __ATOMIC_RELEASE);
+
+        (*env)->SetLongArrayRegion(env, userData, 0, n, readyData);
+        (*env)->SetIntArrayRegion(env, results, 0, n, readyResults);
+
+        return n;
+}
+
+/*
+  Closes a ring, which cancels all of its requests.
+ */
+void Java_org_servalarch_platform_ServalNetworkStack_uringClose(JNIEnv *env,
+                                                                jobject obj,
+                                                                jlong ring)
+{
+        ring_free((struct serval_ring *)(intptr_t)ring);
+}
+
+#else /* HAVE_IO_URING */
+
+jlong Java_org_servalarch_platform_ServalNetworkStack_uringCreate(JNIEnv *env,
+                                                                  jobject obj,
+                                                                  jint entries)
+{
+        /* Not available, use epoll */
+        return 0;
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringPollAdd(JNIEnv *env,
+                                                                      jobject obj,
+                                                                      jlong ring,
+                                                                      jint fd,
+                                                                      jint events,
+                                                                      jlong userData)
+{
+        jniThrowException(env, "java/lang/UnsupportedOperationException",
+                          "io_uring not supported");
+        return JNI_FALSE;
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringPollRemove(JNIEnv *env,
+                                                                         jobject obj,
+                                                                         jlong ring,
+                                                                         jlong userData)
+{
+        jniThrowException(env, "java/lang/UnsupportedOperationException",
+                          "io_uring not supported");
+        return JNI_FALSE;
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringRecv(JNIEnv *env,
+                                                                   jobject obj,
+                                                                   jlong ring,
+                                                                   jint fd,
+                                                                   jobject buf,
+                                                                   jint position,
+                                                                   jint length,
+                                                                   jlong userData)
+{
+        jniThrowException(env, "java/lang/UnsupportedOperationException",
+                          "io_uring not supported");
+        return JNI_FALSE;
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringSend(JNIEnv *env,
+                                                                   jobject obj,
+                                                                   jlong ring,
+                                                                   jint fd,
+                                                                   jobject buf,
+                                                                   jint position,
+                                                                   jint length,
+                                                                   jlong userData)
+{
+        jniThrowException(env, "java/lang/UnsupportedOperationException",
+                          "io_uring not supported");
+        return JNI_FALSE;
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringAccept(JNIEnv *env,
+                                                                     jobject obj,
+                                                                     jlong ring,
+                                                                     jint fd,
+                                                                     jlong userData)
+{
+        jniThrowException(env, "java/lang/UnsupportedOperationException",
+                          "io_uring not supported");
+        return JNI_FALSE;
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringConnect(JNIEnv *env,
+                                                                      jobject obj,
+                                                                      jlong ring,
+                                                                      jint fd,
+                                                                      jobject addr,
+                                                                      jobject service_id,
+                                                                      jobject ipaddr,
+                                                                      jlong userData)
+{
+        jniThrowException(env, "java/lang/UnsupportedOperationException",
+                          "io_uring not supported");
+        return JNI_FALSE;
+}
+
+jboolean Java_org_servalarch_platform_ServalNetworkStack_uringCancel(JNIEnv *env,
+                                                                     jobject obj,
+                                                                     jlong ring,
+                                                                     jlong userData)
+{
+        jniThrowException(env, "java/lang/UnsupportedOperationException",
+                          "io_uring not supported");
+        return JNI_FALSE;
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_uringSubmit(JNIEnv *env,
+                                                                 jobject obj,
+                                                                 jlong ring)
+{
+        jniThrowIOException(env, ENOSYS);
+        return -1;
+}
+
+jint Java_org_servalarch_platform_ServalNetworkStack_uringWait(JNIEnv *env,
+                                                               jobject obj,
+                                                               jlong ring,
+                                                               jlongArray userData,
+                                                               jintArray results,
+                                                               jint timeout)
+{
+        jniThrowIOException(env, ENOSYS);
+        return -1;
+}
+
+void Java_org_servalarch_platform_ServalNetworkStack_uringClose(JNIEnv *env,
+                                                                jobject obj,
+                                                                jlong ring)
+{
+}
+
+#endif /* HAVE_IO_URING */
+
+/*
+  Interprets the result of a data request on a ring, which is the
+  same with or without io_uring support. Returns a result that is not
+  an error, and UNAVAILABLE for -EAGAIN, which kernels that do not
+  wait on non-blocking sockets return, or for a connection still in
+  progress. Otherwise throws the exception for the error, a
+  ConnectException for a connect request.
+ */
+jint Java_org_servalarch_platform_ServalNetworkStack_uringResult(JNIEnv *env,
+                                                                 jobject obj,
+                                                                 jint result,
+                                                                 jboolean connect)
+{
+        if (result >= 0)
+                return result;
+
+        switch (-result) {
+        case EAGAIN:
+                return org_servalarch_platform_ServalNetworkStack_UNAVAILABLE;
+        case EINPROGRESS:
+        case EALREADY:
+                if (connect)
+                        return org_servalarch_platform_ServalNetworkStack_UNAVAILABLE;
+                break;
+        case EISCONN:
+                if (connect)
+                        return 0;
+                break;
+        }
+
+        if (connect)
+                jniThrowConnectException(env, -result);
+        else
+                jniThrowSocketException(env, -result);
+
+        return -1;
+}
+
+/*
+  Returns a FileDescriptor for the connection accepted by an accept
+  request on a ring, given its non-negative result.
+ */
+jobject Java_org_servalarch_platform_ServalNetworkStack_uringAccepted(JNIEnv *env,
+                                                                      jobject obj,
+                                                                      jint fd)
 {
+        return jniCreateFileDescriptor(env, fd);
 }
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved)
@@ -7,6 +7,10 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef org_servalarch_platform_ServalNetworkStack_UNAVAILABLE
+#define org_servalarch_platform_ServalNetworkStack_UNAVAILABLE -2L
+#undef org_servalarch_platform_ServalNetworkStack_SOCKADDR_SIZE
+#define org_servalarch_platform_ServalNetworkStack_SOCKADDR_SIZE 64L
 /*
  * Class:     org_servalarch_platform_ServalNetworkStack
  * Method:    nativeInit
@@ -71,6 +75,30 @@ JNIEXPORT jobject JNICALL Java_org_servalarch_platform_ServalNetworkStack_accept
 JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_connect
   (JNIEnv *, jobject, jobject, jobject, jobject, jint);
 
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    startConnect
+ * Signature: (Ljava/io/FileDescriptor;Lorg/servalarch/net/ServiceID;Ljava/net/InetAddress;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_startConnect
+  (JNIEnv *, jobject, jobject, jobject, jobject);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    finishConnect
+ * Signature: (Ljava/io/FileDescriptor;I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_finishConnect
+  (JNIEnv *, jobject, jobject, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    setNonBlocking
+ * Signature: (Ljava/io/FileDescriptor;Z)V
+ */
+JNIEXPORT void JNICALL Java_org_servalarch_platform_ServalNetworkStack_setNonBlocking
+  (JNIEnv *, jobject, jobject, jboolean);
+
 /*
  * Class:     org_servalarch_platform_ServalNetworkStack
  * Method:    disconnect
@@ -95,6 +123,14 @@ JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_write
 JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_read
   (JNIEnv *, jobject, jobject, jbyteArray, jint, jint, jint);
 
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    readNonBlocking
+ * Signature: (Ljava/io/FileDescriptor;[BII)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_readNonBlocking
+  (JNIEnv *, jobject, jobject, jbyteArray, jint, jint);
+
 /*
  * Class:     org_servalarch_platform_ServalNetworkStack
  * Method:    send
@@ -111,6 +147,94 @@ JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_send
 JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_recv
   (JNIEnv *, jobject, jobject, jbyteArray, jint, jint, jint, jboolean);
 
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    recvfrom
+ * Signature: (Ljava/io/FileDescriptor;[BIIIZ[B[B[B[B)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_recvfrom
+  (JNIEnv *, jobject, jobject, jbyteArray, jint, jint, jint, jboolean, jbyteArray, jbyteArray, jbyteArray, jbyteArray);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    recvDirect
+ * Signature: (Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_recvDirect
+  (JNIEnv *, jobject, jobject, jobject, jint, jint, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    sendDirect
+ * Signature: (Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_sendDirect
+  (JNIEnv *, jobject, jobject, jobject, jint, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    readv
+ * Signature: (Ljava/io/FileDescriptor;[Ljava/lang/Object;[I[II)J
+ */
+JNIEXPORT jlong JNICALL Java_org_servalarch_platform_ServalNetworkStack_readv
+  (JNIEnv *, jobject, jobject, jobjectArray, jintArray, jintArray, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    writev
+ * Signature: (Ljava/io/FileDescriptor;[Ljava/lang/Object;[I[II)J
+ */
+JNIEXPORT jlong JNICALL Java_org_servalarch_platform_ServalNetworkStack_writev
+  (JNIEnv *, jobject, jobject, jobjectArray, jintArray, jintArray, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    recvmmsg
+ * Signature: (Ljava/io/FileDescriptor;[[B[I[III[B[B)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_recvmmsg
+  (JNIEnv *, jobject, jobject, jobjectArray, jintArray, jintArray, jint, jint, jbyteArray, jbyteArray);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    sendmmsg
+ * Signature: (Ljava/io/FileDescriptor;[[B[I[II[B[B)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_sendmmsg
+  (JNIEnv *, jobject, jobject, jobjectArray, jintArray, jintArray, jint, jbyteArray, jbyteArray);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    createSockAddr
+ * Signature: (Lorg/servalarch/net/ServiceID;Ljava/net/InetAddress;I)J
+ */
+JNIEXPORT jlong JNICALL Java_org_servalarch_platform_ServalNetworkStack_createSockAddr
+  (JNIEnv *, jobject, jobject, jobject, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    freeSockAddr
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_org_servalarch_platform_ServalNetworkStack_freeSockAddr
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    sendto
+ * Signature: (Ljava/io/FileDescriptor;[BIIJ)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_sendto
+  (JNIEnv *, jobject, jobject, jbyteArray, jint, jint, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    sendtoDirect
+ * Signature: (Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;IIJ)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_sendtoDirect
+  (JNIEnv *, jobject, jobject, jobject, jint, jint, jlong);
+
 /*
  * Class:     org_servalarch_platform_ServalNetworkStack
  * Method:    close
@@ -207,6 +331,198 @@ JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_suppo
 JNIEXPORT void JNICALL Java_org_servalarch_platform_ServalNetworkStack_sendUrgentData
   (JNIEnv *, jobject, jobject, jbyte);
 
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    getFdValue
+ * Signature: (Ljava/io/FileDescriptor;)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_getFdValue
+  (JNIEnv *, jobject, jobject);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    epollCreate
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_epollCreate
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    epollCtl
+ * Signature: (IIII)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_epollCtl
+  (JNIEnv *, jobject, jint, jint, jint, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    epollWait
+ * Signature: (I[I[II)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_epollWait
+  (JNIEnv *, jobject, jint, jintArray, jintArray, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    eventfdCreate
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_eventfdCreate
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    eventfdSignal
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_org_servalarch_platform_ServalNetworkStack_eventfdSignal
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    eventfdDrain
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_org_servalarch_platform_ServalNetworkStack_eventfdDrain
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    closeFd
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_org_servalarch_platform_ServalNetworkStack_closeFd
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    sendfile
+ * Signature: (Ljava/io/FileDescriptor;Ljava/io/FileDescriptor;JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_org_servalarch_platform_ServalNetworkStack_sendfile
+  (JNIEnv *, jobject, jobject, jobject, jlong, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    pipeCreate
+ * Signature: ([I)V
+ */
+JNIEXPORT void JNICALL Java_org_servalarch_platform_ServalNetworkStack_pipeCreate
+  (JNIEnv *, jobject, jintArray);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    splice
+ * Signature: (IIJ)J
+ */
+JNIEXPORT jlong JNICALL Java_org_servalarch_platform_ServalNetworkStack_splice
+  (JNIEnv *, jobject, jint, jint, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringCreate
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringCreate
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringPollAdd
+ * Signature: (JIIJ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringPollAdd
+  (JNIEnv *, jobject, jlong, jint, jint, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringPollRemove
+ * Signature: (JJ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringPollRemove
+  (JNIEnv *, jobject, jlong, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringRecv
+ * Signature: (JILjava/nio/ByteBuffer;IIJ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringRecv
+  (JNIEnv *, jobject, jlong, jint, jobject, jint, jint, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringSend
+ * Signature: (JILjava/nio/ByteBuffer;IIJ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringSend
+  (JNIEnv *, jobject, jlong, jint, jobject, jint, jint, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringAccept
+ * Signature: (JIJ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringAccept
+  (JNIEnv *, jobject, jlong, jint, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringConnect
+ * Signature: (JILjava/nio/ByteBuffer;Lorg/servalarch/net/ServiceID;Ljava/net/InetAddress;J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringConnect
+  (JNIEnv *, jobject, jlong, jint, jobject, jobject, jobject, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringCancel
+ * Signature: (JJ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringCancel
+  (JNIEnv *, jobject, jlong, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringResult
+ * Signature: (IZ)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringResult
+  (JNIEnv *, jobject, jint, jboolean);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringAccepted
+ * Signature: (I)Ljava/io/FileDescriptor;
+ */
+JNIEXPORT jobject JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringAccepted
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringSubmit
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringSubmit
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringWait
+ * Signature: (J[J[II)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringWait
+  (JNIEnv *, jobject, jlong, jlongArray, jintArray, jint);
+
+/*
+ * Class:     org_servalarch_platform_ServalNetworkStack
+ * Method:    uringClose
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_org_servalarch_platform_ServalNetworkStack_uringClose
+  (JNIEnv *, jobject, jlong);
+
 #ifdef __cplusplus
 }
 #endif
@@ -251,7 +251,9 @@ int hostctrl_service_migrate(struct hostctrl *hc, struct service_id *srvid,
 int hostctrl_flow_stats_query(struct hostctrl *hc, struct flow_id *flowids,
                               int flows)
 {
-    return hc->ops->flow_stats_query(hc, flowids, flows);
+    if (hc->ops->flow_stats_query)
+        return hc->ops->flow_stats_query(hc, flowids, flows);
+    return -1;
 }
 
 int hostctrl_service_register(struct hostctrl *hc, 
@@ -316,7 +318,9 @@ int hostctrl_service_get(struct hostctrl *hc,
     if (srvid == NULL)
         srvid = &default_service;
 
-    return hc->ops->service_get(hc, srvid, prefix_bits, ipaddr);
+    if (hc->ops->service_get)
+        return hc->ops->service_get(hc, srvid, prefix_bits, ipaddr);
+    return -1;
 }
 
 int hostctrl_service_modify(struct hostctrl *hc,
@@ -337,16 +341,36 @@ int hostctrl_services_add(struct hostctrl *hc,
                           const struct service_info *si,
                           unsigned int num_si)
 {
-    LOG_ERR("Not implemented yet!\n");
-    return 0;
+    if (hc->ops->services_add)
+        return hc->ops->services_add(hc, si, num_si);
+    return -1;
 }
 
 int hostctrl_services_remove(struct hostctrl *hc,
                              const struct service_info *si,
                              unsigned int num_si)
 {
-    LOG_ERR("Not implemented yet!\n");
-    return 0;
+    if (hc->ops->services_remove)
+        return hc->ops->services_remove(hc, si, num_si);
+    return -1;
+}
+
+int hostctrl_services_query(struct hostctrl *hc,
+                            const struct service_info *si,
+                            unsigned int num_si)
+{
+    if (hc->ops->services_query)
+        return hc->ops->services_query(hc, si, num_si);
+    return -1;
+}
+
+int hostctrl_services_modify(struct hostctrl *hc,
+                             const struct service_info *si,
+                             unsigned int num_si)
+{
+    if (hc->ops->services_modify)
+        return hc->ops->services_modify(hc, si, num_si);
+    return -1;
 }
 
 int hostctrl_service_query(struct hostctrl *hc,
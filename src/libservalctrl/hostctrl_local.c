@@ -131,6 +131,107 @@ static int local_service_get(struct hostctrl *hc,
                                  0, 0, ipaddr);
 }
 
+/*
+  Batched requests are split into messages that, as well as their
+  replies, fit the 2048 byte receive buffers of both the stack and
+  the message channel. A DEL_SERVICE reply carries a larger
+  service_info_stat per removed entry.
+
+  Returns the number of entries sent, which is less than num_si if a
+  message failed after others were sent, or the error of the first
+  message.
+*/
+#define LOCAL_MSG_MAX 2048
+#define LOCAL_SERVICES_ADD_MAX                                  \
+    ((LOCAL_MSG_MAX - sizeof(struct ctrlmsg_service)) /         \
+     sizeof(struct service_info))
+#define LOCAL_SERVICES_DEL_MAX                                  \
+    ((LOCAL_MSG_MAX - sizeof(struct ctrlmsg_service_info_stat)) / \
+     sizeof(struct service_info_stat))
+
+static int local_services_generic(struct hostctrl *hc,
+                                  unsigned short msgtype,
+                                  const struct service_info *si,
+                                  unsigned int num_si,
+                                  unsigned int max_per_msg)
+{
+    struct {
+        struct ctrlmsg_service cm;
+        struct service_info service[LOCAL_SERVICES_ADD_MAX];
+    } req;
+    unsigned int i, n, num_sent = 0;
+    int ret;
+
+    if (!si)
+        return -1;
+
+    while (num_si > 0) {
+        n = num_si > max_per_msg ? max_per_msg : num_si;
+
+        memset(&req.cm, 0, sizeof(req.cm));
+        req.cm.cmh.type = msgtype;
+        req.cm.cmh.xid = ++hc->xid;
+        req.cm.cmh.len = CTRLMSG_SERVICE_NUM_LEN(n);
+        memcpy(req.service, si, n * sizeof(*si));
+        
+        for (i = 0; i < n; i++) {
+            if (req.service[i].srvid_prefix_bits > SERVICE_ID_MAX_PREFIX_BITS)
+                req.service[i].srvid_prefix_bits = 0;
+        }
+
+        LOG_DBG("op=%d num=%u len=%u\n", msgtype, n, req.cm.cmh.len);
+
+        ret = message_channel_send(hc->mc, &req.cm, req.cm.cmh.len);
+
+        if (ret < 0)
+            return num_sent > 0 ? (int)num_sent : ret;
+
+        si += n;
+        num_si -= n;
+        num_sent += n;
+    }
+
+    return num_sent;
+}
+
+static int local_services_add(struct hostctrl *hc,
+                              const struct service_info *si,
+                              unsigned int num_si)
+{
+    return local_services_generic(hc, CTRLMSG_TYPE_ADD_SERVICE, si, num_si,
+                                  LOCAL_SERVICES_ADD_MAX);
+}
+
+static int local_services_remove(struct hostctrl *hc,
+                                 const struct service_info *si,
+                                 unsigned int num_si)
+{
+    return local_services_generic(hc, CTRLMSG_TYPE_DEL_SERVICE, si, num_si,
+                                  LOCAL_SERVICES_DEL_MAX);
+}
+
+static int local_services_modify(struct hostctrl *hc,
+                                 const struct service_info *si,
+                                 unsigned int num_si)
+{
+    if (num_si % 2 != 0)
+        return -1;
+
+    /* An even number of entries per message keeps the old and new
+       entries of a rule together */
+    return local_services_generic(hc, CTRLMSG_TYPE_MOD_SERVICE, si, num_si,
+                                  LOCAL_SERVICES_ADD_MAX & ~1U);
+}
+
+static int local_services_query(struct hostctrl *hc,
+                                const struct service_info *si,
+                                unsigned int num_si)
+{
+    /* The stack only looks up the first service of a GET_SERVICE
+       message, so each query is a message of its own */
+    return local_services_generic(hc, CTRLMSG_TYPE_GET_SERVICE, si, num_si, 1);
+}
+
 static int local_service_register_dummy(struct hostctrl *hc, 
                                         const struct service_id *srvid,
                                         unsigned short prefix_bits,
@@ -402,6 +503,10 @@ struct hostctrl_ops local_ops = {
 	.service_remove = local_service_remove,
 	.service_modify = local_service_modify,
     .service_get = local_service_get,
+    .services_add = local_services_add,
+    .services_remove = local_services_remove,
+    .services_query = local_services_query,
+    .services_modify = local_services_modify,
     .service_delay_verdict = local_service_delay_verdict,
     .ctrlmsg_recv = local_ctrlmsg_recv,
 };
@@ -56,6 +56,9 @@ struct hostctrl_ops {
     int (*services_query)(struct hostctrl *hc,
                           const struct service_info *si,
                           unsigned int num_si);
+    int (*services_modify)(struct hostctrl *hc,
+                           const struct service_info *si,
+                           unsigned int num_si);
     int (*service_delay_verdict)(struct hostctrl *hc,
                                  unsigned int pkt_id,
                                  enum delay_verdict verdict);
@@ -68,30 +68,27 @@ static int set_native_context(JNIEnv *env, jobject obj, struct jni_context *ctx)
 
 static int fill_in_service_id(JNIEnv *env, jobject obj, struct service_id *sid)
 {
-    jboolean isCopy = JNI_FALSE;
+    static const char *words[4] = { "w0", "w1", "w2", "w3" };
+    unsigned char *id = (unsigned char *)sid->s_sid;
 	jfieldID fid;
-    jbyteArray array;
-    jbyte *buffer;
-
-    fid = (*env)->GetFieldID(env, serviceid_cls, "identifier", "[B");
-
-    if (!fid)
-        return -1;
+    int i, j;
 
-    array = (*env)->GetObjectField(env, obj, fid);
+    /* ServiceID keeps its identifier as four big-endian words */
+    for (i = 0; i < 4; i++) {
+        jlong w;
 
-    if (!array)
-        return -1;
+        fid = (*env)->GetFieldID(env, serviceid_cls, words[i], "J");
 
-    buffer = (*env)->GetByteArrayElements(env, array, &isCopy);
+        if (!fid)
+            return -1;
 
-    if (!buffer)
-        return -1;
-    
-    memcpy(sid->s_sid, buffer, (*env)->GetArrayLength(env, array));
+        w = (*env)->GetLongField(env, obj, fid);
 
-    (*env)->ReleaseByteArrayElements(env, array, buffer, 0);
-    (*env)->DeleteLocalRef(env, array);
+        for (j = 7; j >= 0; j--) {
+            id[i * 8 + j] = (unsigned char)w;
+            w = (jlong)((uint64_t)w >> 8);
+        }
+    }
         
     return 0;
 }
@@ -577,7 +574,7 @@ static int on_service_mod(struct hostctrl *hc,
     JNIEnv *env = ctx->env;
     jmethodID mid;
 
-    mid = (*env)->GetMethodID(env, hostctrlcallbacks_cls, "onServiceMod", 
+    mid = (*env)->GetMethodID(env, hostctrlcallbacks_cls, "onServiceModify", 
                               "(JI[Lorg/servalarch/servalctrl/ServiceInfo;)V");
 
     if (!mid)
@@ -980,6 +977,250 @@ jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_removeService4(JNIEnv *env,
                                    (unsigned short)prefix_bits, &ipaddr);
 }
 
+/*
+  Converts an array of ServiceInfo into service_info structs, looking
+  up the field IDs once for the whole array. Returns a malloc'ed array
+  that the caller must free, or NULL on error.
+ */
+static struct service_info *fill_in_services(JNIEnv *env, 
+                                             jobjectArray services,
+                                             int type,
+                                             jsize *num)
+{
+    jfieldID service_fid, bits_fid, flags_fid, addr_fid, ifindex_fid,
+        priority_fid, weight_fid, idle_fid, hard_fid;
+    struct service_info *si;
+    jsize i, n;
+
+    if (!services)
+        return NULL;
+
+    service_fid = (*env)->GetFieldID(env, serviceinfo_cls, "service", 
+                                     "Lorg/servalarch/net/ServiceID;");
+    bits_fid = (*env)->GetFieldID(env, serviceinfo_cls, "prefixBits", "I");
+    flags_fid = (*env)->GetFieldID(env, serviceinfo_cls, "flags", "I");
+    addr_fid = (*env)->GetFieldID(env, serviceinfo_cls, "addr", 
+                                  "Ljava/net/InetAddress;");
+    ifindex_fid = (*env)->GetFieldID(env, serviceinfo_cls, "ifindex", "J");
+    priority_fid = (*env)->GetFieldID(env, serviceinfo_cls, "priority", "J");
+    weight_fid = (*env)->GetFieldID(env, serviceinfo_cls, "weight", "J");
+    idle_fid = (*env)->GetFieldID(env, serviceinfo_cls, "idleTimeout", "J");
+    hard_fid = (*env)->GetFieldID(env, serviceinfo_cls, "hardTimeout", "J");
+
+    if (!service_fid || !bits_fid || !flags_fid || !addr_fid || 
+        !ifindex_fid || !priority_fid || !weight_fid || 
+        !idle_fid || !hard_fid)
+        return NULL;
+
+    n = (*env)->GetArrayLength(env, services);
+    si = malloc((n > 0 ? n : 1) * sizeof(*si));
+
+    if (!si)
+        return NULL;
+
+    memset(si, 0, (n > 0 ? n : 1) * sizeof(*si));
+
+    for (i = 0; i < n; i++) {
+        jobject info = (*env)->GetObjectArrayElement(env, services, i);
+        jobject id, addr;
+        int ret;
+
+        if (!info)
+            goto err;
+
+        id = (*env)->GetObjectField(env, info, service_fid);
+        addr = (*env)->GetObjectField(env, info, addr_fid);
+
+        ret = id ? fill_in_service_id(env, id, &si[i].srvid) : -1;
+
+        if (ret == 0)
+            ret = fill_in_addr(env, addr, &si[i].address);
+
+        if (id)
+            (*env)->DeleteLocalRef(env, id);
+        if (addr)
+            (*env)->DeleteLocalRef(env, addr);
+
+        if (ret == -1) {
+            (*env)->DeleteLocalRef(env, info);
+            goto err;
+        }
+        
+        if (type >= 0)
+            si[i].type = type;
+        else if (si[i].address.s_addr == 0)
+            si[i].type = SERVICE_RULE_DELAY;
+        else
+            si[i].type = SERVICE_RULE_FORWARD;
+
+        si[i].srvid_prefix_bits = 
+            (uint8_t)(*env)->GetIntField(env, info, bits_fid);
+        si[i].srvid_flags = (uint8_t)(*env)->GetIntField(env, info, flags_fid);
+        si[i].if_index = (uint32_t)(*env)->GetLongField(env, info, ifindex_fid);
+        si[i].priority = (uint32_t)(*env)->GetLongField(env, info, priority_fid);
+        si[i].weight = (uint32_t)(*env)->GetLongField(env, info, weight_fid);
+        si[i].idle_timeout = (uint32_t)(*env)->GetLongField(env, info, idle_fid);
+        si[i].hard_timeout = (uint32_t)(*env)->GetLongField(env, info, hard_fid);
+
+        (*env)->DeleteLocalRef(env, info);
+    }
+
+    *num = n;
+
+    return si;
+ err:
+    free(si);
+    return NULL;
+}
+
+jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_addServices4(JNIEnv *env, 
+                                                                  jobject obj, 
+                                                                  jint type,
+                                                                  jobjectArray services)
+{
+    struct jni_context *ctx = get_native_context(env, obj);
+    struct service_info *si;
+    jsize num = 0;
+    int ret;
+
+    si = fill_in_services(env, services, type, &num);
+
+    if (!si)
+        return -1;
+
+    ret = hostctrl_services_add(ctx->hc, si, num);
+
+    free(si);
+
+    return ret;
+}
+
+jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_removeServices4(JNIEnv *env, 
+                                                                     jobject obj, 
+                                                                     jobjectArray services)
+{
+    struct jni_context *ctx = get_native_context(env, obj);
+    struct service_info *si;
+    jsize num = 0;
+    int ret;
+
+    /* Like removeService4, rules without an address are delay rules */
+    si = fill_in_services(env, services, -1, &num);
+
+    if (!si)
+        return -1;
+
+    ret = hostctrl_services_remove(ctx->hc, si, num);
+
+    free(si);
+
+    return ret;
+}
+
+jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_queryServices4(JNIEnv *env, 
+                                                                    jobject obj, 
+                                                                    jobjectArray services)
+{
+    struct jni_context *ctx = get_native_context(env, obj);
+    struct service_info *si;
+    jsize num = 0;
+    int ret;
+
+    si = fill_in_services(env, services, SERVICE_RULE_UNDEFINED, &num);
+
+    if (!si)
+        return -1;
+
+    ret = hostctrl_services_query(ctx->hc, si, num);
+
+    free(si);
+
+    return ret;
+}
+
+jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_modifyService4(JNIEnv *env, 
+                                                                    jobject obj, 
+                                                                    jint type,
+                                                                    jobject service_id, 
+                                                                    jint prefix_bits, 
+                                                                    jint priority, 
+                                                                    jint weight, 
+                                                                    jobject old_addr,
+                                                                    jobject new_addr)
+{
+    struct jni_context *ctx = get_native_context(env, obj);
+    struct service_id srvid;
+    struct in_addr old_ip, new_ip;
+
+    if (fill_in_service_id(env, service_id, &srvid) == -1)
+        return -1;
+    
+    if (fill_in_addr(env, old_addr, &old_ip) == -1)
+        return -1;
+
+    if (fill_in_addr(env, new_addr, &new_ip) == -1)
+        return -1;
+
+    return hostctrl_service_modify(ctx->hc, (enum service_rule_type)type, 
+                                   &srvid, 
+                                   (unsigned short)prefix_bits, 
+                                   (unsigned int)priority, 
+                                   (unsigned int)weight, 
+                                   &old_ip, 
+                                   new_addr ? &new_ip : NULL);
+}
+
+jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_modifyServices4(JNIEnv *env, 
+                                                                     jobject obj, 
+                                                                     jobjectArray old_services,
+                                                                     jobjectArray new_services)
+{
+    struct jni_context *ctx = get_native_context(env, obj);
+    struct service_info *old_si, *new_si, *si = NULL;
+    jsize i, num_old = 0, num_new = 0;
+    int ret = -1;
+
+    old_si = fill_in_services(env, old_services, SERVICE_RULE_FORWARD, &num_old);
+
+    if (!old_si)
+        return -1;
+
+    new_si = fill_in_services(env, new_services, SERVICE_RULE_FORWARD, &num_new);
+
+    if (!new_si)
+        goto out;
+
+    if (num_old != num_new)
+        goto out;
+
+    /* The message carries each rule followed by its new values */
+    si = malloc((num_old > 0 ? num_old : 1) * 2 * sizeof(*si));
+
+    if (!si)
+        goto out;
+
+    for (i = 0; i < num_old; i++) {
+        memcpy(&si[i * 2], &old_si[i], sizeof(*si));
+        memcpy(&si[i * 2 + 1], &new_si[i], sizeof(*si));
+
+        /* Keep the rule's address unless a new one is given */
+        if (si[i * 2 + 1].address.s_addr == 0)
+            si[i * 2 + 1].address = si[i * 2].address;
+    }
+
+    ret = hostctrl_services_modify(ctx->hc, si, num_old * 2);
+
+    /* Report rules, not entries, so the caller can tell which failed */
+    if (ret > 0)
+        ret /= 2;
+ out:
+    free(si);
+    free(new_si);
+    free(old_si);
+
+    return ret;
+}
+
 jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_registerService4(JNIEnv *env, jobject obj, 
                                                                       jobject service_id, 
                                                                       jint prefix_bits, 
@@ -995,7 +1236,9 @@ jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_registerService4(JNIEnv *en
     if (fill_in_addr(env, addr, &ipaddr) == -1)
         return -1;
 
-    return hostctrl_service_register(ctx->hc, &srvid, (unsigned short)prefix_bits, &ipaddr);
+    /* Only a re-registration carries the old address */
+    return hostctrl_service_register(ctx->hc, &srvid, (unsigned short)prefix_bits, 
+                                     addr ? &ipaddr : NULL);
 }
 
 jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_unregisterService4(JNIEnv *env, jobject obj, 
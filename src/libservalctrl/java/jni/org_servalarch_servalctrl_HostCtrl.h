@@ -106,6 +106,46 @@ JNIEXPORT jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_registerService4
 JNIEXPORT jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_unregisterService4
   (JNIEnv *, jobject, jobject, jint);
 
+/*
+ * Class:     org_servalarch_servalctrl_HostCtrl
+ * Method:    modifyService4
+ * Signature: (ILorg/servalarch/net/ServiceID;IIILjava/net/Inet4Address;Ljava/net/Inet4Address;)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_modifyService4
+  (JNIEnv *, jobject, jint, jobject, jint, jint, jint, jobject, jobject);
+
+/*
+ * Class:     org_servalarch_servalctrl_HostCtrl
+ * Method:    modifyServices4
+ * Signature: ([Lorg/servalarch/servalctrl/ServiceInfo;[Lorg/servalarch/servalctrl/ServiceInfo;)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_modifyServices4
+  (JNIEnv *, jobject, jobjectArray, jobjectArray);
+
+/*
+ * Class:     org_servalarch_servalctrl_HostCtrl
+ * Method:    addServices4
+ * Signature: (I[Lorg/servalarch/servalctrl/ServiceInfo;)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_addServices4
+  (JNIEnv *, jobject, jint, jobjectArray);
+
+/*
+ * Class:     org_servalarch_servalctrl_HostCtrl
+ * Method:    removeServices4
+ * Signature: ([Lorg/servalarch/servalctrl/ServiceInfo;)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_removeServices4
+  (JNIEnv *, jobject, jobjectArray);
+
+/*
+ * Class:     org_servalarch_servalctrl_HostCtrl
+ * Method:    queryServices4
+ * Signature: ([Lorg/servalarch/servalctrl/ServiceInfo;)I
+ */
+JNIEXPORT jint JNICALL Java_org_servalarch_servalctrl_HostCtrl_queryServices4
+  (JNIEnv *, jobject, jobjectArray);
+
 /*
  * Class:     org_servalarch_servalctrl_HostCtrl
  * Method:    setDelayVerdict
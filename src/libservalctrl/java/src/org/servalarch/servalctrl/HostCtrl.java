@@ -1,13 +1,29 @@
 /* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
 package org.servalarch.servalctrl;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.servalarch.net.ServiceID;
 
 public abstract class HostCtrl {
+	/*
+	 * Every request increments the native transaction ID, so requests
+	 * are sent while synchronized on this object. That lets the
+	 * transaction ID of an asynchronous request be predicted before it
+	 * is sent.
+	 */
 	private long nativeHandle = 0;
+	/* Called by the native code, dispatches replies to pending
+	 * requests before passing them on to userCallbacks */
 	private final HostCtrlCallbacks callbacks;
+	private final HostCtrlCallbacks userCallbacks;
 	private int type;
 	private boolean isDisposed = false;
 	protected static final int HOSTCTRL_LOCAL = 0;
@@ -22,6 +38,19 @@ public abstract class HostCtrl {
 	public static final int DELAY_VERDICT_RELEASE = 0;
 	public static final int DELAY_VERDICT_DROP = 1;
 
+	/**
+	 * Default time to wait for the reply to an asynchronous request.
+	 */
+	public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+	/* Requests awaiting a reply, by transaction ID */
+	private final ConcurrentMap<Long, HostCtrlFuture<?>> pending =
+			new ConcurrentHashMap<Long, HostCtrlFuture<?>>();
+	/* Times out pending requests. Cancelled timeouts are removed right
+	 * away, so that completed requests are not kept until their
+	 * timeout would have expired. */
+	private static ScheduledThreadPoolExecutor timeoutTimer = null;
+
 	public HostCtrl(int type, final HostCtrlCallbacks cb)
 			throws HostCtrlException {
 		switch (type) {
@@ -37,17 +66,18 @@ public abstract class HostCtrl {
 					+ type);
 		}
 		this.type = type;
-		this.callbacks = cb;
+		this.userCallbacks = cb;
+		this.callbacks = new Dispatcher();
 	}
 
 	private native int nativeInit(int type);
 
 	private native void nativeFree();
 
-	public native int migrateFlow(long flowID, String toDevice);
+	public synchronized native int migrateFlow(long flowID, String toDevice);
 
-	public native int migrateInterface(String fromDevice, String toDevice);
-	public native int statsFlow(long[] flowIDs, int flows);
+	public synchronized native int migrateInterface(String fromDevice, String toDevice);
+	public synchronized native int statsFlow(long[] flowIDs, int flows);
 
 	private native int addService4(int type, ServiceID id, int prefixBits,
 			int prority, int weight, Inet4Address addr);
@@ -63,7 +93,20 @@ public abstract class HostCtrl {
 
 	private native int unregisterService4(ServiceID id, int prefixBits);
 
-	public native int setDelayVerdict(long pktId, int verdict);
+	private native int modifyService4(int type, ServiceID id, int prefixBits,
+			int priority, int weight, Inet4Address oldAddr,
+			Inet4Address newAddr);
+
+	private native int modifyServices4(ServiceInfo[] oldServices,
+			ServiceInfo[] newServices);
+
+	private native int addServices4(int type, ServiceInfo[] services);
+
+	private native int removeServices4(ServiceInfo[] services);
+
+	private native int queryServices4(ServiceInfo[] services);
+
+	public synchronized native int setDelayVerdict(long pktId, int verdict);
 	
 	/**
 	 * Returns the transaction ID of the last sent request.
@@ -77,8 +120,10 @@ public abstract class HostCtrl {
 		}
 		if (prefixBits < 0 || prefixBits > 256)
 			prefixBits = 0;
-		return addService4(SERVICE_RULE_FORWARD, id, prefixBits, priority,
-				weight, (Inet4Address) addr);
+		synchronized (this) {
+			return addService4(SERVICE_RULE_FORWARD, id, prefixBits, priority,
+					weight, (Inet4Address) addr);
+		}
 	}
 
 	public int addService(ServiceID id, InetAddress addr) {
@@ -88,22 +133,29 @@ public abstract class HostCtrl {
 	public int addServiceDelay(ServiceID id, int prefixBits, int priority, int weight) {
 		if (prefixBits < 0 || prefixBits > 256)
 			prefixBits = 0;
-		return addService4(SERVICE_RULE_DELAY, id, prefixBits, priority,
-				weight, null);
+		synchronized (this) {
+			return addService4(SERVICE_RULE_DELAY, id, prefixBits, priority,
+					weight, null);
+		}
 	}
 	
 	public int addServiceDrop(ServiceID id, int prefixBits, int priority, int weight) {
 		if (prefixBits < 0 || prefixBits > 256)
 			prefixBits = 0;
-		return addService4(SERVICE_RULE_DROP, id, prefixBits, priority,
-				weight, null);
+		synchronized (this) {
+			return addService4(SERVICE_RULE_DROP, id, prefixBits, priority,
+					weight, null);
+		}
 	}
 	
 	public int addService(final int type, ServiceID id, int prefixBits, 
 			int priority, int weight, InetAddress addr) {
 		if (prefixBits < 0 || prefixBits > 256)
 			prefixBits = 0;
-		return addService4(type, id, prefixBits, priority, weight, (Inet4Address) addr);
+		synchronized (this) {
+			return addService4(type, id, prefixBits, priority, weight,
+					(Inet4Address) addr);
+		}
 	}
 	
 	public int getService(ServiceID id, int prefixBits, InetAddress addr) {
@@ -112,7 +164,9 @@ public abstract class HostCtrl {
 		}
 		if (prefixBits < 0 || prefixBits > 256)
 			prefixBits = 0;
-		return getService4(id, prefixBits, (Inet4Address) addr);
+		synchronized (this) {
+			return getService4(id, prefixBits, (Inet4Address) addr);
+		}
 	}
 
 	public int getService(ServiceID id, InetAddress addr) {
@@ -125,13 +179,426 @@ public abstract class HostCtrl {
 		}
 		if (prefixBits < 0 || prefixBits > 256)
 			prefixBits = 0;
-		return removeService4(id, prefixBits, (Inet4Address) addr);
+		synchronized (this) {
+			return removeService4(id, prefixBits, (Inet4Address) addr);
+		}
 	}
 
 	public int removeService(ServiceID id, InetAddress addr) {
 		return removeService(id, 0, addr);
 	}
 
+	/**
+	 * Registers a service with the controller of a remote host control
+	 * channel.
+	 * 
+	 * @param oldAddr
+	 *            the address the service was registered with before, if
+	 *            this is a re-registration, otherwise {@code null}.
+	 */
+	public int registerService(ServiceID id, int prefixBits,
+			InetAddress oldAddr) {
+		if (oldAddr != null && !(oldAddr instanceof Inet4Address)) {
+			return -1;
+		}
+		if (prefixBits < 0 || prefixBits > 256)
+			prefixBits = 0;
+		synchronized (this) {
+			return registerService4(id, prefixBits, (Inet4Address) oldAddr);
+		}
+	}
+
+	public int unregisterService(ServiceID id, int prefixBits) {
+		if (prefixBits < 0 || prefixBits > 256)
+			prefixBits = 0;
+		synchronized (this) {
+			return unregisterService4(id, prefixBits);
+		}
+	}
+
+	/**
+	 * Modifies a forwarding rule in place, moving it to a new address
+	 * and priority and weight. The stack also moves the rule to the
+	 * interface that now routes the address, so unlike removing the
+	 * rule and adding it again, the service is never without a rule.
+	 * The reply arrives through {@code onServiceModify}.
+	 * 
+	 * @param newAddr
+	 *            the new address, or {@code null} to keep the old one.
+	 */
+	public int modifyService(ServiceID id, int prefixBits, int priority,
+			int weight, InetAddress oldAddr, InetAddress newAddr) {
+		if (!(oldAddr instanceof Inet4Address)
+				|| (newAddr != null && !(newAddr instanceof Inet4Address))) {
+			return -1;
+		}
+		if (prefixBits < 0 || prefixBits > 256)
+			prefixBits = 0;
+		synchronized (this) {
+			return modifyService4(SERVICE_RULE_FORWARD, id, prefixBits,
+					priority, weight, (Inet4Address) oldAddr,
+					(Inet4Address) newAddr);
+		}
+	}
+
+	/**
+	 * Modifies many forwarding rules in place with a single native
+	 * call. Rule {@code i} of {@code oldServices} gets the address,
+	 * priority and weight of rule {@code i} of {@code newServices},
+	 * keeping its address if the new rule has none.
+	 * 
+	 * @return the number of rules sent, or -1 on error. If a control
+	 *         message fails after others were sent, the rules from the
+	 *         returned index on were not sent.
+	 */
+	public int modifyServices(ServiceInfo[] oldServices,
+			ServiceInfo[] newServices) {
+		if (oldServices.length != newServices.length)
+			throw new IllegalArgumentException("Rule count mismatch");
+		checkServices(oldServices);
+		checkServices(newServices);
+		synchronized (this) {
+			return modifyServices4(oldServices, newServices);
+		}
+	}
+
+	/**
+	 * Adds many rules of the same type with a single native call. The
+	 * rules are packed into as few control messages as fit the stack's
+	 * receive buffer, each of which is replied to through
+	 * {@code onServiceAdd} with the rules it added.
+	 * 
+	 * @return the number of rules sent, or -1 on error. If a control
+	 *         message fails after others were sent, the rules from the
+	 *         returned index on were not sent.
+	 */
+	public int addServices(int type, ServiceInfo[] services) {
+		checkServices(services);
+		synchronized (this) {
+			return addServices4(type, services);
+		}
+	}
+
+	public int addServices(ServiceInfo[] services) {
+		return addServices(SERVICE_RULE_FORWARD, services);
+	}
+
+	/**
+	 * Removes many rules with a single native call, packed into as few
+	 * control messages as possible. As with {@link #removeService},
+	 * rules without an address are taken to be delay rules.
+	 * 
+	 * @return the number of rules sent, or -1 on error. If a control
+	 *         message fails after others were sent, the rules from the
+	 *         returned index on were not sent.
+	 */
+	public int removeServices(ServiceInfo[] services) {
+		checkServices(services);
+		synchronized (this) {
+			return removeServices4(services);
+		}
+	}
+
+	/**
+	 * Looks up the rules of many services with a single native call.
+	 * The stack answers one lookup per control message, so each
+	 * service gets its own {@code onServiceGet} reply.
+	 * 
+	 * @return the number of rules sent, or -1 on error. If a control
+	 *         message fails after others were sent, the rules from the
+	 *         returned index on were not sent.
+	 */
+	public int queryServices(ServiceInfo[] services) {
+		checkServices(services);
+		synchronized (this) {
+			return queryServices4(services);
+		}
+	}
+
+	private static void checkServices(ServiceInfo[] services) {
+		for (ServiceInfo info : services) {
+			if (info.service == null)
+				throw new IllegalArgumentException("No serviceID");
+			if (info.addr != null && !(info.addr instanceof Inet4Address))
+				throw new IllegalArgumentException("Not an IPv4 address");
+		}
+	}
+
+	/**
+	 * Adds a forwarding rule for a service without waiting for the
+	 * reply.
+	 * 
+	 * @param timeoutMillis
+	 *            the time to wait for the reply, or 0 to wait forever.
+	 * @return the pending reply, or a failed future if the request could
+	 *         not be sent.
+	 */
+	public HostCtrlFuture<ServiceInfo[]> addServiceAsync(final ServiceID id,
+			int prefixBits, final int priority, final int weight,
+			final InetAddress addr, long timeoutMillis) {
+		if (!(addr instanceof Inet4Address)) {
+			throw new IllegalArgumentException("Not an IPv4 address");
+		}
+		final int bits = checkPrefixBits(prefixBits);
+
+		return submit(new Request() {
+			@Override
+			int send() {
+				return addService4(SERVICE_RULE_FORWARD, id, bits, priority,
+						weight, (Inet4Address) addr);
+			}
+		}, timeoutMillis);
+	}
+
+	public HostCtrlFuture<ServiceInfo[]> addServiceAsync(ServiceID id,
+			InetAddress addr) {
+		return addServiceAsync(id, id.getLength() * 8, 1, 1, addr,
+				DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Looks up the rules of a service without waiting for the reply.
+	 * 
+	 * @param addr
+	 *            the address of the rule to look up, or {@code null} for
+	 *            all rules of the service.
+	 * @param timeoutMillis
+	 *            the time to wait for the reply, or 0 to wait forever.
+	 */
+	public HostCtrlFuture<ServiceInfo[]> getServiceAsync(final ServiceID id,
+			int prefixBits, final InetAddress addr, long timeoutMillis) {
+		if (addr != null && !(addr instanceof Inet4Address)) {
+			throw new IllegalArgumentException("Not an IPv4 address");
+		}
+		final int bits = checkPrefixBits(prefixBits);
+
+		return submit(new Request() {
+			@Override
+			int send() {
+				return getService4(id, bits, (Inet4Address) addr);
+			}
+		}, timeoutMillis);
+	}
+
+	public HostCtrlFuture<ServiceInfo[]> getServiceAsync(ServiceID id,
+			int prefixBits, InetAddress addr) {
+		return getServiceAsync(id, prefixBits, addr, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Removes a forwarding rule for a service without waiting for the
+	 * reply.
+	 * 
+	 * @param timeoutMillis
+	 *            the time to wait for the reply, or 0 to wait forever.
+	 */
+	public HostCtrlFuture<ServiceInfoStat[]> removeServiceAsync(
+			final ServiceID id, int prefixBits, final InetAddress addr,
+			long timeoutMillis) {
+		if (!(addr instanceof Inet4Address)) {
+			throw new IllegalArgumentException("Not an IPv4 address");
+		}
+		final int bits = checkPrefixBits(prefixBits);
+
+		return submit(new Request() {
+			@Override
+			int send() {
+				return removeService4(id, bits, (Inet4Address) addr);
+			}
+		}, timeoutMillis);
+	}
+
+	public HostCtrlFuture<ServiceInfoStat[]> removeServiceAsync(ServiceID id,
+			int prefixBits, InetAddress addr) {
+		return removeServiceAsync(id, prefixBits, addr,
+				DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Modifies a forwarding rule in place without waiting for the
+	 * reply.
+	 * 
+	 * @param newAddr
+	 *            the new address, or {@code null} to keep the old one.
+	 * @param timeoutMillis
+	 *            the time to wait for the reply, or 0 to wait forever.
+	 */
+	public HostCtrlFuture<ServiceInfo[]> modifyServiceAsync(
+			final ServiceID id, int prefixBits, final int priority,
+			final int weight, final InetAddress oldAddr,
+			final InetAddress newAddr, long timeoutMillis) {
+		if (!(oldAddr instanceof Inet4Address)
+				|| (newAddr != null && !(newAddr instanceof Inet4Address))) {
+			throw new IllegalArgumentException("Not an IPv4 address");
+		}
+		final int bits = checkPrefixBits(prefixBits);
+
+		return submit(new Request() {
+			@Override
+			int send() {
+				return modifyService4(SERVICE_RULE_FORWARD, id, bits,
+						priority, weight, (Inet4Address) oldAddr,
+						(Inet4Address) newAddr);
+			}
+		}, timeoutMillis);
+	}
+
+	public HostCtrlFuture<ServiceInfo[]> modifyServiceAsync(ServiceID id,
+			int prefixBits, int priority, int weight, InetAddress oldAddr,
+			InetAddress newAddr) {
+		return modifyServiceAsync(id, prefixBits, priority, weight, oldAddr,
+				newAddr, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	private static int checkPrefixBits(int prefixBits) {
+		return (prefixBits < 0 || prefixBits > 256) ? 0 : prefixBits;
+	}
+
+	private abstract static class Request {
+		/**
+		 * Sends the request, returning a negative value on failure.
+		 */
+		abstract int send();
+	}
+
+	/**
+	 * Sends a request and registers its future under the transaction
+	 * ID the request is sent with. The future is registered before
+	 * sending, since the reply may arrive before the native call
+	 * returns.
+	 */
+	private <T> HostCtrlFuture<T> submit(Request request, long timeoutMillis) {
+		HostCtrlFuture<T> future;
+		int ret;
+
+		synchronized (this) {
+			long xid = (getXid() + 1) & 0xffffffffL;
+			future = new HostCtrlFuture<T>(xid, pending);
+			pending.put(Long.valueOf(xid), future);
+			ret = request.send();
+
+			if (ret < 0) {
+				pending.remove(Long.valueOf(xid));
+			}
+		}
+		if (ret < 0) {
+			future.fail(new IOException("Could not send request, ret=" + ret));
+		} else if (timeoutMillis > 0) {
+			scheduleTimeout(future, timeoutMillis);
+		}
+		return future;
+	}
+
+	private void scheduleTimeout(final HostCtrlFuture<?> future,
+			long timeoutMillis) {
+		ScheduledThreadPoolExecutor timer;
+
+		synchronized (HostCtrl.class) {
+			if (timeoutTimer == null) {
+				timeoutTimer = new ScheduledThreadPoolExecutor(1,
+						new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread t = new Thread(r, "HostCtrl timeouts");
+								t.setDaemon(true);
+								return t;
+							}
+						});
+				timeoutTimer.setRemoveOnCancelPolicy(true);
+			}
+			timer = timeoutTimer;
+		}
+		future.setTimeout(timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				Long xid = Long.valueOf(future.getXid());
+
+				if (pending.remove(xid, future)) {
+					future.fail(new TimeoutException("No reply to xid "
+							+ xid));
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Completes the pending request of a reply, if any.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> void completeRequest(long xid, int retval, T info) {
+		HostCtrlFuture<T> future = (HostCtrlFuture<T>) pending.remove(Long
+				.valueOf(xid));
+
+		if (future != null) {
+			future.complete(retval, info);
+		}
+	}
+
+	/**
+	 * Pairs replies with pending requests and passes every event on to
+	 * the user's callbacks.
+	 */
+	private class Dispatcher extends HostCtrlCallbacks {
+		@Override
+		public void onServiceRegistration(ServiceID id, int flags,
+				int prefixBits, InetAddress addr, InetAddress oldAddr) {
+			if (userCallbacks != null)
+				userCallbacks.onServiceRegistration(id, flags, prefixBits,
+						addr, oldAddr);
+		}
+
+		@Override
+		public void onServiceUnregistration(ServiceID id, int flags,
+				int prefixBits, InetAddress addr) {
+			if (userCallbacks != null)
+				userCallbacks.onServiceUnregistration(id, flags, prefixBits,
+						addr);
+		}
+
+		@Override
+		public void onServiceAdd(long xid, int retval, ServiceInfo[] info) {
+			completeRequest(xid, retval, info);
+			if (userCallbacks != null)
+				userCallbacks.onServiceAdd(xid, retval, info);
+		}
+
+		@Override
+		public void onServiceRemove(long xid, int retval,
+				ServiceInfoStat[] info) {
+			completeRequest(xid, retval, info);
+			if (userCallbacks != null)
+				userCallbacks.onServiceRemove(xid, retval, info);
+		}
+
+		@Override
+		public void onServiceModify(long xid, int retval,
+				ServiceInfo[] info) {
+			completeRequest(xid, retval, info);
+			if (userCallbacks != null)
+				userCallbacks.onServiceModify(xid, retval, info);
+		}
+
+		@Override
+		public void onServiceGet(long xid, int retval, ServiceInfo[] info) {
+			completeRequest(xid, retval, info);
+			if (userCallbacks != null)
+				userCallbacks.onServiceGet(xid, retval, info);
+		}
+
+		@Override
+		public void onServiceDelayed(long xid, long pktId, ServiceID service) {
+			if (userCallbacks != null)
+				userCallbacks.onServiceDelayed(xid, pktId, service);
+		}
+
+		@Override
+		public void onFlowStatUpdate(long xid, int retval, FlowStat[] stats,
+				boolean more) {
+			if (userCallbacks != null)
+				userCallbacks.onFlowStatUpdate(xid, retval, stats, more);
+		}
+	}
+
 	public synchronized void dispose() {
 		if (!isDisposed) {
 			isDisposed = true;
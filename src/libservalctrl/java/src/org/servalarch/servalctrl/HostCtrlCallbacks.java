@@ -116,10 +116,23 @@ public abstract class HostCtrlCallbacks {
 	 *            Return value indicating the result of the call that generated
 	 *            this event.
 	 * @param info
-	 *            The service information statistics this events concerns.
+	 *            The modified service information this events concerns.
 	 */
-	public void onServiceModify(long xid, int retval, ServiceInfoStat[] info) {
+	public void onServiceModify(long xid, int retval, ServiceInfo[] info) {
+
+	}
 
+	/**
+	 * Called as a result of a previous service modification request.
+	 *
+	 * @deprecated Modification replies carry {@link ServiceInfo}, without
+	 *             statistics; override
+	 *             {@link #onServiceModify(long, int, ServiceInfo[])}
+	 *             instead, to which this method delegates.
+	 */
+	@Deprecated
+	public void onServiceModify(long xid, int retval, ServiceInfoStat[] info) {
+		onServiceModify(xid, retval, (ServiceInfo[]) info);
 	}
 
 	/**
@@ -0,0 +1,222 @@
+/* -*- Mode: Java; tab-width: 4; indent-tabs-mode: nil; c-basic-offset: 4 -*- */
+package org.servalarch.servalctrl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous host control request, completed
+ * when the reply with the request's transaction ID arrives.
+ * <p>
+ * The result is the service information of the reply. The reply's
+ * return value, one of the {@code HostCtrlCallbacks.RETVAL_*}
+ * constants, is available from {@link #getRetval()} once the request is
+ * done. A request that gets no reply within its timeout fails with a
+ * {@link TimeoutException} as the cause of the {@code
+ * ExecutionException} thrown by {@link #get()}.
+ *
+ * @param <T>
+ *            the type of the service information in the reply.
+ */
+public class HostCtrlFuture<T> implements Future<T> {
+
+	/**
+	 * Receives the completion of a request. Listeners run on the thread
+	 * that completes the request, usually the host control callback
+	 * thread, and should therefore not block.
+	 */
+	public interface Listener<T> {
+		void onComplete(HostCtrlFuture<T> future);
+	}
+
+	private static final int PENDING = 0;
+	private static final int DONE = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	private final long xid;
+	// Requests awaiting a reply of the host control, left on cancel
+	private final ConcurrentMap<Long, HostCtrlFuture<?>> pending;
+	private int state = PENDING;
+	private int retval = -1;
+	private T result;
+	private Throwable cause;
+	private List<Listener<T>> listeners;
+	// Fails the request if no reply arrives in time, stopped once done
+	private ScheduledFuture<?> timeout;
+
+	HostCtrlFuture(long xid, ConcurrentMap<Long, HostCtrlFuture<?>> pending) {
+		this.xid = xid;
+		this.pending = pending;
+	}
+
+	/**
+	 * Returns the transaction ID of the request.
+	 */
+	public long getXid() {
+		return xid;
+	}
+
+	/**
+	 * Returns the return value of the reply, or -1 if the request is
+	 * not done or did not get a reply.
+	 */
+	public synchronized int getRetval() {
+		return retval;
+	}
+
+	/**
+	 * Adds a listener that is called when the request completes, or
+	 * immediately if it already has.
+	 */
+	public void addListener(Listener<T> listener) {
+		synchronized (this) {
+			if (state == PENDING) {
+				if (listeners == null) {
+					listeners = new ArrayList<Listener<T>>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.onComplete(this);
+	}
+
+	/**
+	 * Sets the task that times the request out, which is stopped when
+	 * the request completes. The reply may already have arrived, in
+	 * which case the task is stopped right away.
+	 */
+	void setTimeout(ScheduledFuture<?> timeout) {
+		synchronized (this) {
+			if (state == PENDING) {
+				this.timeout = timeout;
+				return;
+			}
+		}
+		timeout.cancel(false);
+	}
+
+	boolean complete(int retval, T result) {
+		synchronized (this) {
+			if (state != PENDING)
+				return false;
+			this.retval = retval;
+			this.result = result;
+			state = DONE;
+			notifyAll();
+		}
+		finish();
+		return true;
+	}
+
+	boolean fail(Throwable cause) {
+		synchronized (this) {
+			if (state != PENDING)
+				return false;
+			this.cause = cause;
+			state = FAILED;
+			notifyAll();
+		}
+		finish();
+		return true;
+	}
+
+	/**
+	 * Stops the timeout of a request that is no longer pending and
+	 * calls its listeners.
+	 */
+	private void finish() {
+		List<Listener<T>> l;
+		ScheduledFuture<?> t;
+
+		synchronized (this) {
+			l = listeners;
+			listeners = null;
+			t = timeout;
+			timeout = null;
+		}
+		if (t != null)
+			t.cancel(false);
+		if (l == null)
+			return;
+		for (Listener<T> listener : l) {
+			listener.onComplete(this);
+		}
+	}
+
+	/**
+	 * Cancels waiting for the reply. The request itself has already
+	 * been sent and cannot be withdrawn; a late reply is ignored.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (state != PENDING)
+				return false;
+			state = CANCELLED;
+			notifyAll();
+		}
+		// Only this future, as the transaction ID may have wrapped
+		pending.remove(Long.valueOf(xid), this);
+		finish();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return state == CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return state != PENDING;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException,
+			ExecutionException {
+		while (state == PENDING) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (state == PENDING) {
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	private T getResult() throws ExecutionException {
+		switch (state) {
+		case CANCELLED:
+			throw new CancellationException();
+		case FAILED:
+			throw new ExecutionException(cause);
+		default:
+			return result;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HostCtrlFuture[xid=" + xid + "]";
+	}
+}
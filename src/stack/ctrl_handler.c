@@ -280,7 +280,9 @@ static int ctrl_handle_mod_service_msg(struct ctrlmsg *cm, int peer)
                                           buf, 18));
                 }
 #endif
-                dev = resolve_dev(entry_old);
+                /* The target moves to the interface that routes
+                   its new address */
+                dev = resolve_dev(entry_new);
                 
                 if (!dev)
                         continue;
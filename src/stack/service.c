@@ -420,7 +420,7 @@ static int __service_entry_modify_target(struct service_entry *se,
                    input... */
                 rt = serval_ip_route_output(&init_net, 
                                             dst_ip,
-                                            0, 0, t->out.oif);
+                                            0, 0, out.oif);
                 if (!rt)
                         return 0;
         }
@@ -429,6 +429,11 @@ static int __service_entry_modify_target(struct service_entry *se,
         if (new_dstlen == t->dstlen && new_dst)
                 memcpy(t->dst, new_dst, new_dstlen);
 
+        /* Move the target to the new interface in place, so that a
+           handover never leaves the service without a rule */
+        if (out.oif)
+                t->out.oif = out.oif;
+
         if (set->priority != priority) {
                 struct target_set *nset;
 